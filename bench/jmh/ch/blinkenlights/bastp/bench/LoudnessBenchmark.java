@@ -0,0 +1,61 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.android.vanilla.LoudnessMeter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/* Measures the LoudnessMeter of the player in samples (of all channels)
+** per second, on stereo noise. Each thread has its own meter, so the
+** score of a single thread is the speed per core: run with '-t N' to
+** see how it scales
+*/
+@State(Scope.Thread)
+public class LoudnessBenchmark {
+	private static final int CHANNELS = 2;
+	private static final int FRAMES   = 4096;
+	
+	/* true peak oversampling is skipped from 96kHz on */
+	@Param({ "44100", "96000" })
+	public int rate;
+	
+	private LoudnessMeter meter;
+	private float[] buffer;
+	
+	@Setup
+	public void setup() {
+		meter  = new LoudnessMeter(CHANNELS, rate);
+		buffer = new float[FRAMES * CHANNELS];
+		Random random = new Random(42);
+		for(int i=0; i<buffer.length; i++)
+			buffer[i] = (float)(random.nextGaussian() * 0.1);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(FRAMES * CHANNELS)
+	public void samples() {
+		meter.process(buffer, FRAMES);
+	}
+	
+}
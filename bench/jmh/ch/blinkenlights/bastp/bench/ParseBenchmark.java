@@ -0,0 +1,117 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.TagSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/* Measures Bastp.getTags over the synthetic corpus of CorpusGenerator.
+** Run with '-prof gc' to get the allocation rate per call.
+**
+**  warm*  = the file is in the page cache, this measures the parser
+**  cold*  = the page cache is dropped before every call by running the
+**           command in $BASTP_DROP_CACHES, which usually needs root:
+**           BASTP_DROP_CACHES='sync; echo 3 > /proc/sys/vm/drop_caches'
+**           without it, the cold benchmarks measure a warm cache
+*/
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+	/* the keys the TagCache of the player asks for */
+	private static final EnumSet<TagSet.Key> CACHE_KEYS = EnumSet.of(
+		TagSet.Key.REPLAYGAIN_TRACK_GAIN, TagSet.Key.REPLAYGAIN_ALBUM_GAIN,
+		TagSet.Key.ALBUMARTIST, TagSet.Key.DISCNUMBER, TagSet.Key.PICTURE);
+	
+	@Param({ "flac", "ogg", "opus", "id3v23", "id3v24" })
+	public String format;
+	
+	@Param({ "16", "256" })
+	public int comments;
+	
+	@Param({ "0", "65536", "1048576" })
+	public int art;
+	
+	private File dir;
+	private String fname;
+	private String drop_caches;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = File.createTempFile("bastp", "");
+		dir.delete();
+		dir.mkdirs();
+		fname = (new CorpusGenerator(comments, art)).write(dir, format).getPath();
+		drop_caches = System.getenv("BASTP_DROP_CACHES");
+	}
+	
+	@TearDown(Level.Trial)
+	public void teardown() {
+		new File(fname).delete();
+		dir.delete();
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public TagSet warmAll() {
+		return (new Bastp()).getTags(fname);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public TagSet warmSelective() {
+		return (new Bastp()).getTags(fname, CACHE_KEYS);
+	}
+	
+	
+	/* Drops the page cache before every invocation of the cold benchmarks */
+	@State(Scope.Thread)
+	public static class ColdCache {
+		@Setup(Level.Invocation)
+		public void drop(ParseBenchmark b) throws IOException, InterruptedException {
+			if(b.drop_caches == null)
+				return;
+			Process p = new ProcessBuilder("/bin/sh", "-c", b.drop_caches).inheritIO().start();
+			if(p.waitFor() != 0)
+				throw new IOException("'"+b.drop_caches+"' failed");
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public TagSet coldAll(ColdCache cold) {
+		return (new Bastp()).getTags(fname);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public TagSet coldSelective(ColdCache cold) {
+		return (new Bastp()).getTags(fname, CACHE_KEYS);
+	}
+	
+}
@@ -0,0 +1,79 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.android.vanilla.QueueShuffle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/* Compares the album shuffle of the queue against the old one, which
+** merge sorted the whole queue by album and track and then swapped the
+** album runs. The queue is a mix of albums of 'tracks' songs each, in
+** random order, as built by enqueueing from the library
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShuffleBenchmark {
+	
+	@Param({ "10000", "50000", "200000" })
+	public int songs;
+	
+	@Param({ "12" })
+	public int tracks;
+	
+	private long[] album_ids;
+	private int[]  track_numbers;
+	private Random random;
+	
+	@Setup
+	public void setup() {
+		Random setup_random = new Random(42);
+		album_ids     = new long[songs];
+		track_numbers = new int[songs];
+		for(int i=0; i<songs; i++) {
+			album_ids[i]     = 1000 + i / tracks;
+			track_numbers[i] = 1 + i % tracks;
+		}
+		for(int i=songs-1; i>0; i--) {
+			int j = setup_random.nextInt(i + 1);
+			long a = album_ids[i];     album_ids[i]     = album_ids[j];     album_ids[j]     = a;
+			int  t = track_numbers[i]; track_numbers[i] = track_numbers[j]; track_numbers[j] = t;
+		}
+		random = new Random(1);
+	}
+	
+	@Benchmark
+	public int[] grouped() {
+		return QueueShuffle.shuffle(album_ids, track_numbers, 0, songs, true, random);
+	}
+	
+	@Benchmark
+	public int[] sorted() {
+		return ShuffleCheck.sorted_shuffle(album_ids, track_numbers, songs, random);
+	}
+	
+	@Benchmark
+	public int[] songs() {
+		return QueueShuffle.shuffle(album_ids, track_numbers, 0, songs, false, random);
+	}
+	
+}
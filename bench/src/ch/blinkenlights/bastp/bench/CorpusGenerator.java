@@ -0,0 +1,527 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+
+/* Writes synthetic audio files for the benchmarks: the headers and
+** tags are valid, the audio data is random junk. Every file has the
+** usual text tags, ReplayGain values, 'comments' filler comments and
+** (if 'art' is > 0) an embedded picture of 'art' bytes
+**
+** The ID3 conformance fixtures cover the variants of the ID3v2 tag
+** layout the parser has to handle, see id3_fixture()
+**
+**  java ...CorpusGenerator OUTDIR [COMMENTS] [ART_BYTES]
+*/
+public class CorpusGenerator {
+	public static final String[] FORMATS = { "flac", "ogg", "opus", "id3v23", "id3v24" };
+	
+	/* ID3v2 conformance fixtures, see id3_fixture() */
+	public static final String[] ID3_FIXTURES = {
+		"id3v22", "id3v23", "id3v23-unsync", "id3v23-exthdr",
+		"id3v24", "id3v24-unsync", "id3v24-exthdr", "id3v24-itunes" };
+	/* the values of the TXXX:REPLAYGAIN_* frames of the fixtures: the
+	** LAME header says +6.5 dB, so we can tell where a value came from */
+	public static final String FIXTURE_TRACK_GAIN = "-6.54 dB";
+	public static final String FIXTURE_ALBUM_GAIN = "-7.12 dB";
+	public static final int    FIXTURE_ART_BYTES  = 2048;
+	
+	private static final int SAMPLE_RATE = 44100;
+	private static final int SECONDS     = 10;
+	private static final int AUDIO_BYTES = 65536;
+	
+	private final int comments;
+	private final int art;
+	private final Random random = new Random(42);
+	
+	public CorpusGenerator(int comments, int art) {
+		this.comments = comments;
+		this.art      = art;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("usage: CorpusGenerator OUTDIR [COMMENTS] [ART_BYTES]");
+			System.exit(1);
+		}
+		File dir     = new File(args[0]);
+		int comments = (args.length > 1 ? Integer.parseInt(args[1]) : 16);
+		int art      = (args.length > 2 ? Integer.parseInt(args[2]) : 65536);
+		
+		dir.mkdirs();
+		CorpusGenerator gen = new CorpusGenerator(comments, art);
+		for(String format : FORMATS) {
+			File f = gen.write(dir, format);
+			System.out.println(f.length()+"\t"+f);
+		}
+		for(String name : ID3_FIXTURES) {
+			File f = new File(dir, name+".mp3");
+			write_file(f, gen.id3_fixture(name));
+			System.out.println(f.length()+"\t"+f);
+		}
+	}
+	
+	/* Writes a file of the given format into 'dir' and returns it */
+	public File write(File dir, String format) throws IOException {
+		byte[] data;
+		String ext;
+		if(format.equals("flac")) {
+			data = flac();
+			ext  = ".flac";
+		}
+		else if(format.equals("ogg")) {
+			data = ogg(false);
+			ext  = ".ogg";
+		}
+		else if(format.equals("opus")) {
+			data = ogg(true);
+			ext  = ".opus";
+		}
+		else if(format.equals("id3v23")) {
+			data = mp3(3);
+			ext  = ".mp3";
+		}
+		else if(format.equals("id3v24")) {
+			data = mp3(4);
+			ext  = ".mp3";
+		}
+		else {
+			throw new IllegalArgumentException("Unknown format: "+format);
+		}
+		
+		File f = new File(dir, format+"-c"+comments+"-a"+art+ext);
+		write_file(f, data);
+		return f;
+	}
+	
+	private static void write_file(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/* The comments of every file as KEY=VALUE */
+	private String[] comments() {
+		String[] c = new String[7 + comments];
+		c[0] = "TITLE=Synthetic Track";
+		c[1] = "ARTIST=Bench Artist";
+		c[2] = "ALBUM=Bench Album";
+		c[3] = "ALBUMARTIST=Various Artists";
+		c[4] = "DISCNUMBER=1/2";
+		for(int i=0; i<comments; i++)
+			c[5+i] = "COMMENT"+i+"=filler value number "+i+" which is about as long as a real one";
+		// gains come last, so early exit has to walk everything
+		c[5+comments] = "REPLAYGAIN_TRACK_GAIN=-6.54 dB";
+		c[6+comments] = "REPLAYGAIN_ALBUM_GAIN=-7.12 dB";
+		return c;
+	}
+	
+	private byte[] junk(int len) {
+		byte[] b = new byte[len];
+		random.nextBytes(b);
+		return b;
+	}
+	
+	/* ---- FLAC ---- */
+	
+	private byte[] flac() throws IOException {
+		Buf out = new Buf();
+		out.ascii("fLaC");
+		
+		Buf si = new Buf();
+		si.be16(4096).be16(4096).be24(0).be24(0);
+		long samples = (long)SAMPLE_RATE * SECONDS;
+		si.be32((SAMPLE_RATE << 12) | (1 << 9) | (15 << 4) | (int)(samples >>> 32));
+		si.be32((int)samples);
+		si.bytes(new byte[16]); // md5
+		block(out, 0, si, false);
+		
+		block(out, 4, vorbis_comment(false), art == 0);
+		if(art > 0)
+			block(out, 6, flac_picture(), true);
+		
+		out.bytes(junk(AUDIO_BYTES));
+		return out.toByteArray();
+	}
+	
+	private void block(Buf out, int type, Buf payload, boolean last) {
+		out.u8((last ? 0x80 : 0) | type);
+		out.be24(payload.size());
+		out.bytes(payload.toByteArray());
+	}
+	
+	/* Returns a vorbis comment block, optionally with a base64
+	** encoded METADATA_BLOCK_PICTURE as the last comment */
+	private Buf vorbis_comment(boolean picture) throws IOException {
+		Buf vc = new Buf();
+		byte[] vendor = "bastp bench".getBytes("UTF-8");
+		vc.le32(vendor.length).bytes(vendor);
+		String[] c = comments();
+		vc.le32(c.length + (picture ? 1 : 0));
+		for(String s : c) {
+			byte[] b = s.getBytes("UTF-8");
+			vc.le32(b.length).bytes(b);
+		}
+		if(picture) {
+			byte[] b = ("METADATA_BLOCK_PICTURE="+base64(flac_picture().toByteArray())).getBytes("UTF-8");
+			vc.le32(b.length).bytes(b);
+		}
+		return vc;
+	}
+	
+	private Buf flac_picture() throws IOException {
+		Buf p = new Buf();
+		p.be32(3);
+		p.be32(10).ascii("image/jpeg");
+		p.be32(5).ascii("cover");
+		p.be32(500).be32(500).be32(24).be32(0);
+		p.be32(art).bytes(junk(art));
+		return p;
+	}
+	
+	/* ---- Ogg Vorbis and Opus ---- */
+	
+	private byte[] ogg(boolean opus) throws IOException {
+		OggWriter ogg = new OggWriter();
+		Buf id = new Buf();
+		Buf tags = new Buf();
+		
+		if(opus) {
+			id.ascii("OpusHead").u8(1).u8(2).le16(312).le32(SAMPLE_RATE).le16(0).u8(0);
+			tags.ascii("OpusTags");
+		}
+		else {
+			id.u8(1).ascii("vorbis").le32(0).u8(2).le32(SAMPLE_RATE).le32(0).le32(128000).le32(0).u8(0xB8).u8(1);
+			tags.u8(3).ascii("vorbis");
+		}
+		
+		// the picture is appended as one more comment
+		Buf vc = vorbis_comment(art > 0);
+		tags.bytes(vc.toByteArray());
+		if(!opus)
+			tags.u8(1); // framing bit
+		
+		ogg.packet(id.toByteArray(), 0, true);
+		ogg.packet(tags.toByteArray(), 0, false);
+		if(!opus)
+			ogg.packet(junk(3000), 0, false); // setup header
+		
+		long rate     = (opus ? 48000 : SAMPLE_RATE);
+		long granule  = (opus ? 312 : 0);
+		int  packets  = AUDIO_BYTES / 4096;
+		for(int i=1; i<=packets; i++)
+			ogg.packet(junk(4096), granule + rate * SECONDS * i / packets, false);
+		return ogg.finish();
+	}
+	
+	/* ---- MP3 with ID3v2.3/2.4 and a LAME header ---- */
+	
+	private byte[] mp3(int version) throws IOException {
+		Buf frames = new Buf();
+		String[] c = comments();
+		String[] ids = { "TIT2", "TPE1", "TALB", "TPE2", "TPOS" };
+		for(int i=0; i<ids.length; i++)
+			id3_frame(frames, version, ids[i], text(c[i].substring(c[i].indexOf('=')+1)));
+		for(int i=ids.length; i<c.length; i++) {
+			String key = c[i].substring(0, c[i].indexOf('='));
+			String val = c[i].substring(c[i].indexOf('=')+1);
+			id3_frame(frames, version, "TXXX", text(key+"\0"+val));
+		}
+		if(art > 0) {
+			Buf apic = new Buf();
+			apic.u8(0).ascii("image/jpeg").u8(0).u8(3).ascii("cover").u8(0).bytes(junk(art));
+			id3_frame(frames, version, "APIC", apic);
+		}
+		
+		Buf out = new Buf();
+		int size = frames.size() + 1024; // with some padding
+		out.ascii("ID3").u8(version).u8(0).u8(0).syncsafe(size);
+		out.bytes(frames.toByteArray()).bytes(new byte[1024]);
+		mpeg_audio(out, size + AUDIO_BYTES);
+		return out.toByteArray();
+	}
+	
+	/* Appends MPEG frames starting with a LAME header to 'out',
+	** until it is 'limit' bytes long */
+	private void mpeg_audio(Buf out, int limit) {
+		// MPEG1 layer 3, 128kbit/s, 44.1kHz, joint stereo: 417 bytes per frame
+		int nframes   = SAMPLE_RATE * SECONDS / 1152;
+		byte[] header = { (byte)0xFF, (byte)0xFB, (byte)0x90, (byte)0x40 };
+		byte[] lame   = new byte[417];
+		System.arraycopy(header, 0, lame, 0, 4);
+		Buf xing = new Buf();
+		xing.ascii("Info").be32(3).be32(nframes).be32(nframes*417);
+		System.arraycopy(xing.toByteArray(), 0, lame, 0x24, xing.size());
+		lame[0x24+0x87] = 0x2C;  // track gain: 'set by user', +6.5dB
+		lame[0x24+0x88] = 0x41;
+		out.bytes(lame);
+		for(int i=0; i<nframes && out.size() < limit; i++) {
+			byte[] frame = junk(417);
+			System.arraycopy(header, 0, frame, 0, 4);
+			out.bytes(frame);
+		}
+	}
+	
+	/* ---- ID3v2 conformance fixtures ---- */
+	
+	/* Returns the mp3 file of the given fixture. Every fixture has
+	** the title "Fixture <name>", two filler TXXX frames of 300 and
+	** 200 bytes (both sizes are ambiguous in v2.4 files written with
+	** plain sizes), a back cover with fixture_art() of half the size,
+	** the front cover with fixture_art() and the TXXX
+	** REPLAYGAIN_* frames last, encoded as UTF-16 with BOMs:
+	**
+	**  id3v22         v2.2 with 3 byte frame names and sizes
+	**  id3v23         v2.3 with plain 32 bit frame sizes
+	**  id3v23-unsync  v2.3, the whole tag is unsynchronised
+	**  id3v23-exthdr  v2.3 with an extended header including a CRC
+	**  id3v24         v2.4 with syncsafe frame sizes
+	**  id3v24-unsync  v2.4, every frame is unsynchronised
+	**  id3v24-exthdr  v2.4 with an extended header including a CRC
+	**  id3v24-itunes  v2.4 with plain 32 bit frame sizes, as written
+	**                 by iTunes
+	*/
+	public byte[] id3_fixture(String name) throws IOException {
+		int     version = name.charAt(5) - '0';
+		boolean unsync  = name.endsWith("-unsync");
+		boolean exthdr  = name.endsWith("-exthdr");
+		boolean plain   = name.endsWith("-itunes");
+		
+		String[] ids = (version == 2 ? new String[] { "TT2", "TP1", "TXX", "PIC" } : new String[] { "TIT2", "TPE1", "TXXX", "APIC" });
+		Buf frames = new Buf();
+		fixture_frame(frames, version, unsync, plain, ids[0], latin1("Fixture "+name));
+		fixture_frame(frames, version, unsync, plain, ids[1], latin1("Bench Artist"));
+		fixture_frame(frames, version, unsync, plain, ids[2], filler(300));
+		fixture_frame(frames, version, unsync, plain, ids[2], filler(200));
+		
+		fixture_frame(frames, version, unsync, plain, ids[3], fixture_picture(version, 4, FIXTURE_ART_BYTES / 2));
+		fixture_frame(frames, version, unsync, plain, ids[3], fixture_picture(version, 3, FIXTURE_ART_BYTES));
+		
+		fixture_frame(frames, version, unsync, plain, ids[2], utf16("REPLAYGAIN_TRACK_GAIN", FIXTURE_TRACK_GAIN));
+		fixture_frame(frames, version, unsync, plain, ids[2], utf16("REPLAYGAIN_ALBUM_GAIN", FIXTURE_ALBUM_GAIN));
+		
+		Buf body = new Buf();
+		int flags = 0;
+		if(exthdr) {
+			flags |= 0x40;
+			if(version == 3) // size excluding itself, flags (CRC present), padding size, CRC
+				body.be32(10).be16(0x8000).be32(256).be32(0x12345678);
+			else             // size including itself, one flag byte (CRC present), 5 byte syncsafe CRC
+				body.syncsafe(12).u8(1).u8(0x20).u8(5).syncsafe(0x12345678).u8(0x7F);
+		}
+		byte[] raw = frames.toByteArray();
+		if(unsync) {
+			flags |= 0x80;
+			if(version < 4)
+				raw = unsynchronise(raw); // v2.4 frames were done one by one
+		}
+		body.bytes(raw).bytes(new byte[256]);
+		
+		Buf out = new Buf();
+		out.ascii("ID3").u8(version).u8(0).u8(flags).syncsafe(body.size());
+		out.bytes(body.toByteArray());
+		mpeg_audio(out, out.size() + AUDIO_BYTES);
+		return out.toByteArray();
+	}
+	
+	/* An APIC (or v2.2 PIC) payload of the given picture type
+	** holding fixture_art(len) */
+	private Buf fixture_picture(int version, int type, int len) {
+		Buf pic = new Buf();
+		if(version == 2)
+			pic.u8(0).ascii("JPG").u8(type).ascii("cover").u8(0);
+		else
+			pic.u8(0).ascii("image/jpeg").u8(0).u8(type).ascii("cover").u8(0);
+		return pic.bytes(fixture_art(len));
+	}
+	
+	/* The picture of the fixtures: plenty of 0xFF followed by
+	** 0x00 or values >= 0xE0 to be unsynchronised */
+	public static byte[] fixture_art(int len) {
+		byte[] b = new byte[len];
+		for(int i=0; i<len; i++)
+			b[i] = (byte)(i % 3 == 0 ? 0xFF : i * 37);
+		return b;
+	}
+	
+	private void fixture_frame(Buf out, int version, boolean unsync, boolean plain, String id, Buf payload) {
+		byte[] data = payload.toByteArray();
+		int flags = 0;
+		if(version == 4 && unsync) {
+			data  = unsynchronise(data);
+			flags = 0x0002;
+		}
+		out.ascii(id);
+		if(version == 2)
+			out.be24(data.length);
+		else if(version == 4 && !plain)
+			out.syncsafe(data.length);
+		else
+			out.be32(data.length);
+		if(version > 2)
+			out.be16(flags);
+		out.bytes(data);
+	}
+	
+	/* A TXXX payload of exactly 'len' bytes */
+	private Buf filler(int len) throws IOException {
+		Buf b = latin1("FILLER\0");
+		while(b.size() < len)
+			b.u8('a' + b.size() % 26);
+		return b;
+	}
+	
+	private Buf latin1(String s) throws IOException {
+		Buf b = new Buf();
+		b.u8(0).bytes(s.getBytes("ISO-8859-1"));
+		return b;
+	}
+	
+	/* A TXXX payload with a BOM in front of both strings */
+	private Buf utf16(String desc, String value) throws IOException {
+		Buf b = new Buf();
+		b.u8(1).u8(0xFF).u8(0xFE).bytes(desc.getBytes("UTF-16LE")).u8(0).u8(0);
+		b.u8(0xFF).u8(0xFE).bytes(value.getBytes("UTF-16LE"));
+		return b;
+	}
+	
+	/* Inserts a 0x00 after every 0xFF that is followed by 0x00,
+	** a byte >= 0xE0 or nothing */
+	private static byte[] unsynchronise(byte[] b) {
+		Buf out = new Buf();
+		for(int i=0; i<b.length; i++) {
+			out.u8(b[i]);
+			if(b[i] == (byte)0xFF && (i+1 == b.length || b[i+1] == 0 || (b[i+1] & 0xE0) == 0xE0))
+				out.u8(0);
+		}
+		return out.toByteArray();
+	}
+	
+	private Buf text(String s) throws IOException {
+		Buf b = new Buf();
+		b.u8(3).bytes(s.getBytes("UTF-8"));
+		return b;
+	}
+	
+	private void id3_frame(Buf out, int version, String id, Buf payload) {
+		out.ascii(id);
+		if(version == 4)
+			out.syncsafe(payload.size());
+		else
+			out.be32(payload.size());
+		out.be16(0);
+		out.bytes(payload.toByteArray());
+	}
+	
+	private static String base64(byte[] b) {
+		final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		StringBuilder sb = new StringBuilder((b.length+2)/3*4);
+		for(int i=0; i<b.length; i+=3) {
+			int n = (b[i] & 0xFF) << 16;
+			if(i+1 < b.length) n |= (b[i+1] & 0xFF) << 8;
+			if(i+2 < b.length) n |= (b[i+2] & 0xFF);
+			sb.append(alphabet.charAt((n >> 18) & 63));
+			sb.append(alphabet.charAt((n >> 12) & 63));
+			sb.append(i+1 < b.length ? alphabet.charAt((n >> 6) & 63) : '=');
+			sb.append(i+2 < b.length ? alphabet.charAt(n & 63) : '=');
+		}
+		return sb.toString();
+	}
+	
+	
+	/* A byte buffer with the encoders we need */
+	private static class Buf extends ByteArrayOutputStream {
+		Buf ascii(String s) {
+			for(int i=0; i<s.length(); i++)
+				u8(s.charAt(i));
+			return this;
+		}
+		Buf bytes(byte[] b) {
+			write(b, 0, b.length);
+			return this;
+		}
+		Buf u8(int b) {
+			write(b);
+			return this;
+		}
+		Buf be16(int v) { return u8(v >> 8).u8(v); }
+		Buf be24(int v) { return u8(v >> 16).u8(v >> 8).u8(v); }
+		Buf be32(int v) { return u8(v >> 24).u8(v >> 16).u8(v >> 8).u8(v); }
+		Buf le16(int v) { return u8(v).u8(v >> 8); }
+		Buf le32(int v) { return u8(v).u8(v >> 8).u8(v >> 16).u8(v >> 24); }
+		Buf syncsafe(int v) { return u8((v >> 21) & 0x7F).u8((v >> 14) & 0x7F).u8((v >> 7) & 0x7F).u8(v & 0x7F); }
+	}
+	
+	/* Packs packets into ogg pages of up to 255 segments */
+	private static class OggWriter {
+		private final Buf out = new Buf();
+		private int sequence = 0;
+		
+		void packet(byte[] p, long granule, boolean bos) {
+			int off = 0;
+			boolean continued = false;
+			// a packet of n*255 bytes needs a trailing 0 lacing value
+			int segs_left = p.length / 255 + 1;
+			while(segs_left > 0) {
+				int nsegs = Math.min(segs_left, 255);
+				segs_left -= nsegs;
+				int len = Math.min(nsegs * 255, p.length - off);
+				page(p, off, len, nsegs, continued, bos && !continued, segs_left == 0 ? granule : -1);
+				off += len;
+				continued = true;
+			}
+		}
+		
+		private void page(byte[] p, int off, int len, int nsegs, boolean continued, boolean bos, long granule) {
+			Buf page = new Buf();
+			page.ascii("OggS").u8(0).u8((continued ? 1 : 0) | (bos ? 2 : 0));
+			page.le32((int)granule).le32((int)(granule >> 32));
+			page.le32(1).le32(sequence++).le32(0).u8(nsegs);
+			int left = len;
+			for(int i=0; i<nsegs; i++) {
+				page.u8(Math.min(left, 255));
+				left -= Math.min(left, 255);
+			}
+			page.write(p, off, len);
+			byte[] b = page.toByteArray();
+			int crc = crc(b);
+			b[22] = (byte)crc;
+			b[23] = (byte)(crc >> 8);
+			b[24] = (byte)(crc >> 16);
+			b[25] = (byte)(crc >> 24);
+			out.bytes(b);
+		}
+		
+		byte[] finish() {
+			return out.toByteArray();
+		}
+		
+		private static int crc(byte[] b) {
+			int crc = 0;
+			for(int i=0; i<b.length; i++) {
+				crc ^= (b[i] & 0xFF) << 24;
+				for(int j=0; j<8; j++)
+					crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+			}
+			return crc;
+		}
+	}
+	
+}
@@ -0,0 +1,429 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.android.vanilla.FlacDecoder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+
+/* Checks the pure Java FLAC decoder of the loudness analyzer against
+** streams written by the encoder below, which uses every feature of
+** the format the decoder handles:
+**
+**  - CONSTANT, VERBATIM, FIXED (orders 0-4) and LPC (orders 1-32)
+**    subframes, with and without wasted bits
+**  - independent, left/side, right/side and mid/side channels
+**  - Rice partitions with 4 and 5 bit parameters and escape codes
+**  - all ways to code the block size and the sample rate, multi byte
+**    frame numbers, extra metadata blocks and a leading ID3v2 tag
+**  - 8, 16 and 24 bit samples, 1, 2 and 6 channels
+**
+** The decoded samples have to match the encoded ones exactly. Prints
+** the decode speed in samples/s; exits with status 1 if a check fails
+**
+**  java ...FlacCheck [FRAMES_PER_STREAM] [SEED]
+*/
+public class FlacCheck {
+	private static final int[][] STREAMS = {
+		// bits, channels, sample rate
+		{ 16, 2, 44100 },
+		{ 24, 2, 96000 },
+		{  8, 1, 8000 },
+		{ 16, 6, 48000 },
+		{ 24, 1, 22050 },
+	};
+	private static final int[] BLOCK_SIZES = { 4096, 1152, 192, 576, 4608, 1000, 17, 2048, 4095 };
+	
+	private final Random random;
+	
+	public FlacCheck(long seed) {
+		random = new Random(seed);
+	}
+	
+	public static void main(String[] args) throws IOException {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long seed  = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		System.out.println("frames="+frames+" seed="+seed);
+		FlacCheck check = new FlacCheck(seed);
+		
+		boolean ok = true;
+		for(int[] s : STREAMS) {
+			for(int id3=0; id3<2; id3++) {
+				String name = s[0]+" bit, "+s[1]+" channels, "+s[2]+" Hz"+(id3 == 1 ? ", ID3v2" : "");
+				String error = check.run(s[0], s[1], s[2], frames, id3 == 1);
+				System.out.println(name+": "+(error == null ? "ok" : "FAILED: "+error));
+				ok &= (error == null);
+			}
+		}
+		System.exit(ok ? 0 : 1);
+	}
+	
+	/* Encodes a stream, decodes it again and returns what went wrong or null */
+	private String run(int bits, int channels, int rate, int nframes, boolean id3) throws IOException {
+		int[][] pcm = signal(bits, channels, nframes * 2048);
+		int total   = 0;
+		
+		BitWriter out = new BitWriter();
+		if(id3) {
+			out.bytes("ID3".getBytes("ISO-8859-1"));
+			out.bits(4, 8).bits(0, 8).bits(0, 8);
+			out.bits(0, 8).bits(0, 8).bits(2, 8).bits(0, 8); // 256 bytes
+			out.bytes(new byte[256]);
+		}
+		out.bytes("fLaC".getBytes("ISO-8859-1"));
+		// STREAMINFO, then PADDING and an APPLICATION block
+		out.bits(0, 1).bits(0, 7).bits(34, 24);
+		out.bits(16, 16).bits(4608, 16).bits(0, 24).bits(0, 24);
+		out.bits(rate, 20).bits(channels-1, 3).bits(bits-1, 5).bits(0, 4).bits(0, 32);
+		out.bytes(new byte[16]);
+		out.bits(0, 1).bits(1, 7).bits(100, 24).bytes(new byte[100]);
+		out.bits(1, 1).bits(2, 7).bits(8, 24).bytes("test1234".getBytes("ISO-8859-1"));
+		
+		int off = 0;
+		for(int f=0; f<nframes; f++) {
+			int n = BLOCK_SIZES[f % BLOCK_SIZES.length];
+			if(off + n > pcm[0].length)
+				break;
+			frame(out, pcm, off, n, bits, rate, f);
+			off += n;
+		}
+		total = off;
+		
+		File tmp = File.createTempFile("flaccheck", ".flac");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				fos.write(out.toByteArray());
+			} finally {
+				fos.close();
+			}
+			
+			if(!FlacDecoder.isFlac(tmp.getPath()))
+				return "not recognized as FLAC";
+			FlacDecoder decoder = new FlacDecoder(tmp.getPath());
+			try {
+				if(decoder.getChannels() != channels || decoder.getSampleRate() != rate)
+					return "format is "+decoder.getChannels()+"/"+decoder.getSampleRate();
+				
+				float scale = 1f / (1 << (bits-1));
+				float[] buf = new float[1000 * channels]; // smaller than most blocks
+				long start  = System.nanoTime();
+				int pos = 0;
+				for(int n; (n = decoder.read(buf)) != -1; ) {
+					for(int i=0; i<n; i++) {
+						for(int c=0; c<channels; c++) {
+							if(pos + i >= total || buf[i*channels+c] != pcm[c][pos+i] * scale)
+								return "sample "+(pos+i)+" of channel "+c+" differs";
+						}
+					}
+					pos += n;
+				}
+				long ns = System.nanoTime() - start;
+				if(pos != total)
+					return "decoded "+pos+" of "+total+" samples";
+				System.out.printf("  %.1f M samples/s%n", (double)total * channels * 1000 / ns);
+			} finally {
+				decoder.close();
+			}
+		} finally {
+			tmp.delete();
+		}
+		return null;
+	}
+	
+	/* A few sines with some noise, a silent stretch and a stretch
+	** that only uses the upper bits */
+	private int[][] signal(int bits, int channels, int len) {
+		int[][] pcm = new int[channels][len];
+		int max = (1 << (bits-1)) - 1;
+		for(int c=0; c<channels; c++) {
+			double f1 = 0.01 + random.nextDouble() * 0.05;
+			double f2 = 0.1 + random.nextDouble() * 0.2;
+			for(int i=0; i<len; i++) {
+				double v = 0.5 * Math.sin(i * f1) + 0.2 * Math.sin(i * f2 + c) + 0.05 * (random.nextDouble() - 0.5);
+				int s = (int)Math.round(v * max);
+				if(i / 4096 % 7 == 3)
+					s = 0;                            // constant
+				else if(i / 4096 % 7 == 5)
+					s &= ~7;                          // wasted bits
+				else if(i / 4096 % 7 == 6 && c == 1)
+					s = pcm[0][i];                    // left == right
+				pcm[c][i] = Math.max(-max - 1, Math.min(max, s));
+			}
+		}
+		return pcm;
+	}
+	
+	/* ---- the encoder ---- */
+	
+	private void frame(BitWriter out, int[][] pcm, int off, int n, int bits, int rate, int number) {
+		int channels = pcm.length;
+		int assignment = channels - 1;
+		if(channels == 2)
+			assignment = (number % 4 == 0 ? 1 : 7 + number % 4); // independent, left/side, right/side, mid/side
+		
+		int[][] ch = new int[channels][];
+		int[]   chbits = new int[channels];
+		for(int c=0; c<channels; c++) {
+			ch[c] = new int[n];
+			System.arraycopy(pcm[c], off, ch[c], 0, n);
+			chbits[c] = bits;
+		}
+		if(assignment >= 8) {
+			int[] l = ch[0], r = ch[1];
+			int[] side = new int[n], mid = new int[n];
+			for(int i=0; i<n; i++) {
+				side[i] = l[i] - r[i];
+				mid[i]  = (l[i] + r[i]) >> 1;
+			}
+			if(assignment == 8) {
+				ch[1] = side; chbits[1]++;
+			}
+			else if(assignment == 9) {
+				ch[0] = side; chbits[0]++;
+			}
+			else {
+				ch[0] = mid; ch[1] = side; chbits[1]++;
+			}
+		}
+		
+		BitWriter f = new BitWriter();
+		f.bits(0xFFF8, 16);
+		int bs_code;
+		if(n == 192)        bs_code = 1;
+		else if(n == 576)   bs_code = 2;
+		else if(n == 4608)  bs_code = 5;
+		else if(n == 4096)  bs_code = 12;
+		else if(n == 2048)  bs_code = 11;
+		else if(n <= 256)   bs_code = 6;
+		else                bs_code = 7;
+		int sr_code = new int[] { 0, 12, 13, 14 }[number % 4];
+		if(sr_code == 12 && rate % 1000 != 0) sr_code = 13;
+		if(sr_code == 14 && rate % 10 != 0)   sr_code = 13;
+		if(sr_code == 13 && rate > 65535)     sr_code = 0;
+		int ss_code = (number % 2 == 0 ? 0 : bits == 8 ? 1 : bits == 16 ? 4 : 6);
+		f.bits(bs_code, 4).bits(sr_code, 4).bits(assignment, 4).bits(ss_code, 3).bits(0, 1);
+		utf8(f, number + (number % 3) * 70000); // one to four bytes
+		if(bs_code == 6)  f.bits(n-1, 8);
+		if(bs_code == 7)  f.bits(n-1, 16);
+		if(sr_code == 12) f.bits(rate / 1000, 8);
+		if(sr_code == 13) f.bits(rate, 16);
+		if(sr_code == 14) f.bits(rate / 10, 16);
+		f.bits(crc8(f.toByteArray()), 8);
+		
+		for(int c=0; c<channels; c++)
+			subframe(f, ch[c], chbits[c], number * channels + c);
+		f.align();
+		f.bits(crc16(f.toByteArray()), 16);
+		out.bytes(f.toByteArray());
+	}
+	
+	private void subframe(BitWriter f, int[] s, int bits, int k) {
+		int n = s.length;
+		boolean constant = true;
+		for(int i=1; i<n && constant; i++)
+			constant = (s[i] == s[0]);
+		if(constant) {
+			f.bits(0, 1).bits(0, 6).bits(0, 1).bits(s[0], bits);
+			return;
+		}
+		
+		int or = 0;
+		for(int i=0; i<n; i++)
+			or |= s[i];
+		int wasted = (or == 0 ? 0 : Integer.numberOfTrailingZeros(or));
+		int[] v = s;
+		if(wasted > 0) {
+			v = new int[n];
+			for(int i=0; i<n; i++)
+				v[i] = s[i] >> wasted;
+			bits -= wasted;
+		}
+		
+		int kind = k % 7;
+		int order;
+		if(kind == 0 || n < 40) {
+			header(f, 1, wasted);
+			for(int i=0; i<n; i++)
+				f.bits(v[i], bits);
+			return;
+		}
+		else if(kind <= 3) {
+			order = (k / 7) % 5;
+			header(f, 8 + order, wasted);
+			int[] res = new int[n];
+			for(int i=order; i<n; i++) {
+				int p;
+				switch(order) {
+					case 0:  p = 0; break;
+					case 1:  p = v[i-1]; break;
+					case 2:  p = 2*v[i-1] - v[i-2]; break;
+					case 3:  p = 3*v[i-1] - 3*v[i-2] + v[i-3]; break;
+					default: p = 4*v[i-1] - 6*v[i-2] + 4*v[i-3] - v[i-4]; break;
+				}
+				res[i] = v[i] - p;
+			}
+			for(int i=0; i<order; i++)
+				f.bits(v[i], bits);
+			residual(f, res, n, order, k);
+		}
+		else {
+			order = 1 + (k / 7) % 32;
+			int precision = 12 + (k % 4);
+			int shift = 10;
+			int[] coefs = new int[order];
+			// a second order predictor spread over the taps, plus noise
+			coefs[0] = (int)(1.8 * (1 << shift));
+			if(order > 1)
+				coefs[1] = -(int)(0.85 * (1 << shift));
+			for(int j=2; j<order; j++)
+				coefs[j] = random.nextInt(33) - 16;
+			header(f, 31 + order, wasted);
+			for(int i=0; i<order; i++)
+				f.bits(v[i], bits);
+			f.bits(precision - 1, 4).bits(shift, 5);
+			for(int j=0; j<order; j++)
+				f.bits(coefs[j], precision);
+			int[] res = new int[n];
+			for(int i=order; i<n; i++) {
+				long sum = 0;
+				for(int j=0; j<order; j++)
+					sum += (long)coefs[j] * v[i-1-j];
+				res[i] = v[i] - (int)(sum >> shift);
+			}
+			residual(f, res, n, order, k);
+		}
+	}
+	
+	private void header(BitWriter f, int type, int wasted) {
+		f.bits(0, 1).bits(type, 6);
+		if(wasted == 0) {
+			f.bits(0, 1);
+		}
+		else {
+			f.bits(1, 1);
+			for(int i=1; i<wasted; i++)
+				f.bits(0, 1);
+			f.bits(1, 1);
+		}
+	}
+	
+	/* Writes res[order..n) with as many partitions as fit */
+	private void residual(BitWriter f, int[] res, int n, int order, int k) {
+		int porder = 0;
+		while(porder < 8 && (n >> (porder+1)) << (porder+1) == n && (n >> (porder+1)) >= order && (n >> (porder+1)) >= 16)
+			porder++;
+		int method = (k % 2);                        // 5 bit parameters on every other subframe
+		int escape = (method == 0 ? 15 : 31);
+		f.bits(method, 2).bits(porder, 4);
+		int psize = n >> porder;
+		for(int p=0, i=order; p < (1 << porder); p++) {
+			int end = (p+1) * psize;
+			long sum = 0;
+			int  max = 0;
+			for(int j=i; j<end; j++) {
+				sum += Math.abs(res[j]);
+				max  = Math.max(max, Math.abs(res[j]));
+			}
+			int param = 0;
+			long mean = sum / Math.max(1, end - i);
+			while(param < escape - 1 && (1L << (param+1)) <= mean)
+				param++;
+			if(max == 0 || (k + p) % 5 == 0) {
+				// escape code with raw signed numbers
+				int rbits = (max == 0 ? 0 : 33 - Integer.numberOfLeadingZeros(max));
+				f.bits(escape, method == 0 ? 4 : 5).bits(rbits, 5);
+				for(; i<end; i++)
+					f.bits(res[i], rbits);
+			}
+			else {
+				f.bits(param, method == 0 ? 4 : 5);
+				for(; i<end; i++) {
+					int u = (res[i] << 1) ^ (res[i] >> 31);
+					for(int q = u >>> param; q > 0; q--)
+						f.bits(0, 1);
+					f.bits(1, 1).bits(u, param);
+				}
+			}
+		}
+	}
+	
+	private static void utf8(BitWriter f, int v) {
+		if(v < 0x80) {
+			f.bits(v, 8);
+		}
+		else if(v < 0x800) {
+			f.bits(0xC0 | v >> 6, 8).bits(0x80 | v & 0x3F, 8);
+		}
+		else if(v < 0x10000) {
+			f.bits(0xE0 | v >> 12, 8).bits(0x80 | v >> 6 & 0x3F, 8).bits(0x80 | v & 0x3F, 8);
+		}
+		else {
+			f.bits(0xF0 | v >> 18, 8).bits(0x80 | v >> 12 & 0x3F, 8).bits(0x80 | v >> 6 & 0x3F, 8).bits(0x80 | v & 0x3F, 8);
+		}
+	}
+	
+	private static int crc8(byte[] b) {
+		int crc = 0;
+		for(byte x : b) {
+			crc ^= x & 0xFF;
+			for(int i=0; i<8; i++)
+				crc = ((crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1) & 0xFF;
+		}
+		return crc;
+	}
+	
+	private static int crc16(byte[] b) {
+		int crc = 0;
+		for(byte x : b) {
+			crc ^= (x & 0xFF) << 8;
+			for(int i=0; i<8; i++)
+				crc = ((crc & 0x8000) != 0 ? (crc << 1) ^ 0x8005 : crc << 1) & 0xFFFF;
+		}
+		return crc;
+	}
+	
+	
+	/* Writes big endian bit fields */
+	private static class BitWriter extends ByteArrayOutputStream {
+		private long acc = 0;
+		private int  nacc = 0;
+		
+		/* Appends the lowest 'n' bits of 'v' */
+		BitWriter bits(long v, int n) {
+			for(int i=n-1; i>=0; i--) {
+				acc = (acc << 1) | ((v >>> i) & 1);
+				if(++nacc == 8) {
+					write((int)acc);
+					acc = nacc = 0;
+				}
+			}
+			return this;
+		}
+		BitWriter bytes(byte[] b) {
+			for(byte x : b)
+				bits(x, 8);
+			return this;
+		}
+		BitWriter align() {
+			while(nacc != 0)
+				bits(0, 1);
+			return this;
+		}
+	}
+	
+}
@@ -0,0 +1,101 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.MemorySource;
+import ch.blinkenlights.bastp.Picture;
+import ch.blinkenlights.bastp.TagSet;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+
+/* Parses the ID3v2 conformance fixtures of the CorpusGenerator and
+** checks for each of them that
+**
+**  - the TXXX:REPLAYGAIN_* values are found, with and without early
+**    exit, and not the gain of the LAME header
+**  - the title is found
+**  - the front cover is found at the right offset, with and without
+**    early exit, after a back cover, except in unsynchronised tags
+**    where it can not be read from the file
+**
+** Exits with status 1 if any check fails
+*/
+public class ID3Check {
+	private static final EnumSet<TagSet.Key> GAIN_KEYS = EnumSet.of(
+		TagSet.Key.REPLAYGAIN_TRACK_GAIN, TagSet.Key.REPLAYGAIN_ALBUM_GAIN);
+	private static final EnumSet<TagSet.Key> COVER_KEYS = EnumSet.of(TagSet.Key.PICTURE);
+	
+	public static void main(String[] args) throws IOException {
+		CorpusGenerator gen = new CorpusGenerator(0, 0);
+		boolean ok = true;
+		for(String name : CorpusGenerator.ID3_FIXTURES) {
+			String error = check(name, gen.id3_fixture(name));
+			System.out.println(name+": "+(error == null ? "ok" : "FAILED: "+error));
+			ok &= (error == null);
+		}
+		System.exit(ok ? 0 : 1);
+	}
+	
+	/* Returns what is wrong with the given fixture, or null */
+	private static String check(String name, byte[] data) throws IOException {
+		Bastp bastp = new Bastp();
+		MemorySource src = new MemorySource(data);
+		
+		TagSet all = bastp.getTags(src);
+		String error = check_gains(all);
+		if(error != null)
+			return error;
+		if(!("Fixture "+name).equals(all.get(TagSet.Key.TITLE)))
+			return "title is "+all.get(TagSet.Key.TITLE);
+		
+		error = check_gains(bastp.getTags(src, GAIN_KEYS));
+		if(error != null)
+			return "early exit: "+error;
+		
+		error = check_cover(name, bastp, src, all.getCover());
+		if(error != null)
+			return error;
+		
+		error = check_cover(name, bastp, src, bastp.getTags(src, COVER_KEYS).getCover());
+		if(error != null)
+			return "early exit: "+error;
+		return null;
+	}
+	
+	/* Checks that 'cover' is the front cover of the fixture */
+	private static String check_cover(String name, Bastp bastp, MemorySource src, Picture cover) throws IOException {
+		if(name.endsWith("-unsync"))
+			return (cover == null ? null : "picture of an unsynchronised tag recorded");
+		if(cover == null)
+			return "no picture";
+		if(!cover.mime.equals("image/jpeg"))
+			return "picture mime type is "+cover.mime;
+		byte[] art = bastp.readPicture(src, cover);
+		if(!Arrays.equals(art, CorpusGenerator.fixture_art(CorpusGenerator.FIXTURE_ART_BYTES)))
+			return "picture at "+cover.offset+" (length "+cover.length+") is not the front cover";
+		return null;
+	}
+	
+	private static String check_gains(TagSet tags) {
+		String track = tags.get(TagSet.Key.REPLAYGAIN_TRACK_GAIN);
+		String album = tags.get(TagSet.Key.REPLAYGAIN_ALBUM_GAIN);
+		if(!CorpusGenerator.FIXTURE_TRACK_GAIN.equals(track))
+			return "track gain is "+track;
+		if(!CorpusGenerator.FIXTURE_ALBUM_GAIN.equals(album))
+			return "album gain is "+album;
+		return null;
+	}
+	
+}
@@ -0,0 +1,109 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.android.vanilla.RandomCycle;
+import java.util.Random;
+
+
+/* Checks the random cycle of the player's random mode:
+**
+**  - every index is returned exactly once per cycle, for all sizes up
+**    to 'sizes' and some large ones
+**  - a cycle resumed from its seed and cursor continues the same order
+**  - the first index of a cycle is uniform over the seeds (chi-square,
+**    p=0.001)
+**
+** Exits with status 1 if any check fails
+*/
+public class RandomCycleCheck {
+	private static final int[] LARGE = { 65535, 65536, 65537, 200003, 1000000 };
+	
+	public static void main(String[] args) {
+		int sizes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		System.out.println("sizes=1.."+sizes+" seed="+seed);
+		Random random = new Random(seed);
+		
+		boolean ok = true;
+		for(int size=1; size<=sizes && ok; size++)
+			ok &= check_cycle(new RandomCycle(random.nextLong(), size, 0));
+		for(int i=0; i<LARGE.length && ok; i++)
+			ok &= check_cycle(new RandomCycle(random.nextLong(), LARGE[i], 0));
+		System.out.println("no repeats: "+(ok ? "ok" : "FAILED"));
+		
+		boolean resumed = check_resume(random);
+		System.out.println("resume: "+(resumed ? "ok" : "FAILED"));
+		
+		boolean uniform = check_uniform(random, 97, 200000);
+		System.exit(ok && resumed && uniform ? 0 : 1);
+	}
+	
+	private static boolean check_cycle(RandomCycle cycle) {
+		int size = cycle.getSize();
+		boolean[] seen = new boolean[size];
+		for(int i=0; i<size; i++) {
+			int index = cycle.next();
+			if(index < 0 || index >= size || seen[index]) {
+				System.out.println("size "+size+" seed "+cycle.getSeed()+": index "+index+" at "+i);
+				return false;
+			}
+			seen[index] = true;
+		}
+		if(!cycle.isFinished() || cycle.next() != -1) {
+			System.out.println("size "+size+": cycle did not end");
+			return false;
+		}
+		return true;
+	}
+	
+	private static boolean check_resume(Random random) {
+		for(int round=0; round<100; round++) {
+			long seed  = random.nextLong();
+			int size   = 1 + random.nextInt(50000);
+			int cursor = random.nextInt(size);
+			RandomCycle a = new RandomCycle(seed, size, 0);
+			for(int i=0; i<cursor; i++)
+				a.next();
+			RandomCycle b = new RandomCycle(a.getSeed(), a.getSize(), a.getCursor());
+			while(!a.isFinished()) {
+				if(a.next() != b.next())
+					return false;
+			}
+			if(!b.isFinished())
+				return false;
+		}
+		return true;
+	}
+	
+	private static boolean check_uniform(Random random, int size, int rounds) {
+		int[] counts = new int[size];
+		for(int r=0; r<rounds; r++)
+			counts[new RandomCycle(random.nextLong(), size, 0).next()]++;
+		
+		double expected = (double)rounds / size;
+		double chi2 = 0;
+		for(int i=0; i<size; i++)
+			chi2 += (counts[i] - expected) * (counts[i] - expected) / expected;
+		
+		/* Wilson-Hilferty approximation of the p=0.001 critical value */
+		int df = size - 1;
+		double z = 3.0902;
+		double t = 1 - 2.0 / (9 * df) + z * Math.sqrt(2.0 / (9 * df));
+		double critical = df * t * t * t;
+		boolean ok = chi2 < critical;
+		System.out.println(String.format("first index over %d seeds: chi2=%.2f critical=%.2f df=%d %s",
+		                   rounds, chi2, critical, df, ok ? "ok" : "FAILED"));
+		return ok;
+	}
+	
+}
@@ -0,0 +1,51 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.MappedSource;
+import ch.blinkenlights.bastp.Source;
+import ch.blinkenlights.bastp.WindowedSource;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/* Parses each given file through every Source implementation and
+** prints how often the storage was hit:
+**
+**  unbuffered = seek()+read() per parser read, as bastp used to do
+**  windowed   = positioned reads through an 8 KiB window
+**  mapped     = a single mmap(), page faults are not counted
+*/
+public class ReadCount {
+	
+	public static void main(String[] args) throws IOException {
+		System.out.println("unbuffered\twindowed\tmapped\tfile");
+		for(int i=0; i<args.length; i++) {
+			String fname = args[i];
+			RandomAccessFile ra = new RandomAccessFile(fname, "r");
+			try {
+				int unbuffered = count(new UnbufferedSource(ra));
+				int windowed   = count(new WindowedSource(ra.getChannel()));
+				int mapped     = count(new MappedSource(ra));
+				System.out.println(unbuffered+"\t"+windowed+"\t"+mapped+"\t"+fname);
+			} finally {
+				ra.close();
+			}
+		}
+	}
+	
+	private static int count(Source s) {
+		(new Bastp()).getTags(s);
+		return s.getIoCount();
+	}
+	
+}
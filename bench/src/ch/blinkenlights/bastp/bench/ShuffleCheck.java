@@ -0,0 +1,176 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.android.vanilla.QueueShuffle;
+import java.util.HashMap;
+import java.util.Random;
+
+
+/* Statistical check of the queue shuffle: shuffles a small queue many
+** times and runs a chi-square test over the resulting orders, for the
+** album shuffle (order of the albums) and the song shuffle (order of
+** the songs). The old sort based album shuffle is measured the same way
+** for comparison. Every album shuffle result is also checked to keep
+** each album contiguous and in track order.
+**
+** Exits with status 1 if any of the tests fails at p=0.001
+*/
+public class ShuffleCheck {
+	/* album and track number of each song of the test queue: 4 albums,
+	** interleaved, with one duplicate track number
+	*/
+	private static final long[] ALBUMS = { 7, 3, 9, 3, 7, 5, 9, 3, 7 };
+	private static final int[]  TRACKS = { 2, 4, 1, 1, 1, 1, 1, 2, 2 };
+	/* the songs shuffled in song mode */
+	private static final int    SONGS  = 5;
+	
+	public static void main(String[] args) {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		long seed  = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		System.out.println("rounds="+rounds+" seed="+seed);
+		
+		boolean ok = true;
+		ok &= check_albums("grouped", rounds, new Random(seed), false);
+		ok &= check_albums("sorted",  rounds, new Random(seed), true);
+		ok &= check_songs("songs", rounds, new Random(seed));
+		System.exit(ok ? 0 : 1);
+	}
+	
+	/* Chi-square over the 24 possible orders of the 4 albums
+	*/
+	private static boolean check_albums(String name, int rounds, Random random, boolean sorted) {
+		int size = ALBUMS.length;
+		HashMap<String,int[]> counts = new HashMap<String,int[]>();
+		for(int r=0; r<rounds; r++) {
+			int[] order = sorted ? sorted_shuffle(ALBUMS, TRACKS, size, random)
+			                     : QueueShuffle.shuffle(ALBUMS, TRACKS, 0, size, true, random);
+			StringBuilder key = new StringBuilder();
+			for(int i=0; i<size; i++) {
+				int pos = order[i];
+				boolean first = (i == 0 || ALBUMS[order[i-1]] != ALBUMS[pos]);
+				if(first) {
+					if(key.indexOf(","+ALBUMS[pos]+",") != -1) {
+						System.out.println(name+": album "+ALBUMS[pos]+" is not contiguous");
+						return false;
+					}
+					key.append(',').append(ALBUMS[pos]).append(',');
+				} else if(TRACKS[order[i-1]] > TRACKS[pos] || (TRACKS[order[i-1]] == TRACKS[pos] && order[i-1] > pos)) {
+					System.out.println(name+": album "+ALBUMS[pos]+" is not in track order");
+					return false;
+				}
+			}
+			increment(counts, key.toString());
+		}
+		return report(name, counts, 24, rounds);
+	}
+	
+	/* Chi-square over the 120 possible orders of 5 songs
+	*/
+	private static boolean check_songs(String name, int rounds, Random random) {
+		HashMap<String,int[]> counts = new HashMap<String,int[]>();
+		for(int r=0; r<rounds; r++) {
+			int[] order = QueueShuffle.shuffle(ALBUMS, TRACKS, 0, SONGS, false, random);
+			StringBuilder key = new StringBuilder();
+			for(int i=0; i<SONGS; i++)
+				key.append(order[i]).append(',');
+			increment(counts, key.toString());
+		}
+		return report(name, counts, 120, rounds);
+	}
+	
+	private static void increment(HashMap<String,int[]> counts, String key) {
+		int[] count = counts.get(key);
+		if(count == null) {
+			count = new int[1];
+			counts.put(key, count);
+		}
+		count[0]++;
+	}
+	
+	private static boolean report(String name, HashMap<String,int[]> counts, int outcomes, int rounds) {
+		double expected = (double)rounds / outcomes;
+		double chi2 = 0;
+		for(int[] count : counts.values())
+			chi2 += (count[0] - expected) * (count[0] - expected) / expected;
+		chi2 += (outcomes - counts.size()) * expected; /* orders never seen */
+		
+		/* Wilson-Hilferty approximation of the p=0.001 critical value */
+		int df = outcomes - 1;
+		double z = 3.0902;
+		double t = 1 - 2.0 / (9 * df) + z * Math.sqrt(2.0 / (9 * df));
+		double critical = df * t * t * t;
+		boolean ok = counts.size() <= outcomes && chi2 < critical;
+		System.out.println(String.format("%-8s orders=%d/%d chi2=%.2f critical=%.2f df=%d %s",
+		                   name, counts.size(), outcomes, chi2, critical, df, ok ? "ok" : "FAILED"));
+		return ok;
+	}
+	
+	/* The old album shuffle: sort by (album, track), then do a
+	** Fisher-Yates over the starts of the album runs
+	*/
+	static int[] sorted_shuffle(long[] album_ids, int[] tracks, int size, Random random) {
+		int[] order = new int[size];
+		for(int i=0; i<size; i++)
+			order[i] = i;
+		
+		int[] src = order;
+		int[] dst = new int[size];
+		for(int width=1; width<size; width*=2) {
+			for(int lo=0; lo<size; lo+=2*width) {
+				int mid = Math.min(lo + width, size);
+				int hi  = Math.min(lo + 2 * width, size);
+				int i = lo, j = mid, k = lo;
+				while(i < mid && j < hi) {
+					int a = src[i], b = src[j];
+					if(album_ids[b] < album_ids[a] || album_ids[b] == album_ids[a] && tracks[b] < tracks[a])
+						dst[k++] = src[j++];
+					else
+						dst[k++] = src[i++];
+				}
+				while(i < mid)
+					dst[k++] = src[i++];
+				while(j < hi)
+					dst[k++] = src[j++];
+			}
+			int[] tmp = src; src = dst; dst = tmp;
+		}
+		order = src;
+		
+		int[] albums = new int[size + 1];
+		int count = 0;
+		for(int i=0; i<size; i++) {
+			if(i == 0 || album_ids[order[i-1]] != album_ids[order[i]])
+				albums[count++] = i;
+		}
+		albums[count] = size;
+		
+		int[] starts = new int[count];
+		for(int i=0; i<count; i++)
+			starts[i] = i;
+		for(int i=count-1; i>0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = starts[j]; starts[j] = starts[i]; starts[i] = tmp;
+		}
+		
+		int[] result = new int[size];
+		int pos = 0;
+		for(int i=0; i<count; i++) {
+			int album = starts[i];
+			int len   = albums[album+1] - albums[album];
+			System.arraycopy(order, albums[album], result, pos, len);
+			pos += len;
+		}
+		return result;
+	}
+	
+}
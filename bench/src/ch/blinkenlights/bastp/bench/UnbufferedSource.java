@@ -0,0 +1,42 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp.bench;
+
+import ch.blinkenlights.bastp.Source;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/* Mimics the old parsers: every read is a seek() plus a read()
+** on a RandomAccessFile, each of them being a syscall.
+** Only used as the 'before' baseline of the benchmarks
+*/
+public class UnbufferedSource extends Source {
+	private final RandomAccessFile ra;
+	private final long size;
+	
+	public UnbufferedSource(RandomAccessFile ra) throws IOException {
+		this.ra   = ra;
+		this.size = ra.length();
+	}
+	
+	public long length() {
+		return size;
+	}
+	
+	protected void fill(long pos, byte[] dst, int off, int len) throws IOException {
+		countIo();
+		ra.seek(pos);
+		countIo();
+		ra.readFully(dst, off, len);
+	}
+	
+}
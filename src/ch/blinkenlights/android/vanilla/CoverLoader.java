@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package ch.blinkenlights.android.vanilla;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.Picture;
+import ch.blinkenlights.bastp.TagSet;
+import java.util.EnumSet;
+
+/**
+ * Loads cover art embedded in audio files (FLAC pictures, Ogg
+ * METADATA_BLOCK_PICTURE comments and ID3 APIC frames). Only the region of
+ * the file holding the image is read, and the image is subsampled while
+ * decoding instead of being decoded at full size.
+ *
+ * Covers are returned at the size they are displayed at, so a cache of
+ * them holds as many as possible.
+ */
+public final class CoverLoader {
+	/**
+	 * Embedded images bigger than this are ignored.
+	 */
+	private static final int MAX_ART_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Decodes the embedded cover of the given file.
+	 *
+	 * @param path Path of the audio file.
+	 * @param entry The tag cache entry of the file, or null to find the cover
+	 * by parsing the file.
+	 * @param size The size the cover is displayed at. The smaller side of
+	 * the returned cover is at most this big.
+	 * @param config The config of the returned bitmap.
+	 * @return The cover, or null if the file has none or it could not be
+	 * decoded.
+	 */
+	public static Bitmap load(String path, TagCache.Entry entry, int size, Bitmap.Config config)
+	{
+		Bastp bastp = new Bastp();
+		Picture picture;
+		if (entry != null && !entry.hasArt())
+			return null;
+		if (entry != null && entry.artOffset >= 0)
+			picture = new Picture(entry.artMime, Picture.TYPE_FRONT_COVER, entry.artOffset, entry.artLength);
+		else
+			picture = bastp.getTags(path, EnumSet.of(TagSet.Key.PICTURE)).getCover();
+
+		if (picture == null || picture.length > MAX_ART_SIZE)
+			return null;
+
+		byte[] data = bastp.readPicture(path, picture);
+		if (data == null)
+			return null;
+		return decode(data, size, config);
+	}
+
+	/**
+	 * Decodes an image, reading only its bounds first to pick the sample
+	 * size: the largest power of two that keeps both sides at least
+	 * <code>size</code> big. What is still bigger than that is scaled down.
+	 *
+	 * @return The image, or null if it could not be decoded.
+	 */
+	static Bitmap decode(byte[] data, int size, Bitmap.Config config)
+	{
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0)
+			return null;
+
+		int sampleSize = 1;
+		while (options.outWidth / (sampleSize * 2) >= size && options.outHeight / (sampleSize * 2) >= size)
+			sampleSize *= 2;
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = config;
+		options.inDither = false;
+		Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		if (bitmap == null)
+			return null;
+
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int min = Math.min(width, height);
+		if (min <= size)
+			return bitmap;
+
+		Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width * size / min, height * size / min, true);
+		if (scaled != bitmap)
+			bitmap.recycle();
+		return scaled;
+	}
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package ch.blinkenlights.android.vanilla;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Decodes FLAC files in plain Java, without the platform decoders.
+ *
+ * All subframe types (constant, verbatim, fixed and LPC prediction with
+ * Rice coded residuals) and all stereo decorrelation modes are supported,
+ * for up to 24 bits per sample. The checksums of the frames are not
+ * verified: a frame that can not be decoded ends the stream.
+ */
+public final class FlacDecoder extends PcmDecoder {
+	/**
+	 * Size of the read buffer in bytes.
+	 */
+	private static final int BUFFER_SIZE = 65536;
+	private static final int BLOCK_STREAMINFO = 0;
+	private static final int CHANNELS_LEFT_SIDE = 8;
+	private static final int CHANNELS_RIGHT_SIDE = 9;
+	private static final int CHANNELS_MID_SIDE = 10;
+	
+	private final InputStream mIn;
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+	private int mBufferPos;
+	private int mBufferLen;
+	/**
+	 * Bits read ahead from mBuffer. The lowest mCacheBits bits are valid.
+	 */
+	private long mCache;
+	private int mCacheBits;
+	
+	private int mChannels;
+	private int mSampleRate;
+	private int mBitsPerSample;
+	private float mScale;
+	/**
+	 * The samples of the current block, by channel.
+	 */
+	private int[][] mSamples;
+	/**
+	 * Quantized LPC coefficients of the current subframe.
+	 */
+	private final int[] mCoefs = new int[32];
+	/**
+	 * Number of frames in the current block and the number already read.
+	 */
+	private int mBlockSize;
+	private int mBlockPos;
+	private boolean mEnd;
+	
+	/**
+	 * Returns true if the file at the given path is a FLAC file, possibly
+	 * with an ID3v2 tag in front.
+	 */
+	public static boolean isFlac(String path)
+	{
+		try {
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				byte[] b = new byte[10];
+				file.readFully(b);
+				if (b[0] == 'I' && b[1] == 'D' && b[2] == '3') {
+					file.seek(10 + id3Size(b));
+					file.readFully(b, 0, 4);
+				}
+				return b[0] == 'f' && b[1] == 'L' && b[2] == 'a' && b[3] == 'C';
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	public FlacDecoder(String path) throws IOException
+	{
+		mIn = new FileInputStream(path);
+		try {
+			readMetadata();
+		} catch (IOException e) {
+			mIn.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns the size of the ID3v2 tag with the given header, without the
+	 * header.
+	 */
+	private static int id3Size(byte[] b)
+	{
+		return (b[6] & 0x7F) << 21 | (b[7] & 0x7F) << 14 | (b[8] & 0x7F) << 7 | (b[9] & 0x7F);
+	}
+	
+	/**
+	 * Reads the metadata blocks up to the first frame.
+	 */
+	private void readMetadata() throws IOException
+	{
+		int magic = readBits(32);
+		if (magic == 0x49443303 || magic == 0x49443304 || magic == 0x49443302) { // "ID3" and the version
+			byte[] b = new byte[10];
+			b[3] = (byte)magic;
+			for (int i = 4; i != 10; ++i)
+				b[i] = (byte)readBits(8);
+			for (int i = id3Size(b); i != 0; --i)
+				readBits(8);
+			magic = readBits(32);
+		}
+		if (magic != 0x664C6143) // "fLaC"
+			throw new IOException("Not a FLAC file");
+		
+		int maxBlockSize = 0;
+		boolean last;
+		do {
+			last = readBits(1) == 1;
+			int type = readBits(7);
+			int length = readBits(24);
+			if (type == BLOCK_STREAMINFO) {
+				readBits(16); // minimum block size
+				maxBlockSize = readBits(16);
+				readBits(24); // minimum frame size
+				readBits(24); // maximum frame size
+				mSampleRate = readBits(20);
+				mChannels = readBits(3) + 1;
+				mBitsPerSample = readBits(5) + 1;
+				readBits(4); // total samples, 36 bits
+				readBits(32);
+				length -= 18;
+			}
+			skipBytes(length);
+		} while (!last);
+		
+		if (maxBlockSize < 16 || mSampleRate < 1)
+			throw new IOException("Invalid STREAMINFO block");
+		if (mBitsPerSample < 4 || mBitsPerSample > 24)
+			throw new IOException("Unsupported sample size " + mBitsPerSample);
+		mSamples = new int[mChannels][maxBlockSize];
+		mScale = 1f / (1 << (mBitsPerSample - 1));
+	}
+	
+	@Override
+	public int getChannels()
+	{
+		return mChannels;
+	}
+	
+	@Override
+	public int getSampleRate()
+	{
+		return mSampleRate;
+	}
+	
+	@Override
+	public int read(float[] dst) throws IOException
+	{
+		if (mBlockPos == mBlockSize) {
+			if (mEnd)
+				return -1;
+			try {
+				decodeFrame();
+			} catch (EOFException e) {
+				// a truncated last frame is dropped
+				mEnd = true;
+				return -1;
+			}
+			mBlockPos = 0;
+		}
+		
+		int channels = mChannels;
+		int frames = Math.min(mBlockSize - mBlockPos, dst.length / channels);
+		float scale = mScale;
+		int[][] samples = mSamples;
+		for (int c = 0; c != channels; ++c) {
+			int[] s = samples[c];
+			for (int i = 0, j = c, k = mBlockPos; i != frames; ++i, j += channels, ++k)
+				dst[j] = s[k] * scale;
+		}
+		mBlockPos += frames;
+		return frames;
+	}
+	
+	@Override
+	public void close()
+	{
+		try {
+			mIn.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+	
+	/**
+	 * Decodes the next frame into mSamples.
+	 *
+	 * @throws EOFException At the end of the file.
+	 */
+	private void decodeFrame() throws IOException
+	{
+		// the frame header starts with a 14 bit sync code, the reserved bit
+		// and the blocking strategy bit: 0xFFF8 or 0xFFF9
+		mCacheBits -= mCacheBits & 7;
+		int prev = readBits(8);
+		for (;;) {
+			int b = readBits(8);
+			if (prev == 0xFF && (b & 0xFE) == 0xF8)
+				break;
+			prev = b;
+		}
+		
+		int blockSizeCode = readBits(4);
+		int sampleRateCode = readBits(4);
+		int assignment = readBits(4);
+		int sampleSizeCode = readBits(3);
+		readBits(1);
+		
+		// frame or sample number, UTF-8 coded
+		int first = readBits(8);
+		for (int mask = 0x80; (first & mask) != 0 && mask != 1; mask >>= 1) {
+			if (mask != 0x80)
+				readBits(8);
+		}
+		
+		int blockSize;
+		if (blockSizeCode == 1)
+			blockSize = 192;
+		else if (blockSizeCode >= 2 && blockSizeCode <= 5)
+			blockSize = 576 << (blockSizeCode - 2);
+		else if (blockSizeCode == 6)
+			blockSize = readBits(8) + 1;
+		else if (blockSizeCode == 7)
+			blockSize = readBits(16) + 1;
+		else if (blockSizeCode >= 8)
+			blockSize = 256 << (blockSizeCode - 8);
+		else
+			throw new IOException("Invalid block size");
+		
+		if (sampleRateCode == 12)
+			readBits(8);
+		else if (sampleRateCode == 13 || sampleRateCode == 14)
+			readBits(16);
+		else if (sampleRateCode == 15)
+			throw new IOException("Invalid sample rate");
+		
+		readBits(8); // CRC-8 of the header
+		
+		int bitsPerSample;
+		switch (sampleSizeCode) {
+		case 0: bitsPerSample = mBitsPerSample; break;
+		case 1: bitsPerSample = 8; break;
+		case 2: bitsPerSample = 12; break;
+		case 4: bitsPerSample = 16; break;
+		case 5: bitsPerSample = 20; break;
+		case 6: bitsPerSample = 24; break;
+		default: throw new IOException("Unsupported sample size code " + sampleSizeCode);
+		}
+		if (bitsPerSample != mBitsPerSample)
+			throw new IOException("Sample size changed");
+		
+		int channels = assignment < CHANNELS_LEFT_SIDE ? assignment + 1 : 2;
+		if (assignment > CHANNELS_MID_SIDE || channels != mChannels)
+			throw new IOException("Channel assignment " + assignment + " does not match");
+		if (blockSize > mSamples[0].length)
+			throw new IOException("Block of " + blockSize + " samples is too big");
+		
+		int[][] samples = mSamples;
+		for (int c = 0; c != channels; ++c) {
+			// the side channel needs one bit more
+			boolean side = assignment == CHANNELS_LEFT_SIDE && c == 1
+				|| assignment == CHANNELS_RIGHT_SIDE && c == 0
+				|| assignment == CHANNELS_MID_SIDE && c == 1;
+			decodeSubframe(samples[c], blockSize, bitsPerSample + (side ? 1 : 0));
+		}
+		
+		int[] a = samples[0];
+		int[] b = channels > 1 ? samples[1] : null;
+		switch (assignment) {
+		case CHANNELS_LEFT_SIDE:
+			for (int i = 0; i != blockSize; ++i)
+				b[i] = a[i] - b[i];
+			break;
+		case CHANNELS_RIGHT_SIDE:
+			for (int i = 0; i != blockSize; ++i)
+				a[i] += b[i];
+			break;
+		case CHANNELS_MID_SIDE:
+			for (int i = 0; i != blockSize; ++i) {
+				int side = b[i];
+				int mid = a[i] << 1 | side & 1;
+				a[i] = mid + side >> 1;
+				b[i] = mid - side >> 1;
+			}
+			break;
+		}
+		
+		mCacheBits -= mCacheBits & 7;
+		readBits(16); // CRC-16 of the frame
+		mBlockSize = blockSize;
+	}
+	
+	/**
+	 * Decodes a subframe.
+	 *
+	 * @param s Receives the samples.
+	 * @param n The number of samples.
+	 * @param bits The number of bits per sample of this channel.
+	 */
+	private void decodeSubframe(int[] s, int n, int bits) throws IOException
+	{
+		if (readBits(1) != 0)
+			throw new IOException("Invalid subframe header");
+		int type = readBits(6);
+		int wasted = 0;
+		if (readBits(1) == 1) {
+			wasted = readUnary() + 1;
+			bits -= wasted;
+			if (bits < 1)
+				throw new IOException("Invalid wasted bits");
+		}
+		
+		if (type == 0) {
+			int v = readSigned(bits);
+			for (int i = 0; i != n; ++i)
+				s[i] = v;
+		} else if (type == 1) {
+			for (int i = 0; i != n; ++i)
+				s[i] = readSigned(bits);
+		} else if (type >= 8 && type <= 12) {
+			decodeFixed(s, n, bits, type - 8);
+		} else if (type >= 32) {
+			decodeLpc(s, n, bits, type - 31);
+		} else {
+			throw new IOException("Reserved subframe type " + type);
+		}
+		
+		if (wasted != 0) {
+			for (int i = 0; i != n; ++i)
+				s[i] <<= wasted;
+		}
+	}
+	
+	/**
+	 * Decodes a subframe with one of the fixed predictors.
+	 */
+	private void decodeFixed(int[] s, int n, int bits, int order) throws IOException
+	{
+		if (order > n)
+			throw new IOException("Predictor order exceeds the block size");
+		for (int i = 0; i != order; ++i)
+			s[i] = readSigned(bits);
+		decodeResidual(s, n, order);
+		
+		switch (order) {
+		case 1:
+			for (int i = 1; i < n; ++i)
+				s[i] += s[i - 1];
+			break;
+		case 2:
+			for (int i = 2; i < n; ++i)
+				s[i] += 2 * s[i - 1] - s[i - 2];
+			break;
+		case 3:
+			for (int i = 3; i < n; ++i)
+				s[i] += 3 * (s[i - 1] - s[i - 2]) + s[i - 3];
+			break;
+		case 4:
+			for (int i = 4; i < n; ++i)
+				s[i] += 4 * (s[i - 1] + s[i - 3]) - 6 * s[i - 2] - s[i - 4];
+			break;
+		}
+	}
+	
+	/**
+	 * Decodes a subframe with a linear predictor.
+	 */
+	private void decodeLpc(int[] s, int n, int bits, int order) throws IOException
+	{
+		if (order > n)
+			throw new IOException("Predictor order exceeds the block size");
+		for (int i = 0; i != order; ++i)
+			s[i] = readSigned(bits);
+		
+		int precision = readBits(4) + 1;
+		if (precision == 16)
+			throw new IOException("Invalid LPC precision");
+		int shift = readSigned(5);
+		if (shift < 0)
+			throw new IOException("Negative LPC shift");
+		int[] coefs = mCoefs;
+		for (int i = 0; i != order; ++i)
+			coefs[i] = readSigned(precision);
+		
+		decodeResidual(s, n, order);
+		
+		for (int i = order; i < n; ++i) {
+			long sum = 0;
+			for (int j = 0, k = i - 1; j != order; ++j, --k)
+				sum += (long)coefs[j] * s[k];
+			s[i] += (int)(sum >> shift);
+		}
+	}
+	
+	/**
+	 * Reads the Rice coded residual of a predicted subframe into s[order..n).
+	 */
+	private void decodeResidual(int[] s, int n, int order) throws IOException
+	{
+		int method = readBits(2);
+		if (method > 1)
+			throw new IOException("Reserved residual coding method");
+		int paramBits = method == 0 ? 4 : 5;
+		int escape = (1 << paramBits) - 1;
+		int partitionOrder = readBits(4);
+		int partitions = 1 << partitionOrder;
+		int partitionSize = n >> partitionOrder;
+		if (partitionSize << partitionOrder != n || partitionSize < order)
+			throw new IOException("Invalid residual partition order");
+		
+		int i = order;
+		for (int p = 0; p != partitions; ++p) {
+			int end = (p + 1) * partitionSize;
+			int param = readBits(paramBits);
+			if (param == escape) {
+				int bits = readBits(5);
+				for (; i != end; ++i)
+					s[i] = bits == 0 ? 0 : readSigned(bits);
+			} else {
+				for (; i != end; ++i) {
+					int v = readUnary() << param | readBits(param);
+					s[i] = v >>> 1 ^ -(v & 1);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Loads bytes into the bit cache until it holds at least the given
+	 * number of bits.
+	 *
+	 * @throws EOFException If the file ends before.
+	 */
+	private void fill(int bits) throws IOException
+	{
+		while (mCacheBits < bits) {
+			if (mBufferPos == mBufferLen) {
+				mBufferLen = mIn.read(mBuffer, 0, BUFFER_SIZE);
+				mBufferPos = 0;
+				if (mBufferLen <= 0) {
+					mBufferLen = 0;
+					throw new EOFException();
+				}
+			}
+			// top up as far as possible, so most reads need no refill
+			while (mCacheBits <= 56 && mBufferPos != mBufferLen) {
+				mCache = mCache << 8 | mBuffer[mBufferPos++] & 0xFF;
+				mCacheBits += 8;
+			}
+		}
+	}
+	
+	/**
+	 * Reads an unsigned number of up to 32 bits.
+	 */
+	private int readBits(int bits) throws IOException
+	{
+		if (bits == 0)
+			return 0;
+		if (mCacheBits < bits)
+			fill(bits);
+		mCacheBits -= bits;
+		return (int)(mCache >>> mCacheBits & (1L << bits) - 1);
+	}
+	
+	/**
+	 * Reads a two's complement number of up to 32 bits.
+	 */
+	private int readSigned(int bits) throws IOException
+	{
+		return readBits(bits) << 32 - bits >> 32 - bits;
+	}
+	
+	/**
+	 * Reads a unary coded number: the number of 0 bits before the next 1.
+	 */
+	private int readUnary() throws IOException
+	{
+		int n = 0;
+		for (;;) {
+			if (mCacheBits == 0)
+				fill(1);
+			long v = mCache << 64 - mCacheBits;
+			if (v != 0) {
+				int zeros = Long.numberOfLeadingZeros(v);
+				mCacheBits -= zeros + 1;
+				return n + zeros;
+			}
+			n += mCacheBits;
+			mCacheBits = 0;
+		}
+	}
+	
+	/**
+	 * Skips the given number of bytes. Only valid at byte boundaries.
+	 */
+	private void skipBytes(int len) throws IOException
+	{
+		for (; len != 0 && mCacheBits != 0; --len)
+			readBits(8);
+		while (len != 0) {
+			if (mBufferPos == mBufferLen) {
+				long skipped = mIn.skip(len);
+				if (skipped <= 0) {
+					// skip() may refuse, read instead
+					fill(8);
+					readBits(8);
+					--len;
+				} else {
+					len -= skipped;
+				}
+			} else {
+				int n = Math.min(len, mBufferLen - mBufferPos);
+				mBufferPos += n;
+				len -= n;
+			}
+		}
+	}
+}
@@ -45,6 +45,10 @@ import android.widget.TableLayout;
 import android.widget.TableRow;
 import android.widget.TextView;
 import android.widget.Toast;
+import ch.blinkenlights.bastp.AudioProperties;
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.TagSet;
+import java.util.EnumSet;
 
 /**
  * The primary playback screen with playback controls and large cover display.
@@ -113,6 +117,12 @@ public class FullPlaybackActivity extends PlaybackActivity
 	private TextView mComposerView;
 	private String mFormat;
 	private TextView mFormatView;
+	/**
+	 * The tags shown in the extra info table.
+	 */
+	private static final EnumSet<TagSet.Key> EXTRA_INFO_KEYS = EnumSet.of(
+		TagSet.Key.GENRE, TagSet.Key.TRACKNUMBER, TagSet.Key.DATE, TagSet.Key.COMPOSER,
+		TagSet.Key.LYRICIST);
 
 	@Override
 	public void onCreate(Bundle icicle)
@@ -535,48 +545,84 @@ public class FullPlaybackActivity extends PlaybackActivity
 		mComposer = null;
 		mFormat = null;
 
-		if(song != null) {
-			
-			MediaMetadataRetriever data = new MediaMetadataRetriever();
-			
-			try {
-				data.setDataSource(song.path);
-			} catch (Exception e) {
-				Log.w("VanillaMusic", "Failed to extract metadata from " + song.path);
-			}
-			
-			mGenre = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE);
-			mTrack = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER);
-			String composer = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_COMPOSER);
-			if (composer == null)
-				composer = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_WRITER);
-			mComposer = composer;
-
-			String year = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR);
-			if (year == null || "0".equals(year)) {
-				year = null;
+		if (song != null) {
+			Bastp bastp = new Bastp();
+			AudioProperties props = bastp.getAudioProperties(song.path);
+			if (props == null) {
+				// not a format bastp knows
+				loadExtraInfoFromRetriever(song);
 			} else {
-				int dash = year.indexOf('-');
-				if (dash != -1)
-					year = year.substring(0, dash);
-			}
-			mYear = year;
-
-			StringBuilder sb = new StringBuilder(12);
-			sb.append(decodeMimeType(data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE)));
-			String bitrate = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE);
-			if (bitrate != null && bitrate.length() > 3) {
-				sb.append(' ');
-				sb.append(bitrate.substring(0, bitrate.length() - 3));
-				sb.append("kbps");
+				TagSet tags = bastp.getTags(song.path, EXTRA_INFO_KEYS);
+				mGenre = tags.get(TagSet.Key.GENRE);
+				mTrack = tags.get(TagSet.Key.TRACKNUMBER);
+				String composer = tags.get(TagSet.Key.COMPOSER);
+				if (composer == null)
+					composer = tags.get(TagSet.Key.LYRICIST);
+				mComposer = composer;
+				mYear = parseYear(tags.get(TagSet.Key.DATE));
+
+				StringBuilder sb = new StringBuilder(12);
+				sb.append(props.codec);
+				if (props.bitrate >= 1000) {
+					sb.append(' ');
+					sb.append(props.bitrate / 1000);
+					sb.append("kbps");
+				}
+				mFormat = sb.toString();
 			}
-			mFormat = sb.toString();
-			data.release();
 		}
 
 		mUiHandler.sendEmptyMessage(MSG_COMMIT_INFO);
 	}
 
+	/**
+	 * Fills the extra info fields using a MediaMetadataRetriever. This is
+	 * slow, so it is only used for files bastp can not read.
+	 */
+	private void loadExtraInfoFromRetriever(Song song)
+	{
+		MediaMetadataRetriever data = new MediaMetadataRetriever();
+
+		try {
+			data.setDataSource(song.path);
+		} catch (Exception e) {
+			Log.w("VanillaMusic", "Failed to extract metadata from " + song.path);
+		}
+
+		mGenre = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE);
+		mTrack = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER);
+		String composer = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_COMPOSER);
+		if (composer == null)
+			composer = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_WRITER);
+		mComposer = composer;
+		mYear = parseYear(data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR));
+
+		StringBuilder sb = new StringBuilder(12);
+		sb.append(decodeMimeType(data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE)));
+		String bitrate = data.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE);
+		if (bitrate != null && bitrate.length() > 3) {
+			sb.append(' ');
+			sb.append(bitrate.substring(0, bitrate.length() - 3));
+			sb.append("kbps");
+		}
+		mFormat = sb.toString();
+		data.release();
+	}
+
+	/**
+	 * Returns the year of a date like "2013" or "2013-05-01", or null if
+	 * there is none.
+	 */
+	private static String parseYear(String year)
+	{
+		if (year == null || "0".equals(year))
+			return null;
+		int dash = year.indexOf('-');
+		if (dash != -1)
+			year = year.substring(0, dash);
+		return year;
+	}
+
 	/**
 	 * Decode the given mime type into a more human-friendly description.
 	 */
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import java.util.List;
+
+/**
+ * Stores the ReplayGain values {@link LoudnessAnalyzer} measured for files
+ * without ReplayGain tags. Unlike the {@link TagIndex} this is not a cache
+ * of the file contents: the measurements are expensive, so they are kept
+ * across schema changes where possible.
+ *
+ * Values are valid as long as the size and the modification time of the
+ * file did not change.
+ */
+public final class GainStore extends SQLiteOpenHelper {
+	private static final String DATABASE_NAME = "gains.db";
+	private static final int DATABASE_VERSION = 1;
+	private static final String TABLE = "gains";
+
+	/**
+	 * Index of the track gain in the arrays returned by {@link #get(String, long, long)}.
+	 */
+	public static final int TRACK_GAIN = 0;
+	/**
+	 * Index of the track peak.
+	 */
+	public static final int TRACK_PEAK = 1;
+	/**
+	 * Index of the album gain.
+	 */
+	public static final int ALBUM_GAIN = 2;
+	/**
+	 * Index of the album peak.
+	 */
+	public static final int ALBUM_PEAK = 3;
+
+	private static final String[] PROJECTION = {
+		"size", "mtime", "track_gain", "track_peak", "album_gain", "album_peak"
+	};
+
+	public GainStore(Context context)
+	{
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db)
+	{
+		db.execSQL("CREATE TABLE " + TABLE + " ("
+			+ "path TEXT PRIMARY KEY, "
+			+ "size INTEGER NOT NULL, "
+			+ "mtime INTEGER NOT NULL, "
+			+ "track_gain REAL, "
+			+ "track_peak REAL, "
+			+ "album_gain REAL, "
+			+ "album_peak REAL)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+	{
+	}
+
+	/**
+	 * Returns the measured values of the given file.
+	 *
+	 * @param path The path of the file.
+	 * @param size The current size of the file.
+	 * @param mtime The current modification time of the file.
+	 * @return { track gain, track peak, album gain, album peak }, NaN for
+	 * values that could not be measured, or null if the file was not
+	 * measured or has changed since.
+	 */
+	public float[] get(String path, long size, long mtime)
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE, PROJECTION, "path=?", new String[] { path }, null, null, null);
+		if (cursor == null)
+			return null;
+
+		float[] values = null;
+		if (cursor.moveToFirst() && cursor.getLong(0) == size && cursor.getLong(1) == mtime) {
+			values = new float[4];
+			for (int i = 0; i != 4; ++i)
+				values[i] = cursor.isNull(i + 2) ? Float.NaN : cursor.getFloat(i + 2);
+		}
+		cursor.close();
+		return values;
+	}
+
+	/**
+	 * Stores the measurements of the songs of an album in one transaction.
+	 *
+	 * @param paths The paths of the files.
+	 * @param stamps { size, mtime } of each file.
+	 * @param values { track gain, track peak, album gain, album peak } of each file.
+	 */
+	public void putAll(List<String> paths, List<long[]> stamps, List<float[]> values)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement stmt = db.compileStatement("INSERT OR REPLACE INTO " + TABLE
+			+ " (path, size, mtime, track_gain, track_peak, album_gain, album_peak) VALUES (?, ?, ?, ?, ?, ?, ?)");
+		db.beginTransaction();
+		try {
+			for (int i = 0, n = paths.size(); i != n; ++i) {
+				long[] stamp = stamps.get(i);
+				float[] v = values.get(i);
+				stmt.clearBindings();
+				stmt.bindString(1, paths.get(i));
+				stmt.bindLong(2, stamp[0]);
+				stmt.bindLong(3, stamp[1]);
+				for (int j = 0; j != 4; ++j) {
+					if (!Float.isNaN(v[j]))
+						stmt.bindDouble(4 + j, v[j]);
+				}
+				stmt.executeInsert();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			stmt.close();
+		}
+	}
+}
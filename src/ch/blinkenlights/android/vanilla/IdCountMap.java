@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import java.util.Arrays;
+
+/**
+ * Counts how often each MediaStore id occurs, without boxing: an open
+ * addressing hash table with linear probing over parallel key and count
+ * arrays. A count of 0 marks an empty slot.
+ */
+public final class IdCountMap {
+	/**
+	 * The table is grown once it is this full, in percent.
+	 */
+	private static final int MAX_LOAD = 60;
+
+	private long[] mKeys;
+	private int[] mCounts;
+	/**
+	 * Number of distinct ids in the table.
+	 */
+	private int mSize;
+
+	/**
+	 * @param expected The number of distinct ids expected to be added.
+	 */
+	public IdCountMap(int expected)
+	{
+		int capacity = 16;
+		while (capacity * MAX_LOAD / 100 < expected)
+			capacity *= 2;
+		mKeys = new long[capacity];
+		mCounts = new int[capacity];
+	}
+
+	/**
+	 * Returns the slot of the given id, or the empty slot it would go in.
+	 */
+	private int slot(long id)
+	{
+		int mask = mKeys.length - 1;
+		long h = id * 0x9E3779B97F4A7C15L;
+		int i = (int)(h ^ (h >>> 32)) & mask;
+		while (mCounts[i] != 0 && mKeys[i] != id)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	/**
+	 * Increments the count of the given id.
+	 */
+	public void add(long id)
+	{
+		int i = slot(id);
+		if (mCounts[i] == 0) {
+			if ((mSize + 1) * 100 > mKeys.length * MAX_LOAD) {
+				grow();
+				i = slot(id);
+			}
+			mKeys[i] = id;
+			++mSize;
+		}
+		++mCounts[i];
+	}
+
+	/**
+	 * Decrements the count of the given id, dropping it once it reaches 0.
+	 */
+	public void remove(long id)
+	{
+		int i = slot(id);
+		if (mCounts[i] == 0 || --mCounts[i] != 0)
+			return;
+
+		--mSize;
+		// Move the following entries of the probe sequence back into the
+		// freed slot, so that lookups do not stop early.
+		int mask = mKeys.length - 1;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (mCounts[j] == 0)
+				return;
+			long h = mKeys[j] * 0x9E3779B97F4A7C15L;
+			int home = (int)(h ^ (h >>> 32)) & mask;
+			// move j to i unless its home lies cyclically in (i, j]
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				mKeys[i] = mKeys[j];
+				mCounts[i] = mCounts[j];
+				mCounts[j] = 0;
+				i = j;
+			}
+		}
+	}
+
+	/**
+	 * Drops the given id, whatever its count.
+	 */
+	public void removeAll(long id)
+	{
+		int i = slot(id);
+		if (mCounts[i] != 0) {
+			mCounts[i] = 1;
+			remove(id);
+		}
+	}
+
+	/**
+	 * Returns how often the given id was added.
+	 */
+	public int count(long id)
+	{
+		return mCounts[slot(id)];
+	}
+
+	/**
+	 * Returns true if the given id was added.
+	 */
+	public boolean contains(long id)
+	{
+		return mCounts[slot(id)] != 0;
+	}
+
+	/**
+	 * Returns the number of distinct ids.
+	 */
+	public int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * Removes all ids.
+	 */
+	public void clear()
+	{
+		Arrays.fill(mCounts, 0);
+		mSize = 0;
+	}
+
+	private void grow()
+	{
+		long[] keys = mKeys;
+		int[] counts = mCounts;
+		mKeys = new long[keys.length * 2];
+		mCounts = new int[keys.length * 2];
+		for (int i = 0; i != keys.length; ++i) {
+			if (counts[i] != 0) {
+				int j = slot(keys[i]);
+				mKeys[j] = keys[i];
+				mCounts[j] = counts[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks the music directories and reads the tags of every file into the
+ * {@link TagIndex}, so ReplayGain values and other tags are available before
+ * a song is played for the first time.
+ *
+ * Files are parsed by a bounded thread pool. Since parsing is I/O bound, the
+ * number of files read at the same time is also limited per storage device
+ * (mount point), and the directories of each device are walked by a thread
+ * of their own, so a slow device does not hold up the others. Rescans only
+ * parse files whose size or modification time changed since they were
+ * indexed.
+ */
+public final class LibraryScanner {
+	/**
+	 * File name extensions of the files bastp can parse.
+	 */
+	private static final String[] EXTENSIONS = { ".mp3", ".flac", ".ogg", ".oga", ".opus", ".m4a", ".m4b", ".mp4" };
+	/**
+	 * Maximum number of files read at the same time from one storage device.
+	 */
+	private static final int IO_PARALLELISM_PER_DEVICE = 2;
+	/**
+	 * Maximum number of parser threads.
+	 */
+	private static final int MAX_THREADS = 4;
+	/**
+	 * Number of parsed files written to the index in one transaction.
+	 */
+	private static final int BATCH_SIZE = 128;
+
+	/**
+	 * Numbers describing a finished scan.
+	 */
+	public static final class Stats {
+		/**
+		 * Number of files that were parsed.
+		 */
+		public int parsed;
+		/**
+		 * Number of files that were unchanged since the last scan.
+		 */
+		public int unchanged;
+		/**
+		 * Total size of the parsed files.
+		 */
+		public long bytes;
+		/**
+		 * Duration of the scan in milliseconds.
+		 */
+		public long elapsed;
+
+		public float filesPerSecond()
+		{
+			return elapsed == 0 ? 0 : parsed * 1000f / elapsed;
+		}
+
+		public float megabytesPerSecond()
+		{
+			return elapsed == 0 ? 0 : bytes * 1000f / elapsed / (1024 * 1024);
+		}
+
+		/**
+		 * Adds the numbers of another scan to this one.
+		 */
+		public void add(Stats other)
+		{
+			parsed += other.parsed;
+			unchanged += other.unchanged;
+			bytes += other.bytes;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("parsed %d files (%d unchanged, %.1f MiB) in %d ms: %.1f files/s, %.1f MiB/s",
+				parsed, unchanged, bytes / (1024f * 1024f), elapsed, filesPerSecond(), megabytesPerSecond());
+		}
+	}
+
+	/**
+	 * The tags of a single parsed file.
+	 */
+	private static final class Result {
+		public final String path;
+		public final TagCache.Entry entry;
+
+		public Result(String path, TagCache.Entry entry)
+		{
+			this.path = path;
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * Parses a single file, holding a permit of the file's storage device.
+	 */
+	private final class ParseJob implements Runnable {
+		private final String mPath;
+		private final long mSize;
+		private final long mMtime;
+		private final Semaphore mDevice;
+
+		public ParseJob(String path, long size, long mtime, Semaphore device)
+		{
+			mPath = path;
+			mSize = size;
+			mMtime = mtime;
+			mDevice = device;
+		}
+
+		@Override
+		public void run()
+		{
+			if (mCancelled)
+				return;
+
+			TagCache.Entry entry;
+			mDevice.acquireUninterruptibly();
+			try {
+				entry = TagCache.parse(mPath, mSize, mMtime);
+			} finally {
+				mDevice.release();
+			}
+			mResults.add(new Result(mPath, entry));
+		}
+	}
+
+	private final TagIndex mIndex;
+	/**
+	 * Parsed files not yet written to the index.
+	 */
+	private final ConcurrentLinkedQueue<Result> mResults = new ConcurrentLinkedQueue<Result>();
+	/**
+	 * Mount points, longest first.
+	 */
+	private ArrayList<String> mMounts;
+	/**
+	 * The I/O permits of each storage device, by mount point.
+	 */
+	private final HashMap<String, Semaphore> mDevices = new HashMap<String, Semaphore>();
+	private volatile boolean mCancelled;
+
+	public LibraryScanner(TagIndex index)
+	{
+		mIndex = index;
+	}
+
+	/**
+	 * Abort a running scan. Files parsed so far are kept in the index.
+	 */
+	public void cancel()
+	{
+		mCancelled = true;
+	}
+
+	/**
+	 * Returns the directories holding the songs of the MediaStore, leaving
+	 * out those below another returned directory. This covers every storage
+	 * device the MediaStore indexes, without walking directories like DCIM
+	 * or Android/data that hold no music.
+	 *
+	 * @param resolver A ContentResolver to query the MediaStore with.
+	 */
+	public static File[] queryRoots(ContentResolver resolver)
+	{
+		HashSet<String> dirs = new HashSet<String>();
+		String[] projection = { MediaStore.Audio.Media.DATA };
+		Cursor cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, MediaStore.Audio.Media.IS_MUSIC, null, null);
+		if (cursor != null) {
+			while (cursor.moveToNext()) {
+				String path = cursor.getString(0);
+				int slash = path == null ? -1 : path.lastIndexOf('/');
+				if (slash > 0)
+					dirs.add(path.substring(0, slash));
+			}
+			cursor.close();
+		}
+
+		ArrayList<File> roots = new ArrayList<File>();
+		for (String dir : dirs) {
+			boolean nested = false;
+			for (int slash = dir.lastIndexOf('/'); slash > 0; slash = dir.lastIndexOf('/', slash - 1)) {
+				if (dirs.contains(dir.substring(0, slash))) {
+					nested = true;
+					break;
+				}
+			}
+			if (!nested)
+				roots.add(new File(dir));
+		}
+		return roots.toArray(new File[roots.size()]);
+	}
+
+	/**
+	 * Scan the given directories. Blocks until the scan is finished, so this
+	 * must be called on a background thread.
+	 *
+	 * @param roots The directories to scan.
+	 * @return Statistics about the scan.
+	 */
+	public Stats scan(File[] roots)
+	{
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+		long start = SystemClock.elapsedRealtime();
+		mCancelled = false;
+		mMounts = readMounts();
+
+		HashMap<String, ArrayList<File>> groups = new HashMap<String, ArrayList<File>>();
+		for (File root : roots) {
+			String mount = getMount(root.getPath());
+			ArrayList<File> group = groups.get(mount);
+			if (group == null) {
+				group = new ArrayList<File>();
+				groups.put(mount, group);
+			}
+			group.add(root);
+		}
+
+		// more threads than the devices allow would only wait for permits
+		int threads = Math.max(1, Math.min(MAX_THREADS, groups.size() * IO_PARALLELISM_PER_DEVICE));
+		// The bounded queue and CallerRunsPolicy throttle the directory walks
+		// when the parsers can not keep up.
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(threads * 16), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		// walk each device on a thread of its own, the last one on this one
+		ArrayList<Walker> walkers = new ArrayList<Walker>(groups.size());
+		ArrayList<Thread> walkerThreads = new ArrayList<Thread>(groups.size());
+		for (ArrayList<File> group : groups.values()) {
+			Walker walker = new Walker(group, executor);
+			if (!walkers.isEmpty()) {
+				Thread thread = new Thread(walker, "LibraryScanner");
+				thread.start();
+				walkerThreads.add(thread);
+			}
+			walkers.add(walker);
+		}
+		if (!walkers.isEmpty())
+			walkers.get(0).run();
+
+		for (Thread thread : walkerThreads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				mCancelled = true;
+			}
+		}
+
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			// keep whatever we have got
+		}
+		flushResults();
+		if (!mCancelled)
+			purgeDirectories(walkers);
+
+		Stats stats = new Stats();
+		for (Walker walker : walkers)
+			stats.add(walker.stats);
+		stats.elapsed = SystemClock.elapsedRealtime() - start;
+		Log.i("VanillaMusic", "Library scan " + (mCancelled ? "cancelled: " : "finished: ") + stats + " on " + groups.size() + " devices");
+		return stats;
+	}
+
+	/**
+	 * Walks the directories of one storage device, handing the files that
+	 * changed to the parser pool.
+	 */
+	private final class Walker implements Runnable {
+		private final ArrayList<File> mRoots;
+		private final ThreadPoolExecutor mExecutor;
+		/**
+		 * The numbers of this walk.
+		 */
+		public final Stats stats = new Stats();
+		/**
+		 * The paths of the directories that were listed.
+		 */
+		public final HashSet<String> visited = new HashSet<String>();
+
+		public Walker(ArrayList<File> roots, ThreadPoolExecutor executor)
+		{
+			mRoots = roots;
+			mExecutor = executor;
+		}
+
+		@Override
+		public void run()
+		{
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			ArrayDeque<File> dirs = new ArrayDeque<File>(mRoots);
+			while (!dirs.isEmpty() && !mCancelled) {
+				File dir = dirs.pop();
+				File[] files = dir.listFiles();
+				if (files == null)
+					continue;
+				visited.add(dir.getPath());
+
+				HashMap<String, long[]> stamps = mIndex.getStamps(dir.getPath());
+				Semaphore device = getDevice(dir.getPath());
+				for (File file : files) {
+					if (file.isDirectory()) {
+						if (!file.isHidden())
+							dirs.push(file);
+						continue;
+					}
+
+					String path = file.getPath();
+					if (!isAudioFile(path))
+						continue;
+
+					long size = file.length();
+					long mtime = file.lastModified();
+					long[] stamp = stamps.remove(path);
+					if (stamp != null && stamp[0] == size && stamp[1] == mtime) {
+						++stats.unchanged;
+					} else {
+						++stats.parsed;
+						stats.bytes += size;
+						mExecutor.execute(new ParseJob(path, size, mtime, device));
+					}
+				}
+
+				// whatever is left was deleted since the last scan
+				if (!stamps.isEmpty() && !mCancelled)
+					mIndex.removeAll(stamps.keySet());
+
+				if (mResults.size() >= BATCH_SIZE)
+					flushResults();
+			}
+		}
+	}
+
+	/**
+	 * Removes the files of directories that were deleted or moved since the
+	 * last scan from the index. The walkers only see the directories that
+	 * still exist, so the indexed directories they did not list are checked
+	 * on disk.
+	 *
+	 * @param walkers The walkers of the finished scan.
+	 */
+	private void purgeDirectories(ArrayList<Walker> walkers)
+	{
+		HashSet<String> visited = new HashSet<String>();
+		for (Walker walker : walkers)
+			visited.addAll(walker.visited);
+
+		ArrayList<String> gone = new ArrayList<String>();
+		for (String dir : mIndex.getDirectories()) {
+			if (!visited.contains(dir) && !new File(dir).isDirectory())
+				gone.add(dir);
+		}
+		if (!gone.isEmpty()) {
+			mIndex.removeDirectories(gone);
+			Log.i("VanillaMusic", "Removed " + gone.size() + " deleted directories from the tag index");
+		}
+	}
+
+	/**
+	 * Write all pending results to the index.
+	 */
+	private void flushResults()
+	{
+		ArrayList<String> paths = new ArrayList<String>(BATCH_SIZE);
+		ArrayList<TagCache.Entry> entries = new ArrayList<TagCache.Entry>(BATCH_SIZE);
+		Result result;
+		while ((result = mResults.poll()) != null) {
+			paths.add(result.path);
+			entries.add(result.entry);
+		}
+		if (!paths.isEmpty())
+			mIndex.putAll(paths, entries);
+	}
+
+	/**
+	 * Returns true if the given file has an extension bastp can parse.
+	 */
+	private static boolean isAudioFile(String path)
+	{
+		for (String ext : EXTENSIONS) {
+			if (path.regionMatches(true, path.length() - ext.length(), ext, 0, ext.length()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the mount point of the storage device the given path is on.
+	 */
+	private String getMount(String path)
+	{
+		for (String m : mMounts) {
+			if (path.startsWith(m) && (path.length() == m.length() || path.charAt(m.length()) == '/'))
+				return m;
+		}
+		return "/";
+	}
+
+	/**
+	 * Returns the I/O permits of the storage device the given path is on.
+	 */
+	private synchronized Semaphore getDevice(String path)
+	{
+		String mount = getMount(path);
+		Semaphore device = mDevices.get(mount);
+		if (device == null) {
+			device = new Semaphore(IO_PARALLELISM_PER_DEVICE);
+			mDevices.put(mount, device);
+		}
+		return device;
+	}
+
+	/**
+	 * Returns the mount points of the system, longest first.
+	 */
+	private static ArrayList<String> readMounts()
+	{
+		ArrayList<String> mounts = new ArrayList<String>();
+		try {
+			BufferedReader in = new BufferedReader(new FileReader("/proc/mounts"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split(" ");
+					if (fields.length > 1)
+						mounts.add(fields[1]);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// treat everything as one device
+		}
+
+		Collections.sort(mounts, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b)
+			{
+				return b.length() - a.length();
+			}
+		});
+		return mounts;
+	}
+}
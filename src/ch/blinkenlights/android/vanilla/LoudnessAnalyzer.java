@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Measures the loudness of the songs that have no ReplayGain tags and stores
+ * the resulting gains in the {@link GainStore}, where PlaybackService picks
+ * them up.
+ *
+ * Songs are processed album by album: the block histograms of all songs of
+ * an album are summed to get the album gain. Albums are skipped if all of
+ * their songs either have tags or were measured before, so an analysis
+ * that was cancelled simply continues where it stopped the next time.
+ *
+ * The analysis runs at the lowest thread priority and sleeps between slices
+ * of work, so it never takes more than {@link #DUTY_CYCLE} of a core.
+ *
+ * WAV and FLAC files, the usual untagged lossless files, are decoded in
+ * plain Java. All other formats fall back to the platform decoders, which
+ * need Jelly Bean and are slower to start.
+ */
+public final class LoudnessAnalyzer {
+	/**
+	 * Number of frames decoded and measured at once.
+	 */
+	private static final int BUFFER_FRAMES = 4096;
+	/**
+	 * Fraction of a core the analysis may use.
+	 */
+	private static final float DUTY_CYCLE = 0.5f;
+	/**
+	 * Length of a slice of work in milliseconds.
+	 */
+	private static final long SLICE_MS = 100;
+
+	private static final String[] PROJECTION = {
+		MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.DATA
+	};
+
+	/**
+	 * Numbers describing a finished analysis.
+	 */
+	public static final class Stats {
+		/**
+		 * Number of albums that were analyzed.
+		 */
+		public int albums;
+		/**
+		 * Number of songs that were analyzed.
+		 */
+		public int songs;
+		/**
+		 * Number of songs that could not be decoded.
+		 */
+		public int failed;
+		/**
+		 * Number of samples (of all channels) that were measured.
+		 */
+		public long samples;
+		/**
+		 * Time spent decoding and measuring in milliseconds, without the
+		 * pauses of the throttling.
+		 */
+		public long busy;
+
+		public float samplesPerSecond()
+		{
+			return busy == 0 ? 0 : samples * 1000f / busy;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("analyzed %d songs in %d albums (%d failed), %.0f samples/s",
+				songs, albums, failed, samplesPerSecond());
+		}
+	}
+
+	private final Context mContext;
+	private final TagCache mTagCache;
+	private final GainStore mStore;
+	private final float[] mBuffer = new float[BUFFER_FRAMES * LoudnessMeter.MAX_CHANNELS];
+	private final LoudnessMeter mMeter = new LoudnessMeter(2, 44100);
+	private final int[] mAlbumHistogram = new int[LoudnessMeter.HISTOGRAM_SIZE];
+	private volatile boolean mCancelled;
+	/**
+	 * Start of the current slice of work.
+	 */
+	private long mSliceStart;
+	private Stats mStats;
+
+	public LoudnessAnalyzer(Context context, TagCache tagCache, GainStore store)
+	{
+		mContext = context;
+		mTagCache = tagCache;
+		mStore = store;
+	}
+
+	/**
+	 * Stop a running analysis as soon as possible. The album being analyzed
+	 * is dropped; all finished albums are kept.
+	 */
+	public void cancel()
+	{
+		mCancelled = true;
+	}
+
+	/**
+	 * Analyze all songs in the library that need it. Blocks until done or
+	 * cancelled, so this must be called on a background thread.
+	 *
+	 * @return Statistics about the analysis.
+	 */
+	public Stats analyze()
+	{
+		Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+
+		Stats stats = new Stats();
+		mStats = stats;
+		mCancelled = false;
+		mSliceStart = SystemClock.uptimeMillis();
+
+		ContentResolver resolver = mContext.getContentResolver();
+		Cursor cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+			MediaStore.Audio.Media.IS_MUSIC, null, MediaStore.Audio.Media.ALBUM_ID);
+		if (cursor == null)
+			return stats;
+
+		ArrayList<String> album = new ArrayList<String>();
+		long albumId = -1;
+		try {
+			while (!mCancelled && cursor.moveToNext()) {
+				long id = cursor.getLong(0);
+				if (id != albumId && !album.isEmpty()) {
+					analyzeAlbum(album);
+					album.clear();
+				}
+				albumId = id;
+				album.add(cursor.getString(1));
+			}
+			if (!mCancelled && !album.isEmpty())
+				analyzeAlbum(album);
+		} finally {
+			cursor.close();
+		}
+
+		mTagCache.save();
+		Log.i("VanillaMusic", "Loudness analysis " + (mCancelled ? "cancelled: " : "finished: ") + stats);
+		return stats;
+	}
+
+	/**
+	 * Measures all songs of an album if any of them lacks a gain.
+	 *
+	 * @param paths The paths of the songs of the album.
+	 */
+	private void analyzeAlbum(ArrayList<String> paths)
+	{
+		ArrayList<long[]> stamps = new ArrayList<long[]>(paths.size());
+		boolean needed = false;
+		for (String path : paths) {
+			if (path == null)
+				return;
+			TagCache.Entry entry = mTagCache.get(path);
+			stamps.add(new long[] { entry.size, entry.mtime });
+			if (Float.isNaN(entry.trackGain) || Float.isNaN(entry.albumGain))
+				needed |= mStore.get(path, entry.size, entry.mtime) == null;
+		}
+		if (!needed)
+			return;
+
+		Arrays.fill(mAlbumHistogram, 0);
+		ArrayList<float[]> values = new ArrayList<float[]>(paths.size());
+		float albumPeak = 0;
+		for (String path : paths) {
+			float[] v = { Float.NaN, Float.NaN, Float.NaN, Float.NaN };
+			if (measure(path)) {
+				v[GainStore.TRACK_GAIN] = LoudnessMeter.replayGain(mMeter.getIntegratedLoudness());
+				v[GainStore.TRACK_PEAK] = (float)mMeter.getTruePeak();
+				mMeter.addHistogramTo(mAlbumHistogram);
+				albumPeak = Math.max(albumPeak, v[GainStore.TRACK_PEAK]);
+			} else {
+				++mStats.failed;
+			}
+			if (mCancelled)
+				return;
+			values.add(v);
+		}
+
+		float albumGain = LoudnessMeter.replayGain(LoudnessMeter.integratedLoudness(mAlbumHistogram));
+		for (float[] v : values) {
+			v[GainStore.ALBUM_GAIN] = albumGain;
+			v[GainStore.ALBUM_PEAK] = Float.isNaN(albumGain) ? Float.NaN : albumPeak;
+		}
+		mStore.putAll(paths, stamps, values);
+		++mStats.albums;
+		mStats.songs += paths.size();
+	}
+
+	/**
+	 * Returns a decoder for the given file.
+	 *
+	 * @param path The path of the file.
+	 * @throws IOException If the file can not be read or decoded.
+	 */
+	private static PcmDecoder openDecoder(String path) throws IOException
+	{
+		if (FlacDecoder.isFlac(path))
+			return new FlacDecoder(path);
+		if (WavDecoder.isWav(path))
+			return new WavDecoder(path);
+		if (Build.VERSION.SDK_INT >= 16)
+			return new MediaCodecDecoder(path);
+		throw new IOException("No decoder for " + path);
+	}
+
+	/**
+	 * Decodes the given file into the meter.
+	 *
+	 * @return True if the file was decoded completely.
+	 */
+	private boolean measure(String path)
+	{
+		PcmDecoder decoder;
+		try {
+			decoder = openDecoder(path);
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Can not analyze " + path + ": " + e.getMessage());
+			return false;
+		}
+
+		LoudnessMeter meter = mMeter;
+		float[] buffer = mBuffer;
+		boolean started = false;
+		long busy = SystemClock.uptimeMillis();
+		try {
+			int frames;
+			while ((frames = decoder.read(buffer)) != -1) {
+				if (mCancelled)
+					return false;
+				if (frames == 0)
+					continue;
+				if (!started) {
+					// the decoder knows the output format now
+					meter.reset(decoder.getChannels(), decoder.getSampleRate());
+					started = true;
+				}
+				meter.process(buffer, frames);
+				mStats.samples += frames * decoder.getChannels();
+
+				long now = SystemClock.uptimeMillis();
+				if (now - mSliceStart >= SLICE_MS) {
+					mStats.busy += now - busy;
+					SystemClock.sleep((long)(SLICE_MS * (1 - DUTY_CYCLE) / DUTY_CYCLE));
+					mSliceStart = busy = SystemClock.uptimeMillis();
+				}
+			}
+			return started;
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to analyze " + path + ": " + e.getMessage());
+			return false;
+		} catch (IllegalArgumentException e) {
+			// channel count or sample rate the meter does not support
+			Log.w("VanillaMusic", "Failed to analyze " + path + ": " + e.getMessage());
+			return false;
+		} finally {
+			mStats.busy += SystemClock.uptimeMillis() - busy;
+			decoder.close();
+		}
+	}
+}
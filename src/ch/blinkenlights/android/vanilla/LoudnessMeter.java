@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import java.util.Arrays;
+
+/**
+ * Measures the integrated loudness (ITU-R BS.1770 / EBU R128) and the true
+ * peak of a stream of PCM samples.
+ *
+ * Samples are K-weighted by two biquads and summed into 100 ms sub-blocks;
+ * every sub-block completes a 400 ms gating block (75% overlap). Instead of
+ * keeping every block, the block loudness is counted in a histogram of
+ * 0.01 LU bins, which is enough to apply both gates at the end and can be
+ * summed over several tracks to get the loudness of an album.
+ *
+ * The true peak is found by 4x oversampling with a windowed sinc
+ * interpolator, as suggested by BS.1770 annex 2.
+ *
+ * Nothing is allocated after construction: a meter can be reused for any
+ * number of tracks by calling {@link #reset(int, int)}. This class has no
+ * Android dependencies so it can be benchmarked on the host.
+ */
+public final class LoudnessMeter {
+	/**
+	 * Maximum number of channels.
+	 */
+	public static final int MAX_CHANNELS = 8;
+	/**
+	 * The loudness ReplayGain 2.0 normalizes to, in LUFS.
+	 */
+	public static final double REFERENCE_LOUDNESS = -18.0;
+	/**
+	 * Number of bins of a loudness histogram.
+	 */
+	public static final int HISTOGRAM_SIZE = 8000;
+
+	private static final double ABSOLUTE_GATE = -70.0;
+	private static final double RELATIVE_GATE = -10.0;
+	/**
+	 * Loudness of the lowest histogram bin and the width of a bin in LU.
+	 */
+	private static final double HISTOGRAM_MIN = ABSOLUTE_GATE;
+	private static final double HISTOGRAM_STEP = 0.01;
+	/**
+	 * Mean square value at the center of each histogram bin.
+	 */
+	private static final double[] BIN_ENERGY = new double[HISTOGRAM_SIZE];
+
+	private static final int OVERSAMPLE = 4;
+	private static final int TAPS = 12;
+	/**
+	 * Interpolation filter, TAPS coefficients for each of the OVERSAMPLE
+	 * phases. Phase 0 returns the (delayed) input sample itself.
+	 */
+	private static final double[] FIR = new double[OVERSAMPLE * TAPS];
+
+	static {
+		for (int i = 0; i != HISTOGRAM_SIZE; ++i)
+			BIN_ENERGY[i] = Math.pow(10, (HISTOGRAM_MIN + (i + 0.5) * HISTOGRAM_STEP + 0.691) / 10);
+
+		double half = TAPS / 2 + 0.5;
+		for (int p = 0; p != OVERSAMPLE; ++p) {
+			for (int j = 0; j != TAPS; ++j) {
+				double t = TAPS / 2 - (double)p / OVERSAMPLE - j;
+				double sinc = t == 0 ? 1 : Math.sin(Math.PI * t) / (Math.PI * t);
+				double window = 0.5 * (1 + Math.cos(Math.PI * t / half));
+				FIR[p * TAPS + j] = sinc * window;
+			}
+		}
+	}
+
+	private int mChannels;
+	/**
+	 * Coefficients of the high shelf (b*, a*) and the high pass (c*, d*)
+	 * stage of the K-weighting filter.
+	 */
+	private double mB0, mB1, mB2, mA1, mA2;
+	private double mC0, mC1, mC2, mD1, mD2;
+	/**
+	 * Filter state, 4 values per channel.
+	 */
+	private final double[] mState = new double[MAX_CHANNELS * 4];
+	private final double[] mWeights = new double[MAX_CHANNELS];
+
+	/**
+	 * Number of frames in a sub-block and in the current sub-block.
+	 */
+	private int mSubBlockSize;
+	private int mSubBlockFrames;
+	/**
+	 * Weighted sum of squares of the current sub-block.
+	 */
+	private double mSum;
+	/**
+	 * Mean square of the last 4 sub-blocks.
+	 */
+	private final double[] mSubBlocks = new double[4];
+	private int mSubBlockCount;
+	private final int[] mHistogram = new int[HISTOGRAM_SIZE];
+
+	private boolean mOversample;
+	/**
+	 * The last TAPS samples of each channel, stored twice so that the window
+	 * never wraps around.
+	 */
+	private final double[] mHistory = new double[MAX_CHANNELS * TAPS * 2];
+	private int mHistoryPos;
+	private double mPeak;
+
+	public LoudnessMeter(int channels, int sampleRate)
+	{
+		reset(channels, sampleRate);
+	}
+
+	/**
+	 * Clears all measurements and prepares the meter for a new stream.
+	 *
+	 * @param channels The number of interleaved channels.
+	 * @param sampleRate The sample rate in Hz.
+	 */
+	public void reset(int channels, int sampleRate)
+	{
+		if (channels < 1 || channels > MAX_CHANNELS)
+			throw new IllegalArgumentException("Unsupported channel count: " + channels);
+		if (sampleRate < 8000)
+			throw new IllegalArgumentException("Unsupported sample rate: " + sampleRate);
+
+		mChannels = channels;
+
+		// BS.1770 specifies the filters for 48kHz only; these are the analog
+		// prototypes they were derived from, mapped by the bilinear transform.
+		double f0 = 1681.974450955533;
+		double gain = 3.999843853973347;
+		double q = 0.7071752369554196;
+		double k = Math.tan(Math.PI * f0 / sampleRate);
+		double vh = Math.pow(10, gain / 20);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1 + k / q + k * k;
+		mB0 = (vh + vb * k / q + k * k) / a0;
+		mB1 = 2 * (k * k - vh) / a0;
+		mB2 = (vh - vb * k / q + k * k) / a0;
+		mA1 = 2 * (k * k - 1) / a0;
+		mA2 = (1 - k / q + k * k) / a0;
+
+		f0 = 38.13547087602444;
+		q = 0.5003270373238773;
+		k = Math.tan(Math.PI * f0 / sampleRate);
+		a0 = 1 + k / q + k * k;
+		mC0 = 1;
+		mC1 = -2;
+		mC2 = 1;
+		mD1 = 2 * (k * k - 1) / a0;
+		mD2 = (1 - k / q + k * k) / a0;
+
+		// L, R, C, LFE, Ls, Rs: surround channels count more, LFE not at all
+		for (int c = 0; c != channels; ++c)
+			mWeights[c] = 1.0;
+		if (channels == 6) {
+			mWeights[3] = 0.0;
+			mWeights[4] = 1.41;
+			mWeights[5] = 1.41;
+		}
+
+		Arrays.fill(mState, 0);
+		Arrays.fill(mSubBlocks, 0);
+		Arrays.fill(mHistogram, 0);
+		Arrays.fill(mHistory, 0);
+		mSubBlockSize = sampleRate / 10;
+		mSubBlockFrames = 0;
+		mSubBlockCount = 0;
+		mSum = 0;
+		mHistoryPos = 0;
+		mPeak = 0;
+		// above 96kHz the sample peak is close enough
+		mOversample = sampleRate < 96000;
+	}
+
+	/**
+	 * Feeds interleaved samples into the meter.
+	 *
+	 * @param samples The samples, in the range -1..1.
+	 * @param frames The number of frames (samples per channel) to process.
+	 */
+	public void process(float[] samples, int frames)
+	{
+		final int channels = mChannels;
+		final double[] state = mState;
+		final double[] weights = mWeights;
+		final double[] history = mHistory;
+		final double b0 = mB0, b1 = mB1, b2 = mB2, a1 = mA1, a2 = mA2;
+		final double c0 = mC0, c1 = mC1, c2 = mC2, d1 = mD1, d2 = mD2;
+		final boolean oversample = mOversample;
+		double peak = mPeak;
+		double sum = mSum;
+		int i = 0;
+
+		for (int f = 0; f != frames; ++f) {
+			for (int c = 0; c != channels; ++c) {
+				double x = samples[i++];
+
+				int z = c * 4;
+				double y = b0 * x + state[z];
+				state[z] = b1 * x - a1 * y + state[z + 1];
+				state[z + 1] = b2 * x - a2 * y;
+				double w = c0 * y + state[z + 2];
+				state[z + 2] = c1 * y - d1 * w + state[z + 3];
+				state[z + 3] = c2 * y - d2 * w;
+				sum += weights[c] * w * w;
+
+				if (oversample) {
+					int h = c * TAPS * 2 + mHistoryPos;
+					history[h] = x;
+					history[h + TAPS] = x;
+					// history[h + TAPS - j] is now the sample from j frames ago
+					int newest = h + TAPS;
+					for (int p = 0; p != OVERSAMPLE; ++p) {
+						double v = 0;
+						int fir = p * TAPS;
+						for (int j = 0; j != TAPS; ++j)
+							v += history[newest - j] * FIR[fir + j];
+						if (v > peak)
+							peak = v;
+						else if (-v > peak)
+							peak = -v;
+					}
+				} else if (x > peak) {
+					peak = x;
+				} else if (-x > peak) {
+					peak = -x;
+				}
+			}
+
+			if (++mHistoryPos == TAPS)
+				mHistoryPos = 0;
+
+			if (++mSubBlockFrames == mSubBlockSize) {
+				endSubBlock(sum);
+				sum = 0;
+			}
+		}
+
+		mPeak = peak;
+		mSum = sum;
+	}
+
+	/**
+	 * Completes a sub-block and counts the 400ms block ending with it.
+	 */
+	private void endSubBlock(double sum)
+	{
+		double[] blocks = mSubBlocks;
+		blocks[mSubBlockCount & 3] = sum / mSubBlockSize;
+		mSubBlockFrames = 0;
+		if (++mSubBlockCount < 4)
+			return;
+
+		double energy = (blocks[0] + blocks[1] + blocks[2] + blocks[3]) / 4;
+		if (energy <= 0)
+			return;
+		double loudness = -0.691 + 10 * Math.log10(energy);
+		if (loudness < ABSOLUTE_GATE)
+			return;
+		int bin = (int)((loudness - HISTOGRAM_MIN) / HISTOGRAM_STEP);
+		mHistogram[Math.min(bin, HISTOGRAM_SIZE - 1)]++;
+	}
+
+	/**
+	 * Returns the integrated loudness in LUFS, or NaN if the stream was
+	 * shorter than a block or silent.
+	 */
+	public double getIntegratedLoudness()
+	{
+		return integratedLoudness(mHistogram);
+	}
+
+	/**
+	 * Returns the true peak, where 1.0 is full scale.
+	 */
+	public double getTruePeak()
+	{
+		return mPeak;
+	}
+
+	/**
+	 * Adds the block histogram of this meter to the given histogram, e.g.
+	 * to measure the loudness of a whole album.
+	 *
+	 * @param histogram An array of {@link #HISTOGRAM_SIZE} counts.
+	 */
+	public void addHistogramTo(int[] histogram)
+	{
+		int[] h = mHistogram;
+		for (int i = 0; i != HISTOGRAM_SIZE; ++i)
+			histogram[i] += h[i];
+	}
+
+	/**
+	 * Applies the relative gate to a block histogram and returns the
+	 * integrated loudness in LUFS, or NaN if there are no blocks above the
+	 * absolute gate.
+	 *
+	 * @param histogram An array of {@link #HISTOGRAM_SIZE} counts.
+	 */
+	public static double integratedLoudness(int[] histogram)
+	{
+		double energy = 0;
+		long count = 0;
+		for (int i = 0; i != HISTOGRAM_SIZE; ++i) {
+			energy += histogram[i] * BIN_ENERGY[i];
+			count += histogram[i];
+		}
+		if (count == 0)
+			return Double.NaN;
+
+		double gate = -0.691 + 10 * Math.log10(energy / count) + RELATIVE_GATE;
+		int start = Math.max(0, (int)Math.ceil((gate - HISTOGRAM_MIN) / HISTOGRAM_STEP));
+		energy = 0;
+		count = 0;
+		for (int i = start; i < HISTOGRAM_SIZE; ++i) {
+			energy += histogram[i] * BIN_ENERGY[i];
+			count += histogram[i];
+		}
+		if (count == 0)
+			return Double.NaN;
+		return -0.691 + 10 * Math.log10(energy / count);
+	}
+
+	/**
+	 * Returns the ReplayGain 2.0 gain in dB for the given loudness.
+	 */
+	public static float replayGain(double loudness)
+	{
+		return (float)(REFERENCE_LOUDNESS - loudness);
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes any format the platform supports with MediaExtractor and
+ * MediaCodec, which output 16 bit PCM.
+ */
+@TargetApi(16)
+public final class MediaCodecDecoder extends PcmDecoder {
+	/**
+	 * How long to wait for a codec buffer, in microseconds.
+	 */
+	private static final long TIMEOUT_US = 10000;
+
+	private final MediaExtractor mExtractor;
+	private final MediaCodec mCodec;
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	private ByteBuffer[] mInputBuffers;
+	private ByteBuffer[] mOutputBuffers;
+	private int mChannels;
+	private int mSampleRate;
+	private boolean mInputDone;
+	private boolean mOutputDone;
+	/**
+	 * The output buffer being read, or -1, and the range of unread bytes.
+	 */
+	private int mOutputIndex = -1;
+	private ByteBuffer mOutput;
+	private int mOutputPos;
+	private int mOutputEnd;
+
+	public MediaCodecDecoder(String path) throws IOException
+	{
+		mExtractor = new MediaExtractor();
+		MediaCodec codec = null;
+		try {
+			mExtractor.setDataSource(path);
+			MediaFormat format = null;
+			for (int i = 0, n = mExtractor.getTrackCount(); i != n; ++i) {
+				MediaFormat f = mExtractor.getTrackFormat(i);
+				if (f.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+					mExtractor.selectTrack(i);
+					format = f;
+					break;
+				}
+			}
+			if (format == null)
+				throw new IOException("No audio track in " + path);
+
+			mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+			mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+			if (mChannels < 1)
+				throw new IOException("Invalid channel count in " + path);
+			codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+			codec.configure(format, null, null, 0);
+			codec.start();
+		} catch (RuntimeException e) {
+			// unsupported format or broken file
+			if (codec != null)
+				codec.release();
+			mExtractor.release();
+			throw new IOException("Can not decode " + path + ": " + e);
+		} catch (IOException e) {
+			mExtractor.release();
+			throw e;
+		}
+		mCodec = codec;
+		mInputBuffers = codec.getInputBuffers();
+		mOutputBuffers = codec.getOutputBuffers();
+	}
+
+	@Override
+	public int getChannels()
+	{
+		return mChannels;
+	}
+
+	@Override
+	public int getSampleRate()
+	{
+		return mSampleRate;
+	}
+
+	@Override
+	public int read(float[] dst) throws IOException
+	{
+		try {
+			if (mOutputIndex < 0) {
+				if (mOutputDone)
+					return -1;
+				queueInput();
+				if (!dequeueOutput())
+					return mOutputDone ? -1 : 0;
+			}
+
+			ByteBuffer out = mOutput;
+			int pos = mOutputPos;
+			int frames = Math.min(dst.length / mChannels, (mOutputEnd - pos) / (2 * mChannels));
+			for (int i = 0, n = frames * mChannels; i != n; ++i, pos += 2)
+				dst[i] = out.getShort(pos) / 32768f;
+			mOutputPos = pos;
+
+			if (mOutputEnd - pos < 2 * mChannels) {
+				mCodec.releaseOutputBuffer(mOutputIndex, false);
+				mOutputIndex = -1;
+			}
+			return frames;
+		} catch (IllegalStateException e) {
+			throw new IOException("Decoder failed: " + e);
+		}
+	}
+
+	/**
+	 * Feeds the next sample of the extractor to the codec, if it has a free
+	 * input buffer.
+	 */
+	private void queueInput()
+	{
+		if (mInputDone)
+			return;
+		int index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+		if (index < 0)
+			return;
+
+		int size = mExtractor.readSampleData(mInputBuffers[index], 0);
+		if (size < 0) {
+			mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+			mInputDone = true;
+		} else {
+			mCodec.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+			mExtractor.advance();
+		}
+	}
+
+	/**
+	 * Waits for the next output buffer.
+	 *
+	 * @return True if mOutput holds new samples.
+	 */
+	private boolean dequeueOutput()
+	{
+		int index = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT_US);
+		if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+			MediaFormat format = mCodec.getOutputFormat();
+			mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+			mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+			return false;
+		}
+		if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+			mOutputBuffers = mCodec.getOutputBuffers();
+			return false;
+		}
+		if (index < 0)
+			return false;
+
+		if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+			mOutputDone = true;
+		if (mInfo.size < 2 * mChannels) {
+			mCodec.releaseOutputBuffer(index, false);
+			return false;
+		}
+
+		mOutput = mOutputBuffers[index];
+		mOutput.order(ByteOrder.nativeOrder());
+		mOutputPos = mInfo.offset;
+		mOutputEnd = mInfo.offset + mInfo.size;
+		mOutputIndex = index;
+		return true;
+	}
+
+	@Override
+	public void close()
+	{
+		if (mOutputIndex >= 0)
+			mCodec.releaseOutputBuffer(mOutputIndex, false);
+		mCodec.stop();
+		mCodec.release();
+		mExtractor.release();
+	}
+}
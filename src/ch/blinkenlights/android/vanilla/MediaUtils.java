@@ -23,17 +23,17 @@
 package ch.blinkenlights.android.vanilla;
 
 import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.MediaStore;
 import java.io.File;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
-import junit.framework.Assert;
 import android.os.Environment;
 import android.util.Log;
 
@@ -87,18 +87,36 @@ public class MediaUtils {
 	private static Random sRandom;
 
 	/**
-	 * Shuffled list of all ids in the library.
+	 * Name of the preferences the random cycle is saved in.
 	 */
-	private static long[] sAllSongs;
-	private static int sAllSongsIdx;
-
+	private static final String RANDOM_CYCLE_PREFS = "random_cycle";
+	/**
+	 * Number of songs picked by randomSong() between two saves of the
+	 * random cycle.
+	 */
+	private static final int RANDOM_CYCLE_SAVE_INTERVAL = 16;
+	/**
+	 * Number of ids of the random cycle looked up with one query.
+	 */
+	private static final int RANDOM_BLOCK = 32;
+	/**
+	 * Guards the random cycle. Never held while querying the MediaStore.
+	 */
+	private static final Object sRandomLock = new Object();
 	/**
-	 * Query this many songs at a time from sAllSongs.
+	 * The cycle through the library randomSong() picks songs from, or null
+	 * if it was not loaded yet.
 	 */
-	private static final int RANDOM_POPULATE_SIZE = 20;
-	private static final Song[] sRandomCache = new Song[RANDOM_POPULATE_SIZE];
-	private static int sRandomCacheIdx;
-	private static int sRandomCacheEnd;
+	private static RandomCycle sRandomCycle;
+	/**
+	 * The largest id of the songs random mode picks from, or -1 for
+	 * uninitialized.
+	 */
+	private static long sMaxSongId = -1;
+	/**
+	 * Number of songs picked since the random cycle was last saved.
+	 */
+	private static int sRandomUnsaved;
 
 	/**
 	 * Total number of songs in the music library, or -1 for uninitialized.
@@ -241,40 +259,6 @@ public class MediaUtils {
 		return 0;
 	}
 
-	/**
-	 * Shuffle an array using Fisher-Yates algorithm.
-	 *
-	 * @param list The array. It will be shuffled in place.
-	 */
-	public static void shuffle(long[] list)
-	{
-		Random random = getRandom();
-		for (int i = list.length; --i != -1; ) {
-			int j = random.nextInt(i + 1);
-			long tmp = list[j];
-			list[j] = list[i];
-			list[i] = tmp;
-		}
-	}
-
-	/**
-	 * Shuffle an array using Fisher-Yates algorithm.
-	 *
-	 * @param list The array. It will be shuffled in place.
-	 * @param end Only elements before this index will be shuffled.
-	 */
-	public static void shuffle(Song[] list, int end)
-	{
-		Assert.assertTrue(end <= list.length && end >= 0);
-		Random random = getRandom();
-		for (int i = end; --i != -1; ) {
-			int j = random.nextInt(i + 1);
-			Song tmp = list[j];
-			list[j] = list[i];
-			list[i] = tmp;
-		}
-	}
-
 	/**
 	 * Shuffle a Song list using Fisher-Yates algorithm.
 	 *
@@ -286,76 +270,48 @@ public class MediaUtils {
 		if (size < 2)
 			return;
 
-		Random random = getRandom();
 		if (albumShuffle) {
 			Song[] songs = list.toArray(new Song[size]);
-			Song[] temp = new Song[size];
-
-			// Make sure the albums are in order
-			Arrays.sort(songs);
-
-			// This is Fisher-Yates algorithm, but it swaps albums instead of
-			// single elements.
-			for (int i = size; --i != -1; ) {
-				Song songI = songs[i];
-				if (i > 0 && songs[i - 1].albumId == songI.albumId)
-					// This index is not the start of an album. Skip it.
-					continue;
-
-				int j = random.nextInt(i + 1);
-				while (j > 0 && songs[j - 1].albumId == songs[j].albumId)
-					// This index is not the start of an album. Find the start.
-					j -= 1;
-
-				int lowerStart = Math.min(i, j);
-				int upperStart = Math.max(i, j);
-
-				if (lowerStart == upperStart)
-					// Swap with ourself. That was easy!
-					continue;
-
-				long lowerAlbum = songs[lowerStart].albumId;
-				int lowerEnd = lowerStart;
-				while (lowerEnd + 1 < size && songs[lowerEnd + 1].albumId == lowerAlbum)
-					lowerEnd += 1;
-
-				long upperAlbum = songs[upperStart].albumId;
-				int upperEnd = upperStart;
-				while (upperEnd + 1 < size && songs[upperEnd + 1].albumId == upperAlbum)
-					upperEnd += 1;
-
-				int lowerSize = lowerEnd - lowerStart + 1;
-				int upperSize = upperEnd - upperStart + 1;
-
-				if (lowerSize == 1 && upperSize == 1) {
-					// Easy, single element swap
-					Song tempSong = songs[lowerStart];
-					songs[lowerStart] = songs[upperStart];
-					songs[upperStart] = tempSong;
-				} else {
-					// Slow multi-element swap. Copy to a new array in the
-					// swapped order.
-					System.arraycopy(songs, 0, temp, 0, lowerStart); // copy elements before lower
-					System.arraycopy(songs, upperStart, temp, lowerStart, upperSize); // copy upper elements to lower spot
-					System.arraycopy(songs, lowerEnd + 1, temp, lowerStart + upperSize, upperStart - lowerEnd - 1); // copy elements between upper and lower
-					System.arraycopy(songs, lowerStart, temp, lowerStart + upperEnd - lowerEnd, lowerSize); // copy lower elements to upper spot
-					System.arraycopy(songs, upperEnd + 1, temp, upperEnd + 1, size - upperEnd - 1); // copy elements remaining elements after upper
-
-					// New array is finished. Use the old array as temp for the
-					// next iteration.
-					Song[] tempTemp = songs;
-					songs = temp;
-					temp = tempTemp;
-				}
+			long[] albumIds = new long[size];
+			int[] tracks = new int[size];
+			for (int i = 0; i != size; ++i) {
+				albumIds[i] = songs[i].albumId;
+				tracks[i] = songs[i].trackNumber;
 			}
 
+			int[] order = shuffle(albumIds, tracks, 0, size, true);
 			list.clear();
-			list.addAll(Arrays.asList(songs));
+			for (int i = 0; i != size; ++i)
+				list.add(songs[order[i]]);
 		} else {
-			Collections.shuffle(list, random);
+			Collections.shuffle(list, getRandom());
 		}
 	}
 
+	/**
+	 * Shuffle a range of a song list that is stored as columns, like the one
+	 * of {@link SongTimeline}. The columns are left untouched; the new order
+	 * is returned as a permutation instead.
+	 *
+	 * @param albumIds The album id of each song.
+	 * @param tracks The track number of each song.
+	 * @param start The first position to shuffle.
+	 * @param end The position after the last one to shuffle.
+	 * @param albumShuffle If true, preserve the order of tracks inside albums.
+	 * @return The positions from start to end in their shuffled order.
+	 * @see QueueShuffle#shuffle(long[], int[], int, int, boolean, Random)
+	 */
+	public static int[] shuffle(long[] albumIds, int[] tracks, int start, int end, boolean albumShuffle)
+	{
+		return QueueShuffle.shuffle(albumIds, tracks, start, end, albumShuffle, getRandom());
+	}
+
+	/**
+	 * The selection of the songs random mode picks from, and that
+	 * isSongAvailable() counts.
+	 */
+	private static final String MUSIC_SELECTION = MediaStore.Audio.Media.IS_MUSIC + " AND length(_data)";
+
 	/**
 	 * Determine if any songs are available from the library.
 	 *
@@ -364,12 +320,21 @@ public class MediaUtils {
 	 * example, false could be returned if there are no songs in the library.
 	 */
 	public static boolean isSongAvailable(ContentResolver resolver)
+	{
+		return countSongs(resolver) != 0;
+	}
+
+	/**
+	 * Returns the number of songs in the library, caching the result until
+	 * the next media change.
+	 *
+	 * @param resolver A ContentResolver to use.
+	 */
+	private static int countSongs(ContentResolver resolver)
 	{
 		if (sSongCount == -1) {
 			Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-			String selection = MediaStore.Audio.Media.IS_MUSIC;
-			selection += " AND length(_data)";
-			Cursor cursor = resolver.query(media, new String[]{"count(_id)"}, selection, null, null);
+			Cursor cursor = resolver.query(media, new String[]{"count(_id)"}, MUSIC_SELECTION, null, null);
 			if (cursor == null) {
 				sSongCount = 0;
 			} else {
@@ -379,123 +344,185 @@ public class MediaUtils {
 			}
 		}
 
-		return sSongCount != 0;
+		return sSongCount;
+	}
+
+	public static void onMediaChange()
+	{
+		// The random cycle is kept: it works on song ids, so songs that
+		// were removed are skipped and new ones wait for the next cycle.
+		sSongCount = -1;
+		sMaxSongId = -1;
 	}
 
 	/**
-	 * Returns a shuffled array contaning the ids of all the songs on the
-	 * device's library.
+	 * Returns the largest id of the songs random mode picks from, caching
+	 * the result until the next media change.
 	 *
 	 * @param resolver A ContentResolver to use.
+	 * @return The id, or 0 if there are no songs.
 	 */
-	public static long[] queryAllSongs(ContentResolver resolver)
+	private static long getMaxSongId(ContentResolver resolver)
 	{
-		sAllSongsIdx = 0;
-		sRandomCacheEnd = -1;
-
-		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-		String selection = MediaStore.Audio.Media.IS_MUSIC;
-		selection += " AND length(_data)";
-		Cursor cursor = resolver.query(media, Song.EMPTY_PROJECTION, selection, null, null);
-		if (cursor == null || cursor.getCount() == 0) {
-			sSongCount = 0;
-			return null;
-		}
-
-		int count = cursor.getCount();
-		long[] ids = new long[count];
-		for (int i = 0; i != count; ++i) {
-			if (!cursor.moveToNext())
-				return null;
-			ids[i] = cursor.getLong(0);
+		if (sMaxSongId == -1) {
+			Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+			Cursor cursor = resolver.query(media, new String[]{"max(_id)"}, MUSIC_SELECTION, null, null);
+			if (cursor == null)
+				return 0;
+			sMaxSongId = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+			cursor.close();
 		}
-		sSongCount = count;
-		cursor.close();
-
-		shuffle(ids);
 
-		return ids;
-	}
-
-	public static void onMediaChange()
-	{
-		sSongCount = -1;
-		sAllSongs = null;
+		return sMaxSongId;
 	}
 
 	/**
 	 * Returns a song randomly selected from all the songs in the Android
-	 * MediaStore.
+	 * MediaStore. No song is returned twice before all songs were returned
+	 * once: the songs are picked from a {@link RandomCycle} over the ids
+	 * from 0 to the largest song id, skipping ids that are not songs. The
+	 * cycle is keyed on the ids themselves, so removing songs never makes
+	 * others repeat, and songs added during a cycle wait for the next one.
+	 * A new cycle is started right away if the largest id more than
+	 * doubled.
 	 *
-	 * @param resolver A ContentResolver to use.
+	 * The ids are shared with the other media in the MediaStore, so the
+	 * next {@link #RANDOM_BLOCK} ids of the cycle are looked up with one
+	 * query and the first one that is a song is taken. The memory used
+	 * does not depend on the size of the library.
+	 *
+	 * The cycle is saved every {@link #RANDOM_CYCLE_SAVE_INTERVAL} songs
+	 * and by {@link #saveRandomCycle(Context)}, so it continues after a
+	 * restart; at most that many songs are picked again after a crash.
+	 *
+	 * This is normally called on the thread of the {@link RandomPrefetcher}.
+	 *
+	 * @param context A context to use.
 	 */
-	public static Song randomSong(ContentResolver resolver)
+	public static Song randomSong(Context context)
 	{
-		long[] songs = sAllSongs;
-
-		if (songs == null) {
-			songs = queryAllSongs(resolver);
-			if (songs == null)
-				return null;
-			sAllSongs = songs;
-		} else if (sAllSongsIdx == sAllSongs.length) {
-			sAllSongsIdx = 0;
-			sRandomCacheEnd = -1;
-			shuffle(sAllSongs);
-		}
+		ContentResolver resolver = context.getContentResolver();
+		long maxId = getMaxSongId(resolver);
+		if (maxId <= 0)
+			return null;
+		int size = (int)Math.min(maxId + 1, 1 << 30);
 
-		if (sAllSongsIdx >= sRandomCacheEnd) {
-			Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		long[] ids = new long[RANDOM_BLOCK];
+		RandomCycle started = null;
+		for (;;) {
+			RandomCycle cycle;
+			int start;
+			int n;
+			synchronized (sRandomLock) {
+				cycle = sRandomCycle;
+				if (cycle == null)
+					cycle = loadRandomCycle(context);
+				if (cycle == null || cycle.isFinished() || cycle.getSize() * 2 < size) {
+					if (started != null && cycle == started)
+						// a whole cycle without a single song
+						return null;
+					cycle = new RandomCycle(getRandom().nextLong(), size, 0);
+					started = cycle;
+					sRandomUnsaved = RANDOM_CYCLE_SAVE_INTERVAL;
+				}
+				sRandomCycle = cycle;
 
-			StringBuilder selection = new StringBuilder("_ID IN (");
+				start = cycle.getCursor();
+				n = Math.min(RANDOM_BLOCK, cycle.getSize() - start);
+				for (int i = 0; i != n; ++i)
+					ids[i] = cycle.indexAt(start + i);
+			}
 
-			boolean first = true;
-			int end = Math.min(sAllSongsIdx + RANDOM_POPULATE_SIZE, sAllSongs.length);
-			for (int i = sAllSongsIdx; i != end; ++i) {
-				if (!first)
+			StringBuilder selection = new StringBuilder("_id IN (");
+			for (int i = 0; i != n; ++i) {
+				if (i != 0)
 					selection.append(',');
-
-				first = false;
-
-				selection.append(sAllSongs[i]);
+				selection.append(ids[i]);
 			}
-
-			selection.append(')');
+			selection.append(") AND ");
+			selection.append(MUSIC_SELECTION);
 
 			Cursor cursor = resolver.query(media, Song.FILLED_PROJECTION, selection.toString(), null, null);
-
-			if (cursor == null) {
-				sAllSongs = null;
+			if (cursor == null)
 				return null;
+			// take the song that comes first in the cycle
+			Song song = null;
+			int first = n;
+			while (cursor.moveToNext()) {
+				long id = cursor.getLong(0);
+				int k = 0;
+				while (k != first && ids[k] != id)
+					++k;
+				if (k != first) {
+					first = k;
+					song = new Song(-1, Song.FLAG_RANDOM);
+					song.populate(cursor);
+				}
 			}
+			cursor.close();
 
-			int count = cursor.getCount();
-			if (count > 0) {
-				Assert.assertTrue(count <= RANDOM_POPULATE_SIZE);
-
-				for (int i = 0; i != count; ++i) {
-					cursor.moveToNext();
-					Song newSong = new Song(-1);
-					newSong.populate(cursor);
-					newSong.flags |= Song.FLAG_RANDOM;
-					sRandomCache[i] = newSong;
+			boolean save = false;
+			synchronized (sRandomLock) {
+				if (sRandomCycle != cycle)
+					// another thread picked a song in the meantime
+					continue;
+				sRandomCycle = new RandomCycle(cycle.getSeed(), cycle.getSize(), start + Math.min(first + 1, n));
+				if (started == cycle)
+					started = sRandomCycle;
+				if (song != null && ++sRandomUnsaved >= RANDOM_CYCLE_SAVE_INTERVAL) {
+					sRandomUnsaved = 0;
+					save = true;
 				}
 			}
+			if (save)
+				saveRandomCycle(context);
+			if (song != null)
+				return song;
+		}
+	}
 
-			cursor.close();
-
-			// The query will return sorted results; undo that
-			shuffle(sRandomCache, count);
+	/**
+	 * Reads the random cycle saved by saveRandomCycle(). Must be called
+	 * while synchronized on sRandomLock.
+	 *
+	 * @return The cycle, or null if none was saved.
+	 */
+	private static RandomCycle loadRandomCycle(Context context)
+	{
+		SharedPreferences prefs = context.getSharedPreferences(RANDOM_CYCLE_PREFS, Context.MODE_PRIVATE);
+		int size = prefs.getInt("size", 0);
+		if (size <= 0)
+			return null;
+		return new RandomCycle(prefs.getLong("seed", 0), size, prefs.getInt("cursor", 0));
+	}
 
-			sRandomCacheIdx = 0;
-			sRandomCacheEnd = sAllSongsIdx + count;
+	/**
+	 * Saves the state of the random cycle in the background, so that it
+	 * continues after a restart.
+	 *
+	 * @param context A context to use.
+	 */
+	public static void saveRandomCycle(Context context)
+	{
+		long seed;
+		int size;
+		int cursor;
+		synchronized (sRandomLock) {
+			RandomCycle cycle = sRandomCycle;
+			if (cycle == null)
+				return;
+			seed = cycle.getSeed();
+			size = cycle.getSize();
+			cursor = cycle.getCursor();
+			sRandomUnsaved = 0;
 		}
 
-		Song result = sRandomCache[sRandomCacheIdx];
-		++sRandomCacheIdx;
-		++sAllSongsIdx;
-
-		return result;
+		SharedPreferences.Editor editor = context.getSharedPreferences(RANDOM_CYCLE_PREFS, Context.MODE_PRIVATE).edit();
+		editor.putLong("seed", seed);
+		editor.putInt("size", size);
+		editor.putInt("cursor", cursor);
+		editor.apply();
 	}
 
 	/**
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import java.io.IOException;
+
+/**
+ * Decodes an audio file into interleaved float samples.
+ *
+ * WAV and FLAC files are decoded in plain Java by {@link WavDecoder} and
+ * {@link FlacDecoder}, everything else by the platform decoders through
+ * {@link MediaCodecDecoder}.
+ */
+public abstract class PcmDecoder {
+	/**
+	 * Returns the number of channels. May change during the first
+	 * {@link #read(float[])}.
+	 */
+	public abstract int getChannels();
+
+	/**
+	 * Returns the sample rate in Hz. May change during the first
+	 * {@link #read(float[])}.
+	 */
+	public abstract int getSampleRate();
+
+	/**
+	 * Decodes the next samples.
+	 *
+	 * @param dst Receives interleaved samples in the range -1..1. Must hold
+	 * at least one frame.
+	 * @return The number of frames (samples per channel) written to dst, 0 if
+	 * the decoder needs to be called again, or -1 at the end of the file.
+	 */
+	public abstract int read(float[] dst) throws IOException;
+
+	/**
+	 * Releases the file and all decoder resources.
+	 */
+	public abstract void close();
+}
@@ -44,6 +44,7 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -60,15 +61,10 @@ import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.Toast;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Vector;
-import ch.blinkenlights.bastp.Bastp;
+import java.util.Arrays;
 
 
 /**
@@ -92,9 +88,19 @@ public final class PlaybackService extends Service
 	 */
 	private static final long STATE_FILE_MAGIC = 0x1533574DC74B6ECL;
 	/**
-	 * State file version that indicates data order.
+	 * State file version that indicates data order. Files of older versions
+	 * down to {@link #STATE_VERSION_OLDEST} are migrated when read.
 	 */
-	private static final int STATE_VERSION = 6;
+	private static final int STATE_VERSION = StateCodec.VERSION_VARINT;
+	/**
+	 * The first state file version with a generation number, which the
+	 * journal belongs to.
+	 */
+	private static final int STATE_VERSION_JOURNAL = 7;
+	/**
+	 * The oldest state file version that is still read.
+	 */
+	private static final int STATE_VERSION_OLDEST = 6;
 
 	private static final int NOTIFICATION_ID = 2;
 
@@ -300,7 +306,21 @@ public final class PlaybackService extends Service
 	private Looper mLooper;
 	private Handler mHandler;
 	MediaPlayer mMediaPlayer;
+	/**
+	 * The player of the next song, attached to mMediaPlayer with
+	 * setNextMediaPlayer(). Guarded by mGaplessLock, like the swaps of
+	 * mMediaPlayer and mMediaPlayerInitialized it depends on.
+	 */
 	MediaPlayer mPreparedMediaPlayer;
+	/**
+	 * The song mPreparedMediaPlayer plays.
+	 */
+	private Song mPreparedSong;
+	private final Object mGaplessLock = new Object();
+	/**
+	 * Prepares mPreparedMediaPlayer in the background.
+	 */
+	private GaplessPreparer mGaplessPreparer;
 	private boolean mMediaPlayerInitialized;
 	private PowerManager.WakeLock mWakeLock;
 	private NotificationManager mNotificationManager;
@@ -373,6 +393,45 @@ public final class PlaybackService extends Service
 	private boolean mReplayGainTrackEnabled;
 	private boolean mReplayGainAlbumEnabled;
 	private boolean mReplayGainSilenceEnabled;
+	/**
+	 * Cache of the ReplayGain values read from the files.
+	 */
+	private TagCache mTagCache;
+	/**
+	 * Picks the songs of random mode ahead of time.
+	 */
+	private RandomPrefetcher mRandomPrefetcher;
+	/**
+	 * The changes to the timeline since the state file was written.
+	 */
+	private StateJournal mJournal;
+	/**
+	 * The generation of the state file, which the journal belongs to.
+	 */
+	private int mStateGeneration;
+	/**
+	 * The running library scan, if any.
+	 */
+	private LibraryScanner mScanner;
+	private Thread mScanThread;
+	/**
+	 * Gains measured for songs without ReplayGain tags.
+	 */
+	private GainStore mGainStore;
+	/**
+	 * The running loudness analysis, if any.
+	 */
+	private LoudnessAnalyzer mAnalyzer;
+	private Thread mAnalyzerThread;
+	private boolean mAnalyzeReplayGain;
+	/**
+	 * True while the device is connected to a charger.
+	 */
+	private boolean mCharging;
+	/**
+	 * True while the screen is off.
+	 */
+	private boolean mScreenOff;
 	
 	@Override
 	public void onCreate()
@@ -382,8 +441,14 @@ public final class PlaybackService extends Service
 
 		mTimeline = new SongTimeline(this);
 		mTimeline.setCallback(this);
+		mJournal = new StateJournal(this);
 		int state = loadState();
 
+		mTagCache = new TagCache(this);
+		mGainStore = new GainStore(this);
+		mRandomPrefetcher = new RandomPrefetcher(this, mTagCache, RandomPrefetcher.DEFAULT_DEPTH);
+		mTimeline.setRandomPrefetcher(mRandomPrefetcher);
+
 		mMediaPlayer = getNewMediaPlayer();
 		
 		mNotificationManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
@@ -409,6 +474,7 @@ public final class PlaybackService extends Service
 		mReplayGainTrackEnabled = settings.getBoolean(PrefKeys.ENABLE_TRACK_REPLAYGAIN, false);
 		mReplayGainAlbumEnabled = settings.getBoolean(PrefKeys.ENABLE_ALBUM_REPLAYGAIN, false);
 		mReplayGainSilenceEnabled = settings.getBoolean(PrefKeys.SILENCE_NONRG_TRACKS, false);
+		mAnalyzeReplayGain = settings.getBoolean(PrefKeys.ANALYZE_REPLAYGAIN, true);
 
 		PowerManager powerManager = (PowerManager)getSystemService(POWER_SERVICE);
 		mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "VanillaMusicLock");
@@ -426,19 +492,28 @@ public final class PlaybackService extends Service
 		filter.addAction(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
 		filter.addAction(Intent.ACTION_HEADSET_PLUG);
 		filter.addAction(Intent.ACTION_SCREEN_ON);
+		filter.addAction(Intent.ACTION_SCREEN_OFF);
+		filter.addAction(Intent.ACTION_POWER_CONNECTED);
+		filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
 		registerReceiver(mReceiver, filter);
 
+		Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		mCharging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
 		getContentResolver().registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
 
 		CompatIcs.registerRemote(this, mAudioManager);
 
 		mLooper = thread.getLooper();
 		mHandler = new Handler(mLooper, this);
+		mGaplessPreparer = new GaplessPreparer(mLooper);
 
 		initWidgets();
 
 		updateState(state);
 		setCurrentSong(0);
+		// Only the active songs were restored so far.
+		mHandler.sendEmptyMessage(RESTORE_QUEUE);
 
 		sInstance = this;
 		synchronized (sWait) {
@@ -448,6 +523,11 @@ public final class PlaybackService extends Service
 		mAccelFiltered = 0.0f;
 		mAccelLast = SensorManager.GRAVITY_EARTH;
 		setupSensor();
+
+		// Fill the tag index on first start; later scans are triggered by
+		// media changes.
+		mHandler.sendMessageDelayed(mHandler.obtainMessage(SCAN_LIBRARY, 1, 0), 30000);
+		mHandler.sendEmptyMessageDelayed(UPDATE_ANALYSIS, 60000);
 	}
 
 	@Override
@@ -531,15 +611,31 @@ public final class PlaybackService extends Service
 		sInstance = null;
 
 		mLooper.quit();
+		mRandomPrefetcher.quit();
+		MediaUtils.saveRandomCycle(this);
 
 		// clear the notification
 		stopForeground(true);
 
-		if (mMediaPlayer != null) {
-			saveState(mMediaPlayer.getCurrentPosition());
-			mMediaPlayer.release();
-			mMediaPlayer = null;
+		// a preparation that is already running must not see the player
+		// half torn down
+		int position = -1;
+		synchronized (mGaplessLock) {
+			mGaplessPreparer.quit();
+			if (mMediaPlayer != null) {
+				position = mMediaPlayer.getCurrentPosition();
+				mMediaPlayer.release();
+				mMediaPlayer = null;
+			}
 		}
+		if (position != -1)
+			saveState(position);
+
+		mTagCache.save();
+		if (mScanner != null)
+			mScanner.cancel();
+		if (mAnalyzer != null)
+			mAnalyzer.cancel();
 
 		MediaButtonReceiver.unregisterMediaButton(this);
 
@@ -570,6 +666,15 @@ public final class PlaybackService extends Service
 	}
 	
 	public void prepareMediaPlayer(MediaPlayer mp, String path) throws IOException{
+		configureMediaPlayer(mp, path);
+		mp.prepare();
+	}
+	
+	/**
+	 * Sets the data source and the ReplayGain volume of the given player,
+	 * leaving the preparation to the caller.
+	*/
+	private void configureMediaPlayer(MediaPlayer mp, String path) throws IOException{
 		float adjust = 0f;
 		
 		mp.setDataSource(path);
@@ -598,7 +703,6 @@ public final class PlaybackService extends Service
 		}
 		
 		mp.setVolume(adjust, adjust);
-		mp.prepare();
 	}
 	
 	/**
@@ -606,70 +710,243 @@ public final class PlaybackService extends Service
 	 * A value of 0 means that the tag was not found in given file
 	*/
 	private float[] calculateReplayGainAdjustment(String path) {
-		String[] keys = { "REPLAYGAIN_TRACK_GAIN", "REPLAYGAIN_ALBUM_GAIN" };
-		float[] adjust= { 0f                     , 0f                      };
-		HashMap tags  = (new Bastp()).getTags(path);
+		TagCache.Entry entry = mTagCache.get(path);
+		float[] gains = { entry.trackGain, entry.albumGain };
 		
-		for (int i=0; i<keys.length; i++) {
-			String curKey = keys[i];
-			if(tags.containsKey(curKey)) {
-				String rg_raw = (String)((Vector)tags.get(curKey)).get(0);
-				String rg_numonly = "";
-				float rg_float = 0f;
-				try {
-					String nums = rg_raw.replaceAll("[^0-9.-]","");
-					rg_float = Float.parseFloat(nums);
-				} catch(Exception e) {}
-				
-				float rg_result = (float)Math.pow(10, (rg_float/20) );
-				adjust[i] = rg_result;
+		if(Float.isNaN(gains[0]) || Float.isNaN(gains[1])) {
+			/* no tags: use what the LoudnessAnalyzer measured, if anything */
+			float[] measured = mGainStore.get(path, entry.size, entry.mtime);
+			if(measured != null) {
+				if(Float.isNaN(gains[0]))
+					gains[0] = measured[GainStore.TRACK_GAIN];
+				if(Float.isNaN(gains[1]))
+					gains[1] = measured[GainStore.ALBUM_GAIN];
 			}
 		}
+		float[] adjust= { 0f             , 0f              };
+		
+		for (int i=0; i<gains.length; i++) {
+			if(!Float.isNaN(gains[i])) {
+				adjust[i] = (float)Math.pow(10, (gains[i]/20) );
+			}
+		}
+		
+		if(mTagCache.isDirty() && !mHandler.hasMessages(SAVE_TAG_CACHE))
+			mHandler.sendEmptyMessageDelayed(SAVE_TAG_CACHE, 30000);
 		return adjust;
 	}
 	
 	/**
-	 * Destroys any currently prepared MediaPlayer and
-	 * re-creates a newone if needed.
+	 * Schedules preparing the player of the next song. Cheap: the player
+	 * is prepared by the GaplessPreparer, after things settled down, so a
+	 * burst of queue changes causes a single preparation.
 	 */
 	private void triggerGaplessUpdate() {
-		// Log.d("VanillaMusic", "triggering gapless update");
-		
-		if(mMediaPlayerInitialized != true)
-			return;
-		
 		if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
 			return; /* setNextMediaPlayer is supported since JB */
 		
-		if(mPreparedMediaPlayer != null) {
-			/* an old prepared player exists and is
-			 * most likely invalid -> destroy it now
-			*/
-			mMediaPlayer.setNextMediaPlayer(null);
-			mPreparedMediaPlayer.release();
-			mPreparedMediaPlayer = null;
-			// Log.d("VanillaMusic", "old prepared player destroyed");
-		}
-		
+		mGaplessPreparer.schedule();
+	}
+	
+	/**
+	 * Returns the song the next MediaPlayer should play, or null if the
+	 * next song must not be played gaplessly.
+	 */
+	private Song getGaplessSong() {
 		int fa = finishAction(mState);
-		Song nextSong = getSong(1);
-		if( nextSong != null
-		    && fa != SongTimeline.FINISH_REPEAT_CURRENT
-		    && fa != SongTimeline.FINISH_STOP_CURRENT
-		    && !mTimeline.isEndOfQueue() ) {
+		if (fa == SongTimeline.FINISH_REPEAT_CURRENT || fa == SongTimeline.FINISH_STOP_CURRENT || mTimeline.isEndOfQueue())
+			return null;
+		return getSong(1);
+	}
+	
+	/**
+	 * Prepares the MediaPlayer of the next song with prepareAsync(), and
+	 * attaches it to the current one once it is prepared, if it is still
+	 * the next song by then. Preparations for songs that are no longer
+	 * next are cancelled, and a prepared player is kept as long as its
+	 * song stays next.
+	 *
+	 * The checks run on the service handler thread and the players are
+	 * created there, so their callbacks, onCompletion() included, run on
+	 * it like those of the other players; only the preparation itself runs
+	 * in the background. mPreparing and mPreparingSong are guarded by
+	 * mGaplessLock, as quit() is called from onDestroy().
+	 */
+	private final class GaplessPreparer implements Handler.Callback, MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener {
+		/**
+		 * Check the prepared player against the next song.
+		 */
+		private static final int MSG_PREPARE_NEXT = 1;
+		/**
+		 * Milliseconds to wait for more changes before preparing.
+		 */
+		private static final int GAPLESS_DELAY = 250;
+
+		private final Handler mPrepareHandler;
+		/**
+		 * The player being prepared, or null.
+		 */
+		private MediaPlayer mPreparing;
+		/**
+		 * The song mPreparing is prepared for.
+		 */
+		private Song mPreparingSong;
+		/**
+		 * True once quit() was called.
+		 */
+		private boolean mQuit;
+
+		/**
+		 * @param looper The looper of the service handler thread.
+		 */
+		public GaplessPreparer(Looper looper)
+		{
+			mPrepareHandler = new Handler(looper, this);
+		}
+
+		/**
+		 * Schedules a check, replacing one that was not run yet.
+		 */
+		public void schedule()
+		{
+			mPrepareHandler.removeMessages(MSG_PREPARE_NEXT);
+			mPrepareHandler.sendEmptyMessageDelayed(MSG_PREPARE_NEXT, GAPLESS_DELAY);
+		}
+
+		/**
+		 * Cancels the running preparation and releases the prepared player.
+		 * No player is prepared afterwards.
+		 */
+		public void quit()
+		{
+			mPrepareHandler.removeMessages(MSG_PREPARE_NEXT);
+			synchronized (mGaplessLock) {
+				mQuit = true;
+				if (mPreparing != null)
+					cancel();
+				if (mPreparedMediaPlayer != null) {
+					if (mMediaPlayer != null)
+						mMediaPlayer.setNextMediaPlayer(null);
+					mPreparedMediaPlayer.release();
+					mPreparedMediaPlayer = null;
+					mPreparedSong = null;
+				}
+			}
+		}
+
+		@Override
+		public boolean handleMessage(Message message)
+		{
+			if (message.what != MSG_PREPARE_NEXT)
+				return false;
+
+			Song next = getGaplessSong();
+
+			synchronized (mGaplessLock) {
+				// processSong() schedules another check when it is done
+				if (mQuit || !mMediaPlayerInitialized)
+					return true;
+
+				if (mPreparedMediaPlayer != null) {
+					if (next != null && mPreparedSong.id == next.id) {
+						// still next; the link is lost when the current
+						// player was reset
+						mMediaPlayer.setNextMediaPlayer(mPreparedMediaPlayer);
+						return true;
+					}
+					mMediaPlayer.setNextMediaPlayer(null);
+					mPreparedMediaPlayer.release();
+					mPreparedMediaPlayer = null;
+					mPreparedSong = null;
+				}
+
+				if (mPreparing != null) {
+					if (next != null && mPreparingSong.id == next.id)
+						// already on its way
+						return true;
+					cancel();
+				}
+			}
+
+			if (next == null)
+				return true;
+
+			MediaPlayer mp = getNewMediaPlayer();
+			mp.setOnPreparedListener(this);
+			mp.setOnErrorListener(this);
 			try {
-				mPreparedMediaPlayer = getNewMediaPlayer();
-				prepareMediaPlayer(mPreparedMediaPlayer, nextSong.path);
-				mMediaPlayer.setNextMediaPlayer(mPreparedMediaPlayer);
-				// Log.d("VanillaMusic", "New media player prepared as "+mPreparedMediaPlayer+" with path "+nextSong.path);
+				configureMediaPlayer(mp, next.path);
 			} catch (IOException e) {
 				Log.e("VanillaMusic", "IOException", e);
+				mp.release();
+				return true;
 			}
+
+			synchronized (mGaplessLock) {
+				if (mQuit) {
+					mp.release();
+					return true;
+				}
+				mPreparing = mp;
+				mPreparingSong = next;
+				mp.prepareAsync();
+			}
+			return true;
 		}
-		else {
-			Log.d("VanillaMusic", "Must not create new media player object");
+
+		/**
+		 * Cancels the running preparation. Must be called while
+		 * synchronized on mGaplessLock.
+		 */
+		private void cancel()
+		{
+			mPreparing.release();
+			mPreparing = null;
+			mPreparingSong = null;
+		}
+
+		@Override
+		public void onPrepared(MediaPlayer mp)
+		{
+			Song next = getGaplessSong();
+			synchronized (mGaplessLock) {
+				if (mp != mPreparing) {
+					mp.release();
+					return;
+				}
+
+				Song song = mPreparingSong;
+				mPreparing = null;
+				mPreparingSong = null;
+				if (!mQuit && mMediaPlayer != null && mMediaPlayerInitialized && mPreparedMediaPlayer == null && next != null && next.id == song.id) {
+					mp.setOnErrorListener(PlaybackService.this);
+					mMediaPlayer.setNextMediaPlayer(mp);
+					mPreparedMediaPlayer = mp;
+					mPreparedSong = song;
+					return;
+				}
+
+				mp.release();
+				if (mQuit)
+					return;
+			}
+
+			// things changed while preparing
+			schedule();
+		}
+
+		@Override
+		public boolean onError(MediaPlayer mp, int what, int extra)
+		{
+			Log.e("VanillaMusic", "MediaPlayer error while preparing the next song: " + what + ' ' + extra);
+			synchronized (mGaplessLock) {
+				if (mp == mPreparing)
+					cancel();
+				else
+					mp.release();
+			}
+			return true;
 		}
-		
 	}
 	
 	/**
@@ -743,10 +1020,15 @@ public final class PlaybackService extends Service
 			mShakeThreshold = settings.getInt(PrefKeys.SHAKE_THRESHOLD, 80) / 10.0f;
 		} else if (PrefKeys.ENABLE_TRACK_REPLAYGAIN.equals(key)) {
 			mReplayGainTrackEnabled = settings.getBoolean(PrefKeys.ENABLE_TRACK_REPLAYGAIN, false);
+			mHandler.sendEmptyMessage(UPDATE_ANALYSIS);
 		} else if (PrefKeys.ENABLE_ALBUM_REPLAYGAIN.equals(key)) {
 			mReplayGainAlbumEnabled = settings.getBoolean(PrefKeys.ENABLE_ALBUM_REPLAYGAIN, false);
+			mHandler.sendEmptyMessage(UPDATE_ANALYSIS);
 		} else if (PrefKeys.SILENCE_NONRG_TRACKS.equals(key)) {
 			mReplayGainSilenceEnabled = settings.getBoolean(PrefKeys.SILENCE_NONRG_TRACKS, false);
+		} else if (PrefKeys.ANALYZE_REPLAYGAIN.equals(key)) {
+			mAnalyzeReplayGain = settings.getBoolean(PrefKeys.ANALYZE_REPLAYGAIN, true);
+			mHandler.sendEmptyMessage(UPDATE_ANALYSIS);
 		}
 
 		CompatFroyo.dataChanged(this);
@@ -856,6 +1138,7 @@ public final class PlaybackService extends Service
 			}
 
 			setupSensor();
+			updateAnalysis();
 		}
 
 		if ((toggled & FLAG_NO_MEDIA) != 0 && (state & FLAG_NO_MEDIA) != 0) {
@@ -1124,20 +1407,27 @@ public final class PlaybackService extends Service
 	private void processSong(Song song)
 	{
 		try {
-			mMediaPlayerInitialized = false;
-			mMediaPlayer.reset();
-			
-			if(mPreparedMediaPlayer != null &&
-			   mPreparedMediaPlayer.isPlaying()) {
-				mMediaPlayer.release();
-				mMediaPlayer = mPreparedMediaPlayer;
-				mPreparedMediaPlayer = null;
+			boolean gapless = false;
+			synchronized (mGaplessLock) {
+				mMediaPlayerInitialized = false;
+				mMediaPlayer.reset();
+				
+				if(mPreparedMediaPlayer != null &&
+				   mPreparedMediaPlayer.isPlaying()) {
+					mMediaPlayer.release();
+					mMediaPlayer = mPreparedMediaPlayer;
+					mPreparedMediaPlayer = null;
+					mPreparedSong = null;
+					gapless = true;
+				}
 			}
-			else {
+			
+			if(!gapless)
 				prepareMediaPlayer(mMediaPlayer, song.path);
-			}
 			
-			mMediaPlayerInitialized = true;
+			synchronized (mGaplessLock) {
+				mMediaPlayerInitialized = true;
+			}
 			triggerGaplessUpdate();
 			
 			if (mPendingSeek != 0 && mPendingSeekSong == song.id) {
@@ -1217,6 +1507,20 @@ public final class PlaybackService extends Service
 					mPlugInitialized = true;
 			} else if (Intent.ACTION_SCREEN_ON.equals(action)) {
 				userActionTriggered();
+				mScreenOff = false;
+				mHandler.removeMessages(UPDATE_ANALYSIS);
+				mHandler.sendEmptyMessage(UPDATE_ANALYSIS);
+			} else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+				// only count as idle if the screen stays off for a while
+				mScreenOff = true;
+				mHandler.removeMessages(UPDATE_ANALYSIS);
+				mHandler.sendEmptyMessageDelayed(UPDATE_ANALYSIS, 60000);
+			} else if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+				mCharging = true;
+				mHandler.sendEmptyMessage(UPDATE_ANALYSIS);
+			} else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+				mCharging = false;
+				mHandler.sendEmptyMessage(UPDATE_ANALYSIS);
 			}
 		}
 	}
@@ -1304,6 +1608,25 @@ public final class PlaybackService extends Service
 	private static final int SAVE_STATE = 12;
 	private static final int PROCESS_SONG = 13;
 	private static final int PROCESS_STATE = 14;
+	/**
+	 * Write the tag cache to disk.
+	 */
+	private static final int SAVE_TAG_CACHE = 15;
+	/**
+	 * Start a library scan. If arg1 is non-zero, only scan if the tag index
+	 * is empty.
+	 */
+	private static final int SCAN_LIBRARY = 16;
+	/**
+	 * Start or stop the loudness analysis, depending on the current
+	 * conditions.
+	 */
+	private static final int UPDATE_ANALYSIS = 17;
+	/**
+	 * Check the next chunk of the songs restored from the saved state
+	 * against the MediaStore.
+	 */
+	private static final int RESTORE_QUEUE = 18;
 
 	@Override
 	public boolean handleMessage(Message message)
@@ -1320,6 +1643,20 @@ public final class PlaybackService extends Service
 			// In most cases onDestroy will handle this
 			saveState(0);
 			break;
+		case SAVE_TAG_CACHE:
+			mTagCache.save();
+			break;
+		case SCAN_LIBRARY:
+			startLibraryScan(message.arg1 != 0);
+			break;
+		case UPDATE_ANALYSIS:
+			updateAnalysis();
+			break;
+		case RESTORE_QUEUE:
+			// one chunk per message, so other messages are not held up
+			if (mTimeline.restoreChunk())
+				mHandler.sendEmptyMessage(RESTORE_QUEUE);
+			break;
 		case PROCESS_SONG:
 			processSong((Song)message.obj);
 			break;
@@ -1425,6 +1762,8 @@ public final class PlaybackService extends Service
 
 		if (delta == 0)
 			setCurrentSong(0);
+		else if (delta == 1)
+			triggerGaplessUpdate();
 	}
 
 	/**
@@ -1444,17 +1783,21 @@ public final class PlaybackService extends Service
 		Cursor cursor = MediaUtils.buildQuery(type, id, projection, null).runQuery(resolver);
 
 		if (cursor != null) {
+			long[] deleted = new long[cursor.getCount()];
 			while (cursor.moveToNext()) {
 				if (new File(cursor.getString(1)).delete()) {
 					long songId = cursor.getLong(0);
 					String where = MediaStore.Audio.Media._ID + '=' + songId;
 					resolver.delete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, where, null);
-					mTimeline.removeSong(songId);
-					++count;
+					deleted[count++] = songId;
 				}
 			}
 
 			cursor.close();
+
+			// remove them from the timeline in one go
+			if (count != 0)
+				mTimeline.removeSongs(count == deleted.length ? deleted : Arrays.copyOf(deleted, count));
 		}
 
 		return count;
@@ -1617,7 +1960,12 @@ public final class PlaybackService extends Service
 		public void onChange(boolean selfChange)
 		{
 			MediaUtils.onMediaChange();
+			mTagCache.onMediaChange();
+			mRandomPrefetcher.onMediaChange();
 			onMediaChange();
+			// wait for the media scanner to settle down before rescanning
+			mHandler.removeMessages(SCAN_LIBRARY);
+			mHandler.sendEmptyMessageDelayed(SCAN_LIBRARY, 60000);
 		}
 	};
 
@@ -1650,6 +1998,14 @@ public final class PlaybackService extends Service
 		return sInstance != null;
 	}
 
+	/**
+	 * Returns the cache of the tags read from the audio files.
+	 */
+	public TagCache getTagCache()
+	{
+		return mTagCache;
+	}
+
 	/**
 	 * Add an Activity to the registered PlaybackActivities.
 	 *
@@ -1672,7 +2028,7 @@ public final class PlaybackService extends Service
 
 	/**
 	 * Initializes the service state, loading songs saved from the disk into the
-	 * song timeline.
+	 * song timeline and applying the changes recorded in the journal since.
 	 *
 	 * @return The loaded value for mState.
 	 */
@@ -1681,48 +2037,133 @@ public final class PlaybackService extends Service
 		int state = 0;
 
 		try {
-			DataInputStream in = new DataInputStream(openFileInput(STATE_FILE));
-
-			if (in.readLong() == STATE_FILE_MAGIC && in.readInt() == STATE_VERSION) {
-				mPendingSeek = in.readInt();
-				mPendingSeekSong = in.readLong();
+			StateCodec.Reader in = StateCodec.read(getFileStreamPath(STATE_FILE), STATE_FILE_MAGIC);
+			int version = in == null ? -1 : in.getVersion();
+			if (version >= STATE_VERSION_OLDEST && version <= STATE_VERSION) {
+				if (version >= StateCodec.VERSION_VARINT) {
+					mStateGeneration = (int)in.readVarint();
+					mPendingSeek = (int)in.readVarint();
+					mPendingSeekSong = in.readZigzag();
+				} else {
+					mStateGeneration = version >= STATE_VERSION_JOURNAL ? in.readInt() : 0;
+					mPendingSeek = in.readInt();
+					mPendingSeekSong = in.readLong();
+				}
 				mTimeline.readState(in);
+				if (version >= STATE_VERSION_JOURNAL) {
+					mTimeline.replayJournal(mJournal, mStateGeneration);
+					if (mJournal.getPendingSeek() != -1) {
+						mPendingSeek = mJournal.getPendingSeek();
+						mPendingSeekSong = mJournal.getPendingSeekSong();
+					}
+				}
+				// write the current format on the next save
+				if (version != STATE_VERSION)
+					mJournal.invalidate();
 				state |= mTimeline.getShuffleMode() << SHIFT_SHUFFLE;
 				state |= mTimeline.getFinishAction() << SHIFT_FINISH;
 			}
-
-			in.close();
-		} catch (EOFException e) {
-			Log.w("VanillaMusic", "Failed to load state", e);
 		} catch (IOException e) {
 			Log.w("VanillaMusic", "Failed to load state", e);
 		}
 
+		mTimeline.setJournal(mJournal);
+		mTimeline.restoreActiveSongs();
 		return state;
 	}
 
 	/**
-	 * Save the service state to disk.
+	 * Save the service state to disk. Usually only the changes since the
+	 * last save are appended to the journal; the whole state file is only
+	 * rewritten once the journal needs to be compacted.
 	 *
 	 * @param pendingSeek The pendingSeek to store. Should be the current
 	 * MediaPlayer position or 0.
 	 */
 	public void saveState(int pendingSeek)
 	{
+		Song song = mCurrentSong;
+		long songId = song == null ? -1 : song.id;
+
+		if (!mJournal.needsCompaction()) {
+			mJournal.setSeek(pendingSeek, songId);
+			mJournal.flush();
+			if (!mJournal.needsCompaction())
+				return;
+		}
+
+		int generation = mStateGeneration + 1;
 		try {
-			DataOutputStream out = new DataOutputStream(openFileOutput(STATE_FILE, 0));
-			Song song = mCurrentSong;
-			out.writeLong(STATE_FILE_MAGIC);
-			out.writeInt(STATE_VERSION);
-			out.writeInt(pendingSeek);
-			out.writeLong(song == null ? -1 : song.id);
+			StateCodec.Writer out = new StateCodec.Writer(STATE_FILE_MAGIC, STATE_VERSION);
+			out.writeVarint(generation);
+			out.writeVarint(Math.max(0, pendingSeek));
+			out.writeZigzag(songId);
 			mTimeline.writeState(out);
-			out.close();
+			out.commit(getFileStreamPath(STATE_FILE));
+			// The journal of the old state file no longer matches once
+			// the new one is in place.
+			mStateGeneration = generation;
+			mJournal.reset(generation);
 		} catch (IOException e) {
 			Log.w("VanillaMusic", "Failed to save state", e);
 		}
 	}
 
+	/**
+	 * Read the tags of all files in the directories holding the songs of the
+	 * MediaStore into the tag index on a background thread, unless a scan is
+	 * already running.
+	 *
+	 * @param onlyIfEmpty If true, only scan if nothing has been indexed yet.
+	 */
+	private void startLibraryScan(final boolean onlyIfEmpty)
+	{
+		if (mScanThread != null && mScanThread.isAlive())
+			return;
+
+		final LibraryScanner scanner = new LibraryScanner(mTagCache.getIndex());
+		mScanner = scanner;
+		mScanThread = new Thread("LibraryScanner") {
+			@Override
+			public void run()
+			{
+				if (onlyIfEmpty && mTagCache.getIndex().count() != 0)
+					return;
+				scanner.scan(LibraryScanner.queryRoots(getContentResolver()));
+			}
+		};
+		mScanThread.start();
+	}
+
+	/**
+	 * Start the loudness analysis of songs without ReplayGain tags if it is
+	 * enabled and the device is charging or idle (screen off and nothing
+	 * playing), and stop it if these conditions no longer hold. Must be
+	 * called on the service thread.
+	 */
+	private void updateAnalysis()
+	{
+		boolean run = mAnalyzeReplayGain && (mReplayGainTrackEnabled || mReplayGainAlbumEnabled)
+			&& Build.VERSION.SDK_INT >= 16 // no platform decoders before
+			&& (mCharging || mScreenOff && (mState & FLAG_PLAYING) == 0);
+		boolean running = mAnalyzerThread != null && mAnalyzerThread.isAlive();
+
+		if (run && !running) {
+			final LoudnessAnalyzer analyzer = new LoudnessAnalyzer(this, mTagCache, mGainStore);
+			mAnalyzer = analyzer;
+			mAnalyzerThread = new Thread("LoudnessAnalyzer") {
+				@Override
+				public void run()
+				{
+					analyzer.analyze();
+				}
+			};
+			mAnalyzerThread.start();
+		} else if (!run && running) {
+			mAnalyzer.cancel();
+		}
+	}
+
 	/**
 	 * Returns the shuffle mode for the given state.
 	 *
@@ -1997,6 +2438,26 @@ public final class PlaybackService extends Service
 	public Song getSongByQueuePosition(int id) {
 		return mTimeline.getSongByQueuePosition(id);
 	}
+
+	/**
+	 * Returns a snapshot of the song timeline that does not change while
+	 * it is read.
+	 */
+	public TimelineSnapshot getTimelineSnapshot()
+	{
+		return mTimeline.getSnapshot();
+	}
+
+	/**
+	 * Returns the rows of the given range of the current song timeline.
+	 * Queries the MediaStore, so this should be called on a worker thread.
+	 *
+	 * @see SongTimeline#getWindow(TimelineSnapshot, int, int)
+	 */
+	public QueueWindow getQueueWindow(int start, int count)
+	{
+		return mTimeline.getWindow(mTimeline.getSnapshot(), start, count);
+	}
 	
 	/**
 	 * Do a 'hard' jump to given queue position
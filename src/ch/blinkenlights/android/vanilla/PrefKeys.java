@@ -60,4 +60,5 @@ public class PrefKeys {
 	public static final String ENABLE_TRACK_REPLAYGAIN = "enable_track_replaygain";
 	public static final String ENABLE_ALBUM_REPLAYGAIN = "enable_album_replaygain";
 	public static final String SILENCE_NONRG_TRACKS = "silence_nonreplaygain_tracks";
+	public static final String ANALYZE_REPLAYGAIN = "analyze_replaygain";
 }
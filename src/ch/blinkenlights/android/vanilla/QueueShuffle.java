@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import java.util.Random;
+
+/**
+ * Shuffles queues stored as columns, like the one of {@link SongTimeline}.
+ * This is plain Java, so that it can be benchmarked off the device.
+ *
+ * @see MediaUtils#shuffle(long[], int[], int, int, boolean)
+ */
+public final class QueueShuffle {
+	/**
+	 * Albums up to this size are sorted by insertion sort.
+	 */
+	private static final int INSERTION_SORT_SIZE = 32;
+
+	private QueueShuffle()
+	{
+	}
+
+	/**
+	 * Shuffle a range of a song list that is stored as columns. The columns
+	 * are left untouched; the new order is returned as a permutation instead.
+	 *
+	 * Album shuffle buckets the songs by album in a single pass, sorts each
+	 * album by track number, shuffles the albums and concatenates them, so
+	 * it takes linear time (plus sorting the albums, which are short).
+	 *
+	 * @param albumIds The album id of each song.
+	 * @param tracks The track number of each song.
+	 * @param start The first position to shuffle.
+	 * @param end The position after the last one to shuffle.
+	 * @param albumShuffle If true, preserve the order of tracks inside albums.
+	 * @param random The source of randomness.
+	 * @return The positions from start to end in their shuffled order.
+	 */
+	public static int[] shuffle(long[] albumIds, int[] tracks, int start, int end, boolean albumShuffle, Random random)
+	{
+		int size = end - start;
+		int[] order = new int[size];
+		if (!albumShuffle || size < 2) {
+			for (int i = 0; i != size; ++i)
+				order[i] = start + i;
+			for (int i = size; --i > 0; ) {
+				int j = random.nextInt(i + 1);
+				int tmp = order[j];
+				order[j] = order[i];
+				order[i] = tmp;
+			}
+			return order;
+		}
+
+		// Number the albums in order of appearance, using an open
+		// addressing table from album id to album number + 1.
+		int capacity = Integer.highestOneBit(size * 2 - 1) << 1;
+		int mask = capacity - 1;
+		long[] keys = new long[capacity];
+		int[] values = new int[capacity];
+		int[] albumOf = new int[size];
+		int[] albumSizes = new int[size];
+		int albums = 0;
+		for (int i = 0; i != size; ++i) {
+			long albumId = albumIds[start + i];
+			long h = albumId * 0x9E3779B97F4A7C15L;
+			int slot = (int)(h ^ (h >>> 32)) & mask;
+			while (values[slot] != 0 && keys[slot] != albumId)
+				slot = (slot + 1) & mask;
+			if (values[slot] == 0) {
+				keys[slot] = albumId;
+				values[slot] = ++albums;
+			}
+			int album = values[slot] - 1;
+			albumOf[i] = album;
+			++albumSizes[album];
+		}
+
+		// Shuffle the albums (Fisher-Yates) and lay them out in that order.
+		int[] albumOrder = new int[albums];
+		for (int i = 0; i != albums; ++i)
+			albumOrder[i] = i;
+		for (int i = albums; --i > 0; ) {
+			int j = random.nextInt(i + 1);
+			int tmp = albumOrder[j];
+			albumOrder[j] = albumOrder[i];
+			albumOrder[i] = tmp;
+		}
+		int[] albumStart = new int[albums];
+		int pos = 0;
+		for (int i = 0; i != albums; ++i) {
+			int album = albumOrder[i];
+			albumStart[album] = pos;
+			pos += albumSizes[album];
+		}
+
+		// Bucket the songs, keeping their order inside each album.
+		int[] fill = albumStart.clone();
+		for (int i = 0; i != size; ++i)
+			order[fill[albumOf[i]]++] = start + i;
+
+		// Make sure the tracks of each album are in order
+		int[] tmp = null;
+		for (int album = 0; album != albums; ++album) {
+			int from = albumStart[album];
+			int to = from + albumSizes[album];
+			if (to - from <= INSERTION_SORT_SIZE) {
+				insertionSort(order, from, to, tracks);
+			} else {
+				if (tmp == null)
+					tmp = new int[size];
+				mergeSort(order, from, to, tracks, tmp);
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Stable sort of order[from..to) by track number.
+	 */
+	private static void insertionSort(int[] order, int from, int to, int[] tracks)
+	{
+		for (int i = from + 1; i < to; ++i) {
+			int pos = order[i];
+			int track = tracks[pos];
+			int j = i - 1;
+			while (j >= from && tracks[order[j]] > track) {
+				order[j + 1] = order[j];
+				--j;
+			}
+			order[j + 1] = pos;
+		}
+	}
+
+	/**
+	 * Stable bottom-up merge sort of order[from..to) by track number.
+	 */
+	private static void mergeSort(int[] order, int from, int to, int[] tracks, int[] tmp)
+	{
+		int[] src = order;
+		int[] dst = tmp;
+		for (int width = 1; width < to - from; width *= 2) {
+			for (int lo = from; lo < to; lo += 2 * width) {
+				int mid = Math.min(lo + width, to);
+				int hi = Math.min(lo + 2 * width, to);
+				int i = lo, j = mid, k = lo;
+				while (i < mid && j < hi) {
+					if (tracks[src[j]] < tracks[src[i]])
+						dst[k++] = src[j++];
+					else
+						dst[k++] = src[i++];
+				}
+				while (i < mid)
+					dst[k++] = src[i++];
+				while (j < hi)
+					dst[k++] = src[j++];
+			}
+			int[] swap = src;
+			src = dst;
+			dst = swap;
+		}
+		if (src != order)
+			System.arraycopy(src, from, order, from, to - from);
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+/**
+ * An immutable page of rows of the song timeline, for displaying the queue
+ * without creating a Song for every entry. Returned by
+ * {@link SongTimeline#getWindow(TimelineSnapshot, int, int)}.
+ *
+ * Rows are addressed by their position in the timeline. Rows of songs that
+ * no longer exist have a null title.
+ */
+public final class QueueWindow {
+	/**
+	 * The version of the snapshot the window was read from. Windows with the
+	 * same version belong to the same timeline.
+	 */
+	public final int version;
+	/**
+	 * The position of the first row.
+	 */
+	public final int start;
+	/**
+	 * The number of songs in the timeline the window was read from.
+	 */
+	public final int queueSize;
+	/**
+	 * The position of the current song in that timeline.
+	 */
+	public final int queuePosition;
+	private final long[] mIds;
+	private final String[] mTitles;
+	private final String[] mArtists;
+	private final String[] mAlbums;
+	private final long[] mDurations;
+
+	QueueWindow(TimelineSnapshot snapshot, int start, long[] ids, String[] titles, String[] artists, String[] albums, long[] durations)
+	{
+		version = snapshot.version;
+		queueSize = snapshot.size;
+		queuePosition = snapshot.position;
+		this.start = start;
+		mIds = ids;
+		mTitles = titles;
+		mArtists = artists;
+		mAlbums = albums;
+		mDurations = durations;
+	}
+
+	/**
+	 * Returns the number of rows in the window.
+	 */
+	public int getCount()
+	{
+		return mIds.length;
+	}
+
+	/**
+	 * Returns true if the window holds the row at the given position.
+	 */
+	public boolean contains(int pos)
+	{
+		return pos >= start && pos < start + mIds.length;
+	}
+
+	/**
+	 * Returns the MediaStore id of the song at the given position.
+	 */
+	public long getId(int pos)
+	{
+		return mIds[pos - start];
+	}
+
+	/**
+	 * Returns the title of the song at the given position, or null if the
+	 * song no longer exists.
+	 */
+	public String getTitle(int pos)
+	{
+		return mTitles[pos - start];
+	}
+
+	/**
+	 * Returns the artist of the song at the given position.
+	 */
+	public String getArtist(int pos)
+	{
+		return mArtists[pos - start];
+	}
+
+	/**
+	 * Returns the album of the song at the given position.
+	 */
+	public String getAlbum(int pos)
+	{
+		return mAlbums[pos - start];
+	}
+
+	/**
+	 * Returns the duration of the song at the given position in
+	 * milliseconds.
+	 */
+	public long getDuration(int pos)
+	{
+		return mDurations[pos - start];
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+/**
+ * A cycle through the indices 0 .. size - 1 in a random order that visits
+ * every index exactly once, for random mode without repeats.
+ *
+ * The order is a keyed permutation: a balanced Feistel network over the
+ * smallest even number of bits that can hold size, keyed by the seed, with
+ * cycle walking to stay below size. So the position in the cycle and the
+ * seed are all the state there is, and the index at any position is
+ * computed in constant time and memory, no matter how large the library.
+ */
+public final class RandomCycle {
+	/**
+	 * Number of Feistel rounds.
+	 */
+	private static final int ROUNDS = 4;
+
+	private final long mSeed;
+	private final int mSize;
+	/**
+	 * Bits per half of the Feistel network.
+	 */
+	private final int mHalfBits;
+	private final int mHalfMask;
+	/**
+	 * The number of indices returned so far.
+	 */
+	private int mCursor;
+
+	/**
+	 * Creates a cycle, or resumes one.
+	 *
+	 * @param seed The key of the permutation.
+	 * @param size The number of indices in the cycle, 1 .. 2^30.
+	 * @param cursor The number of indices already returned.
+	 */
+	public RandomCycle(long seed, int size, int cursor)
+	{
+		if (size <= 0 || size > 1 << 30)
+			throw new IllegalArgumentException("Invalid cycle size: " + size);
+		mSeed = seed;
+		mSize = size;
+		mCursor = Math.max(0, Math.min(size, cursor));
+
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+		mHalfBits = Math.max(1, (bits + 1) / 2);
+		mHalfMask = (1 << mHalfBits) - 1;
+	}
+
+	/**
+	 * Returns the next index of the cycle, or -1 if all indices were
+	 * returned.
+	 */
+	public int next()
+	{
+		if (mCursor == mSize)
+			return -1;
+		return indexAt(mCursor++);
+	}
+
+	/**
+	 * Returns the index at the given position of the cycle.
+	 *
+	 * @param pos The position, 0 .. size - 1.
+	 */
+	public int indexAt(int pos)
+	{
+		// Permuting the domain of 2^(2 * half bits) and walking the cycle of
+		// the permutation until the value is below size is a permutation of
+		// 0 .. size - 1. The domain is less than 4 * size, so this takes
+		// less than 4 steps on average.
+		int index = permute(pos);
+		while (index >= mSize)
+			index = permute(index);
+		return index;
+	}
+
+	/**
+	 * The Feistel network.
+	 */
+	private int permute(int value)
+	{
+		int left = value >>> mHalfBits;
+		int right = value & mHalfMask;
+		for (int round = 0; round != ROUNDS; ++round) {
+			int next = left ^ (round(round, right) & mHalfMask);
+			left = right;
+			right = next;
+		}
+		return (left << mHalfBits) | right;
+	}
+
+	/**
+	 * The round function: a 64-bit mix of the seed, round and half.
+	 */
+	private int round(int round, int half)
+	{
+		long z = mSeed + (round + 1) * 0x9E3779B97F4A7C15L + half * 0xC2B2AE3D27D4EB4FL;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return (int)(z ^ (z >>> 31));
+	}
+
+	/**
+	 * Returns true if all indices of the cycle were returned.
+	 */
+	public boolean isFinished()
+	{
+		return mCursor == mSize;
+	}
+
+	/**
+	 * Returns the key of the permutation.
+	 */
+	public long getSeed()
+	{
+		return mSeed;
+	}
+
+	/**
+	 * Returns the number of indices in the cycle.
+	 */
+	public int getSize()
+	{
+		return mSize;
+	}
+
+	/**
+	 * Returns the number of indices returned so far.
+	 */
+	public int getCursor()
+	{
+		return mCursor;
+	}
+}
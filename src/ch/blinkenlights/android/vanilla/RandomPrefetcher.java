@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+
+/**
+ * Picks the songs of random mode ahead of time on a low priority thread,
+ * so that advancing in random mode does not query the MediaStore or parse
+ * files on the thread that asked for the next song.
+ *
+ * The picked songs are kept in a ring of a fixed depth and are hydrated;
+ * their tags are read into the {@link TagCache} as well. The ring is
+ * refilled whenever a song is taken from it and dropped on media changes,
+ * as its songs may no longer exist. The {@link Callback} is told when a
+ * song is picked while the ring was empty, so that a caller who found no
+ * song can ask again.
+ */
+public final class RandomPrefetcher implements Handler.Callback {
+	public interface Callback {
+		/**
+		 * Called on the prefetch thread when a song was added to the
+		 * empty ring.
+		 */
+		public void randomSongReady();
+	}
+
+	/**
+	 * Default number of songs picked ahead.
+	 */
+	public static final int DEFAULT_DEPTH = 4;
+	/**
+	 * Fill the ring. Runs on the prefetch thread.
+	 */
+	private static final int MSG_FILL = 1;
+
+	private final Context mContext;
+	private final TagCache mTagCache;
+	private final Looper mLooper;
+	private final Handler mHandler;
+	/**
+	 * The picked songs, oldest first from mHead on.
+	 */
+	private final Song[] mRing;
+	private int mHead;
+	private int mCount;
+	/**
+	 * Incremented when the ring is dropped, so that a song picked at the
+	 * same time is discarded instead of added.
+	 */
+	private int mGeneration;
+	/**
+	 * True while random mode is on.
+	 */
+	private boolean mEnabled;
+	/**
+	 * The current Callback, if any.
+	 */
+	private Callback mCallback;
+
+	/**
+	 * Creates a prefetcher and its thread. It does nothing until enabled.
+	 *
+	 * @param context A context to use.
+	 * @param tagCache The cache to read the tags of the picked songs into,
+	 * or null.
+	 * @param depth The number of songs to pick ahead.
+	 */
+	public RandomPrefetcher(Context context, TagCache tagCache, int depth)
+	{
+		mContext = context;
+		mTagCache = tagCache;
+		mRing = new Song[Math.max(1, depth)];
+
+		HandlerThread thread = new HandlerThread("RandomPrefetcher", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mLooper = thread.getLooper();
+		mHandler = new Handler(mLooper, this);
+	}
+
+	/**
+	 * Sets the callback to notify when a song is picked while the ring
+	 * is empty.
+	 */
+	public void setCallback(Callback callback)
+	{
+		synchronized (this) {
+			mCallback = callback;
+		}
+	}
+
+	/**
+	 * Starts or stops picking songs ahead. Songs already picked are kept
+	 * while disabled.
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		synchronized (this) {
+			mEnabled = enabled;
+		}
+		if (enabled)
+			fill();
+	}
+
+	/**
+	 * Takes the oldest picked song and starts picking a new one. Never
+	 * blocks on the MediaStore.
+	 *
+	 * @return The song, or null if none was picked yet.
+	 */
+	public Song poll()
+	{
+		Song song = null;
+		synchronized (this) {
+			if (mCount != 0) {
+				song = mRing[mHead];
+				mRing[mHead] = null;
+				mHead = (mHead + 1) % mRing.length;
+				--mCount;
+			}
+		}
+		fill();
+		return song;
+	}
+
+	/**
+	 * Drops the picked songs and cancels the song being picked, then
+	 * starts over. Called when the MediaStore changes.
+	 */
+	public void onMediaChange()
+	{
+		synchronized (this) {
+			++mGeneration;
+			for (int i = 0; i != mRing.length; ++i)
+				mRing[i] = null;
+			mHead = 0;
+			mCount = 0;
+		}
+		fill();
+	}
+
+	/**
+	 * Stops the prefetch thread.
+	 */
+	public void quit()
+	{
+		mLooper.quit();
+	}
+
+	/**
+	 * Schedules filling the ring, unless that is scheduled already.
+	 */
+	private void fill()
+	{
+		if (!mHandler.hasMessages(MSG_FILL))
+			mHandler.sendEmptyMessage(MSG_FILL);
+	}
+
+	@Override
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_FILL:
+			while (true) {
+				int generation;
+				synchronized (this) {
+					if (!mEnabled || mCount == mRing.length)
+						break;
+					generation = mGeneration;
+				}
+
+				Song song = MediaUtils.randomSong(mContext);
+				if (song == null)
+					// no songs or no MediaStore; try again on the next poll
+					break;
+				if (mTagCache != null && song.path != null)
+					mTagCache.get(song.path);
+
+				Callback callback = null;
+				synchronized (this) {
+					if (generation == mGeneration && mCount != mRing.length) {
+						mRing[(mHead + mCount) % mRing.length] = song;
+						if (++mCount == 1)
+							callback = mCallback;
+					}
+				}
+				// outside the lock, the callback polls the ring
+				if (callback != null)
+					callback.randomSongReady();
+			}
+			break;
+		default:
+			return false;
+		}
+		return true;
+	}
+}
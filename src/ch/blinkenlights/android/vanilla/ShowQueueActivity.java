@@ -26,6 +26,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import android.app.Activity;
 import android.os.Bundle;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.view.View;
 import android.view.MenuItem;
 import android.widget.AdapterView;
@@ -37,6 +39,7 @@ import android.util.Log;
 public class ShowQueueActivity extends Activity {
 	private ListView mListView;
 	private ShowQueueAdapter listAdapter;
+	private Looper mLooper;
 	
 	@Override  
 	public void onCreate(Bundle savedInstanceState) {
@@ -46,8 +49,13 @@ public class ShowQueueActivity extends Activity {
 		setContentView(R.layout.showqueue_listview);
 		
 		
+		/* the rows of the queue are loaded on this thread */
+		HandlerThread thread = new HandlerThread(getClass().getName());
+		thread.start();
+		mLooper = thread.getLooper();
+		
 		mListView   = (ListView) findViewById(R.id.list);
-		listAdapter = new ShowQueueAdapter(this, R.layout.showqueue_row);
+		listAdapter = new ShowQueueAdapter(this, R.layout.showqueue_row, mLooper);
 		mListView.setAdapter(listAdapter);
 		
 		mListView.setOnItemClickListener(new OnItemClickListener() {
@@ -79,9 +87,15 @@ public class ShowQueueActivity extends Activity {
 		return true;
 	}
 	
+	@Override
+	public void onDestroy() {
+		mLooper.quit();
+		super.onDestroy();
+	}
+	
 	/*
 	** Called when we are displayed (again)
-	** This will always refresh the whole song list
+	** This refreshes the song list if the queue changed
 	*/
 	@Override
 	public void onResume() {
@@ -98,19 +112,11 @@ public class ShowQueueActivity extends Activity {
 	}
 	
 	private void refreshSongQueueList() {
-		int i, stotal, spos;
 		PlaybackService service = PlaybackService.get(this);
+		TimelineSnapshot snapshot = service.getTimelineSnapshot(); /* never blocks */
 		
-		stotal = service.getTimelineLength();   /* Total number of songs in queue */
-		spos   = service.getTimelinePosition(); /* Current position in queue      */
-		
-		listAdapter.clear();                    /* Flush all existing entries...  */
-		listAdapter.highlightRow(spos);         /* and highlight current position */
-		
-		for(i=0 ; i<stotal; i++) {
-			listAdapter.add(service.getSongByQueuePosition(i));
-		}
-		mListView.setSelectionFromTop(spos, 0); /* scroll to currently playing song */
+		listAdapter.setSnapshot(snapshot);      /* rows are loaded as they are displayed */
+		mListView.setSelectionFromTop(snapshot.position, 0); /* scroll to currently playing song */
 	}
 	
 	
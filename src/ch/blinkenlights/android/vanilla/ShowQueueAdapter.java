@@ -24,30 +24,60 @@ package ch.blinkenlights.android.vanilla;
 
 import android.content.Context;
 import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.LruCache;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.view.LayoutInflater;
 import android.widget.TextView;
+import java.util.HashSet;
 
 import android.graphics.Color;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
 
-public class ShowQueueAdapter extends ArrayAdapter<Song> {
+/*
+** Shows the song timeline, loading its rows in pages of PAGE_SIZE on a
+** worker thread as they are displayed. Each page carries the version of the
+** timeline it was read from: when a newer version shows up, the displayed
+** pages are reloaded in place instead of rebuilding the whole list
+*/
+public class ShowQueueAdapter extends BaseAdapter implements Handler.Callback {
+	
+	/* number of rows loaded at once */
+	private static final int PAGE_SIZE = 64;
+	/* number of pages kept in memory */
+	private static final int MAX_PAGES = 16;
+	/* loads the page arg1, runs on the worker thread */
+	private static final int MSG_LOAD_PAGE = 1;
+	/* stores the loaded page obj, runs on the UI thread */
+	private static final int MSG_PAGE_LOADED = 2;
 	
 	int resource;
 	Context context;
 	int hl_row;
 	
-	public ShowQueueAdapter(Context context, int resource) {
-		super(context, resource);
+	private final Handler mWorkerHandler;
+	private final Handler mUiHandler;
+	/* loaded pages, by page number */
+	private final LruCache<Integer, QueueWindow> mPages = new LruCache<Integer, QueueWindow>(MAX_PAGES);
+	/* pages currently being loaded */
+	private final HashSet<Integer> mPending = new HashSet<Integer>();
+	/* version and length of the displayed timeline */
+	private int mVersion;
+	private int mCount;
+	
+	public ShowQueueAdapter(Context context, int resource, Looper worker) {
 		this.resource = resource;
 		this.context = context;
 		this.hl_row = -1;
+		this.mVersion = -1;
+		this.mUiHandler = new Handler(this);
+		this.mWorkerHandler = new Handler(worker, this);
 	}
 	
 	/*
@@ -58,18 +88,73 @@ public class ShowQueueAdapter extends ArrayAdapter<Song> {
 		this.hl_row = pos;
 	}
 	
+	/*
+	** Displays the timeline of the given snapshot. Nothing is
+	** reloaded if the timeline did not change since the last call
+	*/
+	public void setSnapshot(TimelineSnapshot snapshot) {
+		setVersion(snapshot.version, snapshot.size, snapshot.position);
+	}
+	
+	private void setVersion(int version, int count, int position) {
+		if (version == mVersion)
+			return;
+		
+		/* pages of older versions are still displayed until they are reloaded */
+		mVersion = version;
+		mCount   = count;
+		hl_row   = position;
+		notifyDataSetChanged();
+	}
+	
+	@Override
+	public int getCount() {
+		return mCount;
+	}
+	
+	/*
+	** Returns the id of the song at the given position, or null
+	** if its page is not loaded yet
+	*/
+	@Override
+	public Object getItem(int position) {
+		QueueWindow window = mPages.get(position / PAGE_SIZE);
+		if (window == null || !window.contains(position))
+			return null;
+		return window.getId(position);
+	}
+	
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+	
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
 		LayoutInflater inflater = ((Activity)context).getLayoutInflater();
-		View row = inflater.inflate(resource, parent, false);
-		Song song = getItem(position);
+		View row = convertView != null ? convertView : inflater.inflate(resource, parent, false);
 		TextView target = ((TextView)row.findViewById(R.id.text));
-		SpannableStringBuilder sb = new SpannableStringBuilder(song.title);
-		sb.append('\n');
-		sb.append(song.album);
-		sb.setSpan(new ForegroundColorSpan(Color.GRAY), song.title.length() + 1, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
 		
-		target.setText(sb);
+		int page = position / PAGE_SIZE;
+		QueueWindow window = mPages.get(page);
+		if (window == null || window.version != mVersion)
+			loadPage(page);
+		
+		if (window == null || !window.contains(position)) {
+			target.setText(null);
+		} else {
+			String title = window.getTitle(position);
+			String album = window.getAlbum(position);
+			if (title == null)
+				title = context.getString(R.string.unknown);
+			if (album == null)
+				album = "";
+			SpannableStringBuilder sb = new SpannableStringBuilder(title);
+			sb.append('\n');
+			sb.append(album);
+			sb.setSpan(new ForegroundColorSpan(Color.GRAY), title.length() + 1, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+			target.setText(sb);
+		}
 		
 		View pmark = ((View)row.findViewById(R.id.playmark));
 		pmark.setVisibility( ( position == this.hl_row ? View.VISIBLE : View.INVISIBLE ));
@@ -77,4 +162,44 @@ public class ShowQueueAdapter extends ArrayAdapter<Song> {
 		return row;
 	}
 	
+	/*
+	** Queues loading the given page, unless it is already on its way
+	*/
+	private void loadPage(int page) {
+		if (mPending.add(page))
+			mWorkerHandler.sendMessage(mWorkerHandler.obtainMessage(MSG_LOAD_PAGE, page, 0));
+	}
+	
+	@Override
+	public boolean handleMessage(Message message) {
+		switch (message.what) {
+		case MSG_LOAD_PAGE: {
+			PlaybackService service = PlaybackService.get(context);
+			QueueWindow window = service.getQueueWindow(message.arg1 * PAGE_SIZE, PAGE_SIZE);
+			mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_PAGE_LOADED, message.arg1, 0, window));
+			break;
+		}
+		case MSG_PAGE_LOADED: {
+			int page = message.arg1;
+			QueueWindow window = (QueueWindow)message.obj;
+			mPending.remove(page);
+			if (window.version < mVersion) {
+				/* read before the snapshot we display: try again */
+				loadPage(page);
+				break;
+			}
+			mPages.put(page, window);
+			/* the timeline changed: only the rows on screen are rebound */
+			if (window.version != mVersion)
+				setVersion(window.version, window.queueSize, window.queuePosition);
+			else
+				notifyDataSetChanged();
+			break;
+		}
+		default:
+			return false;
+		}
+		return true;
+	}
+	
 }
@@ -22,6 +22,7 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import android.app.ActivityManager;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
@@ -30,8 +31,10 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
+import android.util.DisplayMetrics;
 import android.util.LruCache;
-import java.io.FileDescriptor;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 
 /**
  * Represents a Song backed by the MediaStore. Includes basic metadata and
@@ -85,28 +88,89 @@ public class Song implements Comparable<Song> {
 	};
 
 	/**
-	 * A cache of 6 MiB of covers.
+	 * A cache of covers, using an eighth of the memory the application may
+	 * use, but at least 6 MiB.
 	 */
 	private static class CoverCache extends LruCache<Long, Bitmap> {
+		/**
+		 * Covers are never decoded bigger than this, whatever the size of
+		 * the screen.
+		 */
+		private static final int MAX_COVER_SIZE = 800;
+
 		private final Context mContext;
+		/**
+		 * The size covers are decoded at: the smaller side of the screen, up
+		 * to MAX_COVER_SIZE.
+		 */
+		private final int mCoverSize;
 
 		public CoverCache(Context context)
 		{
-			super(6 * 1024 * 1024);
+			super(getCacheSize(context));
 			mContext = context;
+			DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+			mCoverSize = Math.min(MAX_COVER_SIZE, Math.min(metrics.widthPixels, metrics.heightPixels));
 		}
 
-		@Override
-		public Bitmap create(Long key)
+		/**
+		 * Returns the size of the cache in bytes.
+		 */
+		private static int getCacheSize(Context context)
+		{
+			ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+			return Math.max(6 * 1024 * 1024, am.getMemoryClass() * 1024 * 1024 / 8);
+		}
+
+		/**
+		 * Returns the cover of the given song, loading it if it is not
+		 * cached. Art embedded in the file is preferred over the MediaStore
+		 * album art.
+		 */
+		public Bitmap load(Song song)
+		{
+			Bitmap cover = get(song.id);
+			if (cover == null) {
+				cover = loadEmbedded(song.path);
+				if (cover == null)
+					cover = loadMediaStore(song.id);
+				if (cover != null)
+					put(song.id, cover);
+			}
+			return cover;
+		}
+
+		private Bitmap loadEmbedded(String path)
+		{
+			if (path == null)
+				return null;
+
+			TagCache.Entry entry = null;
+			PlaybackService service = PlaybackService.sInstance;
+			if (service != null && service.getTagCache() != null)
+				entry = service.getTagCache().get(path);
+			return CoverLoader.load(path, entry, mCoverSize, BITMAP_OPTIONS.inPreferredConfig);
+		}
+
+		private Bitmap loadMediaStore(long id)
 		{
-			Uri uri =  Uri.parse("content://media/external/audio/media/" + key + "/albumart");
+			Uri uri =  Uri.parse("content://media/external/audio/media/" + id + "/albumart");
 			ContentResolver res = mContext.getContentResolver();
 
 			try {
 				ParcelFileDescriptor parcelFileDescriptor = res.openFileDescriptor(uri, "r");
 				if (parcelFileDescriptor != null) {
-					FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-					return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, BITMAP_OPTIONS);
+					// read it into memory to decode the bounds first
+					ByteArrayOutputStream data = new ByteArrayOutputStream();
+					FileInputStream in = new FileInputStream(parcelFileDescriptor.getFileDescriptor());
+					try {
+						byte[] buffer = new byte[16384];
+						for (int n; (n = in.read(buffer)) > 0; )
+							data.write(buffer, 0, n);
+					} finally {
+						parcelFileDescriptor.close();
+					}
+					return CoverLoader.decode(data.toByteArray(), mCoverSize, BITMAP_OPTIONS.inPreferredConfig);
 				}
 			} catch (Exception e) {
 				// no cover art found
@@ -126,6 +190,10 @@ public class Song implements Comparable<Song> {
 	 * The cache instance.
 	 */
 	private static CoverCache sCoverCache = null;
+	/**
+	 * The ids of the songs getCover() found no cover for.
+	 */
+	private static final IdCountMap sNoCover = new IdCountMap(16);
 
 	/**
 	 * If true, will not attempt to load any cover art in getCover()
@@ -250,18 +318,35 @@ public class Song implements Comparable<Song> {
 	 */
 	public Bitmap getCover(Context context)
 	{
-		if (mDisableCoverArt || id == -1 || (flags & FLAG_NO_COVER) != 0)
+		if (mDisableCoverArt || id == -1 || (flags & FLAG_NO_COVER) != 0 || hasNoCover(id))
 			return null;
 
 		if (sCoverCache == null)
 			sCoverCache = new CoverCache(context.getApplicationContext());
 
-		Bitmap cover = sCoverCache.get(id);
-		if (cover == null)
-			flags |= FLAG_NO_COVER;
+		Bitmap cover = sCoverCache.load(this);
+		if (cover == null) {
+			synchronized (sNoCover) {
+				sNoCover.add(id);
+			}
+		}
 		return cover;
 	}
 
+	/**
+	 * Returns true if getCover() found no cover for the song with the given
+	 * id. Song objects are shared between threads, so this is recorded here
+	 * rather than in their flags.
+	 *
+	 * @param id The MediaStore id of the song.
+	 */
+	public static boolean hasNoCover(long id)
+	{
+		synchronized (sNoCover) {
+			return sNoCover.contains(id);
+		}
+	}
+
 	@Override
 	public String toString()
 	{
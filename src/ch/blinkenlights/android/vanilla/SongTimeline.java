@@ -26,15 +26,12 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.MediaStore;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import android.util.Log;
+import android.util.LruCache;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.Arrays;
 import junit.framework.Assert;
 
 /**
@@ -197,12 +194,78 @@ public final class SongTimeline {
 	 */
 	public static final int SHIFT_NEXT_ALBUM = 2;
 
+	/**
+	 * Number of hydrated songs kept in memory.
+	 */
+	private static final int SONG_CACHE_SIZE = 128;
+	/**
+	 * Songs of the queue are hydrated in aligned blocks of this size, so
+	 * that walking through the queue needs only one query per block.
+	 */
+	private static final int HYDRATE_BLOCK = 32;
+	/**
+	 * Maximum number of songs checked by one restoreChunk() call.
+	 */
+	private static final int RESTORE_CHUNK = 500;
+	/**
+	 * Set in mFlags for restored songs that were not checked against the
+	 * MediaStore yet: their album and track columns are not filled.
+	 */
+	private static final int FLAG_UNVERIFIED = 1 << 30;
+	/**
+	 * The columns to query to check that restored songs still exist.
+	 */
+	private static final String[] COLUMN_PROJECTION = {
+		MediaStore.Audio.Media._ID,
+		MediaStore.Audio.Media.ALBUM_ID,
+		MediaStore.Audio.Media.TRACK,
+	};
+	/**
+	 * The columns to query for the rows of a {@link QueueWindow}.
+	 */
+	private static final String[] WINDOW_PROJECTION = {
+		MediaStore.Audio.Media._ID,
+		MediaStore.Audio.Media.TITLE,
+		MediaStore.Audio.Media.ARTIST,
+		MediaStore.Audio.Media.ALBUM,
+		MediaStore.Audio.Media.DURATION,
+	};
+
 	private final Context mContext;
 	/**
-	 * All the songs currently contained in the timeline. Each Song object
-	 * should be unique, even if it refers to the same media.
+	 * The MediaStore ids of the songs currently contained in the timeline.
+	 * The timeline is stored as columns: the song at position i has the id
+	 * mIds[i], the flags mFlags[i] and so on. Only the first mSize entries
+	 * of each column are used.
+	 */
+	private long[] mIds = new long[12];
+	/**
+	 * The flags of the songs in the timeline: a combination of Song.FLAG_*.
+	 */
+	private int[] mFlags = new int[12];
+	/**
+	 * The album ids of the songs in the timeline.
+	 */
+	private long[] mAlbumIds = new long[12];
+	/**
+	 * The track numbers of the songs in the timeline, for album shuffle.
+	 */
+	private int[] mTracks = new int[12];
+	/**
+	 * The number of songs in the timeline.
+	 */
+	private int mSize;
+	/**
+	 * How often each id occurs in the timeline, kept up to date with the
+	 * columns.
+	 */
+	private final IdCountMap mQueued = new IdCountMap(12);
+	/**
+	 * Song objects of the recently used positions, by id. Songs are only
+	 * hydrated from the MediaStore when they are requested, as for most of
+	 * the queue only the columns are ever needed.
 	 */
-	private ArrayList<Song> mSongs = new ArrayList<Song>(12);
+	private final LruCache<Long, Song> mSongCache = new LruCache<Long, Song>(SONG_CACHE_SIZE);
 	/**
 	 * The position of the current song (i.e. the playing song).
 	 */
@@ -217,15 +280,61 @@ public final class SongTimeline {
 	 */
 	private int mFinishAction;
 
-	// for shuffleAll()
-	private ArrayList<Song> mShuffledSongs;
+	/**
+	 * The order the timeline will be played in after the end is reached, as
+	 * positions in the current order. Created by shuffleAll() and dropped
+	 * whenever the timeline changes.
+	 */
+	private int[] mShuffle;
+
+	/**
+	 * The journal changes to the timeline are recorded in, if any.
+	 */
+	private StateJournal mJournal;
+	/**
+	 * Picks the songs of random mode ahead of time, if set.
+	 */
+	private RandomPrefetcher mPrefetcher;
+	/**
+	 * Statistics of the running restore, or null if all songs were checked.
+	 */
+	private RestoreStats mRestoreStats;
+	/**
+	 * The position restoreChunk() continues checking songs at.
+	 */
+	private int mRestoreCursor;
+	/**
+	 * Statistics of the last completed restore.
+	 */
+	private RestoreStats mLastRestoreStats;
+
+	/**
+	 * The last published snapshot of the timeline. Read without locking by
+	 * the methods that only look at the timeline.
+	 */
+	private volatile TimelineSnapshot mSnapshot = TimelineSnapshot.EMPTY;
+	/**
+	 * The first position that changed since mSnapshot was published, or
+	 * Integer.MAX_VALUE if the songs did not change.
+	 */
+	private int mDirtyFrom = Integer.MAX_VALUE;
 
 	// for saveActiveSongs()
-	private Song mSavedPrevious;
-	private Song mSavedCurrent;
-	private Song mSavedNext;
+	private long mSavedPrevious;
+	private long mSavedCurrent;
+	private long mSavedNext;
 	private int mSavedPos;
 	private int mSavedSize;
+	/**
+	 * The active songs replaced since the last call to changed(), as bit
+	 * delta + 1 for each delta of Callback.activeSongReplaced().
+	 */
+	private int mPendingReplaced;
+	/**
+	 * True if the position or length changed since the last call to
+	 * changed().
+	 */
+	private boolean mPendingPositionInfo;
 
 	/**
 	 * Interface to respond to timeline changes.
@@ -263,133 +372,435 @@ public final class SongTimeline {
 	}
 
 	/**
-	 * Compares the ids of songs.
+	 * Timings of the restore of a saved timeline.
 	 */
-	public static class IdComparator implements Comparator<Song> {
+	public static final class RestoreStats {
+		/**
+		 * Number of songs in the restored timeline.
+		 */
+		public int songs;
+		/**
+		 * Number of songs that no longer exist.
+		 */
+		public int missing;
+		/**
+		 * Number of chunks checked in the background.
+		 */
+		public int chunks;
+		/**
+		 * Time the restore started at, from SystemClock.elapsedRealtime().
+		 */
+		public long start;
+		/**
+		 * Milliseconds until the current song was playable.
+		 */
+		public long firstPlayable;
+		/**
+		 * Milliseconds until all songs were checked.
+		 */
+		public long restored;
+
 		@Override
-		public int compare(Song a, Song b)
+		public String toString()
 		{
-			if (a.id == b.id)
-				return 0;
-			if (a.id > b.id)
-				return 1;
-			return -1;
+			return String.format("%d songs (%d missing) in %d chunks, first song playable after %d ms, fully restored after %d ms",
+				songs, missing, chunks, firstPlayable, restored);
+		}
+	}
+
+	/**
+	 * Initializes the timeline with data read from the state file. Data should
+	 * have been saved by a call to
+	 * {@link SongTimeline#writeState(StateCodec.Writer)}; files written before
+	 * {@link StateCodec#VERSION_VARINT} are migrated.
+	 *
+	 * @param in The reader to read from.
+	 */
+	public void readState(StateCodec.Reader in) throws IOException
+	{
+		synchronized (this) {
+			RestoreStats stats = new RestoreStats();
+			long start = SystemClock.elapsedRealtime();
+			boolean varint = in.getVersion() >= StateCodec.VERSION_VARINT;
+
+			int n = varint ? (int)in.readVarint() : in.readInt();
+			if (n < 0 || n > in.remaining())
+				throw new IOException("Invalid timeline length: " + n);
+			if (n > 0) {
+				long[] ids = new long[n];
+				int[] flags = new int[n];
+				int count = 0;
+
+				long id = 0;
+				for (int i = 0; i != n; ++i) {
+					if (varint) {
+						// ids are stored as the difference to the previous one
+						id += in.readZigzag();
+						ids[count] = id;
+						flags[count] = (int)in.readVarint();
+					} else {
+						long legacyId = in.readLong();
+						if (legacyId == -1)
+							continue;
+						ids[count] = legacyId;
+						flags[count] = in.readInt();
+					}
+					flags[count] = flags[count] & ~(~0 << Song.FLAG_COUNT) | FLAG_UNVERIFIED;
+					++count;
+				}
+
+				// The songs are only checked against the MediaStore when
+				// they are hydrated or by restoreChunk().
+				mIds = ids;
+				mFlags = flags;
+				mAlbumIds = new long[n];
+				mTracks = new int[n];
+				mSize = count;
+				mDirtyFrom = 0;
+				mShuffle = null;
+				mSongCache.evictAll();
+				mQueued.clear();
+				for (int i = 0; i != count; ++i)
+					mQueued.add(ids[i]);
+			}
+
+			if (varint) {
+				mCurrentPos = Math.min(mSize, (int)in.readVarint());
+				mFinishAction = (int)in.readVarint();
+				mShuffleMode = (int)in.readVarint();
+			} else {
+				mCurrentPos = Math.min(mSize, in.readInt());
+				mFinishAction = in.readInt();
+				mShuffleMode = in.readInt();
+			}
+
+			stats.start = start;
+			mRestoreStats = stats;
+			mRestoreCursor = 0;
+			publish();
+		}
+	}
+
+	/**
+	 * Applies the changes recorded in the journal since the state was
+	 * written. Called after {@link #readState(StateCodec.Reader)}.
+	 *
+	 * @param journal The journal to read.
+	 * @param generation The generation of the state that was read.
+	 */
+	public void replayJournal(StateJournal journal, int generation)
+	{
+		synchronized (this) {
+			journal.replay(generation, new JournalTarget());
+			mShuffle = null;
+			publish();
+		}
+	}
+
+	/**
+	 * Makes the current song and its neighbours playable after the state
+	 * was read, leaving the rest of the songs to restoreChunk().
+	 */
+	public void restoreActiveSongs()
+	{
+		synchronized (this) {
+			RestoreStats stats = mRestoreStats;
+			if (stats == null)
+				return;
+
+			int first = Math.max(0, mCurrentPos - 1);
+			int last = Math.min(mSize, mCurrentPos + 2);
+			if (first < last && hydrate(first, last)) {
+				for (int i = last; --i >= first; ) {
+					if ((mFlags[i] & FLAG_UNVERIFIED) != 0) {
+						// We weren't able to query this song.
+						++stats.missing;
+						removeAt(i);
+						if (mJournal != null)
+							mJournal.removeRange(i, i + 1);
+					}
+				}
+				if (mJournal != null)
+					mJournal.setPosition(mCurrentPos);
+			}
+
+			stats.songs = mSize;
+			stats.firstPlayable = SystemClock.elapsedRealtime() - stats.start;
+			publish();
 		}
 	}
 
 	/**
-	 * Compares the flags of songs.
+	 * Applies the records of the journal to the timeline. The songs are
+	 * checked against the MediaStore like those read from the state.
 	 */
-	public static class FlagComparator implements Comparator<Song> {
+	private final class JournalTarget implements StateJournal.Target {
+		@Override
+		public void append(long[] ids, int[] flags, int count)
+		{
+			ensureCapacity(mSize + count);
+			for (int i = 0; i != count; ++i)
+				SongTimeline.this.append(ids[i], flags[i] & ~(~0 << Song.FLAG_COUNT) | FLAG_UNVERIFIED, 0, 0);
+		}
+
 		@Override
-		public int compare(Song a, Song b)
+		public void truncate(int size)
 		{
-			return a.flags - b.flags;
+			if (size >= 0)
+				SongTimeline.this.truncate(size);
+		}
+
+		@Override
+		public void removeId(long id)
+		{
+			for (int i = mSize; --i >= 0; ) {
+				if (mIds[i] == id)
+					removeAt(i);
+			}
+		}
+
+		@Override
+		public void removeRange(int start, int end)
+		{
+			start = Math.max(0, start);
+			end = Math.min(mSize, end);
+			for (int i = end; --i >= start; )
+				removeAt(i);
+		}
+
+		@Override
+		public void setPosition(int pos)
+		{
+			mCurrentPos = Math.max(0, Math.min(mSize, pos));
+		}
+
+		@Override
+		public void setModes(int finishAction, int shuffleMode)
+		{
+			mFinishAction = finishAction;
+			mShuffleMode = shuffleMode;
 		}
 	}
 
 	/**
-	 * Initializes the timeline with data read from the stream. Data should have
-	 * been saved by a call to {@link SongTimeline#writeState(DataOutputStream)}.
+	 * Checks the next chunk of songs restored by readState() against the
+	 * MediaStore: the album and track columns are filled and songs that no
+	 * longer exist are removed. Should be called repeatedly on a background
+	 * thread until it returns false.
 	 *
-	 * @param in The stream to read from.
+	 * @return True if there are more songs to check.
 	 */
-	public void readState(DataInputStream in) throws IOException
+	public boolean restoreChunk()
 	{
-		synchronized (this) {
-			int n = in.readInt();
-			if (n > 0) {
-				ArrayList<Song> songs = new ArrayList<Song>(n);
+		long[] ids = new long[RESTORE_CHUNK];
+		int n = 0;
+		int start;
+		int end;
+		RestoreStats stats;
 
-				// Fill the selection with the ids of all the saved songs
-				// and initialize the timeline with unpopulated songs.
-				StringBuilder selection = new StringBuilder("_ID IN (");
-				for (int i = 0; i != n; ++i) {
-					long id = in.readLong();
-					if (id == -1)
-						continue;
+		synchronized (this) {
+			stats = mRestoreStats;
+			if (stats == null)
+				return false;
+
+			// Resume after the last chunk. Only once nothing is left there,
+			// look again from the start for songs that were moved before it.
+			start = end = Math.min(mRestoreCursor, mSize);
+			for (;;) {
+				for (; end != mSize && n != RESTORE_CHUNK; ++end) {
+					if ((mFlags[end] & FLAG_UNVERIFIED) != 0)
+						ids[n++] = mIds[end];
+				}
+				if (n != 0 || start == 0)
+					break;
+				start = end = 0;
+			}
+			if (n == 0) {
+				finishRestore(stats);
+				return false;
+			}
+			mRestoreCursor = end;
+		}
 
-					// Add the index to the flags so we can sort
-					int flags = in.readInt() & ~(~0 << Song.FLAG_COUNT) | i << Song.FLAG_COUNT;
-					songs.add(new Song(id, flags));
+		boolean[] found = new boolean[n];
+		long[] albumIds = new long[n];
+		int[] tracks = new int[n];
+		if (!queryColumns(ids, n, found, albumIds, tracks)) {
+			synchronized (this) {
+				// leave the remaining songs to be checked on hydration
+				if (stats == mRestoreStats)
+					finishRestore(stats);
+			}
+			return false;
+		}
 
-					if (i != 0)
-						selection.append(',');
-					selection.append(id);
+		long[] missing = new long[n];
+		int m = 0;
+		synchronized (this) {
+			if (stats != mRestoreStats)
+				// the timeline was restored again in the meantime
+				return false;
+
+			verifyRange(start, end, ids, n, found, albumIds, tracks);
+			for (int i = 0; i != n; ++i) {
+				if (!found[i] && (i == 0 || ids[i] != ids[i - 1])) {
+					missing[m++] = ids[i];
+					stats.missing += mQueued.count(ids[i]);
 				}
-				selection.append(')');
-
-				// Sort songs by id---this is the order the query will
-				// return its results in.
-				Collections.sort(songs, new IdComparator());
-
-				ContentResolver resolver = mContext.getContentResolver();
-				Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-
-				Cursor cursor = resolver.query(media, Song.FILLED_PROJECTION, selection.toString(), null, "_id");
-				if (cursor != null) {
-					if (cursor.getCount() != 0) {
-						cursor.moveToNext();
-
-						// Loop through timeline entries, looking for a row
-						// that matches the id. One row may match multiple
-						// entries.
-						Iterator<Song> it = songs.iterator();
-						while (it.hasNext()) {
-							Song e = it.next();
-							while (cursor.getLong(0) < e.id && !cursor.isLast())
-								cursor.moveToNext();
-							if (cursor.getLong(0) == e.id)
-								e.populate(cursor);
-							else
-								// We weren't able to query this song.
-								it.remove();
-						}
-					}
+			}
+			++stats.chunks;
+		}
 
-					cursor.close();
+		if (m != 0)
+			removeSongs(Arrays.copyOf(missing, m));
+		return true;
+	}
 
-					// Revert to the order the songs were saved in.
-					Collections.sort(songs, new FlagComparator());
+	/**
+	 * Checks all the songs left to restoreChunk() at once, for the album
+	 * shuffle, which needs the album column of every song. Songs that no
+	 * longer exist are left to restoreChunk() to remove. Must be called
+	 * while synchronized on this.
+	 */
+	private void verifyAll()
+	{
+		long[] ids = new long[RESTORE_CHUNK];
+		boolean[] found = new boolean[RESTORE_CHUNK];
+		long[] albumIds = new long[RESTORE_CHUNK];
+		int[] tracks = new int[RESTORE_CHUNK];
+
+		for (int start = 0, end = 0; end != mSize; start = end) {
+			int n = 0;
+			for (; end != mSize && n != RESTORE_CHUNK; ++end) {
+				if ((mFlags[end] & FLAG_UNVERIFIED) != 0)
+					ids[n++] = mIds[end];
+			}
+			if (n == 0 || !queryColumns(ids, n, found, albumIds, tracks))
+				break;
+			verifyRange(start, end, ids, n, found, albumIds, tracks);
+		}
+	}
 
-					mSongs = songs;
-				}
+	/**
+	 * Queries the album and track columns of the given songs. The ids are
+	 * sorted in place; the other arrays are filled in the same order.
+	 *
+	 * @param ids The ids of the songs. A song may occur more than once.
+	 * @param n The number of ids to query.
+	 * @param found Set to true for the ids that still exist.
+	 * @param albumIds Filled with the album ids of the songs.
+	 * @param tracks Filled with the track numbers of the songs.
+	 * @return False if the MediaStore could not be queried.
+	 */
+	private boolean queryColumns(long[] ids, int n, boolean[] found, long[] albumIds, int[] tracks)
+	{
+		// Query the chunk in id order and merge the sorted rows with the
+		// sorted ids. A row may match multiple ids.
+		Arrays.sort(ids, 0, n);
+		StringBuilder selection = new StringBuilder("_ID IN (");
+		for (int i = 0; i != n; ++i) {
+			if (i != 0)
+				selection.append(',');
+			selection.append(ids[i]);
+		}
+		selection.append(')');
+
+		ContentResolver resolver = mContext.getContentResolver();
+		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		Cursor cursor = resolver.query(media, COLUMN_PROJECTION, selection.toString(), null, "_id");
+		if (cursor == null)
+			return false;
+
+		Arrays.fill(found, 0, n, false);
+		int i = 0;
+		while (cursor.moveToNext()) {
+			long id = cursor.getLong(0);
+			while (i != n && ids[i] < id)
+				++i;
+			for (; i != n && ids[i] == id; ++i) {
+				found[i] = true;
+				albumIds[i] = cursor.getLong(1);
+				tracks[i] = cursor.getInt(2);
 			}
+		}
+		cursor.close();
+		return true;
+	}
 
-			mCurrentPos = Math.min(mSongs == null ? 0 : mSongs.size(), in.readInt());
-			mFinishAction = in.readInt();
-			mShuffleMode = in.readInt();
+	/**
+	 * Fills the album and track columns of the unverified songs in the given
+	 * range of positions from the rows read by queryColumns(). Songs that
+	 * were moved out of the range in the meantime are found again by the
+	 * next pass of restoreChunk(). Must be called while synchronized on
+	 * this.
+	 */
+	private void verifyRange(int start, int end, long[] ids, int n, boolean[] found, long[] albumIds, int[] tracks)
+	{
+		end = Math.min(end, mSize);
+		for (int pos = start; pos < end; ++pos) {
+			if ((mFlags[pos] & FLAG_UNVERIFIED) == 0)
+				continue;
+			int k = Arrays.binarySearch(ids, 0, n, mIds[pos]);
+			if (k >= 0 && found[k]) {
+				mAlbumIds[pos] = albumIds[k];
+				mTracks[pos] = tracks[k];
+				mFlags[pos] &= ~FLAG_UNVERIFIED;
+			}
 		}
 	}
 
 	/**
-	 * Writes the current songs and state to the given stream.
+	 * Ends the restore started by readState(), logging its statistics.
+	 * Must be called while synchronized on this.
+	 */
+	private void finishRestore(RestoreStats stats)
+	{
+		stats.restored = SystemClock.elapsedRealtime() - stats.start;
+		mRestoreStats = null;
+		mLastRestoreStats = stats;
+		Log.i("VanillaMusic", "Queue restore finished: " + stats);
+	}
+
+	/**
+	 * Returns the statistics of the last completed queue restore, or null if
+	 * there is none.
+	 */
+	public RestoreStats getRestoreStats()
+	{
+		return mLastRestoreStats;
+	}
+
+	/**
+	 * Writes the current songs and state to the given state file writer.
 	 *
-	 * @param out The stream to write to.
+	 * @param out The writer to write to.
 	 */
-	public void writeState(DataOutputStream out) throws IOException
+	public void writeState(StateCodec.Writer out)
 	{
 		// Must update PlaybackService.STATE_VERSION when changing behavior
 		// here.
 		synchronized (this) {
-			ArrayList<Song> songs = mSongs;
+			// everything recorded so far is part of this state
+			if (mJournal != null)
+				mJournal.clearPending();
 
-			int size = songs.size();
-			out.writeInt(size);
+			int size = mSize;
+			out.writeVarint(size);
 
+			long previous = 0;
 			for (int i = 0; i != size; ++i) {
-				Song song = songs.get(i);
-				if (song == null) {
-					out.writeLong(-1);
-				} else {
-					out.writeLong(song.id);
-					out.writeInt(song.flags);
-				}
+				long id = mIds[i];
+				int flags = mFlags[i] & ~FLAG_UNVERIFIED;
+				if (Song.hasNoCover(id))
+					flags |= Song.FLAG_NO_COVER;
+				out.writeZigzag(id - previous);
+				out.writeVarint(flags);
+				previous = id;
 			}
 
-			out.writeInt(mCurrentPos);
-			out.writeInt(mFinishAction);
-			out.writeInt(mShuffleMode);
+			out.writeVarint(mCurrentPos);
+			out.writeVarint(mFinishAction);
+			out.writeVarint(mShuffleMode);
 		}
 	}
 
@@ -401,6 +812,58 @@ public final class SongTimeline {
 		mCallback = callback;
 	}
 
+	/**
+	 * Sets the journal to record changes to the timeline in.
+	 */
+	public void setJournal(StateJournal journal)
+	{
+		synchronized (this) {
+			mJournal = journal;
+		}
+	}
+
+	/**
+	 * Sets the prefetcher to take the songs of random mode from. It is
+	 * enabled while the finish action is FINISH_RANDOM.
+	 */
+	public void setRandomPrefetcher(RandomPrefetcher prefetcher)
+	{
+		synchronized (this) {
+			mPrefetcher = prefetcher;
+			if (prefetcher != null) {
+				prefetcher.setCallback(new RandomPrefetcher.Callback() {
+					@Override
+					public void randomSongReady()
+					{
+						onRandomSongReady();
+					}
+				});
+				prefetcher.setEnabled(mFinishAction == FINISH_RANDOM);
+			}
+		}
+	}
+
+	/**
+	 * Called by the prefetcher when it picked a song while its ring was
+	 * empty. If the timeline ran out of songs in random mode meanwhile,
+	 * the active song that was missing is reported as replaced, which
+	 * appends the new song.
+	 */
+	private void onRandomSongReady()
+	{
+		synchronized (this) {
+			if (mFinishAction != FINISH_RANDOM)
+				return;
+			if (mCurrentPos == mSize)
+				mPendingReplaced |= 1 << 1;
+			else if (mCurrentPos + 1 == mSize)
+				mPendingReplaced |= 1 << 2;
+			else
+				return;
+		}
+		changed();
+	}
+
 	/**
 	 * Return the current shuffle mode.
 	 *
@@ -408,7 +871,7 @@ public final class SongTimeline {
 	 */
 	public int getShuffleMode()
 	{
-		return mShuffleMode;
+		return mSnapshot.shuffleMode;
 	}
 
 	/**
@@ -418,7 +881,7 @@ public final class SongTimeline {
 	 */
 	public int getFinishAction()
 	{
-		return mFinishAction;
+		return mSnapshot.finishAction;
 	}
 
 	/**
@@ -432,17 +895,35 @@ public final class SongTimeline {
 		if (mode == mShuffleMode)
 			return;
 
+		// The album shuffle needs the album columns of all songs: check
+		// the songs left from the restore here rather than under the lock
+		// in shuffleAll().
+		if (mode == SHUFFLE_ALBUMS) {
+			while (restoreChunk())
+				continue;
+		}
+
 		synchronized (this) {
 			saveActiveSongs();
-			mShuffledSongs = null;
+			mShuffle = null;
 			mShuffleMode = mode;
-			if (mode != SHUFFLE_NONE && mFinishAction != FINISH_RANDOM && !mSongs.isEmpty()) {
-				shuffleAll();
-				ArrayList<Song> songs = mShuffledSongs;
-				mShuffledSongs = null;
-				mCurrentPos = songs.indexOf(mSavedCurrent);
-				mSongs = songs;
+			if (mode != SHUFFLE_NONE && mFinishAction != FINISH_RANDOM && mSize != 0) {
+				int[] order = shuffleAll();
+				mShuffle = null;
+				int current = 0;
+				for (int i = 0; i != order.length; ++i) {
+					if (order[i] == mCurrentPos) {
+						current = i;
+						break;
+					}
+				}
+				reorder(0, order);
+				mCurrentPos = current;
+				if (mJournal != null)
+					mJournal.invalidate();
 			}
+			if (mJournal != null)
+				mJournal.setModes(mFinishAction, mode);
 			broadcastChangedSongs();
 		}
 
@@ -455,32 +936,350 @@ public final class SongTimeline {
 	 */
 	public void setFinishAction(int action)
 	{
-		saveActiveSongs();
-		mFinishAction = action;
-		broadcastChangedSongs();
+		synchronized (this) {
+			if (mPrefetcher != null)
+				mPrefetcher.setEnabled(action == FINISH_RANDOM);
+			saveActiveSongs();
+			mFinishAction = action;
+			if (mJournal != null)
+				mJournal.setModes(action, mShuffleMode);
+			broadcastChangedSongs();
+		}
 		changed();
 	}
 
 	/**
 	 * Shuffle all the songs in the timeline, storing the result in
-	 * mShuffledSongs.
+	 * mShuffle.
+	 *
+	 * @return The shuffled order of the current positions.
+	 */
+	private int[] shuffleAll()
+	{
+		if (mShuffle == null) {
+			if (mShuffleMode == SHUFFLE_ALBUMS && mRestoreStats != null)
+				verifyAll();
+			mShuffle = MediaUtils.shuffle(mAlbumIds, mTracks, 0, mSize, mShuffleMode == SHUFFLE_ALBUMS);
+		}
+		return mShuffle;
+	}
+
+	/**
+	 * Reorders the columns from the given position on.
+	 *
+	 * @param start The first position to reorder.
+	 * @param order The positions that will end up at start, start + 1, ...
+	 * in their new order.
+	 */
+	private void reorder(int start, int[] order)
+	{
+		int n = order.length;
+		long[] ids = new long[n];
+		int[] flags = new int[n];
+		long[] albumIds = new long[n];
+		int[] tracks = new int[n];
+		for (int i = 0; i != n; ++i) {
+			int pos = order[i];
+			ids[i] = mIds[pos];
+			flags[i] = mFlags[pos];
+			albumIds[i] = mAlbumIds[pos];
+			tracks[i] = mTracks[pos];
+		}
+		changedFrom(start);
+		System.arraycopy(ids, 0, mIds, start, n);
+		System.arraycopy(flags, 0, mFlags, start, n);
+		System.arraycopy(albumIds, 0, mAlbumIds, start, n);
+		System.arraycopy(tracks, 0, mTracks, start, n);
+	}
+
+	/**
+	 * Makes room for at least the given number of songs in the columns.
+	 */
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity <= mIds.length)
+			return;
+
+		capacity = Math.max(capacity, mIds.length * 2);
+		mIds = Arrays.copyOf(mIds, capacity);
+		mFlags = Arrays.copyOf(mFlags, capacity);
+		mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+		mTracks = Arrays.copyOf(mTracks, capacity);
+	}
+
+	/**
+	 * Appends a song to the timeline.
+	 */
+	private void append(long id, int flags, long albumId, int track)
+	{
+		ensureCapacity(mSize + 1);
+		changedFrom(mSize);
+		mIds[mSize] = id;
+		mQueued.add(id);
+		mFlags[mSize] = flags;
+		mAlbumIds[mSize] = albumId;
+		mTracks[mSize] = track;
+		++mSize;
+	}
+
+	/**
+	 * Appends a block of songs to the timeline in the given order.
+	 *
+	 * @param ids The ids of the songs.
+	 * @param albumIds The album ids of the songs.
+	 * @param tracks The track numbers of the songs.
+	 * @param order The indices into the other arrays, in the order the
+	 * songs are appended in.
+	 */
+	private void appendBlock(long[] ids, long[] albumIds, int[] tracks, int[] order)
+	{
+		int n = order.length;
+		int start = mSize;
+		ensureCapacity(start + n);
+		changedFrom(start);
+		for (int i = 0; i != n; ++i) {
+			int k = order[i];
+			long id = ids[k];
+			mIds[start + i] = id;
+			mQueued.add(id);
+			mAlbumIds[start + i] = albumIds[k];
+			mTracks[start + i] = tracks[k];
+		}
+		Arrays.fill(mFlags, start, start + n, 0);
+		mSize = start + n;
+	}
+
+	/**
+	 * Removes the songs in the given range of positions from the timeline.
+	 */
+	private void removeRange(int start, int end)
+	{
+		for (int i = start; i != end; ++i)
+			mQueued.remove(mIds[i]);
+		changedFrom(start);
+		int tail = mSize - end;
+		System.arraycopy(mIds, end, mIds, start, tail);
+		System.arraycopy(mFlags, end, mFlags, start, tail);
+		System.arraycopy(mAlbumIds, end, mAlbumIds, start, tail);
+		System.arraycopy(mTracks, end, mTracks, start, tail);
+		mSize -= end - start;
+	}
+
+	/**
+	 * Records that the songs from the given position on changed since the
+	 * last snapshot was published.
+	 */
+	private void changedFrom(int pos)
+	{
+		if (pos < mDirtyFrom)
+			mDirtyFrom = pos;
+	}
+
+	/**
+	 * Publishes a new snapshot of the timeline if it changed since the last
+	 * one. Must be called while synchronized on this, after every change.
+	 */
+	private void publish()
+	{
+		TimelineSnapshot snapshot = mSnapshot;
+		if (mDirtyFrom == Integer.MAX_VALUE && snapshot.size == mSize && snapshot.position == mCurrentPos
+				&& snapshot.finishAction == mFinishAction && snapshot.shuffleMode == mShuffleMode)
+			return;
+		mSnapshot = snapshot.next(mIds, mFlags, mSize, mDirtyFrom, mCurrentPos, mFinishAction, mShuffleMode);
+		mDirtyFrom = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the last published snapshot of the timeline. This never
+	 * blocks.
+	 */
+	public TimelineSnapshot getSnapshot()
+	{
+		return mSnapshot;
+	}
+
+	/**
+	 * Drops the songs from the given position on.
+	 */
+	private void truncate(int size)
+	{
+		if (size < mSize)
+			removeRange(size, mSize);
+	}
+
+	/**
+	 * Removes the song at the given position, keeping the current song.
+	 */
+	private void removeAt(int pos)
+	{
+		if (pos < mCurrentPos)
+			--mCurrentPos;
+		removeRange(pos, pos + 1);
+		mShuffle = null;
+	}
+
+	/**
+	 * Returns the Song object for the given position of a snapshot,
+	 * hydrating it and the songs around it from the MediaStore if it is not
+	 * cached. This does not lock the timeline, so the MediaStore is not
+	 * queried while holding it.
+	 *
+	 * @return The song, or null if it could not be queried.
+	 */
+	private Song songAt(TimelineSnapshot snapshot, int pos)
+	{
+		long id = snapshot.getId(pos);
+		Song song = mSongCache.get(id);
+		if (song == null) {
+			int start = pos - pos % HYDRATE_BLOCK;
+			int end = Math.min(start + HYDRATE_BLOCK, snapshot.size);
+			long[] ids = new long[end - start];
+			int[] flags = new int[end - start];
+			for (int i = start; i != end; ++i) {
+				ids[i - start] = snapshot.getId(i);
+				flags[i - start] = snapshot.getFlags(i);
+			}
+			querySongs(ids, flags);
+			song = mSongCache.get(id);
+		}
+		return song;
+	}
+
+	/**
+	 * Adds the given id to an "_ID IN (...)" selection if the song is not
+	 * cached.
+	 *
+	 * @param selection The selection so far, or null to start a new one.
+	 * @return The selection, or null if there is none yet.
+	 */
+	private StringBuilder appendUncached(StringBuilder selection, long id)
+	{
+		if (mSongCache.get(id) != null)
+			return selection;
+		if (selection == null)
+			selection = new StringBuilder("_ID IN (");
+		else
+			selection.append(',');
+		selection.append(id);
+		return selection;
+	}
+
+	/**
+	 * Queries the given songs that are not cached yet and adds them to the
+	 * cache. The cached Song objects are shared with the readers of the
+	 * snapshots, so they are created with the flags of the first position
+	 * of their id and never modified afterwards.
+	 *
+	 * @param ids The ids of the songs.
+	 * @param flags The flags of the songs, as stored in the columns.
+	 * @return False if the MediaStore could not be queried.
+	 */
+	private boolean querySongs(long[] ids, int[] flags)
+	{
+		StringBuilder selection = null;
+		for (int i = 0; i != ids.length; ++i)
+			selection = appendUncached(selection, ids[i]);
+		if (selection == null)
+			return true;
+		selection.append(')');
+
+		ContentResolver resolver = mContext.getContentResolver();
+		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		Cursor cursor = resolver.query(media, Song.FILLED_PROJECTION, selection.toString(), null, null);
+		if (cursor == null)
+			return false;
+		while (cursor.moveToNext()) {
+			long id = cursor.getLong(0);
+			int k = 0;
+			while (k != ids.length - 1 && ids[k] != id)
+				++k;
+			Song song = new Song(id, flags[k] & ~FLAG_UNVERIFIED);
+			song.populate(cursor);
+			mSongCache.put(id, song);
+		}
+		cursor.close();
+		return true;
+	}
+
+	/**
+	 * Queries the songs in the given range of positions that are not cached
+	 * yet and adds them to the cache. Must be called while synchronized on
+	 * this.
+	 *
+	 * @return False if the MediaStore could not be queried.
+	 */
+	private boolean hydrate(int start, int end)
+	{
+		if (!querySongs(Arrays.copyOfRange(mIds, start, end), Arrays.copyOfRange(mFlags, start, end)))
+			return false;
+
+		// fill in the columns of songs that were not checked since the
+		// restore (they may have been cached through a snapshot)
+		for (int i = start; i != end; ++i) {
+			if ((mFlags[i] & FLAG_UNVERIFIED) == 0)
+				continue;
+			Song song = mSongCache.get(mIds[i]);
+			if (song != null) {
+				mAlbumIds[i] = song.albumId;
+				mTracks[i] = song.trackNumber;
+				mFlags[i] &= ~FLAG_UNVERIFIED;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the timeline position of the song <code>delta</code> places
+	 * away from the current position, adding a random song in random mode.
+	 * Must be called while synchronized on this.
 	 *
-	 * @return The first song from the shuffled songs.
+	 * @param delta The offset from the current position. Must be -1, 0, or 1.
+	 * @return The position, or -1 if there is no song.
 	 */
-	private Song shuffleAll()
+	private int positionOf(int delta)
 	{
-		if (mShuffledSongs != null)
-			return mShuffledSongs.get(0);
+		int pos = mCurrentPos + delta;
+		int size = mSize;
 
-		ArrayList<Song> songs = new ArrayList<Song>(mSongs);
-		MediaUtils.shuffle(songs, mShuffleMode == SHUFFLE_ALBUMS);
-		mShuffledSongs = songs;
-		return songs.get(0);
+		if (pos < 0) {
+			if (size == 0 || mFinishAction == FINISH_RANDOM)
+				return -1;
+			return Math.max(0, size - 1);
+		} else if (pos > size) {
+			return -1;
+		} else if (pos == size) {
+			if (mFinishAction == FINISH_RANDOM) {
+				// The random song is picked ahead of time by the prefetcher.
+				// If there is none yet, it is filling its ring and calls
+				// onRandomSongReady() once there is.
+				Song song = mPrefetcher == null ? null : mPrefetcher.poll();
+				if (song == null)
+					return -1;
+				append(song.id, song.flags, song.albumId, song.trackNumber);
+				mSongCache.put(song.id, song);
+				if (mJournal != null)
+					mJournal.append(mIds, mFlags, size, 1);
+				return size;
+			} else if (size == 0) {
+				// empty queue
+				return -1;
+			} else if (mShuffleMode != SHUFFLE_NONE) {
+				return shuffleAll()[0];
+			} else {
+				return 0;
+			}
+		}
+		return pos;
 	}
 
 	/**
 	 * Returns the song <code>delta</code> places away from the current
-	 * position. Returns null if there is a problem retrieving the song.
+	 * position. Returns null if there is a problem retrieving the song,
+	 * or in random mode if the prefetcher has not picked a song yet.
+	 *
+	 * Positions inside the timeline are looked up in the published snapshot
+	 * without locking; only wrapping around the ends (which may shuffle or
+	 * add a random song) locks the timeline.
 	 *
 	 * @param delta The offset from the current position. Must be -1, 0, or 1.
 	 */
@@ -488,44 +1287,35 @@ public final class SongTimeline {
 	{
 		Assert.assertTrue(delta >= -1 && delta <= 1);
 
-		ArrayList<Song> timeline = mSongs;
-		Song song;
+		TimelineSnapshot snapshot = mSnapshot;
+		int pos = snapshot.position + delta;
+		if (pos >= 0 && pos < snapshot.size)
+			return songAt(snapshot, pos);
 
 		synchronized (this) {
-			int pos = mCurrentPos + delta;
-			int size = timeline.size();
-
-			if (pos < 0) {
-				if (size == 0 || mFinishAction == FINISH_RANDOM)
-					return null;
-				song = timeline.get(Math.max(0, size - 1));
-			} else if (pos > size) {
-				return null;
-			} else if (pos == size) {
-				if (mFinishAction == FINISH_RANDOM) {
-					song = MediaUtils.randomSong(mContext.getContentResolver());
-					if (song == null)
-						return null;
-					timeline.add(song);
-				} else {
-					if (size == 0)
-						// empty queue
-						return null;
-					else if (mShuffleMode != SHUFFLE_NONE)
-						song = shuffleAll();
-					else
-						song = timeline.get(0);
-				}
-			} else {
-				song = timeline.get(pos);
-			}
+			pos = positionOf(delta);
+			publish();
+			snapshot = mSnapshot;
 		}
-
-		if (song == null)
+		if (pos == -1)
 			// we have no songs in the library
 			return null;
+		// hydrate the song without holding the lock
+		return songAt(snapshot, pos);
+	}
 
-		return song;
+	/**
+	 * Returns the id of the song <code>delta</code> places away from the
+	 * current position, or -1 if there is none. Like getSong(int), this may
+	 * shuffle or add a random song, but it never queries the MediaStore.
+	 * Must be called while synchronized on this.
+	 *
+	 * @param delta The offset from the current position. Must be -1, 0, or 1.
+	 */
+	private long idOf(int delta)
+	{
+		int pos = positionOf(delta);
+		return pos == -1 ? -1 : mIds[pos];
 	}
 
 	/**
@@ -539,11 +1329,11 @@ public final class SongTimeline {
 	{
 		int pos = mCurrentPos + delta;
 
-		if (mFinishAction != FINISH_RANDOM && pos == mSongs.size()) {
-			if (mShuffleMode != SHUFFLE_NONE && !mSongs.isEmpty()) {
-				if (mShuffledSongs == null)
-					shuffleAll();
-				mSongs = mShuffledSongs;
+		if (mFinishAction != FINISH_RANDOM && pos == mSize) {
+			if (mShuffleMode != SHUFFLE_NONE && mSize != 0) {
+				reorder(0, shuffleAll());
+				if (mJournal != null)
+					mJournal.invalidate();
 			}
 
 			pos = 0;
@@ -551,19 +1341,26 @@ public final class SongTimeline {
 			if (mFinishAction == FINISH_RANDOM)
 				pos = 0;
 			else
-				pos = Math.max(0, mSongs.size() - 1);
+				pos = Math.max(0, mSize - 1);
 		}
 
 		mCurrentPos = pos;
-		mShuffledSongs = null;
+		mShuffle = null;
+		if (mJournal != null)
+			mJournal.setPosition(pos);
 	}
 	
 	/**
 	 * Hard-Jump to given queue position
 	*/
 	public Song setCurrentQueuePosition(int pos) {
-		mCurrentPos = pos;
-		mShuffledSongs = null;
+		synchronized (this) {
+			mCurrentPos = pos;
+			mShuffle = null;
+			if (mJournal != null)
+				mJournal.setPosition(pos);
+			publish();
+		}
 		return getSong(0);
 	}
 	
@@ -571,7 +1368,91 @@ public final class SongTimeline {
 	 * Returns 'Song' at given position in queue
 	*/
 	public Song getSongByQueuePosition(int id) {
-		return mSongs.get(id);
+		return getSong(mSnapshot, id);
+	}
+
+	/**
+	 * Returns the song at the given position of a snapshot returned by
+	 * {@link #getSnapshot()}, so that a whole snapshot can be walked while
+	 * the timeline changes. This never locks the timeline.
+	 *
+	 * @param snapshot The snapshot.
+	 * @param pos The position in the snapshot.
+	 * @return The song, or null if it could not be queried.
+	 */
+	public Song getSong(TimelineSnapshot snapshot, int pos)
+	{
+		if (pos < 0 || pos >= snapshot.size)
+			throw new IndexOutOfBoundsException("Invalid position: " + pos + ", length: " + snapshot.size);
+		return songAt(snapshot, pos);
+	}
+
+	/**
+	 * Returns the rows of the given range of positions of a snapshot, for
+	 * displaying the queue a page at a time. Cached songs are used as is;
+	 * the rest is read with a single query that does not touch the song
+	 * cache, so paging through the queue does not evict the active songs.
+	 * This never locks the timeline, but queries the MediaStore: call it
+	 * from a worker thread.
+	 *
+	 * @param snapshot The snapshot to read.
+	 * @param start The first position. Must not be negative.
+	 * @param count The number of rows. The window is cut off at the end of
+	 * the snapshot.
+	 */
+	public QueueWindow getWindow(TimelineSnapshot snapshot, int start, int count)
+	{
+		if (start < 0)
+			throw new IndexOutOfBoundsException("Invalid position: " + start);
+		int n = Math.max(0, Math.min(count, snapshot.size - start));
+		long[] ids = new long[n];
+		String[] titles = new String[n];
+		String[] artists = new String[n];
+		String[] albums = new String[n];
+		long[] durations = new long[n];
+
+		StringBuilder selection = null;
+		for (int i = 0; i != n; ++i) {
+			long id = snapshot.getId(start + i);
+			ids[i] = id;
+			Song song = mSongCache.get(id);
+			if (song != null) {
+				titles[i] = song.title;
+				artists[i] = song.artist;
+				albums[i] = song.album;
+				durations[i] = song.duration;
+			} else {
+				if (selection == null)
+					selection = new StringBuilder("_ID IN (");
+				else
+					selection.append(',');
+				selection.append(id);
+			}
+		}
+
+		if (selection != null) {
+			selection.append(')');
+			ContentResolver resolver = mContext.getContentResolver();
+			Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+			Cursor cursor = resolver.query(media, WINDOW_PROJECTION, selection.toString(), null, null);
+			if (cursor != null) {
+				while (cursor.moveToNext()) {
+					long id = cursor.getLong(0);
+					// a song may be queued more than once
+					for (int i = 0; i != n; ++i) {
+						if (ids[i] == id && titles[i] == null) {
+							titles[i] = cursor.getString(1);
+							artists[i] = cursor.getString(2);
+							albums[i] = cursor.getString(3);
+							durations[i] = cursor.getLong(4);
+						}
+					}
+				}
+				cursor.close();
+			}
+		}
+
+		return new QueueWindow(snapshot, start, ids, titles, artists, albums, durations);
 	}
 	
 	/**
@@ -586,15 +1467,18 @@ public final class SongTimeline {
 			if (delta == SHIFT_PREVIOUS_SONG || delta == SHIFT_NEXT_SONG) {
 				shiftCurrentSongInternal(delta);
 			} else {
-				Song song = getSong(0);
-				long currentAlbum = song.albumId;
-				long currentSong = song.id;
-				delta = delta > 0 ? 1 : -1;
-				do {
-					shiftCurrentSongInternal(delta);
-					song = getSong(0);
-				} while (currentAlbum == song.albumId && currentSong != song.id);
+				int pos = positionOf(0);
+				if (pos != -1) {
+					long currentAlbum = mAlbumIds[pos];
+					long currentSong = mIds[pos];
+					delta = delta > 0 ? 1 : -1;
+					do {
+						shiftCurrentSongInternal(delta);
+						pos = positionOf(0);
+					} while (pos != -1 && currentAlbum == mAlbumIds[pos] && currentSong != mIds[pos]);
+				}
 			}
+			publish();
 		}
 		changed();
 		return getSong(0);
@@ -618,6 +1502,7 @@ public final class SongTimeline {
 
 		int count = cursor.getCount();
 		if (count == 0) {
+			cursor.close();
 			return 0;
 		}
 
@@ -625,7 +1510,71 @@ public final class SongTimeline {
 		int type = query.type;
 		long data = query.data;
 
-		ArrayList<Song> timeline = mSongs;
+		// Read the columns of the new songs in a single sequential pass,
+		// without locking the timeline. The songs are not hydrated here.
+		// The query uses Song.FILLED_PROJECTION or FILLED_PLAYLIST_PROJECTION.
+		long[] ids = new long[count];
+		long[] albumIds = new long[count];
+		int[] tracks = new int[count];
+		int jumpPos = -1;
+		int n = 0;
+		while (n != count && cursor.moveToNext()) {
+			long songId = cursor.getLong(0);
+			ids[n] = songId;
+			albumIds[n] = cursor.getLong(5);
+			tracks[n] = cursor.getInt(8);
+
+			if (jumpPos == -1) {
+				if ((mode == MODE_PLAY_POS_FIRST || mode == MODE_ENQUEUE_POS_FIRST) && n == data) {
+					jumpPos = n;
+				} else if (mode == MODE_PLAY_ID_FIRST || mode == MODE_ENQUEUE_ID_FIRST) {
+					long id;
+					switch (type) {
+					case MediaUtils.TYPE_ARTIST:
+						id = cursor.getLong(6);
+						break;
+					case MediaUtils.TYPE_ALBUM:
+						id = cursor.getLong(5);
+						break;
+					case MediaUtils.TYPE_SONG:
+						id = songId;
+						break;
+					default:
+						throw new IllegalArgumentException("Unsupported id type: " + type);
+					}
+					if (id == data)
+						jumpPos = n;
+				}
+			}
+			++n;
+		}
+		cursor.close();
+		if (n == 0)
+			return 0;
+
+		// Work out the order of the new block, starting with the jump song.
+		int[] order;
+		int shuffleMode = mSnapshot.shuffleMode;
+		if (shuffleMode != SHUFFLE_NONE) {
+			order = MediaUtils.shuffle(albumIds, tracks, 0, n, shuffleMode == SHUFFLE_ALBUMS);
+		} else {
+			order = new int[n];
+			for (int i = 0; i != n; ++i)
+				order[i] = i;
+		}
+		if (jumpPos != -1) {
+			int first = 0;
+			while (order[first] != jumpPos)
+				++first;
+			if (first != 0) {
+				// Move the songs before the jump song to the end.
+				int[] rotated = new int[n];
+				for (int i = 0; i != n; ++i)
+					rotated[i] = order[(first + i) % n];
+				order = rotated;
+			}
+		}
+
 		synchronized (this) {
 			saveActiveSongs();
 
@@ -634,77 +1583,50 @@ public final class SongTimeline {
 			case MODE_ENQUEUE_POS_FIRST:
 			case MODE_ENQUEUE_ID_FIRST:
 				if (mFinishAction == FINISH_RANDOM) {
-					int j = timeline.size();
+					int j = mSize;
 					while (--j > mCurrentPos) {
-						if (timeline.get(j).isRandom())
-							timeline.remove(j);
+						if ((mFlags[j] & Song.FLAG_RANDOM) != 0) {
+							removeRange(j, j + 1);
+							if (mJournal != null)
+								mJournal.removeRange(j, j + 1);
+						}
 					}
 				}
 				break;
 			case MODE_PLAY_NEXT:
-				timeline.subList(mCurrentPos + 1, timeline.size()).clear();
+				if (mCurrentPos + 1 < mSize) {
+					truncate(mCurrentPos + 1);
+					if (mJournal != null)
+						mJournal.truncate(mSize);
+				}
 				break;
 			case MODE_PLAY:
 			case MODE_PLAY_POS_FIRST:
 			case MODE_PLAY_ID_FIRST:
-				timeline.clear();
+				truncate(0);
 				mCurrentPos = 0;
+				if (mJournal != null)
+					mJournal.truncate(0);
 				break;
 			default:
 				throw new IllegalArgumentException("Invalid mode: " + mode);
 			}
 
-			int start = timeline.size();
-
-			Song jumpSong = null;
-			for (int j = 0; j != count; ++j) {
-				cursor.moveToPosition(j);
-				Song song = new Song(-1);
-				song.populate(cursor);
-				timeline.add(song);
-
-				if (jumpSong == null) {
-					if ((mode == MODE_PLAY_POS_FIRST || mode == MODE_ENQUEUE_POS_FIRST) && j == data) {
-						jumpSong = song;
-					} else if (mode == MODE_PLAY_ID_FIRST || mode == MODE_ENQUEUE_ID_FIRST) {
-						long id;
-						switch (type) {
-						case MediaUtils.TYPE_ARTIST:
-							id = song.artistId;
-							break;
-						case MediaUtils.TYPE_ALBUM:
-							id = song.albumId;
-							break;
-						case MediaUtils.TYPE_SONG:
-							id = song.id;
-							break;
-						default:
-							throw new IllegalArgumentException("Unsupported id type: " + type);
-						}
-						if (id == data)
-							jumpSong = song;
-					}
-				}
-			}
-
-			if (mShuffleMode != SHUFFLE_NONE)
-				MediaUtils.shuffle(timeline.subList(start, timeline.size()), mShuffleMode == SHUFFLE_ALBUMS);
+			int start = mSize;
+			appendBlock(ids, albumIds, tracks, order);
 
-			if (jumpSong != null) {
-				int jumpPos = timeline.indexOf(jumpSong);
-				if (jumpPos != start) {
-					// Get the sublist twice to avoid a ConcurrentModificationException.
-					timeline.addAll(timeline.subList(start, jumpPos));
-					timeline.subList(start, jumpPos).clear();
-				}
+			if (mJournal != null) {
+				mJournal.append(mIds, mFlags, start, n);
+				mJournal.setPosition(mCurrentPos);
 			}
 
+			mShuffle = null;
 			broadcastChangedSongs();
 		}
 
 		changed();
 
-		return count;
+		return n;
 	}
 
 	/**
@@ -714,12 +1636,16 @@ public final class SongTimeline {
 	public void purge()
 	{
 		synchronized (this) {
-			if (mFinishAction == FINISH_RANDOM) {
-				while (mCurrentPos > 10) {
-					mSongs.remove(0);
-					--mCurrentPos;
+			if (mFinishAction == FINISH_RANDOM && mCurrentPos > 10) {
+				if (mJournal != null) {
+					mJournal.removeRange(0, mCurrentPos - 10);
+					mJournal.setPosition(10);
 				}
+				removeRange(0, mCurrentPos - 10);
+				mCurrentPos = 10;
+				mShuffle = null;
 			}
+			publish();
 		}
 	}
 
@@ -729,8 +1655,13 @@ public final class SongTimeline {
 	public void clearQueue()
 	{
 		synchronized (this) {
-			if (mCurrentPos + 1 < mSongs.size())
-				mSongs.subList(mCurrentPos + 1, mSongs.size()).clear();
+			if (mCurrentPos + 1 < mSize) {
+				truncate(mCurrentPos + 1);
+				mShuffle = null;
+				if (mJournal != null)
+					mJournal.truncate(mSize);
+			}
+			publish();
 		}
 
 		if (mCallback != null) {
@@ -748,36 +1679,36 @@ public final class SongTimeline {
 	 */
 	private void saveActiveSongs()
 	{
-		mSavedPrevious = getSong(-1);
-		mSavedCurrent = getSong(0);
-		mSavedNext = getSong(+1);
+		mSavedPrevious = idOf(-1);
+		mSavedCurrent = idOf(0);
+		mSavedNext = idOf(+1);
 		mSavedPos = mCurrentPos;
-		mSavedSize = mSongs.size();
+		mSavedSize = mSize;
 	}
 
 	/**
-	 * Broadcast the active songs that have changed since the last call to
-	 * saveActiveSongs()
+	 * Publishes the changes and records which active songs have changed
+	 * since the last call to saveActiveSongs(). The callbacks are run by
+	 * changed(), after the lock is released, as the new songs may have to
+	 * be queried. Must be called while synchronized on this.
 	 *
 	 * @see SongTimeline#saveActiveSongs()
 	 */
 	private void broadcastChangedSongs()
 	{
-		if (mCallback == null) return;
-
-		Song previous = getSong(-1);
-		Song current = getSong(0);
-		Song next = getSong(+1);
-
-		if (Song.getId(mSavedPrevious) != Song.getId(previous))
-			mCallback.activeSongReplaced(-1, previous);
-		if (Song.getId(mSavedNext) != Song.getId(next))
-			mCallback.activeSongReplaced(1, next);
-		if (Song.getId(mSavedCurrent) != Song.getId(current))
-			mCallback.activeSongReplaced(0, current);
-
-		if (mCurrentPos != mSavedPos || mSongs.size() != mSavedSize)
-			mCallback.positionInfoChanged();
+		long previous = idOf(-1);
+		long current = idOf(0);
+		long next = idOf(+1);
+		publish();
+
+		if (mSavedPrevious != previous)
+			mPendingReplaced |= 1 << 0;
+		if (mSavedCurrent != current)
+			mPendingReplaced |= 1 << 1;
+		if (mSavedNext != next)
+			mPendingReplaced |= 1 << 2;
+		if (mCurrentPos != mSavedPos || mSize != mSavedSize)
+			mPendingPositionInfo = true;
 	}
 
 	/**
@@ -787,19 +1718,63 @@ public final class SongTimeline {
 	 */
 	public void removeSong(long id)
 	{
+		removeSongs(new long[] { id });
+	}
+
+	/**
+	 * Remove all the songs with the given ids from the timeline, in a single
+	 * pass over the timeline.
+	 *
+	 * @param ids The MediaStore ids of the songs to remove.
+	 */
+	public void removeSongs(long[] ids)
+	{
+		IdCountMap remove = new IdCountMap(ids.length);
+
 		synchronized (this) {
+			for (int i = 0; i != ids.length; ++i) {
+				if (mQueued.contains(ids[i]))
+					remove.add(ids[i]);
+			}
+			if (remove.size() == 0)
+				return;
+
 			saveActiveSongs();
 
-			ArrayList<Song> songs = mSongs;
-			ListIterator<Song> it = songs.listIterator();
-			while (it.hasNext()) {
-				int i = it.nextIndex();
-				if (Song.getId(it.next()) == id) {
-					if (i < mCurrentPos)
+			int size = mSize;
+			int current = mCurrentPos;
+			int j = 0;
+			for (int i = 0; i != size; ++i) {
+				long id = mIds[i];
+				if (remove.contains(id)) {
+					if (i < current)
 						--mCurrentPos;
-					it.remove();
+					changedFrom(j);
+					continue;
+				}
+				if (i != j) {
+					mIds[j] = id;
+					mFlags[j] = mFlags[i];
+					mAlbumIds[j] = mAlbumIds[i];
+					mTracks[j] = mTracks[i];
 				}
+				++j;
 			}
+			mSize = j;
+			mShuffle = null;
+
+			for (int i = 0; i != ids.length; ++i) {
+				long id = ids[i];
+				if (!remove.contains(id))
+					continue;
+				remove.removeAll(id);
+				mQueued.removeAll(id);
+				mSongCache.remove(id);
+				if (mJournal != null)
+					mJournal.removeId(id);
+			}
+			if (mJournal != null)
+				mJournal.setPosition(mCurrentPos);
 
 			broadcastChangedSongs();
 		}
@@ -808,12 +1783,47 @@ public final class SongTimeline {
 	}
 
 	/**
-	 * Broadcasts that the timeline state has changed.
+	 * Returns true if a song with the given id is in the timeline. Meant for
+	 * marking queued songs in lists: this does not walk the timeline.
+	 *
+	 * @param id The MediaStore id of the song.
+	 */
+	public boolean isQueued(long id)
+	{
+		synchronized (this) {
+			return mQueued.contains(id);
+		}
+	}
+
+	/**
+	 * Broadcasts that the timeline state has changed, after the active songs
+	 * recorded by broadcastChangedSongs(). Must not be called while
+	 * synchronized on this.
 	 */
 	private void changed()
 	{
-		if (mCallback != null)
-			mCallback.timelineChanged();
+		int replaced;
+		boolean positionInfo;
+		synchronized (this) {
+			replaced = mPendingReplaced;
+			positionInfo = mPendingPositionInfo;
+			mPendingReplaced = 0;
+			mPendingPositionInfo = false;
+		}
+
+		Callback callback = mCallback;
+		if (callback == null)
+			return;
+		// the songs are hydrated from the snapshot, without the lock
+		if ((replaced & 1 << 0) != 0)
+			callback.activeSongReplaced(-1, getSong(-1));
+		if ((replaced & 1 << 2) != 0)
+			callback.activeSongReplaced(1, getSong(1));
+		if ((replaced & 1 << 1) != 0)
+			callback.activeSongReplaced(0, getSong(0));
+		if (positionInfo)
+			callback.positionInfoChanged();
+		callback.timelineChanged();
 	}
 
 	/**
@@ -822,9 +1832,7 @@ public final class SongTimeline {
 	 */
 	public boolean isEndOfQueue()
 	{
-		synchronized (this) {
-			return mFinishAction == FINISH_STOP && mCurrentPos == mSongs.size() - 1;
-		}
+		return mSnapshot.isEndOfQueue();
 	}
 
 	/**
@@ -832,7 +1840,7 @@ public final class SongTimeline {
 	 */
 	public int getPosition()
 	{
-		return mCurrentPos;
+		return mSnapshot.position;
 	}
 
 	/**
@@ -840,6 +1848,6 @@ public final class SongTimeline {
 	 */
 	public int getLength()
 	{
-		return mSongs.size();
+		return mSnapshot.size;
 	}
 }
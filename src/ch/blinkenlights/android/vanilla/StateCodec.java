@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Encoding of the state file. The file is built in memory, written with a
+ * single write, synced and renamed into place, and read back with a single
+ * read.
+ *
+ * The file starts with a magic number and a version, both fixed size, so
+ * that older versions can still be recognized and migrated by the reader.
+ * From {@link #VERSION_VARINT} on, numbers are stored as (zig-zag) varints
+ * and the file ends with a CRC32 of everything before it.
+ */
+public final class StateCodec {
+	/**
+	 * The first version using varints and a CRC.
+	 */
+	public static final int VERSION_VARINT = 8;
+
+	/**
+	 * Builds the contents of a state file.
+	 */
+	public static final class Writer {
+		private byte[] mBuffer = new byte[4096];
+		private int mSize;
+
+		public Writer(long magic, int version)
+		{
+			writeLong(magic);
+			writeInt(version);
+		}
+
+		private void ensureCapacity(int n)
+		{
+			if (mSize + n > mBuffer.length) {
+				byte[] buffer = new byte[Math.max(mSize + n, mBuffer.length * 2)];
+				System.arraycopy(mBuffer, 0, buffer, 0, mSize);
+				mBuffer = buffer;
+			}
+		}
+
+		/**
+		 * Writes a fixed size, big endian int.
+		 */
+		public void writeInt(int value)
+		{
+			ensureCapacity(4);
+			for (int i = 24; i >= 0; i -= 8)
+				mBuffer[mSize++] = (byte)(value >>> i);
+		}
+
+		/**
+		 * Writes a fixed size, big endian long.
+		 */
+		public void writeLong(long value)
+		{
+			ensureCapacity(8);
+			for (int i = 56; i >= 0; i -= 8)
+				mBuffer[mSize++] = (byte)(value >>> i);
+		}
+
+		/**
+		 * Writes an unsigned varint: 7 bits per byte, least significant
+		 * first, with the high bit set on all but the last byte.
+		 */
+		public void writeVarint(long value)
+		{
+			ensureCapacity(10);
+			while ((value & ~0x7FL) != 0) {
+				mBuffer[mSize++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			mBuffer[mSize++] = (byte)value;
+		}
+
+		/**
+		 * Writes a signed value as a zig-zag encoded varint, so that values
+		 * close to zero are short whatever their sign.
+		 */
+		public void writeZigzag(long value)
+		{
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		/**
+		 * Appends the CRC and replaces the given file with the contents
+		 * written so far: they are written to a temporary file, synced and
+		 * renamed.
+		 */
+		public void commit(File file) throws IOException
+		{
+			CRC32 crc = new CRC32();
+			crc.update(mBuffer, 0, mSize);
+			writeInt((int)crc.getValue());
+
+			File tmp = new File(file.getPath() + ".tmp");
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(mBuffer, 0, mSize);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file))
+				throw new IOException("Failed to rename " + tmp);
+		}
+	}
+
+	/**
+	 * Reads the contents of a state file.
+	 */
+	public static final class Reader {
+		private final byte[] mBuffer;
+		private int mPos;
+		private final int mEnd;
+		private final int mVersion;
+
+		private Reader(byte[] buffer, int pos, int end, int version)
+		{
+			mBuffer = buffer;
+			mPos = pos;
+			mEnd = end;
+			mVersion = version;
+		}
+
+		/**
+		 * Returns the version of the file.
+		 */
+		public int getVersion()
+		{
+			return mVersion;
+		}
+
+		/**
+		 * Returns the number of bytes left to read.
+		 */
+		public int remaining()
+		{
+			return mEnd - mPos;
+		}
+
+		private void require(int n) throws EOFException
+		{
+			if (mEnd - mPos < n)
+				throw new EOFException();
+		}
+
+		/**
+		 * Reads a fixed size, big endian int.
+		 */
+		public int readInt() throws IOException
+		{
+			require(4);
+			int value = 0;
+			for (int i = 0; i != 4; ++i)
+				value = value << 8 | mBuffer[mPos++] & 0xFF;
+			return value;
+		}
+
+		/**
+		 * Reads a fixed size, big endian long.
+		 */
+		public long readLong() throws IOException
+		{
+			require(8);
+			long value = 0;
+			for (int i = 0; i != 8; ++i)
+				value = value << 8 | mBuffer[mPos++] & 0xFF;
+			return value;
+		}
+
+		/**
+		 * Reads an unsigned varint.
+		 */
+		public long readVarint() throws IOException
+		{
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				require(1);
+				int b = mBuffer[mPos++];
+				value |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		/**
+		 * Reads a zig-zag encoded varint.
+		 */
+		public long readZigzag() throws IOException
+		{
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+
+	/**
+	 * Reads a state file with a single read.
+	 *
+	 * @param file The file to read.
+	 * @param magic The magic number the file has to start with.
+	 * @return A reader positioned after the version, or null if the file
+	 * does not exist or has the wrong magic number.
+	 * @throws IOException If the file could not be read or its CRC is wrong.
+	 */
+	public static Reader read(File file, long magic) throws IOException
+	{
+		if (!file.exists())
+			return null;
+
+		long length = file.length();
+		if (length < 12 || length > Integer.MAX_VALUE)
+			throw new IOException("Invalid state file size: " + length);
+
+		byte[] buffer = new byte[(int)length];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n != buffer.length) {
+				int r = in.read(buffer, n, buffer.length - n);
+				if (r == -1)
+					throw new EOFException();
+				n += r;
+			}
+		} finally {
+			in.close();
+		}
+
+		Reader reader = new Reader(buffer, 0, buffer.length, 0);
+		if (reader.readLong() != magic)
+			return null;
+		int version = reader.readInt();
+
+		int end = buffer.length;
+		if (version >= VERSION_VARINT) {
+			end -= 4;
+			CRC32 crc = new CRC32();
+			crc.update(buffer, 0, end);
+			if (end < 12 || (int)crc.getValue() != new Reader(buffer, end, buffer.length, 0).readInt())
+				throw new IOException("State file checksum mismatch");
+		}
+		return new Reader(buffer, 12, end, version);
+	}
+}
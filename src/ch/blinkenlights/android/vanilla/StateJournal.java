@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to the {@link SongTimeline} since
+ * the state file was last written, so that small changes do not have to
+ * rewrite the whole queue.
+ *
+ * The changes are recorded in memory and appended to the journal file in a
+ * single write by {@link #flush()}. Each record carries a CRC32, so a record
+ * torn by a crash ends the replay instead of corrupting the queue. Once the
+ * journal grows too large, or after a change that can not be expressed as a
+ * record (such as reordering the whole queue), the state file has to be
+ * rewritten: the journal is then started over by {@link #reset(int)}.
+ *
+ * The journal belongs to the state file with the same generation number and
+ * is ignored when loaded with any other one.
+ */
+public final class StateJournal {
+	/**
+	 * Name of the journal file.
+	 */
+	private static final String JOURNAL_FILE = "state.journal";
+	/**
+	 * Header for the journal file to help indicate if the file is in the
+	 * right format.
+	 */
+	private static final long JOURNAL_FILE_MAGIC = 0x76616E4A726E6C31L;
+	/**
+	 * The journal is compacted into the state file once it is this large.
+	 */
+	private static final long MAX_JOURNAL_SIZE = 64 * 1024;
+	/**
+	 * Upper bound for the payload of a record, to detect damaged lengths.
+	 */
+	private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	private static final int OP_APPEND = 1;
+	private static final int OP_TRUNCATE = 2;
+	private static final int OP_REMOVE_ID = 3;
+	private static final int OP_REMOVE_RANGE = 4;
+	private static final int OP_POSITION = 5;
+	private static final int OP_MODES = 6;
+	private static final int OP_SEEK = 7;
+
+	/**
+	 * Receives the changes read back by {@link StateJournal#replay(int, Target)}.
+	 */
+	public interface Target {
+		/**
+		 * Appends songs to the end of the timeline.
+		 */
+		public void append(long[] ids, int[] flags, int count);
+
+		/**
+		 * Drops the songs from the given position on.
+		 */
+		public void truncate(int size);
+
+		/**
+		 * Removes all the songs with the given id.
+		 */
+		public void removeId(long id);
+
+		/**
+		 * Removes the songs in the given range of positions.
+		 */
+		public void removeRange(int start, int end);
+
+		/**
+		 * Sets the position of the current song.
+		 */
+		public void setPosition(int pos);
+
+		/**
+		 * Sets the finish action and the shuffle mode.
+		 */
+		public void setModes(int finishAction, int shuffleMode);
+	}
+
+	private final File mFile;
+	/**
+	 * Records that were not written to the file yet.
+	 */
+	private final ByteArrayOutputStream mPending = new ByteArrayOutputStream(4096);
+	/**
+	 * Scratch buffer for the record being built.
+	 */
+	private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(256);
+	private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+	private final CRC32 mCrc = new CRC32();
+	/**
+	 * The current size of the journal file.
+	 */
+	private long mSize;
+	/**
+	 * True if the journal file matches the state file, so that records may
+	 * be appended to it.
+	 */
+	private boolean mValid;
+	/**
+	 * True if a change was made that can only be saved by rewriting the
+	 * state file.
+	 */
+	private boolean mInvalidated;
+	/**
+	 * The last seek position read by replay(), or -1.
+	 */
+	private int mPendingSeek = -1;
+	/**
+	 * The song of the last seek position read by replay().
+	 */
+	private long mPendingSeekSong = -1;
+
+	public StateJournal(Context context)
+	{
+		mFile = new File(context.getFilesDir(), JOURNAL_FILE);
+	}
+
+	/**
+	 * Appends songs to the end of the timeline.
+	 */
+	public synchronized void append(long[] ids, int[] flags, int start, int count)
+	{
+		putInt(count);
+		for (int i = 0; i != count; ++i) {
+			putLong(ids[start + i]);
+			putInt(flags[start + i]);
+		}
+		endRecord(OP_APPEND);
+	}
+
+	/**
+	 * Drops the songs from the given position on.
+	 */
+	public synchronized void truncate(int size)
+	{
+		putInt(size);
+		endRecord(OP_TRUNCATE);
+	}
+
+	/**
+	 * Removes all the songs with the given id.
+	 */
+	public synchronized void removeId(long id)
+	{
+		putLong(id);
+		endRecord(OP_REMOVE_ID);
+	}
+
+	/**
+	 * Removes the songs in the given range of positions.
+	 */
+	public synchronized void removeRange(int start, int end)
+	{
+		putInt(start);
+		putInt(end);
+		endRecord(OP_REMOVE_RANGE);
+	}
+
+	/**
+	 * Sets the position of the current song.
+	 */
+	public synchronized void setPosition(int pos)
+	{
+		putInt(pos);
+		endRecord(OP_POSITION);
+	}
+
+	/**
+	 * Sets the finish action and the shuffle mode.
+	 */
+	public synchronized void setModes(int finishAction, int shuffleMode)
+	{
+		putInt(finishAction);
+		putInt(shuffleMode);
+		endRecord(OP_MODES);
+	}
+
+	/**
+	 * Sets the seek position to restore in the current song.
+	 */
+	public synchronized void setSeek(int pendingSeek, long songId)
+	{
+		putInt(pendingSeek);
+		putLong(songId);
+		endRecord(OP_SEEK);
+	}
+
+	/**
+	 * Marks the journal as unable to express the latest change: the state
+	 * file has to be rewritten on the next save.
+	 */
+	public synchronized void invalidate()
+	{
+		mInvalidated = true;
+	}
+
+	/**
+	 * Drops the records recorded so far. Called while the state they
+	 * describe is written to the state file.
+	 */
+	public synchronized void clearPending()
+	{
+		mPending.reset();
+	}
+
+	/**
+	 * Returns true if the state file has to be rewritten instead of
+	 * appending to the journal.
+	 */
+	public synchronized boolean needsCompaction()
+	{
+		return !mValid || mInvalidated || mSize + mPending.size() > MAX_JOURNAL_SIZE;
+	}
+
+	private void putInt(int value)
+	{
+		try {
+			mRecordOut.writeInt(value);
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+		}
+	}
+
+	private void putLong(long value)
+	{
+		try {
+			mRecordOut.writeLong(value);
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+		}
+	}
+
+	/**
+	 * Moves the record built in mRecord to the pending records, framed as
+	 * [LENGTH][OP][PAYLOAD][CRC32 of OP and PAYLOAD].
+	 */
+	private void endRecord(int op)
+	{
+		byte[] payload = mRecord.toByteArray();
+		mRecord.reset();
+
+		mCrc.reset();
+		mCrc.update(op);
+		mCrc.update(payload, 0, payload.length);
+
+		DataOutputStream out = new DataOutputStream(mPending);
+		try {
+			out.writeInt(payload.length);
+			out.writeByte(op);
+			out.write(payload);
+			out.writeInt((int)mCrc.getValue());
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+		}
+	}
+
+	/**
+	 * Appends the pending records to the journal file in a single write.
+	 * Must only be called if {@link #needsCompaction()} returned false.
+	 */
+	public synchronized void flush()
+	{
+		if (mPending.size() == 0)
+			return;
+
+		try {
+			FileOutputStream out = new FileOutputStream(mFile, true);
+			try {
+				mPending.writeTo(out);
+			} finally {
+				out.close();
+			}
+			mSize += mPending.size();
+			mPending.reset();
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to write state journal", e);
+			mValid = false;
+		}
+	}
+
+	/**
+	 * Starts the journal over after the state file has been rewritten. The
+	 * records recorded since {@link #clearPending()} are kept.
+	 *
+	 * @param generation The generation of the new state file.
+	 */
+	public synchronized void reset(int generation)
+	{
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+			try {
+				out.writeLong(JOURNAL_FILE_MAGIC);
+				out.writeInt(generation);
+			} finally {
+				out.close();
+			}
+			mSize = 12;
+			mValid = true;
+			mInvalidated = false;
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to reset state journal", e);
+			mValid = false;
+		}
+	}
+
+	/**
+	 * Reads back the journal and applies its records to the given target.
+	 * Stops at the first damaged record. Records may only be appended to the
+	 * journal afterwards if it was read to the end without errors.
+	 *
+	 * @param generation The generation of the loaded state file.
+	 * @param target The receiver of the records.
+	 */
+	public synchronized void replay(int generation, Target target)
+	{
+		mValid = false;
+		mPendingSeek = -1;
+		mPendingSeekSong = -1;
+		if (!mFile.exists())
+			return;
+
+		int count = 0;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 65536));
+			try {
+				if (in.readLong() != JOURNAL_FILE_MAGIC || in.readInt() != generation)
+					return;
+
+				long size = 12;
+				long length = mFile.length();
+				while (size != length) {
+					int len = in.readInt();
+					if (len < 0 || len > MAX_RECORD_SIZE || size + len + 9 > length)
+						return;
+					int op = in.readUnsignedByte();
+					byte[] payload = new byte[len];
+					in.readFully(payload);
+					int crc = in.readInt();
+
+					mCrc.reset();
+					mCrc.update(op);
+					mCrc.update(payload, 0, len);
+					if ((int)mCrc.getValue() != crc)
+						return;
+
+					if (!apply(op, new DataInputStream(new ByteArrayInputStream(payload)), target))
+						return;
+					size += len + 9;
+					++count;
+				}
+				mSize = size;
+				mValid = true;
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			Log.w("VanillaMusic", "Truncated state journal after " + count + " records");
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to read state journal", e);
+		}
+	}
+
+	/**
+	 * Applies a single record.
+	 *
+	 * @return False if the op is unknown.
+	 */
+	private boolean apply(int op, DataInputStream in, Target target) throws IOException
+	{
+		switch (op) {
+		case OP_APPEND: {
+			int count = in.readInt();
+			if (count < 0 || count > MAX_RECORD_SIZE / 12)
+				return false;
+			long[] ids = new long[count];
+			int[] flags = new int[count];
+			for (int i = 0; i != count; ++i) {
+				ids[i] = in.readLong();
+				flags[i] = in.readInt();
+			}
+			target.append(ids, flags, count);
+			break;
+		}
+		case OP_TRUNCATE:
+			target.truncate(in.readInt());
+			break;
+		case OP_REMOVE_ID:
+			target.removeId(in.readLong());
+			break;
+		case OP_REMOVE_RANGE: {
+			int start = in.readInt();
+			target.removeRange(start, in.readInt());
+			break;
+		}
+		case OP_POSITION:
+			target.setPosition(in.readInt());
+			break;
+		case OP_MODES: {
+			int finishAction = in.readInt();
+			target.setModes(finishAction, in.readInt());
+			break;
+		}
+		case OP_SEEK:
+			mPendingSeek = in.readInt();
+			mPendingSeekSong = in.readLong();
+			break;
+		default:
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the seek position of the last seek record read by replay(), or
+	 * -1 if there was none.
+	 */
+	public synchronized int getPendingSeek()
+	{
+		return mPendingSeek;
+	}
+
+	/**
+	 * Returns the song of the last seek record read by replay().
+	 */
+	public synchronized long getPendingSeekSong()
+	{
+		return mPendingSeekSong;
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.Picture;
+import ch.blinkenlights.bastp.TagSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Map;
+
+/**
+ * Caches the information PlaybackService reads from the audio files
+ * themselves (the ReplayGain values, album artist, disc number and the
+ * location of the embedded cover), so that each file has to be parsed only
+ * once instead of on every prepare.
+ *
+ * Entries are keyed by path and are valid as long as the size and the
+ * modification time of the file did not change. An in-memory LRU holds the
+ * recently used entries; it is persisted to a compact binary file which is
+ * read back on first use. Misses are looked up in the {@link TagIndex}
+ * before the file is parsed.
+ */
+public final class TagCache {
+	/**
+	 * Name of the cache file.
+	 */
+	private static final String CACHE_FILE = "tagcache";
+	/**
+	 * Header for the cache file to help indicate if the file is in the right
+	 * format.
+	 */
+	private static final long CACHE_FILE_MAGIC = 0x76616E5443616368L;
+	/**
+	 * Cache file version. The cache is simply dropped on a version mismatch.
+	 */
+	private static final int CACHE_VERSION = 4;
+	/**
+	 * Maximum number of entries kept in memory and on disk.
+	 */
+	private static final int MAX_ENTRIES = 4096;
+	/**
+	 * The tags stored in an entry. Parsing stops as soon as these were found.
+	 */
+	private static final EnumSet<TagSet.Key> KEYS = EnumSet.of(
+		TagSet.Key.REPLAYGAIN_TRACK_GAIN, TagSet.Key.REPLAYGAIN_ALBUM_GAIN,
+		TagSet.Key.ALBUMARTIST, TagSet.Key.DISCNUMBER, TagSet.Key.PICTURE);
+
+	/**
+	 * The cached information about a single file.
+	 */
+	public static final class Entry {
+		/**
+		 * Size of the file when it was parsed.
+		 */
+		public final long size;
+		/**
+		 * Modification time of the file when it was parsed.
+		 */
+		public final long mtime;
+		/**
+		 * Track gain in dB, or NaN if the file has none.
+		 */
+		public final float trackGain;
+		/**
+		 * Album gain in dB, or NaN if the file has none.
+		 */
+		public final float albumGain;
+		/**
+		 * The album artist, or null if the file has none.
+		 */
+		public final String albumArtist;
+		/**
+		 * Disc number inside the album, or 0 if unknown.
+		 */
+		public final int discNumber;
+		/**
+		 * Offset of the embedded cover within the file, or -1 if the cover
+		 * is not stored as is (e.g. base64 encoded in ogg files) and the file
+		 * has to be parsed again to read it.
+		 */
+		public final long artOffset;
+		/**
+		 * Size of the embedded cover in bytes, or 0 if the file has none.
+		 */
+		public final int artLength;
+		/**
+		 * Mime type of the embedded cover, or null if the file has none.
+		 */
+		public final String artMime;
+		/**
+		 * The cache generation this entry was last checked against the file
+		 * system in.
+		 */
+		volatile int checked;
+
+		public Entry(long size, long mtime, float trackGain, float albumGain, String albumArtist, int discNumber, long artOffset, int artLength, String artMime)
+		{
+			this.size = size;
+			this.mtime = mtime;
+			this.trackGain = trackGain;
+			this.albumGain = albumGain;
+			this.albumArtist = albumArtist;
+			this.discNumber = discNumber;
+			this.artOffset = artOffset;
+			this.artLength = artLength;
+			this.artMime = artMime;
+		}
+
+		/**
+		 * Returns true if the file has an embedded cover.
+		 */
+		public boolean hasArt()
+		{
+			return artLength != 0;
+		}
+	}
+
+	private final Context mContext;
+	private final TagIndex mIndex;
+	private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ENTRIES);
+	/**
+	 * Incremented on every media change. Entries checked in an older
+	 * generation have to be compared against the file system again.
+	 */
+	private volatile int mGeneration;
+	/**
+	 * True once the cache file has been read.
+	 */
+	private volatile boolean mLoaded;
+	/**
+	 * True if the entries differ from the cache file. Guarded by this.
+	 */
+	private boolean mDirty;
+	/**
+	 * Serializes writes of the cache file.
+	 */
+	private final Object mSaveLock = new Object();
+
+	public TagCache(Context context)
+	{
+		mContext = context;
+		mIndex = new TagIndex(context);
+	}
+
+	/**
+	 * Returns the index that backs this cache.
+	 */
+	public TagIndex getIndex()
+	{
+		return mIndex;
+	}
+
+	/**
+	 * Returns the cache entry for the file at the given path, parsing the
+	 * file if it is not cached or has changed since it was cached.
+	 *
+	 * Only the lookup and the insertion of the entry are locked: the file
+	 * system checks, the index lookup and the parsing are done without
+	 * holding any lock, so a slow parse on a background thread does not
+	 * stall the lookups of the playback thread. Two threads missing the same
+	 * file may both parse it; the first entry published wins.
+	 *
+	 * @param path The path of the audio file.
+	 * @return The entry, never null. Files that can not be read get an entry
+	 * without any tags.
+	 */
+	public Entry get(String path)
+	{
+		if (!mLoaded)
+			load();
+
+		int generation = mGeneration;
+		// LruCache does its own locking
+		Entry entry = mEntries.get(path);
+		if (entry != null && entry.checked == generation)
+			return entry;
+
+		File file = new File(path);
+		long size = file.length();
+		long mtime = file.lastModified();
+		if (entry != null && entry.size == size && entry.mtime == mtime) {
+			entry.checked = generation;
+			return entry;
+		}
+
+		Entry parsed = mIndex.get(path);
+		if (parsed == null || parsed.size != size || parsed.mtime != mtime) {
+			parsed = parse(path, size, mtime);
+			mIndex.put(path, parsed);
+		}
+		parsed.checked = generation;
+
+		synchronized (this) {
+			entry = mEntries.get(path);
+			if (entry != null && entry.size == size && entry.mtime == mtime) {
+				// published by another thread while we parsed
+				entry.checked = generation;
+				return entry;
+			}
+			mEntries.put(path, parsed);
+			mDirty = true;
+		}
+		return parsed;
+	}
+
+	/**
+	 * Invalidates the file system checks of all entries. Called when the
+	 * MediaStore reports changed media.
+	 */
+	public void onMediaChange()
+	{
+		++mGeneration;
+	}
+
+	/**
+	 * Returns true if there are entries that have not been saved yet.
+	 */
+	public synchronized boolean isDirty()
+	{
+		return mDirty;
+	}
+
+	/**
+	 * Reads the tags of the given file.
+	 *
+	 * @param path The path of the file.
+	 * @param size The current size of the file.
+	 * @param mtime The current modification time of the file.
+	 */
+	static Entry parse(String path, long size, long mtime)
+	{
+		TagSet tags = (new Bastp()).getTags(path, KEYS);
+		float trackGain = tags.getFloat(TagSet.Key.REPLAYGAIN_TRACK_GAIN);
+		float albumGain = tags.getFloat(TagSet.Key.REPLAYGAIN_ALBUM_GAIN);
+		String albumArtist = tags.get(TagSet.Key.ALBUMARTIST);
+		int discNumber = parseNumber(tags.get(TagSet.Key.DISCNUMBER));
+		Picture cover = tags.getCover();
+		if (cover == null)
+			return new Entry(size, mtime, trackGain, albumGain, albumArtist, discNumber, -1, 0, null);
+		long artOffset = cover.isFileRegion() ? cover.offset : -1;
+		return new Entry(size, mtime, trackGain, albumGain, albumArtist, discNumber, artOffset, cover.length, cover.mime);
+	}
+
+	/**
+	 * Parses the leading number of values like "2" or "2/3", returning 0 if
+	 * there is none.
+	 */
+	private static int parseNumber(String value)
+	{
+		if (value == null)
+			return 0;
+
+		int n = 0;
+		for (int i = 0, len = value.length(); i != len; ++i) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9' || n > 100000)
+				break;
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	/**
+	 * Reads the cache file into memory.
+	 */
+	private synchronized void load()
+	{
+		if (mLoaded)
+			return;
+		mLoaded = true;
+
+		File file = new File(mContext.getFilesDir(), CACHE_FILE);
+		if (!file.exists())
+			return;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			try {
+				if (in.readLong() == CACHE_FILE_MAGIC && in.readInt() == CACHE_VERSION) {
+					// entries are stored least recently used first
+					for (int i = in.readInt(); --i >= 0; ) {
+						String path = in.readUTF();
+						long size = in.readLong();
+						long mtime = in.readLong();
+						float trackGain = in.readFloat();
+						float albumGain = in.readFloat();
+						String albumArtist = in.readBoolean() ? in.readUTF() : null;
+						int discNumber = in.readInt();
+						long artOffset = in.readLong();
+						int artLength = in.readInt();
+						String artMime = in.readBoolean() ? in.readUTF() : null;
+						Entry entry = new Entry(size, mtime, trackGain, albumGain, albumArtist, discNumber, artOffset, artLength, artMime);
+						entry.checked = -1;
+						mEntries.put(path, entry);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			Log.w("VanillaMusic", "Failed to load tag cache", e);
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to load tag cache", e);
+		}
+	}
+
+	/**
+	 * Writes the cache to disk if it was modified. The file is written in one
+	 * go to a temporary file that then replaces the old one, without blocking
+	 * {@link #get(String)}.
+	 */
+	public void save()
+	{
+		synchronized (mSaveLock) {
+			Map<String, Entry> entries;
+			synchronized (this) {
+				if (!mDirty)
+					return;
+				entries = mEntries.snapshot();
+				mDirty = false;
+			}
+			if (!write(entries)) {
+				synchronized (this) {
+					mDirty = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the given entries to the cache file.
+	 *
+	 * @return True if the file was written.
+	 */
+	private boolean write(Map<String, Entry> entries)
+	{
+		File file = new File(mContext.getFilesDir(), CACHE_FILE);
+		File tmp = new File(mContext.getFilesDir(), CACHE_FILE + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			try {
+				out.writeLong(CACHE_FILE_MAGIC);
+				out.writeInt(CACHE_VERSION);
+				out.writeInt(entries.size());
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					Entry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeLong(entry.size);
+					out.writeLong(entry.mtime);
+					out.writeFloat(entry.trackGain);
+					out.writeFloat(entry.albumGain);
+					out.writeBoolean(entry.albumArtist != null);
+					if (entry.albumArtist != null)
+						out.writeUTF(entry.albumArtist);
+					out.writeInt(entry.discNumber);
+					out.writeLong(entry.artOffset);
+					out.writeInt(entry.artLength);
+					out.writeBoolean(entry.artMime != null);
+					if (entry.artMime != null)
+						out.writeUTF(entry.artMime);
+				}
+			} finally {
+				out.close();
+			}
+			return tmp.renameTo(file);
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to save tag cache", e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Database of the tags read from every file in the library, filled by
+ * {@link LibraryScanner}. Unlike the in-memory {@link TagCache} this holds
+ * every file we have ever seen and is only queried on cache misses.
+ */
+public final class TagIndex extends SQLiteOpenHelper {
+	private static final String DATABASE_NAME = "tagindex.db";
+	/**
+	 * Schema version. The index is only a cache of what is stored in the
+	 * files, so it is simply rebuilt on upgrades.
+	 */
+	private static final int DATABASE_VERSION = 3;
+	private static final String TABLE = "tags";
+
+	private static final String[] ENTRY_PROJECTION = {
+		"size", "mtime", "track_gain", "album_gain", "album_artist", "disc_number",
+		"art_offset", "art_length", "art_mime"
+	};
+
+	public TagIndex(Context context)
+	{
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db)
+	{
+		db.execSQL("CREATE TABLE " + TABLE + " ("
+			+ "path TEXT PRIMARY KEY, "
+			+ "dir TEXT NOT NULL, "
+			+ "size INTEGER NOT NULL, "
+			+ "mtime INTEGER NOT NULL, "
+			+ "track_gain REAL, "
+			+ "album_gain REAL, "
+			+ "album_artist TEXT, "
+			+ "disc_number INTEGER, "
+			+ "art_offset INTEGER, "
+			+ "art_length INTEGER, "
+			+ "art_mime TEXT)");
+		db.execSQL("CREATE INDEX " + TABLE + "_dir ON " + TABLE + " (dir)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+	{
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+		onCreate(db);
+	}
+
+	/**
+	 * Returns the indexed entry for the given path, or null if the path is
+	 * not indexed.
+	 */
+	public TagCache.Entry get(String path)
+	{
+		Cursor cursor = getReadableDatabase().query(TABLE, ENTRY_PROJECTION, "path=?", new String[] { path }, null, null, null);
+		if (cursor == null)
+			return null;
+
+		TagCache.Entry entry = null;
+		if (cursor.moveToFirst()) {
+			entry = new TagCache.Entry(cursor.getLong(0), cursor.getLong(1),
+				cursor.isNull(2) ? Float.NaN : cursor.getFloat(2),
+				cursor.isNull(3) ? Float.NaN : cursor.getFloat(3),
+				cursor.getString(4), cursor.getInt(5),
+				cursor.getLong(6), cursor.getInt(7), cursor.getString(8));
+		}
+		cursor.close();
+		return entry;
+	}
+
+	/**
+	 * Returns the size and modification time of all indexed files that are
+	 * directly inside the given directory.
+	 *
+	 * @param dir The path of the directory, without trailing slash.
+	 * @return A map of path to { size, mtime }.
+	 */
+	public HashMap<String, long[]> getStamps(String dir)
+	{
+		HashMap<String, long[]> stamps = new HashMap<String, long[]>();
+		Cursor cursor = getReadableDatabase().query(TABLE, new String[] { "path", "size", "mtime" }, "dir=?", new String[] { dir }, null, null, null);
+		if (cursor != null) {
+			while (cursor.moveToNext())
+				stamps.put(cursor.getString(0), new long[] { cursor.getLong(1), cursor.getLong(2) });
+			cursor.close();
+		}
+		return stamps;
+	}
+
+	/**
+	 * Returns the paths of all directories that hold indexed files.
+	 */
+	public ArrayList<String> getDirectories()
+	{
+		ArrayList<String> dirs = new ArrayList<String>();
+		Cursor cursor = getReadableDatabase().query(true, TABLE, new String[] { "dir" }, null, null, null, null, null, null);
+		if (cursor != null) {
+			while (cursor.moveToNext())
+				dirs.add(cursor.getString(0));
+			cursor.close();
+		}
+		return dirs;
+	}
+
+	/**
+	 * Returns the number of indexed files.
+	 */
+	public long count()
+	{
+		SQLiteStatement stmt = getReadableDatabase().compileStatement("SELECT count(*) FROM " + TABLE);
+		try {
+			return stmt.simpleQueryForLong();
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Adds or replaces the entry of a single file.
+	 */
+	public void put(String path, TagCache.Entry entry)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement stmt = compileInsert(db);
+		try {
+			bindInsert(stmt, path, entry);
+			stmt.executeInsert();
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Adds or replaces the entries of many files in one transaction.
+	 *
+	 * @param paths The paths of the files.
+	 * @param entries The entries, in the same order as paths.
+	 */
+	public void putAll(List<String> paths, List<TagCache.Entry> entries)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement stmt = compileInsert(db);
+		db.beginTransaction();
+		try {
+			for (int i = 0, n = paths.size(); i != n; ++i) {
+				bindInsert(stmt, paths.get(i), entries.get(i));
+				stmt.executeInsert();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Removes the given files from the index.
+	 */
+	public void removeAll(Iterable<String> paths)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement stmt = db.compileStatement("DELETE FROM " + TABLE + " WHERE path=?");
+		db.beginTransaction();
+		try {
+			for (String path : paths) {
+				stmt.bindString(1, path);
+				stmt.execute();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Removes the files directly inside the given directories from the
+	 * index.
+	 */
+	public void removeDirectories(Iterable<String> dirs)
+	{
+		SQLiteDatabase db = getWritableDatabase();
+		SQLiteStatement stmt = db.compileStatement("DELETE FROM " + TABLE + " WHERE dir=?");
+		db.beginTransaction();
+		try {
+			for (String dir : dirs) {
+				stmt.bindString(1, dir);
+				stmt.execute();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			stmt.close();
+		}
+	}
+
+	private static SQLiteStatement compileInsert(SQLiteDatabase db)
+	{
+		return db.compileStatement("INSERT OR REPLACE INTO " + TABLE
+			+ " (path, dir, size, mtime, track_gain, album_gain, album_artist, disc_number, art_offset, art_length, art_mime)"
+			+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+	}
+
+	private static void bindInsert(SQLiteStatement stmt, String path, TagCache.Entry entry)
+	{
+		int slash = path.lastIndexOf('/');
+		stmt.clearBindings();
+		stmt.bindString(1, path);
+		stmt.bindString(2, slash == -1 ? "" : path.substring(0, slash));
+		stmt.bindLong(3, entry.size);
+		stmt.bindLong(4, entry.mtime);
+		if (!Float.isNaN(entry.trackGain))
+			stmt.bindDouble(5, entry.trackGain);
+		if (!Float.isNaN(entry.albumGain))
+			stmt.bindDouble(6, entry.albumGain);
+		if (entry.albumArtist != null)
+			stmt.bindString(7, entry.albumArtist);
+		stmt.bindLong(8, entry.discNumber);
+		stmt.bindLong(9, entry.artOffset);
+		stmt.bindLong(10, entry.artLength);
+		if (entry.artMime != null)
+			stmt.bindString(11, entry.artMime);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+/**
+ * An immutable copy of the song ids and flags of a {@link SongTimeline},
+ * together with the current position and modes at the time it was taken.
+ *
+ * SongTimeline publishes a new snapshot after every change, so that readers
+ * (e.g. the queue view or the cover view) can look at a consistent timeline
+ * without locking it. The columns are split into chunks of CHUNK_SIZE
+ * songs, and chunks that did not change are shared with the previous
+ * snapshot: appending songs or moving the position copies at most the last
+ * chunk.
+ */
+public final class TimelineSnapshot {
+	/**
+	 * Log2 of the number of songs per chunk.
+	 */
+	private static final int CHUNK_SHIFT = 10;
+	/**
+	 * Number of songs per chunk.
+	 */
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	/**
+	 * The empty snapshot of a new timeline.
+	 */
+	public static final TimelineSnapshot EMPTY = new TimelineSnapshot(0, new long[0][], new int[0][], 0, 0, 0, 0);
+
+	/**
+	 * Incremented for every snapshot a timeline publishes.
+	 */
+	public final int version;
+	/**
+	 * The number of songs in the timeline.
+	 */
+	public final int size;
+	/**
+	 * The position of the current song.
+	 */
+	public final int position;
+	/**
+	 * The finish action, one of SongTimeline.FINISH_*.
+	 */
+	public final int finishAction;
+	/**
+	 * The shuffle mode, one of SongTimeline.SHUFFLE_*.
+	 */
+	public final int shuffleMode;
+	/**
+	 * The song ids, in chunks of CHUNK_SIZE. Only the last chunk may be
+	 * shorter.
+	 */
+	private final long[][] mIds;
+	/**
+	 * The song flags, chunked like mIds.
+	 */
+	private final int[][] mFlags;
+
+	private TimelineSnapshot(int version, long[][] ids, int[][] flags, int size, int position, int finishAction, int shuffleMode)
+	{
+		this.version = version;
+		this.size = size;
+		this.position = position;
+		this.finishAction = finishAction;
+		this.shuffleMode = shuffleMode;
+		mIds = ids;
+		mFlags = flags;
+	}
+
+	/**
+	 * Creates the snapshot following this one.
+	 *
+	 * @param ids The song id column of the timeline.
+	 * @param flags The flag column of the timeline.
+	 * @param size The number of songs in the timeline.
+	 * @param dirtyFrom The first position that changed since this snapshot
+	 * was taken. The chunks before it are shared with this snapshot.
+	 * @param position The position of the current song.
+	 * @param finishAction The current finish action.
+	 * @param shuffleMode The current shuffle mode.
+	 */
+	TimelineSnapshot next(long[] ids, int[] flags, int size, int dirtyFrom, int position, int finishAction, int shuffleMode)
+	{
+		int chunks = (size + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+		int shared = Math.min(Math.min(dirtyFrom, this.size), size) >> CHUNK_SHIFT;
+
+		long[][] idChunks = new long[chunks][];
+		int[][] flagChunks = new int[chunks][];
+		System.arraycopy(mIds, 0, idChunks, 0, shared);
+		System.arraycopy(mFlags, 0, flagChunks, 0, shared);
+		for (int i = shared; i != chunks; ++i) {
+			int start = i << CHUNK_SHIFT;
+			int length = Math.min(CHUNK_SIZE, size - start);
+			idChunks[i] = new long[length];
+			flagChunks[i] = new int[length];
+			System.arraycopy(ids, start, idChunks[i], 0, length);
+			System.arraycopy(flags, start, flagChunks[i], 0, length);
+		}
+
+		return new TimelineSnapshot(version + 1, idChunks, flagChunks, size, position, finishAction, shuffleMode);
+	}
+
+	/**
+	 * Returns the id of the song at the given position.
+	 */
+	public long getId(int pos)
+	{
+		if (pos < 0 || pos >= size)
+			throw new IndexOutOfBoundsException("Invalid position: " + pos + ", length: " + size);
+		return mIds[pos >> CHUNK_SHIFT][pos & (CHUNK_SIZE - 1)];
+	}
+
+	/**
+	 * Returns the flags of the song at the given position.
+	 */
+	public int getFlags(int pos)
+	{
+		if (pos < 0 || pos >= size)
+			throw new IndexOutOfBoundsException("Invalid position: " + pos + ", length: " + size);
+		return mFlags[pos >> CHUNK_SHIFT][pos & (CHUNK_SIZE - 1)];
+	}
+
+	/**
+	 * Return true if the finish action is to stop at the end of the queue and
+	 * the current song is the last in the queue.
+	 */
+	public boolean isEndOfQueue()
+	{
+		return finishAction == SongTimeline.FINISH_STOP && position == size - 1;
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2026 The Vanilla Music Contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package ch.blinkenlights.android.vanilla;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads integer and float PCM samples from RIFF WAVE files.
+ */
+public final class WavDecoder extends PcmDecoder {
+	private static final int FORMAT_PCM = 1;
+	private static final int FORMAT_FLOAT = 3;
+	private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+	/**
+	 * Size of the read buffer in bytes.
+	 */
+	private static final int BUFFER_SIZE = 16384;
+
+	private final InputStream mIn;
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+	private int mChannels;
+	private int mSampleRate;
+	private int mFormat;
+	private int mBytesPerSample;
+	/**
+	 * Bytes of sample data not read yet.
+	 */
+	private long mRemaining;
+
+	/**
+	 * Returns true if the file at the given path starts like a WAVE file.
+	 */
+	public static boolean isWav(String path)
+	{
+		try {
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				byte[] magic = new byte[12];
+				file.readFully(magic);
+				return magic[0] == 'R' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == 'F'
+					&& magic[8] == 'W' && magic[9] == 'A' && magic[10] == 'V' && magic[11] == 'E';
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public WavDecoder(String path) throws IOException
+	{
+		mIn = new FileInputStream(path);
+		try {
+			readHeader();
+		} catch (IOException e) {
+			mIn.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the chunks up to the start of the sample data.
+	 */
+	private void readHeader() throws IOException
+	{
+		byte[] b = mBuffer;
+		readFully(b, 12);
+
+		boolean haveFormat = false;
+		for (;;) {
+			readFully(b, 8);
+			long size = le32(b, 4) & 0xFFFFFFFFL;
+			if (b[0] == 'f' && b[1] == 'm' && b[2] == 't' && b[3] == ' ') {
+				if (size < 16 || size > 256)
+					throw new IOException("Invalid fmt chunk");
+				readFully(b, (int)size);
+				mFormat = le16(b, 0);
+				mChannels = le16(b, 2);
+				mSampleRate = le32(b, 4);
+				mBytesPerSample = le16(b, 14) / 8;
+				if (mFormat == FORMAT_EXTENSIBLE && size >= 26)
+					mFormat = le16(b, 24); // first two bytes of the sub format GUID
+				haveFormat = true;
+			} else if (b[0] == 'd' && b[1] == 'a' && b[2] == 't' && b[3] == 'a') {
+				if (!haveFormat)
+					throw new IOException("data chunk before fmt chunk");
+				mRemaining = size;
+				break;
+			} else {
+				skipFully(size + (size & 1)); // chunks are padded to even sizes
+			}
+		}
+
+		boolean supported = mFormat == FORMAT_PCM && mBytesPerSample >= 1 && mBytesPerSample <= 4
+			|| mFormat == FORMAT_FLOAT && mBytesPerSample == 4;
+		if (!supported || mChannels < 1 || mSampleRate < 1)
+			throw new IOException("Unsupported WAVE format " + mFormat + "/" + mBytesPerSample * 8);
+	}
+
+	@Override
+	public int getChannels()
+	{
+		return mChannels;
+	}
+
+	@Override
+	public int getSampleRate()
+	{
+		return mSampleRate;
+	}
+
+	@Override
+	public int read(float[] dst) throws IOException
+	{
+		int frameSize = mChannels * mBytesPerSample;
+		int frames = (int)Math.min(Math.min(dst.length / mChannels, mBuffer.length / frameSize), mRemaining / frameSize);
+		if (frames <= 0)
+			return -1;
+
+		// the data chunk may claim more than there is, e.g. in streamed files
+		byte[] b = mBuffer;
+		int len = 0;
+		for (int want = frames * frameSize; len != want; ) {
+			int r = mIn.read(b, len, want - len);
+			if (r < 0)
+				break;
+			len += r;
+		}
+		frames = len / frameSize;
+		if (frames == 0)
+			return -1;
+		mRemaining -= len;
+
+		int n = frames * mChannels;
+		switch (mBytesPerSample) {
+		case 1:
+			for (int i = 0; i != n; ++i)
+				dst[i] = ((b[i] & 0xFF) - 128) / 128f;
+			break;
+		case 2:
+			for (int i = 0, j = 0; i != n; ++i, j += 2)
+				dst[i] = (short)((b[j] & 0xFF) | b[j + 1] << 8) / 32768f;
+			break;
+		case 3:
+			for (int i = 0, j = 0; i != n; ++i, j += 3)
+				dst[i] = ((b[j] & 0xFF) | (b[j + 1] & 0xFF) << 8 | b[j + 2] << 16) / 8388608f;
+			break;
+		case 4:
+			if (mFormat == FORMAT_FLOAT) {
+				for (int i = 0, j = 0; i != n; ++i, j += 4)
+					dst[i] = Float.intBitsToFloat(le32(b, j));
+			} else {
+				for (int i = 0, j = 0; i != n; ++i, j += 4)
+					dst[i] = le32(b, j) / 2147483648f;
+			}
+			break;
+		}
+		return frames;
+	}
+
+	@Override
+	public void close()
+	{
+		try {
+			mIn.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	private void readFully(byte[] b, int len) throws IOException
+	{
+		for (int off = 0; off != len; ) {
+			int n = mIn.read(b, off, len - off);
+			if (n < 0)
+				throw new IOException("Unexpected end of file");
+			off += n;
+		}
+	}
+
+	private void skipFully(long len) throws IOException
+	{
+		while (len > 0) {
+			long n = mIn.skip(len);
+			if (n <= 0)
+				throw new IOException("Unexpected end of file");
+			len -= n;
+		}
+	}
+
+	private static int le16(byte[] b, int off)
+	{
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+	}
+
+	private static int le32(byte[] b, int off)
+	{
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | b[off + 3] << 24;
+	}
+}
@@ -0,0 +1,43 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+
+/* Technical properties of an audio stream, as far as they
+** can be derived from its headers (nothing is decoded)
+*/
+public class AudioProperties {
+	public final String codec;       // eg. 'FLAC', 'Vorbis', 'Opus' or 'MP3'
+	public final int    channels;
+	public final int    sample_rate; // in Hz
+	public final int    bitrate;     // average, in bits per second
+	public final long   duration;    // in milliseconds
+	
+	public AudioProperties(String codec, int channels, int sample_rate, int bitrate, long duration) {
+		this.codec       = codec;
+		this.channels    = channels;
+		this.sample_rate = sample_rate;
+		this.bitrate     = bitrate;
+		this.duration    = duration;
+	}
+	
+	/* Returns the average bitrate of 'bytes' played in 'duration' ms */
+	static int bitrate(long bytes, long duration) {
+		if(duration <= 0)
+			return 0;
+		return (int)(bytes * 8000 / duration);
+	}
+	
+	public String toString() {
+		return codec+" "+channels+"ch "+sample_rate+"Hz "+bitrate+"bps "+duration+"ms";
+	}
+	
+}
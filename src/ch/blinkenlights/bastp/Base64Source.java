@@ -0,0 +1,78 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+import java.io.IOException;
+
+
+/* Decodes a base64 encoded region of another source on the fly.
+** Base64 maps every 3 bytes onto 4 characters, so any part of the
+** decoded data can be read without decoding what comes before it
+*/
+public class Base64Source extends Source {
+	private final Source s;
+	private final long offset; // of the encoded data within 's'
+	private final long length; // of the decoded data
+	
+	public Base64Source(Source s, long offset, long enc_len) throws IOException {
+		long quads = enc_len / 4;
+		long len   = quads * 3;
+		if(quads > 0) {
+			byte[] tail = new byte[2];
+			s.read(offset + quads*4 - 2, tail);
+			if(tail[1] == '=')
+				len--;
+			if(tail[0] == '=')
+				len--;
+		}
+		this.s      = s;
+		this.offset = offset;
+		this.length = len;
+	}
+	
+	public long length() {
+		return length;
+	}
+	
+	protected void fill(long pos, byte[] dst, int off, int len) throws IOException {
+		long first = pos / 3;               // first quad to decode
+		long last  = (pos + len + 2) / 3;   // first quad we do not need
+		byte[] enc = new byte[(int)(last-first)*4];
+		s.read(offset + first*4, enc);
+		
+		int skip = (int)(pos - first*3);    // decoded bytes we do not want
+		int o    = 0;                       // decoded position
+		for(int i=0; i<enc.length && len > 0; i+=4) {
+			int q = (decode(enc[i]) << 18) | (decode(enc[i+1]) << 12) | (decode(enc[i+2]) << 6) | decode(enc[i+3]);
+			for(int j=16; j>=0 && len > 0; j-=8, o++) {
+				if(o < skip)
+					continue;
+				dst[off++] = (byte)(q >> j);
+				len--;
+			}
+		}
+	}
+	
+	private int decode(byte c) throws IOException {
+		if(c >= 'A' && c <= 'Z') return c - 'A';
+		if(c >= 'a' && c <= 'z') return c - 'a' + 26;
+		if(c >= '0' && c <= '9') return c - '0' + 52;
+		if(c == '+') return 62;
+		if(c == '/') return 63;
+		if(c == '=') return 0;
+		throw new IOException("Invalid base64 character: "+c);
+	}
+	
+	public int getIoCount() {
+		return s.getIoCount();
+	}
+	
+}
@@ -13,9 +13,10 @@ package ch.blinkenlights.bastp;
 
 import ch.blinkenlights.bastp.OggFile;
 import ch.blinkenlights.bastp.FlacFile;
+import java.io.FileDescriptor;
 import java.io.RandomAccessFile;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.EnumSet;
 
 
 public class Bastp {
@@ -23,12 +24,21 @@ public class Bastp {
 	public Bastp() {
 	}
 	
-	public HashMap getTags(String fname) {
-		HashMap tags = new HashMap();
+	public TagSet getTags(String fname) {
+		return getTags(fname, null);
+	}
+	
+	/* Parses only the keys in 'keys' (everything if null): parsing
+	** stops as soon as all of them were found */
+	public TagSet getTags(String fname, EnumSet<TagSet.Key> keys) {
+		TagSet tags = new TagSet(keys);
 		try {
 			RandomAccessFile ra = new RandomAccessFile(fname, "r");
-			tags = getTags(ra);
-			ra.close();
+			try {
+				tags = getTags(ra, keys);
+			} finally {
+				ra.close();
+			}
 		}
 		catch(Exception e) {
 			/* we dont' care much: SOMETHING went wrong. d'oh! */
@@ -37,44 +47,158 @@ public class Bastp {
 		return tags;
 	}
 	
-	public HashMap getTags(RandomAccessFile s) {
-		HashMap tags = new HashMap();
+	/* Parses an already opened file: the file pointer of 's' is not used
+	** nor modified */
+	public TagSet getTags(RandomAccessFile s) {
+		return getTags(s, null);
+	}
+	
+	public TagSet getTags(RandomAccessFile s, EnumSet<TagSet.Key> keys) {
+		try {
+			return getTags(open_source(s), keys);
+		}
+		catch(IOException e) {
+			return new TagSet(keys);
+		}
+	}
+	
+	/* Parses the file behind 'fd', eg. from a ParcelFileDescriptor.
+	** The descriptor is not closed */
+	public TagSet getTags(FileDescriptor fd) {
+		return getTags(fd, null);
+	}
+	
+	public TagSet getTags(FileDescriptor fd, EnumSet<TagSet.Key> keys) {
+		try {
+			return getTags(new WindowedSource(fd), keys);
+		}
+		catch(IOException e) {
+			return new TagSet(keys);
+		}
+	}
+	
+	/* Returns the audio properties of the file or null
+	** if they can not be determined */
+	public AudioProperties getAudioProperties(String fname) {
+		AudioProperties props = null;
+		try {
+			RandomAccessFile ra = new RandomAccessFile(fname, "r");
+			try {
+				props = getAudioProperties(open_source(ra));
+			} finally {
+				ra.close();
+			}
+		}
+		catch(Exception e) {
+			/* unsupported or broken file */
+		}
+		return props;
+	}
+	
+	public AudioProperties getAudioProperties(Source s) throws IOException {
 		byte[] file_ff = new byte[4];
+		s.read(0, file_ff);
+		String magic = new String(file_ff);
 		
+		if(magic.equals("fLaC"))
+			return (new FlacFile()).getProperties(s);
+		if(magic.equals("OggS"))
+			return (new OggFile()).getProperties(s);
+		if(file_ff[0] == -1 && (file_ff[1] & 0xE0) == 0xE0)
+			return (new LameHeader()).getProperties(s, 0);
+		if(magic.substring(0,3).equals("ID3"))
+			return (new LameHeader()).getProperties(s, (new ID3v2File()).readHeaderLength(s));
+		return null;
+	}
+	
+	/* Returns the image data of a picture found by getTags()
+	** or null if it can not be read */
+	public byte[] readPicture(String fname, Picture p) {
+		byte[] data = null;
 		try {
-			s.read(file_ff);
-			String magic = new String(file_ff);
+			RandomAccessFile ra = new RandomAccessFile(fname, "r");
+			try {
+				data = readPicture(open_source(ra), p);
+			} finally {
+				ra.close();
+			}
+		}
+		catch(Exception e) {
+			/* the file changed or is gone */
+		}
+		return data;
+	}
+	
+	public byte[] readPicture(Source s, Picture p) throws IOException {
+		Source src = s;
+		if(p.packet >= 0) {
+			// the picture is in an ogg packet: walk up to it
+			OggPacketReader reader = new OggPacketReader(s);
+			for(int i=0; i<=p.packet; i++) {
+				src = reader.next();
+				if(src == null)
+					throw new IOException("Ogg packet "+p.packet+" not found");
+			}
+		}
+		if(!p.isFileRegion())
+			src = new Base64Source(src, p.b64_offset, p.b64_length);
+		
+		byte[] data = new byte[p.length];
+		src.read(p.offset, data);
+		return data;
+	}
+	
+	/* Returns a source for 's', memory mapped if possible */
+	private Source open_source(RandomAccessFile s) throws IOException {
+		try {
+			return new MappedSource(s);
+		}
+		catch(IOException e) {
+			/* can not map this one: fall back to buffered reads */
+			return new WindowedSource(s.getChannel());
+		}
+	}
+	
+	public TagSet getTags(Source s) {
+		return getTags(s, null);
+	}
+	
+	public TagSet getTags(Source s, EnumSet<TagSet.Key> keys) {
+		TagSet tags = new TagSet(keys);
+		byte[] file_ff = new byte[8];
+		
+		try {
+			s.read(0, file_ff);
+			String magic = new String(file_ff, 0, 4);
 			if(magic.equals("fLaC")) {
-				tags = (new FlacFile()).getTags(s);
+				(new FlacFile()).getTags(s, tags);
 			}
 			else if(magic.equals("OggS")) {
-				tags = (new OggFile()).getTags(s);
+				(new OggFile()).getTags(s, tags);
 			}
-			else if(file_ff[0] == -1 && file_ff[1] == -5) { /* aka 0xfffb in real languages */
-				tags = (new LameHeader()).getTags(s);
+			else if(file_ff[0] == -1 && (file_ff[1] & 0xE0) == 0xE0) { /* aka 0xffe0 (frame sync) in real languages */
+				(new TailTags()).getTags(s, tags);
+				if(!tags.isComplete())
+					(new LameHeader()).getTags(s, tags);
 			}
 			else if(magic.substring(0,3).equals("ID3")) {
-				tags = (new ID3v2File()).getTags(s);
-				if(tags.containsKey("_hdrlen")) {
-					Long hlen = Long.parseLong( tags.get("_hdrlen").toString(), 10 );
-					HashMap lameInfo = (new LameHeader()).parseLameHeader(s, hlen);
-					/* add gain tags if not already present */
-					inheritTag("REPLAYGAIN_TRACK_GAIN", lameInfo, tags);
-					inheritTag("REPLAYGAIN_ALBUM_GAIN", lameInfo, tags);
-				}
+				ID3v2File id3 = new ID3v2File();
+				id3.getTags(s, tags);
+				/* add APEv2/ID3v1 and gain tags if not already present */
+				if(!tags.isComplete())
+					(new TailTags()).getTags(s, tags);
+				if(!tags.isComplete())
+					(new LameHeader()).parseLameHeader(s, id3.getHeaderLength(), tags);
+			}
+			else if(new String(file_ff, 4, 4).equals("ftyp")) { /* mp4 files start with a sized ftyp atom */
+				magic = "ftyp";
+				(new Mp4File()).getTags(s, tags);
 			}
-			tags.put("_magic", magic);
+			tags.magic = magic;
 		}
 		catch (IOException e) {
 		}
 		return tags;
 	}
 	
-	private void inheritTag(String key, HashMap from, HashMap to) {
-		if(!to.containsKey(key) && from.containsKey(key)) {
-			to.put(key, from.get(key));
-		}
-	}
-	
 }
-
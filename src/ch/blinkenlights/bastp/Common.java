@@ -12,12 +12,14 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
-import java.util.Vector;
 
 public class Common {
 	private static final long MAX_PKT_SIZE = 524288;
+	private static final int  MAX_MIME_SIZE = 256;
+	
+	/* index of the ogg packet that is being parsed, -1 if the parsers
+	** source is the file itself */
+	protected int packet = -1;
 	
 	public void xdie(String reason) throws IOException {
 		throw new IOException(reason);
@@ -56,49 +58,133 @@ public class Common {
 		System.out.println("DBUG "+s);
 	}
 	
-	public HashMap parse_vorbis_comment(RandomAccessFile s, long offset, long payload_len) throws IOException {
-		HashMap tags = new HashMap();
-		int comments   = 0;                // number of found comments 
-		int xoff       = 0;                // offset within 'scratch'
-		int can_read   = (int)(payload_len > MAX_PKT_SIZE ? MAX_PKT_SIZE : payload_len);
-		byte[] scratch = new byte[can_read];
-		
-		// seek to given position and slurp in the payload
-		s.seek(offset);
-		s.read(scratch);
+	/* Parses the vorbis comment packet at 'offset'.
+	** Comments are read one by one: only the keys are compared (as raw
+	** bytes, without decoding them) and only the values of wanted keys
+	** are read and decoded, so huge comments such as embedded pictures
+	** are skipped without ever being read.
+	** Parsing stops as soon as all wanted keys were found.
+	*/
+	public TagSet parse_vorbis_comment(Source s, long offset, long payload_len, TagSet tags) throws IOException {
+		long end       = offset + payload_len; // first byte after the packet
+		long pos       = offset;               // current position within the file
+		byte[] hdr     = new byte[4];
+		byte[] scratch = new byte[256];
+		int comments   = 0;                    // number of found comments 
 		
 		// skip vendor string in format: [LEN][VENDOR_STRING] 
-		xoff    += 4 + b2le32(scratch, xoff); // 4 = LEN = 32bit int 
-		comments = b2le32(scratch, xoff);
-		xoff    += 4;
+		if(payload_len < 8)
+			xdie("vorbis comment is too short");
+		s.read(pos, hdr);
+		pos += 4 + (b2le32(hdr, 0) & 0xFFFFFFFFL); // 4 = LEN = 32bit int 
+		if(pos+4 > end)
+			xdie("vendor string out of bounds");
+		s.read(pos, hdr);
+		comments = b2le32(hdr, 0);
+		pos += 4;
 		
 		// debug("comments count = "+comments);
-		for(int i=0; i<comments; i++) {
+		for(int i=0; i<comments && !tags.isComplete(); i++) {
 			
-			int clen = (int)b2le32(scratch, xoff);
-			xoff += 4+clen;
+			if(pos+4 > end)
+				xdie("comment header out of bounds");
 			
-			if(xoff > scratch.length)
+			s.read(pos, hdr);
+			long clen = b2le32(hdr, 0) & 0xFFFFFFFFL;
+			long cpos = pos + 4;
+			pos = cpos + clen;
+			
+			if(pos > end)
 				xdie("string out of bounds");
 			
-			String   tag_raw = new String(scratch, xoff-clen, clen);
-			String[] tag_vec = tag_raw.split("=",2);
-			String   tag_key = tag_vec[0].toUpperCase();
+			// the key is ascii and short: check it before reading the rest
+			int klen = s.readAtMost(cpos, scratch, 0, (int)Math.min(clen, scratch.length));
+			int eq   = indexOf(scratch, klen, (byte)'=');
+			if(eq < 1)
+				continue; // no key (or a very long one): ignore it
+			
+			TagSet.Key key = TagSet.matchKey(scratch, 0, eq);
+			if(key == null ? !tags.wantsOverflow() : !tags.wants(key))
+				continue;
 			
-			addTagEntry(tags, tag_key, tag_vec[1]);
+			if(key == TagSet.Key.PICTURE) {
+				// a base64 encoded flac picture block: only find the image within it
+				long b64_offset = cpos+eq+1;
+				long b64_length = clen-eq-1;
+				try {
+					Base64Source b64 = new Base64Source(s, b64_offset, b64_length);
+					Picture p = parse_flac_picture(b64, 0, b64.length());
+					tags.addPicture(new Picture(p.mime, p.type, p.offset, p.length, packet, b64_offset, b64_length));
+				} catch(IOException e) {
+					/* a broken picture: ignore it */
+				}
+				continue;
+			}
+			
+			if(clen > MAX_PKT_SIZE)
+				continue; // this is not a text field
+			
+			if(clen > klen) {
+				if(clen > scratch.length)
+					scratch = new byte[(int)clen];
+				s.read(cpos, scratch, 0, (int)clen);
+			}
+			
+			String value = new String(scratch, eq+1, (int)clen-eq-1, "UTF-8");
+			if(key != null)
+				tags.add(key, value);
+			else
+				tags.add(new String(scratch, 0, eq, "ISO-8859-1").toUpperCase(), value);
 		}
 		return tags;
 	}
 	
-	public void addTagEntry(HashMap tags, String key, String value) {
-		if(tags.containsKey(key)) {
-			((Vector)tags.get(key)).add(value); // just add to existing vector
-		}
-		else {
-			Vector vx = new Vector();
-			vx.add(value);
-			tags.put(key, vx);
+	/* Parses the flac picture block at 'offset' (without its block
+	** header) and returns where the image data is
+	*/
+	public Picture parse_flac_picture(Source s, long offset, long payload_len) throws IOException {
+		byte[] b  = new byte[8];
+		long pos  = offset;
+		long end  = offset + payload_len;
+		
+		// [TYPE][MIME_LEN][MIME][DESC_LEN][DESC][WIDTH][HEIGHT][DEPTH][COLORS][DATA_LEN][DATA]
+		if(payload_len < 32)
+			xdie("picture block is too short");
+		s.read(pos, b);
+		int  type = b2be32(b, 0);
+		long mlen = b2be32(b, 4) & 0xFFFFFFFFL;
+		pos += 8;
+		if(mlen > MAX_MIME_SIZE || pos+mlen+4 > end)
+			xdie("mime type out of bounds");
+		byte[] mime = new byte[(int)mlen];
+		s.read(pos, mime);
+		pos += mlen;
+		
+		s.read(pos, b, 0, 4);
+		pos += 4 + (b2be32(b, 0) & 0xFFFFFFFFL) + 16; // skip description, size and colors
+		if(pos+4 > end)
+			xdie("description out of bounds");
+		
+		s.read(pos, b, 0, 4);
+		long dlen = b2be32(b, 0) & 0xFFFFFFFFL;
+		pos += 4;
+		if(pos+dlen > end)
+			xdie("picture data out of bounds");
+		
+		return new Picture(new String(mime, "ISO-8859-1"), type, pos, (int)dlen);
+	}
+	
+	/* Returns the index of 'needle' within the first 'len' bytes of 'b' or -1 */
+	public int indexOf(byte[] b, int len, byte needle) {
+		for(int i=0; i<len; i++) {
+			if(b[i] == needle)
+				return i;
 		}
+		return -1;
+	}
+	
+	public void addTagEntry(TagSet tags, String key, String value) {
+		tags.add(key, value);
 	}
 	
 }
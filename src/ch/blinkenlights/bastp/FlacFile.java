@@ -11,54 +11,91 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
 import java.util.Enumeration;
 
 
 public class FlacFile extends Common {
+	private static final int FLAC_TYPE_STREAMINFO = 0;   // ID of the 'StreamInfo' block
 	private static final int FLAC_TYPE_COMMENT = 4;   // ID of 'VorbisComment's
+	private static final int FLAC_TYPE_PICTURE = 6;   // ID of 'Picture's
 	
 	public FlacFile() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public TagSet getTags(Source s, TagSet tags) throws IOException {
 		int xoff  = 4;  // skip file magic
 		int retry = 64;
 		int r[];
-		HashMap tags = new HashMap();
+		boolean comment_seen = false;
 		
-		for(; retry > 0; retry--) {
+		for(; retry > 0 && !tags.isComplete(); retry--) {
 			r = parse_metadata_block(s, xoff);
 			
 			if(r[2] == FLAC_TYPE_COMMENT) {
-				tags = parse_vorbis_comment(s, xoff+r[0], r[1]);
-				break;
+				parse_vorbis_comment(s, xoff+r[0], r[1], tags);
+				comment_seen = true;
+			}
+			else if(r[2] == FLAC_TYPE_PICTURE && tags.wants(TagSet.Key.PICTURE)) {
+				tags.addPicture(parse_flac_picture(s, xoff+r[0], r[1]));
 			}
 			
 			if(r[3] != 0)
 				break; // eof reached
 			
+			if(comment_seen && (!tags.wants(TagSet.Key.PICTURE) || tags.has(TagSet.Key.PICTURE)))
+				break; // pictures are not wanted or we already have one
+			
 			// else: calculate next offset
 			xoff += r[0] + r[1];
 		}
 		return tags;
 	}
 	
+	/* Returns the properties found in the STREAMINFO block, the
+	** audio data starts after the last metadata block */
+	public AudioProperties getProperties(Source s) throws IOException {
+		long xoff = 4;  // skip file magic
+		int r[] = parse_metadata_block(s, xoff);
+		if(r[2] != FLAC_TYPE_STREAMINFO || r[1] < 18)
+			xdie("STREAMINFO is missing");
+		AudioProperties p = parse_streaminfo(s, xoff+r[0]);
+		
+		for(int retry = 64; r[3] == 0 && retry > 0; retry--) {
+			xoff += r[0] + r[1];
+			r = parse_metadata_block(s, xoff);
+		}
+		xoff += r[0] + r[1];
+		
+		return new AudioProperties(p.codec, p.channels, p.sample_rate, AudioProperties.bitrate(s.length() - xoff, p.duration), p.duration);
+	}
+	
+	/* Parses the payload of a STREAMINFO block, the returned bitrate is 0 */
+	public AudioProperties parse_streaminfo(Source s, long offset) throws IOException {
+		byte[] si = new byte[8];
+		
+		// [MIN_BLOCK:16][MAX_BLOCK:16][MIN_FRAME:24][MAX_FRAME:24][RATE:20][CHANNELS:3][BPS:5][SAMPLES:36]
+		s.read(offset+10, si);
+		long bits = ((long)b2be32(si, 0) << 32) | (b2be32(si, 4) & 0xFFFFFFFFL);
+		int  rate     = (int)(bits >>> 44);
+		int  channels = (int)((bits >>> 41) & 7) + 1;
+		long samples  = bits & 0xFFFFFFFFFL;
+		
+		if(rate == 0)
+			xdie("Invalid sample rate");
+		return new AudioProperties("FLAC", channels, rate, 0, samples * 1000 / rate);
+	}
+	
 	/* Parses the metadata block at 'offset' and returns
 	** [header_size, payload_size, type, stop_after]
 	*/
-	private int[] parse_metadata_block(RandomAccessFile s, long offset) throws IOException {
+	private int[] parse_metadata_block(Source s, long offset) throws IOException {
 		int[] result   = new int[4];
 		byte[] mb_head = new byte[4];
 		int stop_after = 0;
 		int block_type = 0;
 		int block_size = 0;
 		
-		s.seek(offset);
-		
-		if( s.read(mb_head) != 4 )
-			xdie("failed to read metadata block header");
+		s.read(offset, mb_head);
 		
 		block_size = b2be32(mb_head,0);                         // read whole header as 32 big endian
 		block_type = (block_size >> 24) & 127;                  // BIT 1-7 are the type
@@ -12,115 +12,457 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Enumeration;
 
 
 
 public class ID3v2File extends Common {
-	private static int ID3_ENC_LATIN   = 0x00;
-	private static int ID3_ENC_UTF16LE = 0x01;
-	private static int ID3_ENC_UTF16BE = 0x02;
-	private static int ID3_ENC_UTF8    = 0x03;
+	private static final int ID3_ENC_LATIN   = 0x00;
+	private static final int ID3_ENC_UTF16   = 0x01; // with BOM
+	private static final int ID3_ENC_UTF16BE = 0x02;
+	private static final int ID3_ENC_UTF8    = 0x03;
+	
+	/* flags of the tag header */
+	private static final int HDR_FLAG_UNSYNC   = 0x80;
+	private static final int HDR_FLAG_EXTENDED = 0x40;
+	private static final int HDR_FLAG_FOOTER   = 0x10; // v2.4 only
+	
+	/* frame format flags, v2.3 and v2.4 use different bits */
+	private static final int V3_FRAME_COMPRESSED = 0x0080;
+	private static final int V3_FRAME_ENCRYPTED  = 0x0040;
+	private static final int V3_FRAME_GROUPED    = 0x0020;
+	private static final int V4_FRAME_GROUPED    = 0x0040;
+	private static final int V4_FRAME_COMPRESSED = 0x0008;
+	private static final int V4_FRAME_ENCRYPTED  = 0x0004;
+	private static final int V4_FRAME_UNSYNC     = 0x0002;
+	private static final int V4_FRAME_DATALEN    = 0x0001;
+	
+	/* tags up to this size are read with a single read, bigger ones
+	** (usually due to pictures) are walked through the source */
+	private static final int MAX_BULK_SIZE = 262144;
+	/* frames bigger than this are not text */
+	private static final int MAX_TEXT_SIZE = 524288;
+	/* Number of bytes read to find the description of a TXXX frame:
+	** enough for any well known key in UTF-16 */
+	private static final int MAX_DESCRIPTION_SIZE = 128;
+	/* we do not resynchronise (v2.2 and v2.3) tags bigger than this */
+	private static final int MAX_UNSYNC_SIZE = 4194304;
+	
+	/* Converts ID3v2 sillyframes to OggNames */
+	private static final HashMap<String, TagSet.Key> FRAME_KEYS = new HashMap<String, TagSet.Key>();
+	static {
+		FRAME_KEYS.put("TIT2", TagSet.Key.TITLE);
+		FRAME_KEYS.put("TALB", TagSet.Key.ALBUM);
+		FRAME_KEYS.put("TPE1", TagSet.Key.ARTIST);
+		FRAME_KEYS.put("TPE2", TagSet.Key.ALBUMARTIST);
+		FRAME_KEYS.put("TRCK", TagSet.Key.TRACKNUMBER);
+		FRAME_KEYS.put("TPOS", TagSet.Key.DISCNUMBER);
+		FRAME_KEYS.put("TYER", TagSet.Key.DATE);
+		FRAME_KEYS.put("TDRC", TagSet.Key.DATE);
+		FRAME_KEYS.put("TCON", TagSet.Key.GENRE);
+		FRAME_KEYS.put("TCOM", TagSet.Key.COMPOSER);
+		FRAME_KEYS.put("TEXT", TagSet.Key.LYRICIST);
+		/* v2.2 uses 3 character names */
+		FRAME_KEYS.put("TT2", TagSet.Key.TITLE);
+		FRAME_KEYS.put("TAL", TagSet.Key.ALBUM);
+		FRAME_KEYS.put("TP1", TagSet.Key.ARTIST);
+		FRAME_KEYS.put("TP2", TagSet.Key.ALBUMARTIST);
+		FRAME_KEYS.put("TRK", TagSet.Key.TRACKNUMBER);
+		FRAME_KEYS.put("TPA", TagSet.Key.DISCNUMBER);
+		FRAME_KEYS.put("TYE", TagSet.Key.DATE);
+		FRAME_KEYS.put("TCO", TagSet.Key.GENRE);
+		FRAME_KEYS.put("TCM", TagSet.Key.COMPOSER);
+		FRAME_KEYS.put("TXT", TagSet.Key.LYRICIST);
+	}
+	
+	private long hdrlen = 0;             // size of the whole tag, including the header
+	private byte[] scratch = new byte[256]; // payload of the current frame
+	private byte[] probe   = new byte[4];   // see frame_follows()
 	
 	public ID3v2File() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
-		HashMap tags = new HashMap();
-		
+	/* Returns the size of the tag parsed by getTags(): audio data starts here */
+	public long getHeaderLength() {
+		return hdrlen;
+	}
+	
+	/* Returns the size of the tag in 's' without parsing it */
+	public long readHeaderLength(Source s) throws IOException {
+		byte[] v2hdr = new byte[10];
+		s.read(0, v2hdr);
+		long len = syncsafe32(v2hdr, 6) + v2hdr.length;
+		if(b2u(v2hdr[3]) == 4 && (b2u(v2hdr[5]) & HDR_FLAG_FOOTER) != 0)
+			len += v2hdr.length;
+		return len;
+	}
+	
+	public TagSet getTags(Source s, TagSet tags) throws IOException {
 		final int v2hdr_len = 10;
 		byte[] v2hdr = new byte[v2hdr_len];
 		
 		// read the whole 10 byte header into memory
-		s.seek(0);
-		s.read(v2hdr);
+		s.read(0, v2hdr);
 		
-		int id3v   = ((b2be32(v2hdr,0))) & 0xFF;   // swapped ID3\04 -> ver. ist the first byte
-		int v3len  = ((b2be32(v2hdr,6)));          // total size EXCLUDING the this 10 byte header
-		v3len      = ((v3len & 0x7f000000) >> 3) | // for some funky reason, this is encoded as 7*4 bits
-		             ((v3len & 0x007f0000) >> 2) |
-		             ((v3len & 0x00007f00) >> 1) |
-		             ((v3len & 0x0000007f) >> 0) ;
+		int id3v   = b2u(v2hdr[3]);
+		int flags  = b2u(v2hdr[5]);
+		int v3len  = syncsafe32(v2hdr, 6); // total size EXCLUDING the this 10 byte header
 		
 		// debug(">> tag version ID3v2."+id3v);
 		// debug(">> LEN= "+v3len+" // "+v3len);
 		
-		// we should already be at the first frame
-		// so we can start the parsing right now
-		tags = parse_v3_frames(s, v3len);
-		tags.put("_hdrlen", v3len+v2hdr_len);
-		return tags;
+		if(id3v < 2 || id3v > 4)
+			xdie("Unsupported ID3v2 version: "+id3v);
+		
+		hdrlen = v3len + v2hdr_len;
+		if(id3v == 4 && (flags & HDR_FLAG_FOOTER) != 0)
+			hdrlen += v2hdr_len;
+		
+		Source tag   = s;          // where to read the frames from
+		long   start = v2hdr_len;  // offset of the first frame within 'tag'
+		long   base  = 0;          // file offset of the first byte of 'tag', -1 if it was modified
+		
+		if(id3v < 4 && (flags & HDR_FLAG_UNSYNC) != 0) {
+			// frame sizes refer to the resynchronised data: we have to undo it first
+			if(v3len > MAX_UNSYNC_SIZE)
+				xdie("Unsynchronised tag is too big");
+			byte[] raw = new byte[v3len];
+			s.read(v2hdr_len, raw);
+			tag   = new MemorySource(raw, resync(raw, 0, v3len));
+			start = 0;
+			base  = -1;
+		}
+		else if(v3len <= MAX_BULK_SIZE) {
+			byte[] raw = new byte[v3len];
+			int len    = s.readAtMost(v2hdr_len, raw, 0, v3len);
+			tag   = new MemorySource(raw, len);
+			start = 0;
+			base  = v2hdr_len;
+		}
+		
+		long end = Math.min(start + v3len, tag.length());
+		
+		if(id3v > 2 && (flags & HDR_FLAG_EXTENDED) != 0) {
+			byte[] ehdr = new byte[4];
+			tag.read(start, ehdr);
+			if(id3v == 3)
+				start += 4 + (b2be32(ehdr, 0) & 0xFFFFFFFFL); // size excludes itself
+			else
+				start += syncsafe32(ehdr, 0);                 // size includes itself
+		}
+		
+		return parse_frames(tag, start, end, base, id3v, (flags & HDR_FLAG_UNSYNC) != 0, tags);
 	}
 	
-	/* Parses all ID3v2 frames at the current position up until payload_len
-	** bytes were read
+	/* Walks all ID3v2 frames between 'offset' and 'end'. Only
+	** text frames are read, everything else is skipped by offset.
+	** 'base' is the position of 's' within the file, used to
+	** record where pictures are
 	*/
-	public HashMap parse_v3_frames(RandomAccessFile s, long payload_len) throws IOException {
-		HashMap tags = new HashMap();
-		byte[] frame   = new byte[10]; // a frame header is always 10 bytes
-		long bread     = 0;            // total amount of read bytes
-		
-		while(bread < payload_len) {
-			bread += s.read(frame);
-			String framename = new String(frame, 0, 4);
-			int slen = b2be32(frame, 4);
+	private TagSet parse_frames(Source s, long offset, long end, long base, int id3v, boolean unsync, TagSet tags) throws IOException {
+		final int fhdr_len = (id3v == 2 ? 6 : 10); // v2.2 uses 3 byte names and sizes
+		byte[] frame       = new byte[10];
+		long   pos         = offset;
+		float[] rva2       = { Float.NaN, Float.NaN }; // track and album gain found in RVA2
+		
+		while(pos+fhdr_len <= end && !tags.isComplete()) {
+			s.read(pos, frame, 0, fhdr_len);
+			
+			if(frame[0] == 0)
+				break; // reached the padding
+			
+			String framename;
+			long   slen;
+			int    fflags = 0;
+			if(id3v == 2) {
+				framename = new String(frame, 0, 3, "ISO-8859-1");
+				slen      = b2be32(frame, 2) & 0xFFFFFF; // id takes the first byte
+			}
+			else {
+				framename = new String(frame, 0, 4, "ISO-8859-1");
+				fflags    = (b2u(frame[8]) << 8) | b2u(frame[9]);
+				slen      = b2be32(frame, 4) & 0xFFFFFFFFL;
+				if(id3v == 4 && (frame[4] & 0x80) == 0 && (frame[5] & 0x80) == 0 && (frame[6] & 0x80) == 0 && (frame[7] & 0x80) == 0) {
+					/* Broken v2.4 writers (iTunes) use plain sizes, which look
+					** just like syncsafe ones unless a byte is >= 0x80: we only
+					** believe the plain size if the syncsafe one does not end
+					** at another frame but the plain one does */
+					long plain = slen;
+					slen = syncsafe32(frame, 4);
+					if(plain != slen && !frame_follows(s, pos+fhdr_len+slen, end) && frame_follows(s, pos+fhdr_len+plain, end))
+						slen = plain;
+				}
+			}
+			
+			long xoff = pos + fhdr_len;
+			pos = xoff + slen;
 			
 			/* Abort on silly sizes */
-			if(slen < 1 || slen > 524288)
+			if(slen < 1 || pos > end)
 				break;
 			
-			byte[] xpl = new byte[slen];
-			bread += s.read(xpl);
+			/* strip whatever the frame flags add in front of the payload */
+			boolean funsync = false;
+			if(id3v == 3) {
+				if((fflags & (V3_FRAME_COMPRESSED|V3_FRAME_ENCRYPTED)) != 0)
+					continue;
+				if((fflags & V3_FRAME_GROUPED) != 0)
+					xoff++;
+			}
+			else if(id3v == 4) {
+				if((fflags & (V4_FRAME_COMPRESSED|V4_FRAME_ENCRYPTED)) != 0)
+					continue;
+				if((fflags & V4_FRAME_GROUPED) != 0)
+					xoff++;
+				if((fflags & V4_FRAME_DATALEN) != 0)
+					xoff += 4;
+				funsync = unsync || (fflags & V4_FRAME_UNSYNC) != 0;
+			}
+			slen = pos - xoff;
+			
+			if(slen < 1)
+				continue;
+			
+			if(framename.equals("APIC") || framename.equals("PIC")) {
+				// unsynchronised images can not be decoded from the file
+				if(tags.wants(TagSet.Key.PICTURE) && base >= 0 && !funsync)
+					parse_apic(s, xoff, slen, base, id3v, tags);
+				continue;
+			}
+			
+			if(slen > MAX_TEXT_SIZE)
+				continue;
 			
-			if(framename.substring(0,1).equals("T")) {
-				String otag = framenameToOggTag(framename);
-				if(otag.length() > 0 && !tags.containsKey(otag)) {
-					addTagEntry(tags, otag, getDecodedString(xpl));
+			TagSet.Key key = FRAME_KEYS.get(framename);
+			if(key != null) {
+				if(tags.wants(key) && !tags.has(key)) {
+					String[] values = getDecodedStrings(read_frame(s, xoff, (int)slen, funsync));
+					for(String v : values)
+						tags.add(key, v);
+				}
+			}
+			else if(framename.equals("TXXX") || framename.equals("TXX")) {
+				// [description]\0[value]: the value is only decoded if
+				// the description names a key we want
+				if(!tags.wantsOverflow()) {
+					String desc = read_description(s, xoff, (int)slen, funsync);
+					TagSet.Key k = (desc == null ? null : TagSet.lookupKey(desc));
+					if(k == null || k == TagSet.Key.PICTURE || !tags.wants(k) || tags.has(k))
+						continue;
+				}
+				String[] values = getDecodedStrings(read_frame(s, xoff, (int)slen, funsync));
+				if(values.length >= 2) {
+					String desc = values[0].toUpperCase();
+					if(!tags.has(desc)) {
+						for(int i=1; i<values.length; i++)
+							tags.add(desc, values[i]);
+					}
 				}
 			}
 			else if(framename.equals("RVA2")) {
-				//
+				if(tags.wants(TagSet.Key.REPLAYGAIN_TRACK_GAIN) || tags.wants(TagSet.Key.REPLAYGAIN_ALBUM_GAIN))
+					parse_rva2(read_frame(s, xoff, (int)slen, funsync), rva2);
 			}
-			
+		
 		}
+		
+		/* RVA2 is only used if there was no TXXX frame */
+		if(!Float.isNaN(rva2[0]) && !tags.has(TagSet.Key.REPLAYGAIN_TRACK_GAIN))
+			tags.add(TagSet.Key.REPLAYGAIN_TRACK_GAIN, rva2[0]+" dB");
+		if(!Float.isNaN(rva2[1]) && !tags.has(TagSet.Key.REPLAYGAIN_ALBUM_GAIN))
+			tags.add(TagSet.Key.REPLAYGAIN_ALBUM_GAIN, rva2[1]+" dB");
+		
 		return tags;
 	}
 	
-	/* Converts ID3v2 sillyframes to OggNames */
-	private String framenameToOggTag(String k) {
-		HashMap lu = new HashMap<String, String>();
-		lu.put("TIT2", "TITLE");
-		lu.put("TALB", "ALBUM");
-		lu.put("TPE1", "ARTIST");
-		
-		if(lu.containsKey(k)) {
-			return (String)lu.get(k);
+	/* Returns true if 'pos' is the end of the tag, or where a v2.3/v2.4
+	** frame header or the padding starts */
+	private boolean frame_follows(Source s, long pos, long end) throws IOException {
+		if(pos == end)
+			return true;
+		if(pos > end)
+			return false;
+		
+		int n = (int)Math.min(probe.length, end - pos);
+		s.read(pos, probe, 0, n);
+		boolean padding = true;
+		boolean name    = (n == probe.length);
+		for(int i=0; i<n; i++) {
+			int c = b2u(probe[i]);
+			padding &= (c == 0);
+			name    &= (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+		}
+		return padding || name;
+	}
+	
+	/* Records where the image of an APIC (or v2.2 PIC) frame is */
+	private void parse_apic(Source s, long offset, long len, long base, int id3v, TagSet tags) throws IOException {
+		int n = (int)Math.min(len, 1024); // the header has to be in here
+		if(scratch.length < n)
+			scratch = new byte[n];
+		s.read(offset, scratch, 0, n);
+		
+		// [ENCODING][MIME\0 or 3 byte format][TYPE][DESCRIPTION\0][DATA]
+		int encid = b2u(scratch[0]);
+		int i     = 1;
+		String mime;
+		if(id3v == 2) {
+			if(n < 5)
+				return;
+			String fmt = new String(scratch, 1, 3, "ISO-8859-1").toLowerCase();
+			mime = "image/" + (fmt.equals("jpg") ? "jpeg" : fmt);
+			i = 4;
+		}
+		else {
+			int end = 1;
+			while(end < n && scratch[end] != 0)
+				end++;
+			if(end == n)
+				return;
+			mime = new String(scratch, 1, end-1, "ISO-8859-1");
+			i = end+1;
+		}
+		
+		if(i >= n)
+			return;
+		int type = b2u(scratch[i++]);
+		
+		// skip the description, which is terminated by one or two NULs
+		boolean wide = (encid == ID3_ENC_UTF16 || encid == ID3_ENC_UTF16BE);
+		for(;;) {
+			if(i + (wide ? 1 : 0) >= n)
+				return; // description too long
+			if(scratch[i] == 0 && (!wide || scratch[i+1] == 0))
+				break;
+			i += (wide ? 2 : 1);
+		}
+		i += (wide ? 2 : 1);
+		
+		if(i < len)
+			tags.addPicture(new Picture(mime, type, base + offset + i, (int)(len - i)));
+	}
+	
+	/* Returns the upper case description of a TXXX frame, read from
+	** the start of the frame, or null if it is longer than any key */
+	private String read_description(Source s, long offset, int len, boolean unsync) throws IOException {
+		int n = read_frame(s, offset, Math.min(len, MAX_DESCRIPTION_SIZE), unsync);
+		if(n < 1)
+			return null;
+		
+		int encid = b2u(scratch[0]);
+		boolean wide = (encid == ID3_ENC_UTF16 || encid == ID3_ENC_UTF16BE);
+		int i = 1;
+		for(;;) {
+			if(i + (wide ? 1 : 0) >= n)
+				return null;
+			if(scratch[i] == 0 && (!wide || scratch[i+1] == 0))
+				break;
+			i += (wide ? 2 : 1);
+		}
+		
+		String charset = "ISO-8859-1";
+		if(encid == ID3_ENC_UTF8)
+			charset = "UTF-8";
+		else if(encid == ID3_ENC_UTF16)
+			charset = "UTF-16";
+		else if(encid == ID3_ENC_UTF16BE)
+			charset = "UTF-16BE";
+		return new String(scratch, 1, i-1, charset).toUpperCase();
+	}
+	
+	/* Reads 'len' bytes of frame payload into 'scratch' and
+	** returns the number of valid bytes */
+	private int read_frame(Source s, long offset, int len, boolean unsync) throws IOException {
+		if(len > scratch.length)
+			scratch = new byte[len];
+		s.read(offset, scratch, 0, len);
+		if(unsync)
+			len = resync(scratch, 0, len);
+		return len;
+	}
+	
+	/* Parses a RVA2 frame, storing the master volume
+	** adjustment of 'track' or 'album' identifications in 'out' */
+	private void parse_rva2(int len, float[] out) throws IOException {
+		int id_end = indexOf(scratch, len, (byte)0);
+		if(id_end < 0)
+			return;
+		
+		String ident = new String(scratch, 0, id_end, "ISO-8859-1");
+		int    slot  = (ident.equalsIgnoreCase("track") ? 0 : ident.equalsIgnoreCase("album") ? 1 : -1);
+		
+		// [channel type][adjustment, 16 bit signed][peak bits][peak]
+		for(int i=id_end+1; slot >= 0 && i+4 <= len; ) {
+			int chan = b2u(scratch[i]);
+			int adj  = (short)((b2u(scratch[i+1]) << 8) | b2u(scratch[i+2]));
+			int bits = b2u(scratch[i+3]);
+			if(chan == 1) {
+				out[slot] = adj / 512f;
+				break;
+			}
+			i += 4 + (bits+7)/8;
 		}
-		return "";
 	}
 	
-	/* Converts a raw byte-stream text into a java String */
-	private String getDecodedString(byte[] raw) {
-		int encid = raw[0] & 0xFF;
-		int len   = raw.length;
+	/* Converts the raw text payload in 'scratch' into java Strings.
+	** v2.4 allows multiple, NUL separated values per frame */
+	private String[] getDecodedStrings(int len) {
+		ArrayList<String> values = new ArrayList<String>(2);
+		if(len < 1)
+			return new String[0];
+		
+		int encid = b2u(scratch[0]);
 		String v  = "";
 		try {
 			if(encid == ID3_ENC_LATIN) {
-				v = new String(raw, 1, len-1, "ISO-8859-1");
+				v = new String(scratch, 1, len-1, "ISO-8859-1");
 			}
 			else if (encid == ID3_ENC_UTF8) {
-				v = new String(raw, 1, len-1, "UTF-8");
+				v = new String(scratch, 1, len-1, "UTF-8");
 			}
-			else if (encid == ID3_ENC_UTF16LE) {
-				v = new String(raw, 3, len-3, "UTF-16LE");
+			else if (encid == ID3_ENC_UTF16) {
+				v = new String(scratch, 1, len-1, "UTF-16");
 			}
 			else if (encid == ID3_ENC_UTF16BE) {
-				v = new String(raw, 3, len-3, "UTF-16BE");
+				v = new String(scratch, 1, len-1, "UTF-16BE");
 			}
 		} catch(Exception e) {}
-		return v;
+		
+		int from = 0;
+		for(int i=0; i<=v.length(); i++) {
+			if(i == v.length() || v.charAt(i) == '\0') {
+				String part = v.substring(from, i);
+				if(part.length() > 0 && part.charAt(0) == '\uFEFF')
+					part = part.substring(1); // BOM of a followup value
+				values.add(part);
+				from = i+1;
+			}
+		}
+		
+		// drop the terminator(s)
+		while(values.size() > 1 && values.get(values.size()-1).length() == 0)
+			values.remove(values.size()-1);
+		
+		return values.toArray(new String[values.size()]);
 	}
 	
+	/* Returns a 28 bit 'syncsafe' integer (4 times 7 bits) */
+	private int syncsafe32(byte[] b, int off) {
+		return (b2u(b[off]) & 0x7f) << 21 | (b2u(b[off+1]) & 0x7f) << 14 |
+		       (b2u(b[off+2]) & 0x7f) << 7 | (b2u(b[off+3]) & 0x7f);
+	}
+	
+	/* Undoes the unsynchronisation scheme in place: every 0xFF 0x00 becomes
+	** 0xFF. Returns the new length */
+	private int resync(byte[] b, int off, int len) {
+		int w = off;
+		for(int r=off; r<off+len; r++) {
+			b[w++] = b[r];
+			if(b[r] == (byte)0xFF && r+1 < off+len && b[r+1] == 0)
+				r++;
+		}
+		return w-off;
+	}
+
 }
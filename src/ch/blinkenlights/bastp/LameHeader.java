@@ -12,53 +12,183 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
 import java.util.Enumeration;
 
 
 public class LameHeader extends Common {
+	/* we look this far for the first frame after the ID3 tag */
+	private static final int MAX_SYNC_SEARCH = 4096;
+	/* offset of the gain values within the LAME tag, relative to 'Xing' */
+	private static final int LAME_GAIN_OFFSET = 0x87;
+	
+	/* bitrates in kbit/s of MPEG1 layer 1, 2, 3 and MPEG2(.5) layer 1, 2+3 */
+	private static final int[][] BITRATES = {
+		{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+		{ 0, 32, 48, 56,  64,  80,  96, 112, 128, 160, 192, 224, 256, 320, 384 },
+		{ 0, 32, 40, 48,  56,  64,  80,  96, 112, 128, 160, 192, 224, 256, 320 },
+		{ 0, 32, 48, 56,  64,  80,  96, 112, 128, 144, 160, 176, 192, 224, 256 },
+		{ 0,  8, 16, 24,  32,  40,  48,  56,  64,  80,  96, 112, 128, 144, 160 },
+	};
+	private static final int[] SAMPLE_RATES = { 44100, 48000, 32000 }; // of MPEG1
+	
+	/* the decoded header of the first frame */
+	private long frame_offset;
+	private int  version;     // 1 = MPEG1, 2 = MPEG2, 3 = MPEG2.5
+	private int  layer;
+	private int  bitrate;     // in bit/s
+	private int  sample_rate;
+	private int  channels;
 	
 	public LameHeader() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
-		return parseLameHeader(s, 0);
+	public TagSet getTags(Source s, TagSet tags) throws IOException {
+		return parseLameHeader(s, 0, tags);
 	}
 	
-	public HashMap parseLameHeader(RandomAccessFile s, long offset) throws IOException {
-		HashMap tags = new HashMap();
+	/* Adds the gain values found in the LAME header of the first frame
+	** at (or shortly after) 'offset', keys already present in 'tags'
+	** are not overwritten */
+	public TagSet parseLameHeader(Source s, long offset, TagSet tags) throws IOException {
 		byte[] chunk = new byte[4];
 		
-		s.seek(offset + 0x24);
-		s.read(chunk);
+		if(!find_frame(s, offset))
+			return tags;
 		
-		String lameMark = new String(chunk, 0, chunk.length, "ISO-8859-1");
+		long xing = frame_offset + xing_offset();
+		if(!read_xing_mark(s, xing, chunk))
+			return tags;
+		
+		s.read(xing + LAME_GAIN_OFFSET, chunk);
+		
+		int raw = b2be32(chunk, 0);
+		int gtrk_raw = raw >> 16;     /* first 16 bits are the raw track gain value */
+		int galb_raw = raw & 0xFFFF;  /* the rest is for the album gain value       */
+		
+		float gtrk_val = (float)(gtrk_raw & 0x01FF)/10;
+		float galb_val = (float)(galb_raw & 0x01FF)/10;
+		
+		gtrk_val = ((gtrk_raw&0x0200)!=0 ? -1*gtrk_val : gtrk_val);
+		galb_val = ((galb_raw&0x0200)!=0 ? -1*galb_val : galb_val);
+		
+		if( (gtrk_raw&0xE000) == 0x2000 && !tags.has(TagSet.Key.REPLAYGAIN_TRACK_GAIN) ) {
+			tags.add(TagSet.Key.REPLAYGAIN_TRACK_GAIN, gtrk_val+" dB");
+		}
+		if( (gtrk_raw&0xE000) == 0x4000 && !tags.has(TagSet.Key.REPLAYGAIN_ALBUM_GAIN) ) {
+			tags.add(TagSet.Key.REPLAYGAIN_ALBUM_GAIN, galb_val+" dB");
+		}
 		
-		if(lameMark.equals("Info") || lameMark.equals("Xing")) {
-			s.seek(offset+0xAB);
-			s.read(chunk);
-			
-			int raw = b2be32(chunk, 0);
-			int gtrk_raw = raw >> 16;     /* first 16 bits are the raw track gain value */
-			int galb_raw = raw & 0xFFFF;  /* the rest is for the album gain value       */
-			
-			float gtrk_val = (float)(gtrk_raw & 0x01FF)/10;
-			float galb_val = (float)(galb_raw & 0x01FF)/10;
-			
-			gtrk_val = ((gtrk_raw&0x0200)!=0 ? -1*gtrk_val : gtrk_val);
-			galb_val = ((galb_raw&0x0200)!=0 ? -1*galb_val : galb_val);
-			
-			if( (gtrk_raw&0xE000) == 0x2000 ) {
-				addTagEntry(tags, "REPLAYGAIN_TRACK_GAIN", gtrk_val+" dB");
+		return tags;
+	}
+	
+	/* Returns the properties of the stream starting at (or shortly
+	** after) 'offset'. The duration is exact if the first frame has
+	** a Xing/Info or VBRI header, else it is estimated from the bitrate
+	** of the first frame, which is exact for CBR files */
+	public AudioProperties getProperties(Source s, long offset) throws IOException {
+		byte[] chunk = new byte[4];
+		
+		if(!find_frame(s, offset))
+			xdie("No mpeg frame found");
+		
+		int  spf      = (layer == 1 ? 384 : (layer == 3 && version != 1) ? 576 : 1152); // samples per frame
+		long frames   = -1;
+		long bytes    = s.length() - frame_offset;
+		long xing     = frame_offset + xing_offset();
+		long vbri     = frame_offset + 4 + 32;
+		
+		if(read_xing_mark(s, xing, chunk)) {
+			// [Xing][FLAGS][FRAMES if flags&1][BYTES if flags&2]...
+			s.read(xing+4, chunk);
+			int flags = b2be32(chunk, 0);
+			long pos  = xing+8;
+			if((flags & 0x1) != 0) {
+				s.read(pos, chunk);
+				frames = b2be32(chunk, 0) & 0xFFFFFFFFL;
+				pos += 4;
 			}
-			if( (gtrk_raw&0xE000) == 0x4000 ) {
-				addTagEntry(tags, "REPLAYGAIN_ALBUM_GAIN", galb_val+" dB");
+			if((flags & 0x2) != 0) {
+				s.read(pos, chunk);
+				bytes = b2be32(chunk, 0) & 0xFFFFFFFFL;
 			}
-			
+		}
+		else if(s.readAtMost(vbri, chunk, 0, 4) == 4 && new String(chunk, 0, 4, "ISO-8859-1").equals("VBRI")) {
+			// [VBRI][VERSION][DELAY][QUALITY][BYTES][FRAMES]
+			s.read(vbri+10, chunk);
+			bytes = b2be32(chunk, 0) & 0xFFFFFFFFL;
+			s.read(vbri+14, chunk);
+			frames = b2be32(chunk, 0) & 0xFFFFFFFFL;
 		}
 		
-		return tags;
+		long duration;
+		int  avg_bitrate;
+		if(frames > 0) {
+			duration    = frames * spf * 1000 / sample_rate;
+			avg_bitrate = AudioProperties.bitrate(bytes, duration);
+		}
+		else {
+			duration    = bytes * 8000 / bitrate;
+			avg_bitrate = bitrate;
+		}
+		
+		return new AudioProperties("MP"+layer, channels, sample_rate, avg_bitrate, duration);
+	}
+	
+	/* Looks for a valid frame header at 'offset' (skipping some junk
+	** or padding) and decodes it */
+	private boolean find_frame(Source s, long offset) throws IOException {
+		byte[] buf = new byte[MAX_SYNC_SEARCH];
+		int len    = s.readAtMost(offset, buf, 0, buf.length);
+		
+		for(int i=0; i+4 <= len; i++) {
+			if(buf[i] == -1 && decode_header(buf, i)) {
+				frame_offset = offset + i;
+				return true;
+			}
+		}
+		return false;
 	}
 	
+	/* Decodes the 4 byte frame header at b[off], returns
+	** false if it is not a valid header */
+	private boolean decode_header(byte[] b, int off) {
+		int h = b2be32(b, off);
+		if((h & 0xFFE00000) != 0xFFE00000)
+			return false; // no sync
+		
+		int ver_bits  = (h >> 19) & 3;
+		int layer_bits= (h >> 17) & 3;
+		int br_index  = (h >> 12) & 0xF;
+		int sr_index  = (h >> 10) & 3;
+		int mode      = (h >> 6) & 3;
+		
+		if(ver_bits == 1 || layer_bits == 0 || br_index == 0 || br_index == 15 || sr_index == 3)
+			return false; // reserved or free format
+		
+		version     = (ver_bits == 3 ? 1 : ver_bits == 2 ? 2 : 3);
+		layer       = 4 - layer_bits;
+		sample_rate = SAMPLE_RATES[sr_index] >> (version - 1);
+		channels    = (mode == 3 ? 1 : 2);
+		
+		int table   = (version == 1 ? layer - 1 : layer == 1 ? 3 : 4);
+		bitrate     = BITRATES[table][br_index] * 1000;
+		return true;
+	}
+	
+	/* Returns the offset of the Xing/Info header within the frame:
+	** it follows the side information, whose size depends on the
+	** version and the channel count */
+	private int xing_offset() {
+		if(version == 1)
+			return 4 + (channels == 1 ? 17 : 32);
+		return 4 + (channels == 1 ? 9 : 17);
+	}
+	
+	private boolean read_xing_mark(Source s, long xing, byte[] chunk) throws IOException {
+		if(s.readAtMost(xing, chunk, 0, 4) != 4)
+			return false;
+		String lameMark = new String(chunk, 0, chunk.length, "ISO-8859-1");
+		return lameMark.equals("Info") || lameMark.equals("Xing");
+	}
+
 }
@@ -0,0 +1,45 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/* Maps the whole file into memory: reads are plain memory copies
+** and only the pages we actually touch will ever be read from disk
+*/
+public class MappedSource extends Source {
+	private final MappedByteBuffer map;
+	
+	public MappedSource(RandomAccessFile ra) throws IOException {
+		FileChannel fc = ra.getChannel();
+		long size = fc.size();
+		
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("file is too big to be mapped");
+		
+		map = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		countIo();
+	}
+	
+	public long length() {
+		return map.capacity();
+	}
+	
+	protected void fill(long pos, byte[] dst, int off, int len) {
+		map.position((int)pos);
+		map.get(dst, off, len);
+	}
+	
+}
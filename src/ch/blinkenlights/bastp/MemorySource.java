@@ -0,0 +1,39 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+
+/* A source backed by a byte array, mostly useful
+** to feed synthetic files into the parsers
+*/
+public class MemorySource extends Source {
+	private final byte[] data;
+	private final int len;
+	
+	public MemorySource(byte[] data) {
+		this(data, data.length);
+	}
+	
+	/* Uses only the first 'len' bytes of 'data' */
+	public MemorySource(byte[] data, int len) {
+		this.data = data;
+		this.len  = len;
+	}
+	
+	public long length() {
+		return len;
+	}
+	
+	protected void fill(long pos, byte[] dst, int off, int len) {
+		System.arraycopy(data, (int)pos, dst, off, len);
+	}
+	
+}
@@ -0,0 +1,283 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+
+/* Parses the iTunes style metadata of MP4 (m4a, m4b, alac) files,
+** found at moov/udta/meta/ilst. Atoms are walked by their size: only
+** the 8 or 16 byte headers of the atoms on the way are read, so
+** mdat is skipped at the same cost whether moov is in front of or
+** behind it.
+*/
+public class Mp4File extends Common {
+	/* we give up on containers with more children than this */
+	private static final int MAX_ATOMS = 1024;
+	/* values bigger than this are not text */
+	private static final int MAX_TEXT_SIZE = 65536;
+	
+	/* type indicators of 'data' atoms */
+	private static final int DATA_TYPE_UTF8 = 1;
+	private static final int DATA_TYPE_JPEG = 13;
+	private static final int DATA_TYPE_PNG  = 14;
+	private static final int DATA_TYPE_BMP  = 27;
+	
+	/* iTunes Sound Check, used if there are no ReplayGain tags */
+	private static final String ITUNNORM = "ITUNNORM";
+	
+	/* Converts ilst atoms to OggNames */
+	private static final HashMap<String, TagSet.Key> ATOM_KEYS = new HashMap<String, TagSet.Key>();
+	static {
+		ATOM_KEYS.put("\u00A9nam", TagSet.Key.TITLE);
+		ATOM_KEYS.put("\u00A9alb", TagSet.Key.ALBUM);
+		ATOM_KEYS.put("\u00A9ART", TagSet.Key.ARTIST);
+		ATOM_KEYS.put("aART",      TagSet.Key.ALBUMARTIST);
+		ATOM_KEYS.put("trkn",      TagSet.Key.TRACKNUMBER);
+		ATOM_KEYS.put("disk",      TagSet.Key.DISCNUMBER);
+		ATOM_KEYS.put("\u00A9day", TagSet.Key.DATE);
+		ATOM_KEYS.put("\u00A9gen", TagSet.Key.GENRE);
+		ATOM_KEYS.put("\u00A9wrt", TagSet.Key.COMPOSER);
+		ATOM_KEYS.put("covr",      TagSet.Key.PICTURE);
+	}
+	
+	private final byte[] ahdr = new byte[16]; // header of the current atom
+	private String atom_name;                 // name of the atom found by next_atom()
+	private long   atom_end;                  // end of the atom found by next_atom()
+	
+	public Mp4File() {
+	}
+	
+	public TagSet getTags(Source s, TagSet tags) throws IOException {
+		long[] moov = find_atom(s, 0, s.length(), "moov");
+		if(moov == null)
+			xdie("No moov atom found");
+		
+		// iTunes puts meta into udta, some (older) writers into moov itself
+		long[] meta = null;
+		long[] udta = find_atom(s, moov[0], moov[1], "udta");
+		if(udta != null)
+			meta = find_atom(s, udta[0], udta[1], "meta");
+		if(meta == null)
+			meta = find_atom(s, moov[0], moov[1], "meta");
+		if(meta == null)
+			return tags; // no tags at all
+		
+		// meta is a 'full' atom with a version and flags, except for some quicktime files
+		long start = meta[0];
+		s.read(start, ahdr, 0, 8);
+		if(!(ahdr[4] == 'h' && ahdr[5] == 'd' && ahdr[6] == 'l' && ahdr[7] == 'r'))
+			start += 4;
+		
+		long[] ilst = find_atom(s, start, meta[1], "ilst");
+		if(ilst != null)
+			parse_ilst(s, ilst[0], ilst[1], tags);
+		return tags;
+	}
+	
+	/* Parses the items of an ilst atom, each of them holds one or more data atoms */
+	private void parse_ilst(Source s, long offset, long end, TagSet tags) throws IOException {
+		String itunnorm = null;
+		long pos = offset;
+		
+		for(int i=0; i<MAX_ATOMS && !tags.isComplete(); i++) {
+			long item = next_atom(s, pos, end);
+			if(item < 0)
+				break;
+			String name = atom_name;
+			long item_end = atom_end;
+			pos = item_end;
+			
+			if(name.equals("----")) {
+				String key = parse_freeform_name(s, item, item_end);
+				if(key == null)
+					continue;
+				
+				TagSet.Key k = TagSet.lookupKey(key);
+				boolean is_norm = key.equals(ITUNNORM) && tags.wants(TagSet.Key.REPLAYGAIN_TRACK_GAIN);
+				if(!is_norm && (k == null ? !tags.wantsOverflow() : (!tags.wants(k) || k == TagSet.Key.PICTURE)))
+					continue;
+				
+				String value = read_text(s, item, item_end);
+				if(value == null)
+					continue;
+				if(is_norm)
+					itunnorm = value;
+				tags.add(key, value);
+				continue;
+			}
+			
+			TagSet.Key k = ATOM_KEYS.get(name);
+			if(k == null || !tags.wants(k))
+				continue;
+			
+			if(k == TagSet.Key.PICTURE) {
+				parse_covr(s, item, item_end, tags);
+			}
+			else if(k == TagSet.Key.TRACKNUMBER || k == TagSet.Key.DISCNUMBER) {
+				// [TYPE:32][LOCALE:32][RESERVED:16][NUMBER:16][TOTAL:16]
+				long data = find_data(s, item, item_end);
+				if(data >= 0 && atom_end - data >= 14) {
+					s.read(data+8, ahdr, 0, 6);
+					int number = (b2u(ahdr[2]) << 8) | b2u(ahdr[3]);
+					int total  = (b2u(ahdr[4]) << 8) | b2u(ahdr[5]);
+					if(number != 0)
+						tags.add(k, (total != 0 ? number+"/"+total : ""+number));
+				}
+			}
+			else {
+				String value = read_text(s, item, item_end);
+				if(value != null)
+					tags.add(k, value);
+			}
+		}
+		
+		if(itunnorm != null && !tags.has(TagSet.Key.REPLAYGAIN_TRACK_GAIN)) {
+			float gain = parse_itunnorm(itunnorm);
+			if(!Float.isNaN(gain))
+				tags.add(TagSet.Key.REPLAYGAIN_TRACK_GAIN, gain+" dB");
+		}
+	}
+	
+	/* Returns the upper case 'name' of a freeform (----) item
+	** or null if it is not in the com.apple.iTunes namespace */
+	private String parse_freeform_name(Source s, long offset, long end) throws IOException {
+		long[] mean = find_atom(s, offset, end, "mean");
+		long[] name = find_atom(s, offset, end, "name");
+		if(mean == null || name == null)
+			return null;
+		
+		// both have a version and flags in front of the string
+		String ns = read_string(s, mean[0]+4, mean[1]);
+		if(ns == null || !ns.equals("com.apple.iTunes"))
+			return null;
+		String key = read_string(s, name[0]+4, name[1]);
+		return (key == null ? null : key.toUpperCase());
+	}
+	
+	/* Adds all pictures of a covr item */
+	private void parse_covr(Source s, long offset, long end, TagSet tags) throws IOException {
+		long pos = offset;
+		for(int i=0; i<MAX_ATOMS; i++) {
+			long data = next_atom(s, pos, end);
+			if(data < 0)
+				break;
+			pos = atom_end;
+			if(!atom_name.equals("data") || atom_end - data < 8)
+				continue;
+			
+			// [TYPE:32][LOCALE:32][IMAGE]
+			s.read(data, ahdr, 0, 4);
+			int type = b2be32(ahdr, 0) & 0xFFFFFF;
+			String mime = (type == DATA_TYPE_JPEG ? "image/jpeg" : type == DATA_TYPE_PNG ? "image/png" : type == DATA_TYPE_BMP ? "image/bmp" : "");
+			long len = atom_end - data - 8;
+			if(len > 0 && len <= Integer.MAX_VALUE)
+				tags.addPicture(new Picture(mime, Picture.TYPE_FRONT_COVER, data+8, (int)len));
+		}
+	}
+	
+	/* Returns the value of the first utf-8 data atom of an item or null */
+	private String read_text(Source s, long offset, long end) throws IOException {
+		long data = find_data(s, offset, end);
+		if(data < 0)
+			return null;
+		s.read(data, ahdr, 0, 4);
+		if((b2be32(ahdr, 0) & 0xFFFFFF) != DATA_TYPE_UTF8)
+			return null;
+		return read_string(s, data+8, atom_end);
+	}
+	
+	/* Returns the offset of the payload of the first data atom of
+	** an item (pointing to its type) or -1, atom_end is its end */
+	private long find_data(Source s, long offset, long end) throws IOException {
+		long[] data = find_atom(s, offset, end, "data");
+		if(data == null || data[1] - data[0] < 8)
+			return -1;
+		atom_end = data[1];
+		return data[0];
+	}
+	
+	private String read_string(Source s, long offset, long end) throws IOException {
+		long len = end - offset;
+		if(len < 0 || len > MAX_TEXT_SIZE)
+			return null;
+		byte[] b = new byte[(int)len];
+		s.read(offset, b);
+		return new String(b, "UTF-8");
+	}
+	
+	/* Converts the volume adjustment of an iTunNORM value into a gain in
+	** dB: the first two of its hex numbers are the adjustments of the
+	** left and right channel in 1/1000 of the reference level */
+	private float parse_itunnorm(String value) {
+		String[] parts = value.trim().split("\\s+");
+		if(parts.length < 2)
+			return Float.NaN;
+		try {
+			long adjust = Math.max(Long.parseLong(parts[0], 16), Long.parseLong(parts[1], 16));
+			if(adjust <= 0)
+				return Float.NaN;
+			return (float)(-10 * Math.log10(adjust / 1000.0));
+		}
+		catch(NumberFormatException e) {
+			return Float.NaN;
+		}
+	}
+	
+	/* Returns [payload_offset, end] of the first child called
+	** 'name' of the container between 'offset' and 'end' or null */
+	private long[] find_atom(Source s, long offset, long end, String name) throws IOException {
+		long pos = offset;
+		for(int i=0; i<MAX_ATOMS; i++) {
+			long payload = next_atom(s, pos, end);
+			if(payload < 0)
+				break;
+			if(atom_name.equals(name))
+				return new long[] { payload, atom_end };
+			pos = atom_end;
+		}
+		return null;
+	}
+	
+	/* Reads the header of the atom at 'pos', sets atom_name and atom_end
+	** and returns the offset of its payload, or -1 if there is no (valid)
+	** atom before 'end'
+	*/
+	private long next_atom(Source s, long pos, long end) throws IOException {
+		if(pos + 8 > end)
+			return -1;
+		
+		s.read(pos, ahdr, 0, 8);
+		long size    = b2be32(ahdr, 0) & 0xFFFFFFFFL;
+		long payload = pos + 8;
+		
+		if(size == 1) {
+			// 64 bit size follows the name
+			if(pos + 16 > end)
+				return -1;
+			s.read(pos+8, ahdr, 8, 8);
+			size    = ((long)b2be32(ahdr, 8) << 32) | (b2be32(ahdr, 12) & 0xFFFFFFFFL);
+			payload = pos + 16;
+		}
+		else if(size == 0) {
+			size = end - pos; // extends to the end of the container
+		}
+		
+		if(size < payload - pos || size > end - pos)
+			return -1; // damaged or truncated
+		
+		atom_name = new String(ahdr, 4, 4, "ISO-8859-1");
+		atom_end  = pos + size;
+		return payload;
+	}
+	
+}
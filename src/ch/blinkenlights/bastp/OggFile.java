@@ -12,96 +12,155 @@ package ch.blinkenlights.bastp;
 
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.HashMap;
 
 
 public class OggFile extends Common {
-
-	private static final int OGG_PAGE_SIZE    = 27;  // Static size of an OGG Page
-	private static final int OGG_TYPE_COMMENT = 3;   // ID of 'VorbisComment's
+	
+	private static final int FLAC_TYPE_COMMENT = 4;   // ID of 'VorbisComment's in (ogg) flac
+	private static final int MAX_FLAC_PACKETS  = 64;  // number of metadata packets we look at
+	private static final int MAX_PAGE_SIZE     = 65307; // header with 255 segments + 255*255 bytes of payload
+	private static final int OPUS_SAMPLE_RATE  = 48000; // the granule rate of all opus streams
+	
+	/* R128 gains are relative to -23 LUFS, ReplayGain
+	** uses -18 LUFS (89dB SPL) as its reference */
+	private static final float R128_TO_REPLAYGAIN = 5.0f;
 	
 	public OggFile() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
-		long offset = 0;
-		int  retry  = 64;
-		HashMap tags = new HashMap();
+	/* Finds the comment packet of vorbis, opus and flac streams: it is
+	** always one of the first packets, so the reader stops right after it */
+	public TagSet getTags(Source s, TagSet tags) throws IOException {
+		OggPacketReader reader = new OggPacketReader(s);
+		OggPacketReader.Packet p = reader.next(); // identification header
+		byte[] pfx = new byte[8];
+		
+		if(p == null)
+			xdie("Empty ogg stream");
+		p.readAtMost(0, pfx, 0, pfx.length);
 		
-		for( ; retry > 0 ; retry-- ) {
-			long res[] = parse_ogg_page(s, offset);
-			if(res[2] == OGG_TYPE_COMMENT) {
-				tags = parse_ogg_vorbis_comment(s, offset+res[0], res[1]);
-				break;
+		if(starts_with(pfx, "\1vorbis")) {
+			p = reader.next();
+			packet = 1;
+			if(p == null || p.readAtMost(0, pfx, 0, 7) != 7 || !starts_with(pfx, "\3vorbis"))
+				xdie("Damaged packet found!");
+			parse_vorbis_comment(p, 7, p.length()-7, tags);
+		}
+		else if(starts_with(pfx, "OpusHead")) {
+			p = reader.next();
+			packet = 1;
+			if(p == null || p.readAtMost(0, pfx, 0, 8) != 8 || !starts_with(pfx, "OpusTags"))
+				xdie("Damaged packet found!");
+			parse_vorbis_comment(p, 8, p.length()-8, tags);
+			add_r128_gain(tags, TagSet.Key.R128_TRACK_GAIN, TagSet.Key.REPLAYGAIN_TRACK_GAIN);
+			add_r128_gain(tags, TagSet.Key.R128_ALBUM_GAIN, TagSet.Key.REPLAYGAIN_ALBUM_GAIN);
+		}
+		else if(starts_with(pfx, "\177FLAC")) {
+			// each following header packet holds a single metadata block
+			for(int i=0; i<MAX_FLAC_PACKETS; i++) {
+				p = reader.next();
+				packet = i+1;
+				if(p == null || p.readAtMost(0, pfx, 0, 4) != 4)
+					break;
+				if((pfx[0] & 0x7F) == FLAC_TYPE_COMMENT) {
+					parse_vorbis_comment(p, 4, p.length()-4, tags);
+					break;
+				}
+				if((pfx[0] & 0x80) != 0)
+					break; // that was the last block
 			}
-			offset += res[0] + res[1];
+		}
+		else {
+			xdie("Unknown ogg codec");
 		}
 		return tags;
 	}
 	
-	
-	/* Parses the ogg page at offset 'offset' and returns
-	** [header_size, payload_size, type]
-	*/
-	private long[] parse_ogg_page(RandomAccessFile s, long offset) throws IOException {
-		long[] result   = new long[3];               // [header_size, payload_size]
-		byte[] p_header = new byte[OGG_PAGE_SIZE];   // buffer for the page header 
-		byte[] scratch;
-		int bread       = 0;                         // number of bytes read
-		int psize       = 0;                         // payload-size
-		int nsegs       = 0;                         // Number of segments
-		
-		s.seek(offset);
-		bread = s.read(p_header);
-		if(bread != OGG_PAGE_SIZE)
-			xdie("Unable to read() OGG_PAGE_HEADER");
-		if((new String(p_header, 0, 5)).equals("OggS\0") != true)
-			xdie("Invalid magic - not an ogg file?");
+	/* Returns the properties found in the identification header,
+	** the duration is derived from the granule position of the last page */
+	public AudioProperties getProperties(Source s) throws IOException {
+		OggPacketReader reader = new OggPacketReader(s);
+		OggPacketReader.Packet p = reader.next(); // identification header
+		byte[] id = new byte[32];
 		
-		nsegs = b2u(p_header[26]); 
-		// debug("> file seg: "+nsegs);
-		if(nsegs > 0) {
-			scratch  = new byte[nsegs];
-			bread    = s.read(scratch); 
-			if(bread != nsegs)
-				xdie("Failed to read segtable");
-			
-			for(int i=0; i<nsegs; i++) {
-				psize += b2u(scratch[i]); 
-			}
-		}
+		if(p == null)
+			xdie("Empty ogg stream");
+		p.readAtMost(0, id, 0, id.length);
 		
-		// populate result array
-		result[0] = (s.getFilePointer() - offset);
-		result[1] = psize;
-		result[2] = -1;
+		String codec;
+		int  channels;
+		int  rate;
+		long skip = 0;   // samples to skip at the start
+		long samples = -1;
 		
-		/* next byte is most likely the type -> pre-read */
-		if(psize >= 1 && s.read(p_header, 0, 1) == 1) {
-			result[2] = b2u(p_header[0]);
+		if(starts_with(id, "\1vorbis")) {
+			// [\1vorbis][VERSION:32][CHANNELS:8][RATE:32]...
+			codec    = "Vorbis";
+			channels = b2u(id[11]);
+			rate     = b2le32(id, 12);
+		}
+		else if(starts_with(id, "OpusHead")) {
+			// [OpusHead][VERSION:8][CHANNELS:8][PRESKIP:16][INPUT_RATE:32]...
+			codec    = "Opus";
+			channels = b2u(id[9]);
+			rate     = OPUS_SAMPLE_RATE;
+			skip     = b2u(id[10]) | (b2u(id[11]) << 8);
+		}
+		else if(starts_with(id, "\177FLAC")) {
+			// [\177FLAC][MAJOR][MINOR][HEADERS:16][fLaC][BLOCK_HEADER][STREAMINFO]
+			AudioProperties si = (new FlacFile()).parse_streaminfo(p, 17);
+			codec    = si.codec;
+			channels = si.channels;
+			rate     = si.sample_rate;
+			if(si.duration > 0)
+				samples = si.duration * rate / 1000;
 		}
+		else {
+			xdie("Unknown ogg codec");
+			return null;
+		}
+		
+		if(rate <= 0)
+			xdie("Invalid sample rate");
+		if(samples < 0)
+			samples = last_granule(s) - skip;
 		
-		return result;
+		long duration = Math.max(samples, 0) * 1000 / rate;
+		return new AudioProperties(codec, channels, rate, AudioProperties.bitrate(s.length(), duration), duration);
 	}
 	
-	/* In 'vorbiscomment' field is prefixed with \3vorbis in OGG files
-	** we check that this marker is present and call the generic comment
-	** parset with the correct offset (+7) */
-	private HashMap parse_ogg_vorbis_comment(RandomAccessFile s, long offset, long pl_len) throws IOException {
-		final int pfx_len = 7;
-		byte[] pfx        = new byte[pfx_len];
-		
-		if(pl_len < pfx_len)
-			xdie("ogg vorbis comment field is too short!");
+	/* Returns the granule position of the last page, which
+	** has to be within the last MAX_PAGE_SIZE bytes */
+	private long last_granule(Source s) throws IOException {
+		long start = Math.max(0, s.length() - MAX_PAGE_SIZE);
+		byte[] tail = new byte[(int)(s.length() - start)];
+		s.read(start, tail);
 		
-		s.seek(offset);
-		s.read(pfx);
-		
-		if( (new String(pfx, 0, pfx_len)).equals("\3vorbis") == false )
-			xdie("Damaged packet found!");
-		
-		return parse_vorbis_comment(s, offset+pfx_len, pl_len-pfx_len);
+		for(int i=tail.length-27; i>=0; i--) {
+			if(tail[i] == 'O' && tail[i+1] == 'g' && tail[i+2] == 'g' && tail[i+3] == 'S' && tail[i+4] == 0) {
+				long granule = (b2le32(tail, i+6) & 0xFFFFFFFFL) | ((long)b2le32(tail, i+10) << 32);
+				if(granule != -1)
+					return granule;
+			}
+		}
+		xdie("No page with a granule position found");
+		return 0;
+	}
+	
+	/* Converts an opus R128 gain (a Q7.8 number) into its ReplayGain
+	** counterpart, unless there already is a proper ReplayGain tag */
+	private void add_r128_gain(TagSet tags, TagSet.Key r128, TagSet.Key rg) {
+		float gain = tags.getFloat(r128);
+		if(!Float.isNaN(gain) && !tags.has(rg))
+			tags.add(rg, (gain/256 + R128_TO_REPLAYGAIN)+" dB");
 	}
 	
+	private boolean starts_with(byte[] b, String magic) {
+		for(int i=0; i<magic.length(); i++) {
+			if(b[i] != (byte)magic.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
 };
@@ -0,0 +1,159 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+
+import java.io.IOException;
+
+
+/* Reassembles the packets of an ogg stream by following the lacing
+** values across pages. The file is only walked forward and the
+** payload is never copied: a packet is returned as a Source that
+** maps packet offsets onto the page payloads within the file, so
+** a parser may skip huge parts of a packet (such as pictures)
+** without reading them.
+*/
+public class OggPacketReader extends Common {
+	private static final int OGG_PAGE_SIZE = 27;  // Static size of an OGG Page
+	
+	private final Source s;
+	private final byte[] p_header = new byte[OGG_PAGE_SIZE];
+	private final byte[] lacing   = new byte[255];
+	private final Packet packet;
+	
+	private long pos     = 0;  // offset of the next page
+	private long segpos  = 0;  // offset of the next unused segment
+	private int  nsegs   = 0;  // number of segments in the current page
+	private int  seg     = 0;  // index of the next unused segment
+	private long granule = -1; // granule position of the current page
+	
+	public OggPacketReader(Source s) {
+		this.s = s;
+		this.packet = new Packet(s);
+	}
+	
+	/* Returns the next packet or null at the end of the stream.
+	** The returned object is reused by the next call */
+	public Packet next() throws IOException {
+		packet.reset();
+		
+		for(;;) {
+			if(seg == nsegs && !next_page())
+				return null; // eof, maybe within a truncated packet
+			
+			long start = segpos;
+			int  len   = 0;
+			boolean complete = false;
+			while(seg < nsegs) {
+				int l = b2u(lacing[seg++]);
+				len += l;
+				if(l < 255) {
+					complete = true;
+					break;
+				}
+			}
+			segpos += len;
+			packet.add(start, len);
+			
+			if(complete)
+				return packet;
+		}
+	}
+	
+	/* Returns the granule position of the last page read */
+	public long getGranule() {
+		return granule;
+	}
+	
+	/* Reads the header of the page at 'pos', returns false at eof */
+	private boolean next_page() throws IOException {
+		if(pos + OGG_PAGE_SIZE > s.length())
+			return false;
+		
+		s.read(pos, p_header);
+		if(p_header[0] != 'O' || p_header[1] != 'g' || p_header[2] != 'g' || p_header[3] != 'S' || p_header[4] != 0)
+			xdie("Invalid magic - not an ogg file?");
+		
+		nsegs = b2u(p_header[26]);
+		seg   = 0;
+		s.read(pos+OGG_PAGE_SIZE, lacing, 0, nsegs);
+		
+		int psize = 0;
+		for(int i=0; i<nsegs; i++)
+			psize += b2u(lacing[i]);
+		
+		granule = (b2le32(p_header, 6) & 0xFFFFFFFFL) | ((long)b2le32(p_header, 10) << 32);
+		segpos  = pos + OGG_PAGE_SIZE + nsegs;
+		pos     = segpos + psize;
+		return true;
+	}
+	
+
+	/* A packet, made of one or more runs of bytes within the file */
+	public static class Packet extends Source {
+		private final Source s;
+		private long[] offsets = new long[4];
+		private int[]  lengths = new int[4];
+		private int    runs    = 0;
+		private long   length  = 0;
+		
+		Packet(Source s) {
+			this.s = s;
+		}
+		
+		void reset() {
+			runs   = 0;
+			length = 0;
+		}
+		
+		void add(long offset, int len) {
+			if(len == 0)
+				return;
+			if(runs == offsets.length) {
+				long[] o = new long[runs*2];
+				int[]  l = new int[runs*2];
+				System.arraycopy(offsets, 0, o, 0, runs);
+				System.arraycopy(lengths, 0, l, 0, runs);
+				offsets = o;
+				lengths = l;
+			}
+			offsets[runs] = offset;
+			lengths[runs] = len;
+			runs++;
+			length += len;
+		}
+		
+		public long length() {
+			return length;
+		}
+		
+		protected void fill(long pos, byte[] dst, int off, int len) throws IOException {
+			int i = 0;
+			// find the run containing 'pos'
+			for(; pos >= lengths[i]; i++)
+				pos -= lengths[i];
+			
+			while(len > 0) {
+				int n = (int)Math.min(len, lengths[i] - pos);
+				s.read(offsets[i] + pos, dst, off, n);
+				off += n;
+				len -= n;
+				pos  = 0;
+				i++;
+			}
+		}
+		
+		public int getIoCount() {
+			return s.getIoCount();
+		}
+	}
+
+}
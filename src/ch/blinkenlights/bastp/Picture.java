@@ -0,0 +1,58 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+
+/* An embedded picture. The parsers only record where the image
+** data is, it is read by Bastp.readPicture() when needed
+*/
+public class Picture {
+	public static final int TYPE_OTHER       = 0;
+	public static final int TYPE_FRONT_COVER = 3;
+	
+	public final String mime;  // as given by the file, may be empty
+	public final int    type;  // id3/flac picture type
+	public final long   offset; // of the image data within the file
+	public final int    length;
+	
+	/* ogg files (and some flac files) store the picture base64 encoded
+	** within a vorbis comment: 'offset' is then relative to the decoded
+	** data. b64_offset is the position of the encoded data within the
+	** ogg packet with index 'packet', or within the file if packet is -1
+	*/
+	final int  packet;
+	final long b64_offset;
+	final long b64_length;
+	
+	public Picture(String mime, int type, long offset, int length) {
+		this(mime, type, offset, length, -1, 0, 0);
+	}
+	
+	Picture(String mime, int type, long offset, int length, int packet, long b64_offset, long b64_length) {
+		this.mime       = mime;
+		this.type       = type;
+		this.offset     = offset;
+		this.length     = length;
+		this.packet     = packet;
+		this.b64_offset = b64_offset;
+		this.b64_length = b64_length;
+	}
+	
+	/* Returns true if the image data is stored as is at 'offset' within the file */
+	public boolean isFileRegion() {
+		return b64_length == 0;
+	}
+	
+	public String toString() {
+		return mime+"@"+offset+"+"+length+(isFileRegion() ? "" : " (base64)");
+	}
+	
+}
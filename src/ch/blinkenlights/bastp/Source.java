@@ -0,0 +1,67 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+import java.io.IOException;
+
+
+/* A random access byte source for the parsers
+** All reads are absolute (there is no file pointer to seek around)
+** and bounds checked: a read that does not fit into the source
+** throws an IOException instead of silently returning less data
+*/
+public abstract class Source {
+	private int io_count = 0; // number of calls that hit the underlying storage
+	
+	/* Returns the total size of this source in bytes */
+	public abstract long length();
+	
+	/* Copies exactly 'len' bytes at position 'pos' into 'dst'.
+	** Will only be called with already checked arguments
+	*/
+	protected abstract void fill(long pos, byte[] dst, int off, int len) throws IOException;
+	
+	/* Releases any resources held by this source */
+	public void close() throws IOException {
+	}
+	
+	public void read(long pos, byte[] dst) throws IOException {
+		read(pos, dst, 0, dst.length);
+	}
+	
+	public void read(long pos, byte[] dst, int off, int len) throws IOException {
+		if(pos < 0 || len < 0 || off < 0 || off+len > dst.length || pos+len > length())
+			throw new IOException("read of "+len+" bytes at "+pos+" is out of bounds");
+		if(len > 0)
+			fill(pos, dst, off, len);
+	}
+	
+	/* Like read() but clamps 'len' to the end of the source
+	** and returns the number of copied bytes
+	*/
+	public int readAtMost(long pos, byte[] dst, int off, int len) throws IOException {
+		long avail = length() - pos;
+		if(avail < len)
+			len = (int)(avail < 0 ? 0 : avail);
+		read(pos, dst, off, len);
+		return len;
+	}
+	
+	/* Returns how many times the underlying storage was accessed */
+	public int getIoCount() {
+		return io_count;
+	}
+	
+	protected void countIo() {
+		io_count++;
+	}
+	
+}
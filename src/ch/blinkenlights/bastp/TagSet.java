@@ -0,0 +1,369 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/* The result of a parser run.
+** Well known keys live in fixed slots (indexed by Key) and gain/peak
+** values are parsed into floats as soon as they are added, so callers
+** can read them without any string handling. Everything else goes
+** into an overflow map that is only allocated when needed.
+**
+** A TagSet may be limited to a set of wanted keys: anything else is
+** dropped by add() and parsers stop as soon as isComplete() is true.
+** PICTURE only counts as found once there is a front cover, so that
+** getCover() returns the same picture as for a full parse.
+*/
+@SuppressWarnings("unchecked")
+public class TagSet {
+	
+	public enum Key {
+		TITLE,
+		ALBUM,
+		ARTIST,
+		ALBUMARTIST,
+		TRACKNUMBER,
+		DISCNUMBER,
+		DATE,
+		GENRE,
+		COMPOSER,
+		LYRICIST,
+		PICTURE,  /* mime types of embedded pictures, see getPictures() */
+		REPLAYGAIN_TRACK_GAIN (true),
+		REPLAYGAIN_ALBUM_GAIN (true),
+		REPLAYGAIN_TRACK_PEAK (true),
+		REPLAYGAIN_ALBUM_PEAK (true),
+		/* opus gains, also parsed if the ReplayGain keys are wanted */
+		R128_TRACK_GAIN       (true, REPLAYGAIN_TRACK_GAIN),
+		R128_ALBUM_GAIN       (true, REPLAYGAIN_ALBUM_GAIN);
+		
+		final boolean numeric;
+		final Key provides; // the key which may be derived from this one
+		
+		Key() {
+			this(false);
+		}
+		
+		Key(boolean numeric) {
+			this(numeric, null);
+		}
+		
+		Key(boolean numeric, Key provides) {
+			this.numeric  = numeric;
+			this.provides = provides;
+		}
+	}
+	
+	private static final Key[] KEYS = Key.values();
+	private static final HashMap<String, Key> KEY_NAMES = new HashMap<String, Key>();
+	/* the same as KEY_NAMES, as ascii bytes for matchKey() */
+	private static final byte[][] KEY_BYTES;
+	private static final Key[] KEY_VALUES;
+	static {
+		for(Key k : KEYS)
+			KEY_NAMES.put(k.name(), k);
+		KEY_NAMES.put("ALBUM ARTIST", Key.ALBUMARTIST);
+		KEY_NAMES.put("WRITER", Key.LYRICIST);
+		KEY_NAMES.put("METADATA_BLOCK_PICTURE", Key.PICTURE);
+		
+		KEY_BYTES = new byte[KEY_NAMES.size()][];
+		KEY_VALUES = new Key[KEY_BYTES.length];
+		int i = 0;
+		for(Map.Entry<String, Key> e : KEY_NAMES.entrySet()) {
+			KEY_BYTES[i]  = e.getKey().getBytes();
+			KEY_VALUES[i] = e.getValue();
+			i++;
+		}
+	}
+	
+	/* the magic of the parsed file, eg. 'fLaC' */
+	public String magic = "";
+	
+	private final Object[] slots   = new Object[KEYS.length]; // a String or an ArrayList of Strings
+	private final float[]  numbers = new float[KEYS.length];
+	private HashMap<String, ArrayList<String>> overflow;
+	private ArrayList<Picture> pictures;
+	private final EnumSet<Key> wanted;    // null if we want everything
+	private final EnumSet<Key> requested; // the keys the caller asked for
+	private int missing;                  // number of requested keys not found yet
+	private boolean front;                // true once a front cover was added
+	
+	public TagSet() {
+		this(null);
+	}
+	
+	/* Creates a TagSet which only keeps the keys in 'wanted',
+	** or everything if 'wanted' is null */
+	public TagSet(EnumSet<Key> wanted) {
+		for(int i=0; i<numbers.length; i++)
+			numbers[i] = Float.NaN;
+		this.requested = (wanted == null ? null : EnumSet.copyOf(wanted));
+		this.wanted    = (wanted == null ? null : EnumSet.copyOf(wanted));
+		this.missing   = (wanted == null ? -1 : wanted.size());
+		if(wanted != null) {
+			for(Key k : KEYS) {
+				if(k.provides != null && wanted.contains(k.provides))
+					this.wanted.add(k);
+			}
+		}
+	}
+	
+	/* Returns true if 'key' should be parsed */
+	public boolean wants(Key key) {
+		return wanted == null || wanted.contains(key);
+	}
+	
+	/* Returns true if keys which are not well known should be parsed */
+	public boolean wantsOverflow() {
+		return wanted == null;
+	}
+	
+	/* Returns true if all wanted keys were found: parsers
+	** may stop here. Never true if we want everything */
+	public boolean isComplete() {
+		return missing == 0;
+	}
+	
+	/* Returns the well known key for an upper case tag name or null */
+	public static Key lookupKey(String name) {
+		return KEY_NAMES.get(name);
+	}
+	
+	/* Returns the well known key for the ascii name in b[off..off+len],
+	** which is compared case insensitive, or null */
+	public static Key matchKey(byte[] b, int off, int len) {
+		for(int i=0; i<KEY_BYTES.length; i++) {
+			byte[] name = KEY_BYTES[i];
+			if(name.length != len)
+				continue;
+			int j = 0;
+			for(; j<len; j++) {
+				int c = b[off+j];
+				if(c >= 'a' && c <= 'z')
+					c -= 'a' - 'A';
+				if(c != name[j])
+					break;
+			}
+			if(j == len)
+				return KEY_VALUES[i];
+		}
+		return null;
+	}
+	
+	/* Adds a value, 'key' must be upper case */
+	public void add(String key, String value) {
+		Key k = lookupKey(key);
+		if(k == Key.PICTURE)
+			return; // only added by addPicture()
+		if(k != null) {
+			add(k, value);
+			return;
+		}
+		if(!wantsOverflow())
+			return;
+		
+		if(overflow == null)
+			overflow = new HashMap<String, ArrayList<String>>();
+		ArrayList<String> vx = overflow.get(key);
+		if(vx == null) {
+			vx = new ArrayList<String>(1);
+			overflow.put(key, vx);
+		}
+		vx.add(value);
+	}
+	
+	public void add(Key key, String value) {
+		if(!wants(key))
+			return;
+		int i = key.ordinal();
+		Object old = slots[i];
+		if(old == null) {
+			slots[i] = value;
+			if(requested != null && requested.contains(key) && key != Key.PICTURE)
+				missing--;
+			if(key.numeric)
+				numbers[i] = parseNumber(value);
+		}
+		else if(old instanceof String) {
+			ArrayList<String> vx = new ArrayList<String>(2);
+			vx.add((String)old);
+			vx.add(value);
+			slots[i] = vx;
+		}
+		else {
+			((ArrayList<String>)old).add(value);
+		}
+	}
+	
+	public boolean has(Key key) {
+		return slots[key.ordinal()] != null;
+	}
+	
+	public boolean has(String key) {
+		Key k = lookupKey(key);
+		if(k != null)
+			return has(k);
+		return overflow != null && overflow.containsKey(key);
+	}
+	
+	/* Returns the first value of 'key' or null */
+	public String get(Key key) {
+		Object v = slots[key.ordinal()];
+		if(v instanceof ArrayList)
+			return ((ArrayList<String>)v).get(0);
+		return (String)v;
+	}
+	
+	public String get(String key) {
+		Key k = lookupKey(key);
+		if(k != null)
+			return get(k);
+		List<String> vx = (overflow == null ? null : overflow.get(key));
+		return (vx == null ? null : vx.get(0));
+	}
+	
+	/* Returns all values of 'key', which may be an empty list */
+	public List<String> getAll(Key key) {
+		Object v = slots[key.ordinal()];
+		ArrayList<String> vx = new ArrayList<String>(1);
+		if(v instanceof ArrayList)
+			vx.addAll((ArrayList<String>)v);
+		else if(v != null)
+			vx.add((String)v);
+		return vx;
+	}
+	
+	/* Returns the numeric value of a gain or peak key,
+	** NaN if the key was not found. Unparseable values are 0 */
+	public float getFloat(Key key) {
+		return numbers[key.ordinal()];
+	}
+	
+	/* Copies 'key' from 'from' if we do not have it yet */
+	public void inherit(Key key, TagSet from) {
+		int i = key.ordinal();
+		if(slots[i] == null && from.slots[i] != null && wants(key)) {
+			slots[i]   = from.slots[i];
+			numbers[i] = from.numbers[i];
+			if(requested != null && requested.contains(key))
+				missing--;
+		}
+	}
+	
+	/* Records an embedded picture */
+	public void addPicture(Picture p) {
+		if(!wants(Key.PICTURE))
+			return;
+		if(pictures == null)
+			pictures = new ArrayList<Picture>(1);
+		pictures.add(p);
+		add(Key.PICTURE, p.mime);
+		if(p.type == Picture.TYPE_FRONT_COVER && !front) {
+			front = true;
+			if(requested != null && requested.contains(Key.PICTURE))
+				missing--;
+		}
+	}
+	
+	/* Returns all embedded pictures, which may be an empty list */
+	public List<Picture> getPictures() {
+		if(pictures == null)
+			return new ArrayList<Picture>(0);
+		return pictures;
+	}
+	
+	/* Returns the front cover, any other picture if there
+	** is none or null if there are no pictures at all */
+	public Picture getCover() {
+		if(pictures == null)
+			return null;
+		for(Picture p : pictures) {
+			if(p.type == Picture.TYPE_FRONT_COVER)
+				return p;
+		}
+		return pictures.get(0);
+	}
+	
+	/* Returns the keys which are not well known */
+	public Map<String, ArrayList<String>> getOverflow() {
+		if(overflow == null)
+			return new HashMap<String, ArrayList<String>>();
+		return overflow;
+	}
+	
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{_magic="+magic);
+		for(Key k : KEYS) {
+			if(slots[k.ordinal()] != null)
+				sb.append(", "+k+"="+getAll(k));
+		}
+		if(overflow != null) {
+			for(Map.Entry<String, ArrayList<String>> e : overflow.entrySet())
+				sb.append(", "+e.getKey()+"="+e.getValue());
+		}
+		return sb.append("}").toString();
+	}
+	
+	/* Parses strings like '-6.20 dB', '0.988' or '9.5e-01': leading
+	** text is skipped, a sign is only accepted right before the number
+	** and the number ends at the first character that is not part of it.
+	** Returns 0 if there is no number at all */
+	static float parseNumber(String s) {
+		int len = s.length();
+		int start = -1;
+		for(int i=0; i<len; i++) {
+			if(digit_at(s, i) || (s.charAt(i) == '.' && digit_at(s, i+1))) {
+				start = i;
+				break;
+			}
+		}
+		if(start == -1)
+			return 0f;
+		
+		int end = start;
+		while(digit_at(s, end))
+			end++;
+		if(end < len && s.charAt(end) == '.') {
+			end++;
+			while(digit_at(s, end))
+				end++;
+		}
+		if(end < len && (s.charAt(end) == 'e' || s.charAt(end) == 'E')) {
+			int exp = end + 1;
+			if(exp < len && (s.charAt(exp) == '-' || s.charAt(exp) == '+'))
+				exp++;
+			if(digit_at(s, exp)) {
+				end = exp;
+				while(digit_at(s, end))
+					end++;
+			}
+		}
+		if(start > 0 && (s.charAt(start-1) == '-' || s.charAt(start-1) == '+'))
+			start--;
+		
+		try {
+			return Float.parseFloat(s.substring(start, end));
+		} catch(NumberFormatException e) {
+			return 0f;
+		}
+	}
+	
+	private static boolean digit_at(String s, int i) {
+		return i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9';
+	}
+	
+}
@@ -0,0 +1,178 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+
+/* Reads the tags at the end of a file: APEv2 (as written by mp3gain
+** and foobar2000, often the only place with ReplayGain values) and
+** ID3v1. Both are found with a single read of the last TAIL_SIZE
+** bytes, only APE tags which do not fit in there cost more reads.
+**
+** Tail tags only fill keys which are still missing, so the tag at
+** the start of the file always wins. Together with Bastp.getTags the
+** precedence is: ID3v2 > APEv2 > LAME header > ID3v1
+*/
+public class TailTags extends Common {
+	private static final int TAIL_SIZE       = 8192;
+	private static final int ID3V1_SIZE      = 128;
+	private static final int APE_FOOTER_SIZE = 32;   // the header has the same size
+	private static final int MAX_APE_ITEMS   = 1024;
+	private static final int MAX_KEY_SIZE    = 256;
+	private static final int MAX_TEXT_SIZE   = 65536;
+	
+	/* flags of APE footers and headers */
+	private static final int APE_FLAG_HAS_HEADER = 0x80000000;
+	/* item types, found in bits 1-2 of the item flags */
+	private static final int APE_ITEM_UTF8   = 0;
+	private static final int APE_ITEM_BINARY = 1;
+	
+	/* APE keys which are named differently than their OggNames */
+	private static final HashMap<String, TagSet.Key> APE_KEYS = new HashMap<String, TagSet.Key>();
+	static {
+		APE_KEYS.put("YEAR",  TagSet.Key.DATE);
+		APE_KEYS.put("TRACK", TagSet.Key.TRACKNUMBER);
+		APE_KEYS.put("DISC",  TagSet.Key.DISCNUMBER);
+	}
+	
+	public TailTags() {
+	}
+	
+	public TagSet getTags(Source s, TagSet tags) throws IOException {
+		long flen       = s.length();
+		long tail_start = Math.max(0, flen - TAIL_SIZE);
+		byte[] tail     = new byte[(int)(flen - tail_start)];
+		s.read(tail_start, tail);
+		
+		int id3v1 = tail.length - ID3V1_SIZE; // offset of the ID3v1 tag in 'tail', -1 if there is none
+		if(id3v1 < 0 || tail[id3v1] != 'T' || tail[id3v1+1] != 'A' || tail[id3v1+2] != 'G')
+			id3v1 = -1;
+		
+		// the APE footer is at the very end or right in front of ID3v1
+		int footer = (id3v1 >= 0 ? id3v1 : tail.length) - APE_FOOTER_SIZE;
+		if(footer >= 0 && new String(tail, footer, 8, "ISO-8859-1").equals("APETAGEX"))
+			parse_ape(s, tail, tail_start, footer, tags);
+		
+		if(id3v1 >= 0 && !tags.isComplete())
+			parse_id3v1(tail, id3v1, tags);
+		return tags;
+	}
+	
+	/* Parses the items of the APE tag whose footer is at tail[footer] */
+	private void parse_ape(Source s, byte[] tail, long tail_start, int footer, TagSet tags) throws IOException {
+		// [APETAGEX][VERSION:32][SIZE:32][ITEMS:32][FLAGS:32][RESERVED:64]
+		long size  = b2le32(tail, footer+12) & 0xFFFFFFFFL; // items + footer
+		int  items = b2le32(tail, footer+16);
+		long end   = tail_start + footer;                   // file offset of the footer
+		long start = end + APE_FOOTER_SIZE - size;          // file offset of the first item
+		
+		if(size < APE_FOOTER_SIZE || start < 0)
+			xdie("Invalid APE tag size");
+		
+		// parse from the tail we already have if possible
+		Source src = s;
+		long   base = 0;
+		if(start >= tail_start) {
+			src  = new MemorySource(tail);
+			base = tail_start;
+		}
+		
+		byte[] ihdr = new byte[8 + MAX_KEY_SIZE];
+		long pos = start;
+		for(int i=0; i<items && i<MAX_APE_ITEMS && pos + 9 <= end && !tags.isComplete(); i++) {
+			// [VALUE_SIZE:32][FLAGS:32][KEY\0][VALUE]
+			int hlen = src.readAtMost(pos - base, ihdr, 0, (int)Math.min(ihdr.length, end - pos));
+			long vlen = b2le32(ihdr, 0) & 0xFFFFFFFFL;
+			int flags = b2le32(ihdr, 4);
+			int klen  = 0;
+			while(8 + klen < hlen && ihdr[8 + klen] != 0)
+				klen++;
+			if(klen < 1 || 8 + klen == hlen)
+				break; // no key or key too long: something is broken
+			
+			long value = pos + 8 + klen + 1;
+			pos = value + vlen;
+			if(pos > end)
+				break;
+			
+			String key = new String(ihdr, 8, klen, "ISO-8859-1").toUpperCase();
+			int type = (flags >> 1) & 3;
+			if(type == APE_ITEM_BINARY && key.startsWith("COVER ART")) {
+				add_ape_cover(src, base, value, vlen, key, tags);
+			}
+			else if(type == APE_ITEM_UTF8 && vlen <= MAX_TEXT_SIZE) {
+				TagSet.Key k = APE_KEYS.get(key);
+				if(k == null)
+					k = TagSet.lookupKey(key);
+				if(k == null ? (!tags.wantsOverflow() || tags.has(key)) : (!tags.wants(k) || tags.has(k)))
+					continue; // not wanted or already found in the primary tag
+				
+				byte[] v = new byte[(int)vlen];
+				src.read(value - base, v);
+				// multiple values are separated by a NUL byte
+				for(String val : new String(v, "UTF-8").split("\0")) {
+					if(k != null)
+						tags.add(k, val);
+					else
+						tags.add(key, val);
+				}
+			}
+		}
+	}
+	
+	/* Adds a 'Cover Art (...)' item: [FILENAME\0][IMAGE] */
+	private void add_ape_cover(Source src, long base, long value, long vlen, String key, TagSet tags) throws IOException {
+		if(!tags.wants(TagSet.Key.PICTURE) || tags.has(TagSet.Key.PICTURE))
+			return;
+		
+		byte[] fname = new byte[(int)Math.min(MAX_KEY_SIZE, vlen)];
+		src.read(value - base, fname);
+		int flen = indexOf(fname, fname.length, (byte)0);
+		if(flen < 0)
+			return;
+		
+		String name = new String(fname, 0, flen, "ISO-8859-1").toLowerCase();
+		String mime = (name.endsWith(".png") ? "image/png" : name.endsWith(".jpg") || name.endsWith(".jpeg") ? "image/jpeg" : "");
+		int type    = (key.equals("COVER ART (FRONT)") ? Picture.TYPE_FRONT_COVER : Picture.TYPE_OTHER);
+		long len    = vlen - flen - 1;
+		if(len > 0 && len <= Integer.MAX_VALUE)
+			tags.addPicture(new Picture(mime, type, value + flen + 1, (int)len));
+	}
+	
+	/* Parses the ID3v1(.1) tag at tail[off]:
+	** [TAG][TITLE:30][ARTIST:30][ALBUM:30][YEAR:4][COMMENT:28][0][TRACK:8][GENRE:8]
+	*/
+	private void parse_id3v1(byte[] tail, int off, TagSet tags) throws IOException {
+		add_id3v1(tags, TagSet.Key.TITLE,  tail, off+3,  30);
+		add_id3v1(tags, TagSet.Key.ARTIST, tail, off+33, 30);
+		add_id3v1(tags, TagSet.Key.ALBUM,  tail, off+63, 30);
+		add_id3v1(tags, TagSet.Key.DATE,   tail, off+93, 4);
+		if(tail[off+125] == 0 && tail[off+126] != 0 && tags.wants(TagSet.Key.TRACKNUMBER) && !tags.has(TagSet.Key.TRACKNUMBER))
+			tags.add(TagSet.Key.TRACKNUMBER, ""+b2u(tail[off+126]));
+	}
+	
+	/* Adds a NUL or space padded latin1 field */
+	private void add_id3v1(TagSet tags, TagSet.Key key, byte[] b, int off, int len) throws IOException {
+		if(!tags.wants(key) || tags.has(key))
+			return;
+		for(int i=0; i<len; i++) {
+			if(b[off+i] == 0)
+				len = i;
+		}
+		while(len > 0 && b[off+len-1] == ' ')
+			len--;
+		if(len > 0)
+			tags.add(key, new String(b, off, len, "ISO-8859-1"));
+	}
+	
+}
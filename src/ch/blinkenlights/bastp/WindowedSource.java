@@ -0,0 +1,85 @@
+/*****************************************************************
+ *  This file is part of 'bastp!' - the BuggyAndSloppyTagParser! *
+ *                                                               *
+ * (C) 2026 The Vanilla Music Contributors                       *
+ *                                                               *
+ * Released as 'Public Domain' software                          *
+ *                                                               *
+ *                                                               *
+ *****************************************************************/
+
+package ch.blinkenlights.bastp;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/* Reads a FileChannel through a small buffer window: consecutive
+** small reads (which is what all parsers do) are served from memory
+** and only a miss causes a positioned read.
+** Use this for file descriptors that can not be mapped, such as
+** the ones returned by ParcelFileDescriptor
+*/
+public class WindowedSource extends Source {
+	private static final int DEFAULT_WINDOW = 8192;
+	
+	private final FileChannel fc;
+	private final long size;
+	private final ByteBuffer window;
+	private long win_start = 0;  // file offset of the first byte in 'window'
+	private int  win_len   = 0;  // number of valid bytes in 'window'
+	
+	public WindowedSource(FileChannel fc) throws IOException {
+		this(fc, DEFAULT_WINDOW);
+	}
+	
+	public WindowedSource(FileChannel fc, int window_size) throws IOException {
+		this.fc     = fc;
+		this.size   = fc.size();
+		this.window = ByteBuffer.allocate(window_size);
+	}
+	
+	/* Note: the descriptor is still owned by the caller
+	** and will not be closed by this source */
+	public WindowedSource(FileDescriptor fd) throws IOException {
+		this((new FileInputStream(fd)).getChannel());
+	}
+	
+	public long length() {
+		return size;
+	}
+	
+	protected void fill(long pos, byte[] dst, int off, int len) throws IOException {
+		if(pos >= win_start && pos+len <= win_start+win_len) {
+			// cache hit: just copy it out of the window
+			System.arraycopy(window.array(), (int)(pos-win_start), dst, off, len);
+		}
+		else if(len >= window.capacity()) {
+			// big reads bypass the window
+			pread(ByteBuffer.wrap(dst, off, len), pos);
+		}
+		else {
+			window.clear();
+			window.limit((int)Math.min(window.capacity(), size-pos));
+			pread(window, pos);
+			win_start = pos;
+			win_len   = window.position();
+			System.arraycopy(window.array(), 0, dst, off, len);
+		}
+	}
+	
+	/* Fills 'bb' with data starting at 'pos' */
+	private void pread(ByteBuffer bb, long pos) throws IOException {
+		while(bb.hasRemaining()) {
+			countIo();
+			int bread = fc.read(bb, pos);
+			if(bread < 0)
+				throw new IOException("unexpected end of file");
+			pos += bread;
+		}
+	}
+	
+}